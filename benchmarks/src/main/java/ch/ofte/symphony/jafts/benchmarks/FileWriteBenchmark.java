@@ -0,0 +1,173 @@
+package ch.ofte.symphony.jafts.benchmarks;
+
+import ch.ofte.symphony.jafts.storage.DirectBufferPool;
+import ch.ofte.symphony.jafts.storage.FileStorageService;
+import ch.ofte.symphony.jafts.storage.IoLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writing an upload body to disk: the original {@code Files.copy} path against the alternatives
+ * <ul>
+ *     <li>{@code filesCopy} - {@link Files#copy(InputStream, Path, java.nio.file.CopyOption...)}, the original
+ *     {@code uploadFile} path</li>
+ *     <li>{@code transferFrom} - {@link FileChannel#transferFrom} from a channel over the stream</li>
+ *     <li>{@code directBuffer} - {@link FileStorageService#transfer}, pooled direct buffer and positional writes
+ *     (the current path)</li>
+ *     <li>{@code mmap} - copy into a {@link MappedByteBuffer} of the final size</li>
+ * </ul>
+ * The body is an in-memory stream, so only the write side is measured. Pick the target with {@code -p dir=...}:
+ * e.g. {@code /dev/shm} (tmpfs) to see the CPU cost, a directory on the real data disk to see the I/O cost.
+ * Each operation ends with {@code force}, otherwise the page cache hides the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class FileWriteBenchmark {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    @Param({"65536", "1048576", "67108864"})
+    private int fileSize;
+
+    @Param({"filesCopy", "transferFrom", "directBuffer", "mmap"})
+    private String method;
+
+    @Param("")
+    private String dir;
+
+    @Param("true")
+    private boolean force;
+
+    private byte[] body;
+    private Path workDir;
+    private Path target;
+    private FileStorageService storageService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        body = new byte[fileSize];
+        new Random(42).nextBytes(body);
+        Path base = dir.isEmpty() ? Path.of(System.getProperty("java.io.tmpdir")) : Path.of(dir);
+        workDir = Files.createTempDirectory(base, "jafts-write-bench");
+        target = workDir.resolve("upload.part");
+        // Only the transfer loop, its buffer pool and the disk writer permit are exercised; nothing else is needed
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        storageService = new FileStorageService(workDir.toString(), DataSize.ofGigabytes(10),
+                new DirectBufferPool(DataSize.ofKilobytes(64), 64), null, null, null, null, null, null,
+                null, new IoLimiter(32, 10_000, Duration.ofSeconds(30), meterRegistry), meterRegistry);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(workDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        InputStream in = new ByteArrayInputStream(body);
+        return switch (method) {
+            case "filesCopy" -> filesCopy(in);
+            case "transferFrom" -> transferFrom(in);
+            case "directBuffer" -> directBuffer(in);
+            case "mmap" -> mmap(in);
+            default -> throw new IllegalArgumentException(method);
+        };
+    }
+
+    private long filesCopy(InputStream in) throws IOException {
+        long written = Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        if (force) {
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+        return written;
+    }
+
+    private long transferFrom(InputStream in) throws IOException {
+        try (FileChannel channel = open()) {
+            ReadableByteChannel source = Channels.newChannel(in);
+            long position = 0;
+            long transferred;
+            while ((transferred = channel.transferFrom(source, position, COPY_BUFFER_SIZE)) > 0) {
+                position += transferred;
+            }
+            finish(channel);
+            return position;
+        }
+    }
+
+    private long directBuffer(InputStream in) throws IOException {
+        try (FileChannel channel = open()) {
+            long written = storageService.transfer(in, channel, 0, Long.MAX_VALUE);
+            finish(channel);
+            return written;
+        }
+    }
+
+    private long mmap(InputStream in) throws IOException {
+        try (FileChannel channel = open()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            byte[] chunk = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                mapped.put(chunk, 0, read);
+            }
+            if (force) {
+                mapped.force();
+            }
+            return mapped.position();
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        // Truncated rather than deleted between invocations, like an upload reusing its part file;
+        // readable as well because a read-write mapping needs it
+        return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private void finish(FileChannel channel) throws IOException {
+        if (force) {
+            channel.force(false);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ch.ofte.symphony.jafts.benchmarks;
+
+import ch.ofte.symphony.jafts.config.CacheConfig;
+import ch.ofte.symphony.jafts.idempotency.IdempotencyState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cache.Cache;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups in the {@code idempotencyCache} as configured by {@link CacheConfig}, through the Spring {@link Cache}
+ * abstraction the idempotency filter uses
+ * {@code hit} replays a completed upload, {@code miss} is every first request; {@code put} stores a response.
+ * Run with several threads ({@code -t 8}) to include contention on the Caffeine buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdempotencyCacheBenchmark {
+
+    // Below the cache's maximum size, so stored keys stay present
+    private static final int KEYS = 8_192;
+
+    private Cache cache;
+    private String[] storedKeys;
+    private String[] missingKeys;
+    private IdempotencyState completed;
+
+    @Setup
+    public void setUp() {
+        cache = new CacheConfig().cacheManager().getCache("idempotencyCache");
+        completed = new IdempotencyState(IdempotencyState.Status.COMPLETED,
+                "{\"status\":\"success\",\"fileId\":\"0b6a4d3e-8f5c-4d7e-9a1b-2c3d4e5f6a7b\"}", 200,
+                "application/json", "POST /api/p2p/upload");
+        storedKeys = new String[KEYS];
+        missingKeys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            // Same shape as the filter's keys: session ID ':' client key
+            storedKeys[i] = "5F1C2B3A4D6E7F8091A2B3C4D5E6F708:" + i;
+            missingKeys[i] = "5F1C2B3A4D6E7F8091A2B3C4D5E6F708:missing-" + i;
+            cache.put(storedKeys[i], completed);
+        }
+    }
+
+    @Benchmark
+    public IdempotencyState hit() {
+        return cache.get(storedKeys[ThreadLocalRandom.current().nextInt(KEYS)], IdempotencyState.class);
+    }
+
+    @Benchmark
+    public IdempotencyState miss() {
+        return cache.get(missingKeys[ThreadLocalRandom.current().nextInt(KEYS)], IdempotencyState.class);
+    }
+
+    @Benchmark
+    public void put() {
+        cache.put(storedKeys[ThreadLocalRandom.current().nextInt(KEYS)], completed);
+    }
+}
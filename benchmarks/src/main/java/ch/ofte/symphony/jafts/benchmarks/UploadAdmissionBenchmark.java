@@ -0,0 +1,71 @@
+package ch.ofte.symphony.jafts.benchmarks;
+
+import ch.ofte.symphony.jafts.p2p_transfer.UploadDuplicationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpSession;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload admission: {@link UploadDuplicationService#tryAcquire} followed by {@link UploadDuplicationService#release}
+ * <ul>
+ *     <li>{@code shared} - every thread uses the same session, so all of them CAS the same counter
+ *     (one user uploading many files at once)</li>
+ *     <li>{@code perThread} - every thread has its own session (many users)</li>
+ * </ul>
+ * Run with {@code -t 1}, {@code -t 8}, {@code -t 64} ... to see how admission scales with contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadAdmissionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Admission {
+
+        @Param({"shared", "perThread"})
+        private String sessions;
+
+        private UploadDuplicationService service;
+        private MockHttpSession sharedSession;
+
+        @Setup
+        public void setUp() {
+            // Enough slots that the shared session is never refused: we measure the CAS, not the rejection
+            service = new UploadDuplicationService(Integer.MAX_VALUE);
+            sharedSession = new MockHttpSession();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+
+        private MockHttpSession session;
+
+        @Setup
+        public void setUp(Admission admission) {
+            session = admission.sessions.equals("shared") ? admission.sharedSession : new MockHttpSession();
+        }
+    }
+
+    @Benchmark
+    public boolean acquireAndRelease(Admission admission, Session session) {
+        boolean acquired = admission.service.tryAcquire(session.session);
+        if (acquired) {
+            admission.service.release(session.session);
+        }
+        return acquired;
+    }
+}
@@ -0,0 +1,48 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and serializing the upload response, which is done once per upload and once more per
+ * idempotent replay
+ * Lives in the controller package because {@link TransferResponses} is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferResponseBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final StoredFile storedFile = new StoredFile("0b6a4d3e-8f5c-4d7e-9a1b-2c3d4e5f6a7b",
+            "quarterly-report-final.pdf", "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08",
+            12_345_678L, "application/pdf", Instant.parse("2026-01-01T00:00:00Z"), "7K3QD9XM");
+
+    @Benchmark
+    public ResponseEntity<Map<String, Object>> build() {
+        return TransferResponses.success(storedFile);
+    }
+
+    @Benchmark
+    public byte[] buildAndSerialize() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(TransferResponses.success(storedFile).getBody());
+    }
+}
@@ -0,0 +1,127 @@
+package ch.ofte.symphony.jafts.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * One virtual user: an HTTP session with its CSRF token, as a browser gets them by opening the home page
+ * Spring Security keeps the raw token in the {@code XSRF-TOKEN} cookie and expects the masked token the page
+ * renders ({@code globalThis.CSRF_TOKEN}) in the header, so both are needed for every upload.
+ * Cookies are kept per session rather than in the shared {@link HttpClient}, so all users share its connections.
+ */
+final class ClientSession {
+
+    private static final Pattern CSRF_TOKEN = Pattern.compile("CSRF_TOKEN = \"([^\"]+)\"");
+    private static final Pattern CSRF_HEADER = Pattern.compile("CSRF_HEADER = \"([^\"]+)\"");
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final HttpClient client;
+    private final URI target;
+    private final Map<String, String> cookies = new LinkedHashMap<>();
+    private String csrfHeader;
+    private String csrfToken;
+
+    ClientSession(HttpClient client, URI target) {
+        this.client = client;
+        this.target = target;
+    }
+
+    /**
+     * Open the home page to get a session and a CSRF token
+     */
+    void open() throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request("/").GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        expectSuccess(response, "Home page");
+        keepCookies(response);
+        csrfToken = extract(CSRF_TOKEN, response.body());
+        csrfHeader = extract(CSRF_HEADER, response.body());
+    }
+
+    /**
+     * Stream an upload ({@code PUT /api/p2p/upload/{name}})
+     * @param sequence       makes the content unique, see {@link Payload}
+     * @param bytesPerSecond rate the body is sent at, or 0 for as fast as possible
+     * @return file ID of the stored file
+     */
+    String upload(String name, long size, long sequence, long bytesPerSecond)
+            throws IOException, InterruptedException {
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofInputStream(() -> new Payload(size, sequence, bytesPerSecond)), size);
+        HttpResponse<String> response = client.send(
+                request("/api/p2p/upload/" + URLEncoder.encode(name, StandardCharsets.UTF_8))
+                        .header(csrfHeader, csrfToken)
+                        .header("Content-Type", "application/octet-stream")
+                        .PUT(body)
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        expectSuccess(response, "Upload");
+        keepCookies(response);
+        JsonNode json = OBJECT_MAPPER.readTree(response.body());
+        return json.path("fileId").asText();
+    }
+
+    /**
+     * Download a file completely ({@code GET /api/p2p/files/{fileId}})
+     * @return number of bytes received
+     */
+    long download(String fileId) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(request("/api/p2p/files/" + fileId).GET().build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream in = response.body()) {
+            if (response.statusCode() / 100 != 2) {
+                throw new IOException("Download failed with status " + response.statusCode());
+            }
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private HttpRequest.Builder request(String path) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(target.resolve(path));
+        if (!cookies.isEmpty()) {
+            builder.header("Cookie", cookies.entrySet().stream()
+                    .map(cookie -> cookie.getKey() + "=" + cookie.getValue())
+                    .collect(Collectors.joining("; ")));
+        }
+        return builder;
+    }
+
+    private void keepCookies(HttpResponse<?> response) {
+        for (String setCookie : response.headers().allValues("Set-Cookie")) {
+            String pair = setCookie.split(";", 2)[0];
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                cookies.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+            }
+        }
+    }
+
+    private static void expectSuccess(HttpResponse<String> response, String what) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(what + " failed with status " + response.statusCode() + ": " + response.body());
+        }
+    }
+
+    private static String extract(Pattern pattern, String page) throws IOException {
+        Matcher matcher = pattern.matcher(page);
+        if (!matcher.find()) {
+            throw new IOException("No " + pattern.pattern() + " on the home page");
+        }
+        return matcher.group(1);
+    }
+}
@@ -0,0 +1,203 @@
+package ch.ofte.symphony.jafts.loadtest;
+
+import ch.ofte.symphony.jafts.JustAFileTransferServiceApplication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for the P2P API
+ * Boots the server in-process on a random port with a throwaway upload directory and in-memory database
+ * (or targets a running server with {@code --target}), then has every virtual user open its own session and
+ * run uploads and downloads back to back on a virtual thread until the time is up. Latencies are recorded
+ * after the warmup only; the run ends with {@code summary.json} plus one HdrHistogram percentile
+ * distribution ({@code .hgrm}) per operation in the output directory.
+ * Users wait for each response before sending the next request (closed model), so latencies above the
+ * server's capacity show up as lower throughput rather than as queueing delay.
+ * With {@code --upload-rate} every measured upload trickles in like one from a slow client, and each user holds
+ * a server request open for the whole upload; {@code --virtual-threads=false} runs the in-process server on
+ * Tomcat's platform thread pool instead, to compare the two under the same load.
+ */
+public final class LoadTest {
+
+    private static final String UPLOAD = "upload";
+    private static final String DOWNLOAD = "download";
+    // HdrHistogram values are recorded in microseconds; .hgrm files are written in milliseconds
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    private final LoadTestOptions options;
+    private final HttpClient client;
+    private final URI target;
+    private final OperationStats uploads = new OperationStats(UPLOAD);
+    private final OperationStats downloads = new OperationStats(DOWNLOAD);
+    private final AtomicLong sequence = new AtomicLong(System.nanoTime());
+
+    private LoadTest(LoadTestOptions options, HttpClient client, URI target) {
+        this.options = options;
+        this.client = client;
+        this.target = target;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        URI target = options.target();
+        ConfigurableApplicationContext server = null;
+        Path uploadDir = null;
+        if (target == null) {
+            uploadDir = Files.createTempDirectory("jafts-loadtest");
+            server = startServer(uploadDir, options.virtualThreads());
+            target = URI.create("http://localhost:" + server.getEnvironment().getProperty("local.server.port"));
+        }
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             HttpClient client = HttpClient.newBuilder()
+                     .executor(executor)
+                     .version(HttpClient.Version.HTTP_1_1)
+                     .build()) {
+            new LoadTest(options, client, target).run(executor);
+        } finally {
+            if (server != null) {
+                server.close();
+                FileSystemUtils.deleteRecursively(uploadDir);
+            }
+        }
+    }
+
+    /**
+     * Settings are passed as command line arguments, which take precedence over the server's
+     * application.properties; default properties would be overridden by it
+     */
+    private static ConfigurableApplicationContext startServer(Path uploadDir, boolean virtualThreads) {
+        return new SpringApplicationBuilder(JustAFileTransferServiceApplication.class)
+                .run(
+                        "--server.port=0",
+                        "--app.upload.dir=" + uploadDir,
+                        "--spring.datasource.url=jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1",
+                        "--spring.thymeleaf.cache=true",
+                        "--app.storage.migration.enabled=false",
+                        "--spring.threads.virtual.enabled=" + virtualThreads,
+                        // One log line per upload would measure the console, not the server
+                        "--logging.level.ch.ofte.symphony.jafts=WARN");
+    }
+
+    private void run(ExecutorService executor) throws Exception {
+        System.out.printf("Load test against %s: %d users, %s warmup, %s measured, sizes %s, %.0f%% downloads, "
+                        + "uploads at %s, virtual threads %s%n",
+                target, options.users(), options.warmup(), options.duration(), options.sizes(),
+                options.downloadRatio() * 100, uploadRate(), options.virtualThreads());
+
+        List<String> seedFiles = seed();
+        long measureFrom = System.nanoTime() + options.warmup().toNanos();
+        long end = measureFrom + options.duration().toNanos();
+
+        List<Future<?>> users = new ArrayList<>(options.users());
+        for (int i = 0; i < options.users(); i++) {
+            users.add(executor.submit(() -> {
+                runUser(seedFiles, measureFrom, end);
+                return null;
+            }));
+        }
+        for (Future<?> user : users) {
+            user.get();
+        }
+
+        report((end - measureFrom) / 1e9);
+    }
+
+    /**
+     * Upload the files the downloads fetch
+     */
+    private List<String> seed() throws IOException, InterruptedException {
+        ClientSession session = new ClientSession(client, target);
+        session.open();
+        List<String> fileIds = new ArrayList<>(options.seedFiles());
+        for (int i = 0; i < options.seedFiles(); i++) {
+            // Seed files go up at full speed; only the measured uploads are slowed down
+            fileIds.add(session.upload("seed-" + i + ".bin", options.sizes().next(ThreadLocalRandom.current()),
+                    sequence.incrementAndGet(), 0));
+        }
+        return List.copyOf(fileIds);
+    }
+
+    private void runUser(List<String> seedFiles, long measureFrom, long end) throws IOException, InterruptedException {
+        ClientSession session = new ClientSession(client, target);
+        session.open();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long started;
+        while ((started = System.nanoTime()) < end) {
+            boolean download = random.nextDouble() < options.downloadRatio();
+            OperationStats stats = download ? downloads : uploads;
+            try {
+                long transferred;
+                if (download) {
+                    transferred = session.download(seedFiles.get(random.nextInt(seedFiles.size())));
+                } else {
+                    long size = options.sizes().next(random);
+                    long id = sequence.incrementAndGet();
+                    session.upload("load-" + id + ".bin", size, id, options.uploadRate());
+                    transferred = size;
+                }
+                if (started >= measureFrom) {
+                    stats.success(System.nanoTime() - started, transferred);
+                }
+            } catch (IOException e) {
+                if (started >= measureFrom) {
+                    stats.error();
+                }
+            }
+        }
+    }
+
+    private void report(double seconds) throws IOException {
+        Files.createDirectories(options.output());
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (OperationStats stats : List.of(uploads, downloads)) {
+            Histogram histogram = stats.histogram();
+            operations.put(stats.name(), stats.summarize(histogram, seconds));
+            try (PrintStream out = new PrintStream(
+                    Files.newOutputStream(options.output().resolve(stats.name() + ".hgrm")))) {
+                histogram.outputPercentileDistribution(out, MICROS_PER_MILLI);
+            }
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("timestamp", Instant.now().toString());
+        summary.put("target", target.toString());
+        summary.put("users", options.users());
+        summary.put("seconds", seconds);
+        summary.put("sizes", options.sizes().toString());
+        summary.put("downloadRatio", options.downloadRatio());
+        summary.put("uploadRate", uploadRate());
+        summary.put("virtualThreads", options.target() == null ? options.virtualThreads() : null);
+        summary.put("operations", operations);
+
+        ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        objectMapper.writeValue(options.output().resolve("summary.json").toFile(), summary);
+        System.out.println(objectMapper.writeValueAsString(summary));
+    }
+
+    private String uploadRate() {
+        return options.uploadRate() > 0 ? DataSize.ofBytes(options.uploadRate()) + "/s" : "full speed";
+    }
+}
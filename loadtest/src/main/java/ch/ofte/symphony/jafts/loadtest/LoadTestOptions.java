@@ -0,0 +1,75 @@
+package ch.ofte.symphony.jafts.loadtest;
+
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.util.unit.DataSize;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options, each given as {@code --name=value}
+ *
+ * @param target         base URL of a running server, or null to boot one in-process on a random port
+ * @param users          concurrent virtual users, each with its own HTTP session
+ * @param warmup         time before measuring starts
+ * @param duration       measured time after the warmup
+ * @param downloadRatio  share of operations that are downloads, between 0 and 1
+ * @param sizes          upload sizes and their weights
+ * @param seedFiles      files uploaded before the run for the downloads to fetch
+ * @param uploadRate     bytes per second each upload is sent at, or 0 to send as fast as possible
+ * @param virtualThreads whether the in-process server runs requests on virtual threads
+ * @param output         directory the summary and histograms are written to
+ */
+record LoadTestOptions(
+        URI target,
+        int users,
+        Duration warmup,
+        Duration duration,
+        double downloadRatio,
+        SizeDistribution sizes,
+        int seedFiles,
+        long uploadRate,
+        boolean virtualThreads,
+        Path output) {
+
+    static LoadTestOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        String target = values.remove("target");
+        LoadTestOptions options = new LoadTestOptions(
+                target != null ? URI.create(target) : null,
+                Integer.parseInt(take(values, "users", "32")),
+                DurationStyle.detectAndParse(take(values, "warmup", "10s")),
+                DurationStyle.detectAndParse(take(values, "duration", "60s")),
+                Double.parseDouble(take(values, "download-ratio", "0.5")),
+                SizeDistribution.parse(take(values, "sizes", "64KB:50,1MB:40,64MB:10")),
+                Integer.parseInt(take(values, "seed-files", "20")),
+                DataSize.parse(take(values, "upload-rate", "0")).toBytes(),
+                Boolean.parseBoolean(take(values, "virtual-threads", "true")),
+                Path.of(take(values, "output", "target/loadtest")));
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options: " + values.keySet());
+        }
+        if (options.users() < 1 || options.downloadRatio() < 0 || options.downloadRatio() > 1
+                || (options.downloadRatio() > 0 && options.seedFiles() < 1) || options.uploadRate() < 0) {
+            throw new IllegalArgumentException("Need at least one user, a download ratio between 0 and 1, "
+                    + "seed files when downloading and an upload rate of 0 or more");
+        }
+        return options;
+    }
+
+    private static String take(Map<String, String> values, String name, String defaultValue) {
+        String value = values.remove(name);
+        return value != null ? value : defaultValue;
+    }
+}
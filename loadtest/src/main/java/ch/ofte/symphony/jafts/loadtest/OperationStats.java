@@ -0,0 +1,78 @@
+package ch.ofte.symphony.jafts.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram and counters of one kind of operation
+ * Recording is wait-free ({@link Recorder}, {@link LongAdder}), so thousands of virtual threads can record
+ * without contending on the statistics instead of the server.
+ */
+final class OperationStats {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final String name;
+    private final Recorder latencies = new Recorder(SIGNIFICANT_DIGITS);
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    void success(long elapsedNanos, long transferred) {
+        latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        bytes.add(transferred);
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    /**
+     * Everything recorded so far; only called once the run is over
+     */
+    Histogram histogram() {
+        return latencies.getIntervalHistogram();
+    }
+
+    /**
+     * Counters, throughput and percentiles in milliseconds for the JSON summary
+     */
+    Map<String, Object> summarize(Histogram histogram, double seconds) {
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("mean", millis(histogram.getMean()));
+        latency.put("p50", millis(histogram.getValueAtPercentile(50)));
+        latency.put("p90", millis(histogram.getValueAtPercentile(90)));
+        latency.put("p99", millis(histogram.getValueAtPercentile(99)));
+        latency.put("p999", millis(histogram.getValueAtPercentile(99.9)));
+        latency.put("max", millis(histogram.getMaxValue()));
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.getTotalCount());
+        summary.put("errors", errors.sum());
+        summary.put("bytes", bytes.sum());
+        summary.put("requestsPerSecond", round(histogram.getTotalCount() / seconds));
+        summary.put("megabytesPerSecond", round(bytes.sum() / seconds / (1024 * 1024)));
+        summary.put("latencyMillis", latency);
+        return summary;
+    }
+
+    private static double millis(double micros) {
+        return round(micros / 1000);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
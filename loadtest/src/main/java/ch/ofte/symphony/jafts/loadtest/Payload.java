@@ -0,0 +1,110 @@
+package ch.ofte.symphony.jafts.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload body that is unique per upload but costs the load generator next to nothing
+ * An 8-byte sequence number followed by a shared block of random bytes, repeated up to the size:
+ * unique content keeps the server from deduplicating it, random bytes keep it from compressing it.
+ * With a rate, reads are held back so the body trickles out like one from a slow client.
+ */
+final class Payload extends InputStream {
+
+    private static final int PREFIX_LENGTH = Long.BYTES;
+    // Larger than the gzip window, so the repetition does not make the body compressible either
+    private static final byte[] BLOCK = new byte[1024 * 1024];
+    // A rate-limited body is handed out in slices of this many milliseconds of its rate
+    private static final int PACING_MILLIS = 50;
+
+    static {
+        new Random(42).nextBytes(BLOCK);
+    }
+
+    private final long size;
+    private final long sequence;
+    private final long bytesPerSecond;
+    private long position;
+    private long startedAt;
+
+    Payload(long size, long sequence) {
+        this(size, sequence, 0);
+    }
+
+    /**
+     * @param bytesPerSecond rate the body is read at, or 0 for as fast as the reader goes
+     */
+    Payload(long size, long sequence, long bytesPerSecond) {
+        this.size = size;
+        this.sequence = sequence;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        if (bytesPerSecond > 0) {
+            pace(position + 1);
+        }
+        return byteAt(position++) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int count = (int) Math.min(length, size - position);
+        if (bytesPerSecond > 0) {
+            count = (int) Math.min(count, Math.max(1, bytesPerSecond * PACING_MILLIS / 1000));
+            pace(position + count);
+        }
+        int done = 0;
+        while (done < count) {
+            if (position < PREFIX_LENGTH) {
+                buffer[offset + done++] = byteAt(position++);
+            } else {
+                int blockOffset = (int) ((position - PREFIX_LENGTH) % BLOCK.length);
+                int chunk = Math.min(count - done, BLOCK.length - blockOffset);
+                System.arraycopy(BLOCK, blockOffset, buffer, offset + done, chunk);
+                done += chunk;
+                position += chunk;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Wait until the rate allows the body to reach a position
+     */
+    private void pace(long until) throws InterruptedIOException {
+        long now = System.nanoTime();
+        if (startedAt == 0) {
+            startedAt = now;
+        }
+        long due = startedAt + until * 1_000_000_000L / bytesPerSecond;
+        if (due > now) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(due - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while pacing an upload");
+            }
+        }
+    }
+
+    private byte byteAt(long index) {
+        if (index < PREFIX_LENGTH) {
+            return (byte) (sequence >>> (Long.SIZE - Byte.SIZE * (index + 1)));
+        }
+        return BLOCK[(int) ((index - PREFIX_LENGTH) % BLOCK.length)];
+    }
+}
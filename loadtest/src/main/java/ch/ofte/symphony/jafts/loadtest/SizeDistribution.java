@@ -0,0 +1,61 @@
+package ch.ofte.symphony.jafts.loadtest;
+
+import org.springframework.util.unit.DataSize;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Weighted upload sizes, written as {@code 64KB:50,1MB:40,64MB:10}
+ * A size without a weight counts once.
+ */
+final class SizeDistribution {
+
+    private final long[] sizes;
+    private final long[] cumulativeWeights;
+
+    private SizeDistribution(long[] sizes, long[] cumulativeWeights) {
+        this.sizes = sizes;
+        this.cumulativeWeights = cumulativeWeights;
+    }
+
+    static SizeDistribution parse(String spec) {
+        String[] entries = spec.split(",");
+        long[] sizes = new long[entries.length];
+        long[] cumulativeWeights = new long[entries.length];
+        long total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].trim().split(":");
+            sizes[i] = DataSize.parse(parts[0].trim()).toBytes();
+            long weight = parts.length > 1 ? Long.parseLong(parts[1].trim()) : 1;
+            if (sizes[i] <= 0 || weight <= 0) {
+                throw new IllegalArgumentException("Sizes and weights must be positive: " + entries[i]);
+            }
+            total += weight;
+            cumulativeWeights[i] = total;
+        }
+        return new SizeDistribution(sizes, cumulativeWeights);
+    }
+
+    long next(RandomGenerator random) {
+        long pick = random.nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder spec = new StringBuilder();
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0) {
+                spec.append(',');
+            }
+            spec.append(DataSize.ofBytes(sizes[i])).append(':')
+                    .append(cumulativeWeights[i] - (i > 0 ? cumulativeWeights[i - 1] : 0));
+        }
+        return spec.toString();
+    }
+}
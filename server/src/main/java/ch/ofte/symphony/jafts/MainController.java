@@ -2,6 +2,7 @@ package ch.ofte.symphony.jafts;
 
 import jakarta.servlet.http.HttpServletRequest;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -9,6 +10,8 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import ch.ofte.symphony.jafts.service.SeoService;
 import lombok.RequiredArgsConstructor;
 
+import java.util.List;
+
 @Controller
 @RequestMapping("")
 @RequiredArgsConstructor
@@ -16,10 +19,14 @@ public class MainController {
 
     private final SeoService seoService;
 
+    @Value("${app.signaling.ice-servers:}")
+    private List<String> iceServers;
+
     @GetMapping("")
     public String doGet(Model model, HttpServletRequest request) {
         // Set SEO metadata for the home page with canonical URL
         seoService.setDefaultSeo(model, request);
+        model.addAttribute("iceServers", iceServers);
         return "home";
     }
 }
@@ -0,0 +1,218 @@
+package ch.ofte.symphony.jafts.bandwidth;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import jakarta.servlet.http.HttpSession;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Paces the request and response bodies of {@code /api/p2p/**} through the {@link BandwidthShaper}
+ * Bodies are read and written in grants; the container's sendfile is hidden from the controllers so file
+ * downloads go through the paced stream too. Multipart bodies the container parses itself
+ * ({@code POST /api/p2p/upload}) are read before the filter sees them and are not paced; the streaming,
+ * chunked and share uploads are.
+ */
+@Component
+@ConditionalOnProperty(name = "app.bandwidth.enabled", havingValue = "true")
+public class BandwidthFilter extends OncePerRequestFilter {
+
+    private static final String PATH_PREFIX = "/api/p2p/";
+    private static final String RELAY_PATH_PREFIX = "/api/p2p/relay/";
+    // Tomcat sendfile request attribute (see org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+
+    private final BandwidthShaper shaper;
+
+    public BandwidthFilter(BandwidthShaper shaper) {
+        this.shaper = shaper;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith(request.getContextPath() + PATH_PREFIX);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        boolean download = HttpMethod.GET.matches(request.getMethod()) || HttpMethod.HEAD.matches(request.getMethod());
+        BandwidthShaper.TrafficClass trafficClass = path.startsWith(RELAY_PATH_PREFIX)
+                ? BandwidthShaper.TrafficClass.RELAY
+                : download ? BandwidthShaper.TrafficClass.DOWNLOAD : BandwidthShaper.TrafficClass.UPLOAD;
+        // The first request of a client has no session yet; its IP bucket still applies
+        HttpSession session = request.getSession(false);
+        String sessionId = session != null ? session.getId() : null;
+
+        BandwidthShaper.Pacer uploadPacer = shaper.pacer(BandwidthShaper.Direction.UPLOAD, trafficClass,
+                sessionId, request.getRemoteAddr());
+        BandwidthShaper.Pacer downloadPacer = shaper.pacer(BandwidthShaper.Direction.DOWNLOAD, trafficClass,
+                sessionId, request.getRemoteAddr());
+        chain.doFilter(new ShapedRequest(request, uploadPacer), new ShapedResponse(response, downloadPacer));
+    }
+
+    private final class ShapedRequest extends HttpServletRequestWrapper {
+
+        private final BandwidthShaper.Pacer pacer;
+        private ServletInputStream input;
+
+        ShapedRequest(HttpServletRequest request, BandwidthShaper.Pacer pacer) {
+            super(request);
+            this.pacer = pacer;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (input == null) {
+                input = new ShapedInputStream(super.getInputStream(), pacer);
+            }
+            return input;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            // Bytes handed to sendfile could not be paced
+            return SENDFILE_SUPPORTED_ATTR.equals(name) ? null : super.getAttribute(name);
+        }
+    }
+
+    private final class ShapedResponse extends HttpServletResponseWrapper {
+
+        private final BandwidthShaper.Pacer pacer;
+        private ServletOutputStream output;
+
+        ShapedResponse(HttpServletResponse response, BandwidthShaper.Pacer pacer) {
+            super(response);
+            this.pacer = pacer;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (output == null) {
+                output = new ShapedOutputStream(super.getOutputStream(), pacer);
+            }
+            return output;
+        }
+    }
+
+    /**
+     * Reads at most one grant at a time and pays for what it read before returning it
+     */
+    private final class ShapedInputStream extends ServletInputStream {
+
+        private final ServletInputStream in;
+        private final BandwidthShaper.Pacer pacer;
+
+        ShapedInputStream(ServletInputStream in, BandwidthShaper.Pacer pacer) {
+            this.in = in;
+            this.pacer = pacer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = in.read();
+            if (read != -1) {
+                pacer.acquire(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, Math.min(length, shaper.getGrantSize()));
+            pacer.acquire(read);
+            return read;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return in.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            in.setReadListener(readListener);
+        }
+    }
+
+    /**
+     * Writes in grants, waiting for each before passing it on
+     */
+    private final class ShapedOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+        private final BandwidthShaper.Pacer pacer;
+
+        ShapedOutputStream(ServletOutputStream out, BandwidthShaper.Pacer pacer) {
+            this.out = out;
+            this.pacer = pacer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pacer.acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            int grantSize = shaper.getGrantSize();
+            for (int written = 0; written < length; ) {
+                int grant = Math.min(grantSize, length - written);
+                pacer.acquire(grant);
+                out.write(buffer, offset + written, grant);
+                written += grant;
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            int grantSize = shaper.getGrantSize();
+            while (buffer.hasRemaining()) {
+                int grant = Math.min(grantSize, buffer.remaining());
+                pacer.acquire(grant);
+                out.write(buffer.slice(buffer.position(), grant));
+                buffer.position(buffer.position() + grant);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package ch.ofte.symphony.jafts.bandwidth;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token-bucket shaping of transfer streams, per HTTP session, per client IP and for the whole node
+ * Each direction has its own buckets. A stream is paced in grants of {@code grant-size} bytes: before a grant
+ * is sent, its bytes are reserved in every bucket that applies and the stream sleeps until the latest of them
+ * allows it, so the cost is a few compare-and-set operations per grant, never per byte. Streams of one session
+ * or IP share their bucket and queue in the order they reserved.
+ * Under global congestion a stream only joins the node's queue while it is shorter than its
+ * {@link TrafficClass} priority times {@code queue-time}: higher priorities keep flowing while lower ones hold
+ * back until the queue drains.
+ * A rate of 0 leaves that level unlimited.
+ */
+@Component
+@ConditionalOnProperty(name = "app.bandwidth.enabled", havingValue = "true")
+public class BandwidthShaper {
+
+    public enum Direction {
+        UPLOAD,
+        DOWNLOAD
+    }
+
+    /**
+     * What a stream carries, for its priority in the global bucket
+     */
+    public enum TrafficClass {
+        RELAY,
+        DOWNLOAD,
+        UPLOAD
+    }
+
+    // Buckets of sessions and IPs without a stream for this long are dropped, and start full when they return
+    private static final Duration BUCKET_IDLE_TIMEOUT = Duration.ofMinutes(10);
+    private static final long MAX_BUCKETS = 1_000_000;
+
+    private final int grantSize;
+    private final long sessionRate;
+    private final long ipRate;
+    private final long burstNanos;
+    private final long queueNanos;
+    private final int[] priorities = new int[TrafficClass.values().length];
+    private final LongSupplier clock;
+    private final TokenBucket[] globalBuckets = new TokenBucket[Direction.values().length];
+    private final Cache<String, TokenBucket> buckets;
+
+    public BandwidthShaper(
+            @Value("${app.bandwidth.grant-size:64KB}") DataSize grantSize,
+            @Value("${app.bandwidth.session-rate:0}") DataSize sessionRate,
+            @Value("${app.bandwidth.ip-rate:0}") DataSize ipRate,
+            @Value("${app.bandwidth.global-rate:0}") DataSize globalRate,
+            @Value("${app.bandwidth.burst:1s}") Duration burst,
+            @Value("${app.bandwidth.queue-time:100ms}") Duration queueTime,
+            @Value("${app.bandwidth.priority.relay:3}") int relayPriority,
+            @Value("${app.bandwidth.priority.download:2}") int downloadPriority,
+            @Value("${app.bandwidth.priority.upload:1}") int uploadPriority) {
+        this(grantSize, sessionRate, ipRate, globalRate, burst, queueTime,
+                new int[]{relayPriority, downloadPriority, uploadPriority}, System::nanoTime);
+    }
+
+    BandwidthShaper(DataSize grantSize, DataSize sessionRate, DataSize ipRate, DataSize globalRate, Duration burst,
+                    Duration queueTime, int[] priorities, LongSupplier clock) {
+        this.grantSize = Math.toIntExact(Math.max(1, grantSize.toBytes()));
+        this.sessionRate = sessionRate.toBytes();
+        this.ipRate = ipRate.toBytes();
+        this.burstNanos = burst.toNanos();
+        this.queueNanos = queueTime.toNanos();
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            this.priorities[trafficClass.ordinal()] = Math.max(1, priorities[trafficClass.ordinal()]);
+        }
+        this.clock = clock;
+        for (Direction direction : Direction.values()) {
+            globalBuckets[direction.ordinal()] = globalRate.toBytes() > 0
+                    ? new TokenBucket(globalRate.toBytes(), burstNanos, clock) : null;
+        }
+        this.buckets = Caffeine.newBuilder()
+                .maximumSize(MAX_BUCKETS)
+                .expireAfterAccess(BUCKET_IDLE_TIMEOUT)
+                .build();
+    }
+
+    /**
+     * Pacer for one stream
+     * @param sessionId HTTP session of the request, or null if it has none
+     * @param clientIp  address of the client
+     */
+    public Pacer pacer(Direction direction, TrafficClass trafficClass, String sessionId, String clientIp) {
+        String prefix = direction.name().charAt(0) + ":";
+        return new Pacer(
+                sessionId != null && sessionRate > 0 ? prefix + "s:" + sessionId : null,
+                clientIp != null && ipRate > 0 ? prefix + "i:" + clientIp : null,
+                globalBuckets[direction.ordinal()],
+                priorities[trafficClass.ordinal()] * queueNanos);
+    }
+
+    public int getGrantSize() {
+        return grantSize;
+    }
+
+    /**
+     * Paces the bytes of one stream; used by the thread moving them
+     */
+    public final class Pacer {
+
+        private final String sessionKey;
+        private final String ipKey;
+        private final TokenBucket globalBucket;
+        private final long maxGlobalDelay;
+
+        private Pacer(String sessionKey, String ipKey, TokenBucket globalBucket, long maxGlobalDelay) {
+            this.sessionKey = sessionKey;
+            this.ipKey = ipKey;
+            this.globalBucket = globalBucket;
+            this.maxGlobalDelay = maxGlobalDelay;
+        }
+
+        /**
+         * Wait until a grant of bytes may be sent
+         * @param bytes size of the grant, at most {@link #getGrantSize()} for even pacing
+         */
+        public void acquire(long bytes) throws InterruptedIOException {
+            if (bytes <= 0) {
+                return;
+            }
+            long delay = 0;
+            if (sessionKey != null) {
+                delay = bucket(sessionKey, sessionRate).reserve(bytes, Long.MAX_VALUE);
+            }
+            if (ipKey != null) {
+                delay = Math.max(delay, bucket(ipKey, ipRate).reserve(bytes, Long.MAX_VALUE));
+            }
+            if (globalBucket != null) {
+                long globalDelay;
+                // Held back while the node's queue is longer than this stream's priority allows
+                while ((globalDelay = globalBucket.reserve(bytes, maxGlobalDelay)) < 0) {
+                    sleep(-globalDelay);
+                    delay += globalDelay;
+                }
+                delay = Math.max(delay, globalDelay);
+            }
+            sleep(delay);
+        }
+
+        private TokenBucket bucket(String key, long rate) {
+            return buckets.get(key, k -> new TokenBucket(rate, burstNanos, clock));
+        }
+
+        private static void sleep(long nanos) throws InterruptedIOException {
+            if (nanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while pacing a transfer");
+            }
+        }
+    }
+}
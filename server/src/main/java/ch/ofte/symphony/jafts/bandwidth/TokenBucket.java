@@ -0,0 +1,58 @@
+package ch.ofte.symphony.jafts.bandwidth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket kept in one atomic word and refilled by compare-and-set, never by a lock
+ * The word holds the time up to which the bucket's rate is already handed out (GCRA's theoretical arrival time):
+ * tokens are the time between then and now, capped at the burst. A reservation moves that time forward by the
+ * cost of its bytes and tells the caller how long to wait before sending them, so waiting callers queue in the
+ * order they reserved without ever blocking each other.
+ */
+final class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long bytesPerSecond;
+    private final long burstNanos;
+    private final LongSupplier clock;
+    private final AtomicLong reservedUntil;
+
+    /**
+     * @param bytesPerSecond sustained rate
+     * @param burstNanos     how much of the rate an idle bucket accumulates
+     */
+    TokenBucket(long bytesPerSecond, long burstNanos, LongSupplier clock) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstNanos = Math.max(0, burstNanos);
+        this.clock = clock;
+        this.reservedUntil = new AtomicLong(clock.getAsLong() - this.burstNanos);
+    }
+
+    /**
+     * Reserve the rate for some bytes
+     * @param bytes    bytes about to be sent
+     * @param maxDelay longest wait, in nanoseconds, the caller accepts
+     * @return nanoseconds to wait before sending the bytes if they were reserved; otherwise, as a negative
+     * number, the nanoseconds until a reservation would fit within {@code maxDelay}
+     */
+    long reserve(long bytes, long maxDelay) {
+        long cost = bytes * NANOS_PER_SECOND / bytesPerSecond;
+        while (true) {
+            long now = clock.getAsLong();
+            long reserved = reservedUntil.get();
+            long next = Math.max(reserved, now - burstNanos) + cost;
+            long delay = next - now;
+            if (delay > maxDelay) {
+                return -(delay - maxDelay);
+            }
+            if (reservedUntil.compareAndSet(reserved, next)) {
+                return Math.max(0, delay);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ch.ofte.symphony.jafts.cluster;
+
+import ch.ofte.symphony.jafts.idempotency.IdempotencyState;
+import ch.ofte.symphony.jafts.idempotency.IdempotencyStore;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Idempotency keys in the {@code idempotency_keys} table, so a retry is recognized on whichever node it lands
+ * <ul>
+ *     <li>a claim is an insert of a {@code PROCESSING} row owned by this node; it lasts for {@code lease},
+ *     after which another node may take it over</li>
+ *     <li>completed responses are kept for {@code ttl} and cached on every node that reads or writes them
+ *     for {@code near-cache-ttl}, so replays of a hot key do not query the database again</li>
+ * </ul>
+ * Only completed responses are near-cached: they never change until they expire, so a stale entry can at
+ * worst replay a response for up to {@code near-cache-ttl} after it expired in the table.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "true")
+public class ClusterIdempotencyStore implements IdempotencyStore {
+
+    private final IdempotencyKeyRepository repository;
+    private final Duration lease;
+    private final Duration ttl;
+    private final Cache<String, IdempotencyState> nearCache;
+    // Owner of the claims made by this node
+    private final String nodeId = UUID.randomUUID().toString();
+
+    public ClusterIdempotencyStore(
+            IdempotencyKeyRepository repository,
+            @Value("${app.cluster.idempotency.lease:30m}") Duration lease,
+            @Value("${app.cluster.idempotency.ttl:2h}") Duration ttl,
+            @Value("${app.cluster.near-cache-size:10000}") long nearCacheSize,
+            @Value("${app.cluster.near-cache-ttl:30s}") Duration nearCacheTtl) {
+        this.repository = repository;
+        this.lease = lease;
+        this.ttl = ttl;
+        this.nearCache = Caffeine.newBuilder()
+                .maximumSize(nearCacheSize)
+                .expireAfterWrite(nearCacheTtl)
+                .recordStats()
+                .build();
+        log.info("Idempotency keys shared through the database, claims owned by node {}", nodeId);
+    }
+
+    @Override
+    public Optional<IdempotencyState> findCompleted(String scopedKey) {
+        IdempotencyState cached = nearCache.getIfPresent(scopedKey);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<IdempotencyState> completed = repository.findCompleted(scopedKey);
+        completed.ifPresent(state -> nearCache.put(scopedKey, state));
+        return completed;
+    }
+
+    @Override
+    public boolean claim(String scopedKey, String fingerprint) {
+        return repository.tryClaim(scopedKey, fingerprint, nodeId, Instant.now().plus(lease));
+    }
+
+    @Override
+    public void complete(String scopedKey, IdempotencyState state) {
+        if (repository.complete(scopedKey, nodeId, state, Instant.now().plus(ttl))) {
+            nearCache.put(scopedKey, state);
+        } else {
+            // The request outlived its lease and another node took the key over; its response wins
+            log.warn("Lost the claim on idempotency key {} before completing it", scopedKey);
+        }
+    }
+
+    @Override
+    public void release(String scopedKey) {
+        repository.release(scopedKey, nodeId);
+    }
+
+    public Cache<String, IdempotencyState> getNearCache() {
+        return nearCache;
+    }
+}
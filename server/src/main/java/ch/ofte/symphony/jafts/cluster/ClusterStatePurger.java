@@ -0,0 +1,43 @@
+package ch.ofte.symphony.jafts.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Deletes expired idempotency keys and the upload slots of idle sessions from the shared tables
+ * Every node runs it; the deletes are idempotent, so concurrent runs only cost a few empty statements.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "true")
+public class ClusterStatePurger {
+
+    private final IdempotencyKeyRepository idempotencyKeys;
+    private final UploadSlotRepository uploadSlots;
+    private final Duration slotIdleTimeout;
+
+    public ClusterStatePurger(
+            IdempotencyKeyRepository idempotencyKeys,
+            UploadSlotRepository uploadSlots,
+            @Value("${app.cluster.slot-idle-timeout:1h}") Duration slotIdleTimeout) {
+        this.idempotencyKeys = idempotencyKeys;
+        this.uploadSlots = uploadSlots;
+        this.slotIdleTimeout = slotIdleTimeout;
+    }
+
+    @Scheduled(fixedDelayString = "${app.cluster.purge-interval:PT5M}",
+            initialDelayString = "${app.cluster.purge-interval:PT5M}")
+    public void purge() {
+        int keys = idempotencyKeys.deleteExpired();
+        int slots = uploadSlots.deleteIdleSince(Instant.now().minus(slotIdleTimeout));
+        if (keys > 0 || slots > 0) {
+            log.debug("Purged {} idempotency keys and {} idle upload slot rows", keys, slots);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ch.ofte.symphony.jafts.cluster;
+
+import ch.ofte.symphony.jafts.idempotency.IdempotencyState;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * JDBC access to the {@code idempotency_keys} table (see {@code schema.sql})
+ * Every state change is a compare-and-set: an insert that fails on the primary key, or an update or delete
+ * conditioned on the current status and owner of the row.
+ */
+@Repository
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "true")
+public class IdempotencyKeyRepository {
+
+    private static final String PROCESSING = IdempotencyState.Status.PROCESSING.name();
+    private static final String COMPLETED = IdempotencyState.Status.COMPLETED.name();
+
+    private static final String SELECT_COMPLETED = """
+            SELECT response_body, http_status, content_type, fingerprint FROM idempotency_keys
+            WHERE scoped_key = ? AND status = ? AND expires_at > ?""";
+    private static final String INSERT = """
+            INSERT INTO idempotency_keys (scoped_key, status, fingerprint, owner_id, expires_at)
+            VALUES (?, ?, ?, ?, ?)""";
+    private static final String TAKE_OVER = """
+            UPDATE idempotency_keys SET status = ?, fingerprint = ?, owner_id = ?, http_status = NULL,
+                content_type = NULL, response_body = NULL, expires_at = ?
+            WHERE scoped_key = ? AND expires_at <= ?""";
+    private static final String COMPLETE = """
+            UPDATE idempotency_keys SET status = ?, http_status = ?, content_type = ?, response_body = ?, expires_at = ?
+            WHERE scoped_key = ? AND status = ? AND owner_id = ?""";
+    private static final String RELEASE = "DELETE FROM idempotency_keys WHERE scoped_key = ? AND status = ? AND owner_id = ?";
+
+    private static final RowMapper<IdempotencyState> ROW_MAPPER = (rs, rowNum) -> new IdempotencyState(
+            IdempotencyState.Status.COMPLETED,
+            rs.getString("response_body"),
+            rs.getInt("http_status"),
+            rs.getString("content_type"),
+            rs.getString("fingerprint"));
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public IdempotencyKeyRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public Optional<IdempotencyState> findCompleted(String scopedKey) {
+        return jdbcTemplate.query(SELECT_COMPLETED, ROW_MAPPER, scopedKey, COMPLETED, Timestamp.from(Instant.now()))
+                .stream().findFirst();
+    }
+
+    /**
+     * Mark a key as being processed by an owner, if no other owner holds it
+     * A row whose lease or retention has run out is taken over, so a node that died while processing
+     * does not block the key forever.
+     * @param expiresAt end of the lease
+     * @return false if the key is held by another owner, or completed
+     */
+    public boolean tryClaim(String scopedKey, String fingerprint, String ownerId, Instant expiresAt) {
+        try {
+            jdbcTemplate.update(INSERT, scopedKey, PROCESSING, fingerprint, ownerId, Timestamp.from(expiresAt));
+            return true;
+        } catch (DuplicateKeyException e) {
+            return jdbcTemplate.update(TAKE_OVER, PROCESSING, fingerprint, ownerId, Timestamp.from(expiresAt),
+                    scopedKey, Timestamp.from(Instant.now())) == 1;
+        }
+    }
+
+    /**
+     * Store the response of a key claimed by the owner
+     * @param expiresAt until when the response is replayed
+     * @return false if the owner lost its claim in the meantime
+     */
+    public boolean complete(String scopedKey, String ownerId, IdempotencyState state, Instant expiresAt) {
+        return jdbcTemplate.update(COMPLETE, COMPLETED, state.getHttpStatus(), state.getContentType(),
+                state.getResponseBody(), Timestamp.from(expiresAt), scopedKey, PROCESSING, ownerId) == 1;
+    }
+
+    /**
+     * Give up a claim without a response, so the key can be used again
+     */
+    public void release(String scopedKey, String ownerId) {
+        jdbcTemplate.update(RELEASE, scopedKey, PROCESSING, ownerId);
+    }
+
+    /**
+     * @return number of rows deleted
+     */
+    public int deleteExpired() {
+        return jdbcTemplate.update("DELETE FROM idempotency_keys WHERE expires_at <= ?", Timestamp.from(Instant.now()));
+    }
+}
@@ -0,0 +1,102 @@
+package ch.ofte.symphony.jafts.cluster;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JDBC access to the {@code upload_slots} table (see {@code schema.sql}): upload slots of every HTTP session,
+ * shared by all nodes of the cluster
+ * Slots are leased by a single conditional {@code UPDATE}, which the database applies atomically per row,
+ * so two nodes can never both take the last slot of a session. Nodes keep the slots they leased for later
+ * uploads of the session and give back the ones they do not use in batches.
+ */
+@Repository
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "true")
+public class UploadSlotRepository {
+
+    private static final String LEASE = "UPDATE upload_slots SET in_use = in_use + ?, updated_at = ? "
+            + "WHERE session_id = ? AND in_use + ? <= ?";
+    private static final String INSERT = "INSERT INTO upload_slots (session_id, in_use, updated_at) VALUES (?, ?, ?)";
+    private static final String RELEASE =
+            "UPDATE upload_slots SET in_use = GREATEST(in_use - ?, 0), updated_at = ? WHERE session_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public UploadSlotRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Lease {@code count} slots of the session, or a single one if that many are not free
+     * @param count    slots wanted, at most {@code maxSlots}
+     * @param maxSlots slots of the session on all nodes together
+     * @return slots leased: {@code count}, 1, or 0 if all slots are in use
+     */
+    public int lease(String sessionId, int count, int maxSlots) {
+        if (count > 1 && tryLease(sessionId, count, maxSlots)) {
+            return count;
+        }
+        return tryLease(sessionId, 1, maxSlots) ? 1 : 0;
+    }
+
+    /**
+     * Give back slots leased with {@link #lease}, in one batch
+     * @param counts slots given back per session ID
+     */
+    public void release(Map<String, Integer> counts) {
+        Timestamp now = Timestamp.from(Instant.now());
+        jdbcTemplate.batchUpdate(RELEASE, counts.entrySet().stream()
+                .map(count -> new Object[]{count.getValue(), now, count.getKey()})
+                .toList());
+    }
+
+    private boolean tryLease(String sessionId, int count, int maxSlots) {
+        Timestamp now = Timestamp.from(Instant.now());
+        if (jdbcTemplate.update(LEASE, count, now, sessionId, count, maxSlots) == 1) {
+            return true;
+        }
+        try {
+            jdbcTemplate.update(INSERT, sessionId, count, now);
+            return true;
+        } catch (DuplicateKeyException e) {
+            // The row exists: either the slots are taken or another node created it first
+            return jdbcTemplate.update(LEASE, count, now, sessionId, count, maxSlots) == 1;
+        }
+    }
+
+    /**
+     * Mark the rows of sessions with slots leased by this node as in use, so they are not purged as idle
+     */
+    public void touch(Collection<String> sessionIds) {
+        Timestamp now = Timestamp.from(Instant.now());
+        jdbcTemplate.batchUpdate("UPDATE upload_slots SET updated_at = ? WHERE session_id = ?",
+                sessionIds.stream().map(sessionId -> new Object[]{now, sessionId}).toList());
+    }
+
+    /**
+     * Slots of the session leased by all nodes, whether an upload holds them yet or not
+     */
+    public int inUse(String sessionId) {
+        List<Integer> inUse = jdbcTemplate.queryForList(
+                "SELECT in_use FROM upload_slots WHERE session_id = ?", Integer.class, sessionId);
+        return inUse.isEmpty() ? 0 : inUse.getFirst();
+    }
+
+    /**
+     * Delete the rows of sessions that have not leased, released or {@link #touch touched} a slot since a point in time
+     * Rows of running uploads are touched by their node, so this only frees the slots of nodes that died while
+     * uploading (once no other node touches the session).
+     * @return number of rows deleted
+     */
+    public int deleteIdleSince(Instant before) {
+        return jdbcTemplate.update("DELETE FROM upload_slots WHERE updated_at < ?", Timestamp.from(before));
+    }
+}
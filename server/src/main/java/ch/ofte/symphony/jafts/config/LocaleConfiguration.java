@@ -1,5 +1,6 @@
 package ch.ofte.symphony.jafts.config;
 
+import ch.ofte.symphony.jafts.p2p_transfer.ShareController;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.LocaleResolver;
@@ -46,12 +47,15 @@ public class LocaleConfiguration implements WebMvcConfigurer {
 
     /**
      * Add the locale change interceptor to the interceptor registry.
+     * Not for the share endpoints: looking up the 'lang' parameter would make the container parse
+     * the body of a streamed share upload.
      *
      * @param registry the InterceptorRegistry
      */
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
-        registry.addInterceptor(localeChangeInterceptor());
+        registry.addInterceptor(localeChangeInterceptor())
+                .excludePathPatterns(ShareController.SHARES_PATH, ShareController.SHARES_PATH + "/**");
     }
 }
 
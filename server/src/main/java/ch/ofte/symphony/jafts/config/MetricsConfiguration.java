@@ -0,0 +1,81 @@
+package ch.ofte.symphony.jafts.config;
+
+import ch.ofte.symphony.jafts.cluster.ClusterIdempotencyStore;
+import ch.ofte.symphony.jafts.metadata.FileMetadataIndex;
+import ch.ofte.symphony.jafts.p2p_transfer.ChunkedUploadService;
+import ch.ofte.symphony.jafts.relay.RelayService;
+import ch.ofte.symphony.jafts.sharekey.ShareKeyIndex;
+import ch.ofte.symphony.jafts.signaling.SignalingHandler;
+import ch.ofte.symphony.jafts.storage.ExpiryReclaimer;
+import ch.ofte.symphony.jafts.storage.HotBlobCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Gauges of the in-memory state of the server and statistics of its Caffeine caches
+ * Transfers themselves are measured where they happen (upload/download controllers, FileStorageService);
+ * everything is exported on {@code /actuator/prometheus}.
+ */
+@Configuration
+public class MetricsConfiguration {
+
+    // Same tags as Spring Boot's own cache metrics: Prometheus needs one set of tag keys per meter name
+    private static final String TAG_CACHE_MANAGER = "cache.manager";
+    private static final String TAG_NAME = "name";
+
+    @Bean
+    public MeterBinder stateMetrics(RelayService relayService, SignalingHandler signalingHandler,
+                                    ExpiryReclaimer expiryReclaimer, ShareKeyIndex shareKeyIndex) {
+        return registry -> {
+            Gauge.builder("jafts.relay.active", relayService, RelayService::getActiveCount)
+                    .description("Live relays streaming or waiting for their receiver")
+                    .register(registry);
+            Gauge.builder("jafts.signaling.rooms", signalingHandler, SignalingHandler::getRoomCount)
+                    .description("Open WebRTC signaling rooms")
+                    .register(registry);
+            Gauge.builder("jafts.storage.reclaim.pending", expiryReclaimer, ExpiryReclaimer::getPendingCount)
+                    .description("Expiry deadlines tracked by the reclaimer")
+                    .register(registry);
+            Gauge.builder("jafts.share.keys", shareKeyIndex, ShareKeyIndex::size)
+                    .description("Share keys in the in-memory index")
+                    .register(registry);
+        };
+    }
+
+    /**
+     * Hit, miss, eviction and size statistics of the caches built outside the {@code CacheManager}; every cache is
+     * built with {@code recordStats()}. Spring Boot binds the ones the {@code CacheManager} holds (idempotencyCache)
+     * itself. The hot blob cache also reports its hit ratio and the bytes it holds off-heap.
+     */
+    @Bean
+    public MeterBinder cacheMetrics(ChunkedUploadService chunkedUploadService,
+                                    FileMetadataIndex metadataIndex, HotBlobCache hotBlobCache,
+                                    ObjectProvider<ClusterIdempotencyStore> clusterIdempotencyStore) {
+        return registry -> {
+            monitor(registry, chunkedUploadService.getUploadCache(), "chunkedUploads", "chunkedUploadService");
+            monitor(registry, metadataIndex.getNearCache(), "fileMetadata", "fileMetadataIndex");
+            monitor(registry, hotBlobCache.getCache(), "hotBlobs", "hotBlobCache");
+            Gauge.builder("jafts.storage.hot-cache.bytes", hotBlobCache, HotBlobCache::getHeldBytes)
+                    .description("Bytes of blob content held in direct memory by the hot cache")
+                    .baseUnit(BaseUnits.BYTES)
+                    .register(registry);
+            Gauge.builder("jafts.storage.hot-cache.hit-ratio", hotBlobCache,
+                            cache -> cache.getCache().stats().hitRate())
+                    .description("Share of cacheable download requests served from the hot cache")
+                    .register(registry);
+            clusterIdempotencyStore.ifAvailable(store -> monitor(registry, store.getNearCache(),
+                    "idempotencyNearCache", "clusterIdempotencyStore"));
+        };
+    }
+
+    private static void monitor(MeterRegistry registry, Cache<?, ?> cache, String cacheName, String owner) {
+        CaffeineCacheMetrics.monitor(registry, cache, cacheName, TAG_CACHE_MANAGER, owner, TAG_NAME, cacheName);
+    }
+}
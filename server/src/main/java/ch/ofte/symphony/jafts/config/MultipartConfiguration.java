@@ -0,0 +1,33 @@
+package ch.ofte.symphony.jafts.config;
+
+import ch.ofte.symphony.jafts.p2p_transfer.ShareController;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+
+/**
+ * Multipart resolution for every request except the share upload ({@link ShareController#isStreamedUpload}),
+ * which reads its body part by part itself. The container would otherwise spool all of its parts to disk
+ * before the controller sees the first one.
+ * Everything else is resolved as before, within {@code spring.servlet.multipart.*}.
+ */
+@Configuration
+public class MultipartConfiguration {
+
+    @Bean(name = DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+    public MultipartResolver multipartResolver(
+            @Value("${spring.servlet.multipart.resolve-lazily:false}") boolean resolveLazily) {
+        StandardServletMultipartResolver resolver = new StandardServletMultipartResolver() {
+            @Override
+            public boolean isMultipart(HttpServletRequest request) {
+                return super.isMultipart(request) && !ShareController.isStreamedUpload(request);
+            }
+        };
+        resolver.setResolveLazily(resolveLazily);
+        return resolver;
+    }
+}
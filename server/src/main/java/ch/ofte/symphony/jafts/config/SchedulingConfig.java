@@ -0,0 +1,12 @@
+package ch.ofte.symphony.jafts.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables scheduled background tasks such as storage garbage collection
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
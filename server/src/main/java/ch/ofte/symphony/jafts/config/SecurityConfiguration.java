@@ -1,5 +1,6 @@
 package ch.ofte.symphony.jafts.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.Customizer;
@@ -10,8 +11,12 @@ import org.springframework.security.web.csrf.CookieCsrfTokenRepository;
 @Configuration
 public class SecurityConfiguration {
 
+    /**
+     * @param managementPort port of the separate management server, or null if Actuator shares the public port
+     */
     @Bean
-    public SecurityFilterChain configure(HttpSecurity http) {
+    public SecurityFilterChain configure(HttpSecurity http,
+                                         @Value("${management.server.port:#{null}}") Integer managementPort) {
         try {
             return http
                     .cors(Customizer.withDefaults())
@@ -32,9 +37,16 @@ public class SecurityConfiguration {
                                     "/images/**",
                                     "/favicon.ico",
                                     "/webjars/**",
-                                    "/api/**"
+                                    "/api/**",
+                                    "/ws/**"
                             ).permitAll()
                             .requestMatchers("/public/**", "/").permitAll()
+                            .requestMatchers("/actuator/health").permitAll()
+                            // The Prometheus scrape shows traffic and session counts: open only on the internal
+                            // management port, authenticated like everything else on the public one
+                            .requestMatchers(request -> managementPort != null
+                                    && request.getLocalPort() == managementPort
+                                    && "/actuator/prometheus".equals(request.getRequestURI())).permitAll()
                             .anyRequest().authenticated()
                     )
                     .build();
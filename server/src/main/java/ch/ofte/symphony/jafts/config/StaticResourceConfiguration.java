@@ -0,0 +1,44 @@
+package ch.ofte.symphony.jafts.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.resource.ResourceHttpRequestHandler;
+
+import java.time.Duration;
+import java.util.regex.Pattern;
+
+/**
+ * Cache headers for static resources
+ * Templates link to fingerprinted URLs ({@code /js/p2p-transfer-<md5>.js}, see {@code spring.web.resources.chain.*}),
+ * which never change and are cached for a year. Anything requested by its plain name (worker scripts,
+ * ES module imports, the favicon) must be revalidated, so a deploy is picked up right away.
+ */
+@Configuration
+public class StaticResourceConfiguration implements WebMvcConfigurer {
+
+    // Spring's content version strategy appends the hex MD5 of the content to the file name
+    private static final Pattern FINGERPRINTED = Pattern.compile("-[0-9a-f]{32}\\.[^/.]+$");
+    private static final String IMMUTABLE = CacheControl.maxAge(Duration.ofDays(365)).cachePublic().immutable()
+            .getHeaderValue();
+    private static final String REVALIDATE = CacheControl.noCache().cachePublic().getHeaderValue();
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new HandlerInterceptor() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                if (handler instanceof ResourceHttpRequestHandler) {
+                    boolean fingerprinted = FINGERPRINTED.matcher(request.getRequestURI()).find();
+                    response.setHeader(HttpHeaders.CACHE_CONTROL, fingerprinted ? IMMUTABLE : REVALIDATE);
+                }
+                return true;
+            }
+        });
+    }
+}
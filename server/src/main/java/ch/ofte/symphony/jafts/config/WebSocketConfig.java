@@ -0,0 +1,28 @@
+package ch.ofte.symphony.jafts.config;
+
+import ch.ofte.symphony.jafts.signaling.SignalingHandler;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * WebSocket endpoints
+ * Only same-origin handshakes are accepted (Spring's default when no allowed origins are set).
+ * Message size and idle limits are set per session by each handler, so the container keeps its small defaults.
+ */
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    private final SignalingHandler signalingHandler;
+
+    public WebSocketConfig(SignalingHandler signalingHandler) {
+        this.signalingHandler = signalingHandler;
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(signalingHandler, SignalingHandler.PATH + "*");
+    }
+}
@@ -0,0 +1,221 @@
+package ch.ofte.symphony.jafts.idempotency;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.MessageSource;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Honors the {@code Idempotency-Key} header on state-changing {@code /api/p2p/**} requests
+ * <ul>
+ *     <li>a retry of a completed request replays the stored response without running the upload again</li>
+ *     <li>a duplicate arriving while the first request is still running waits for its result instead of failing</li>
+ *     <li>reusing a key for a different method or URI is rejected</li>
+ * </ul>
+ * Keys are scoped to the HTTP session, so one client can never replay another client's response.
+ * Only successful responses are kept by the {@link IdempotencyStore}; after a failure the same key can be retried.
+ * In cluster mode a duplicate running on another node is polled for every {@code poll-interval}.
+ */
+@Slf4j
+@Component
+public class IdempotencyFilter extends OncePerRequestFilter {
+
+    public static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+    public static final String HEADER_REPLAYED = "Idempotent-Replayed";
+
+    private static final String PATH_PREFIX = "/api/p2p/";
+    private static final int MAX_KEY_LENGTH = 255;
+
+    private final IdempotencyStore store;
+    private final MessageSource messageSource;
+    private final ObjectMapper objectMapper;
+    private final Duration waitTimeout;
+    private final Duration pollInterval;
+
+    // Requests currently being executed, by scoped key; duplicates wait on the future
+    private final ConcurrentMap<String, CompletableFuture<IdempotencyState>> inFlight = new ConcurrentHashMap<>();
+
+    public IdempotencyFilter(
+            IdempotencyStore store,
+            MessageSource messageSource,
+            ObjectMapper objectMapper,
+            @Value("${app.idempotency.wait-timeout:30m}") Duration waitTimeout,
+            @Value("${app.idempotency.poll-interval:500ms}") Duration pollInterval) {
+        this.store = store;
+        this.messageSource = messageSource;
+        this.objectMapper = objectMapper;
+        this.waitTimeout = waitTimeout;
+        this.pollInterval = pollInterval;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String method = request.getMethod();
+        boolean mutating = HttpMethod.POST.matches(method) || HttpMethod.PUT.matches(method)
+                || HttpMethod.PATCH.matches(method) || HttpMethod.DELETE.matches(method);
+        return !mutating
+                || request.getHeader(HEADER_IDEMPOTENCY_KEY) == null
+                || !request.getRequestURI().startsWith(request.getContextPath() + PATH_PREFIX);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String idempotencyKey = request.getHeader(HEADER_IDEMPOTENCY_KEY);
+        if (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            writeError(response, HttpStatus.BAD_REQUEST, "p2p.upload.invalidKey");
+            return;
+        }
+
+        String scopedKey = request.getSession().getId() + ':' + idempotencyKey;
+        String fingerprint = request.getMethod() + ' ' + request.getRequestURI();
+
+        long deadline = System.nanoTime() + waitTimeout.toNanos();
+        while (true) {
+            CompletableFuture<IdempotencyState> claim = new CompletableFuture<>();
+            CompletableFuture<IdempotencyState> running = inFlight.putIfAbsent(scopedKey, claim);
+            if (running == null) {
+                try {
+                    Optional<IdempotencyState> completed = store.findCompleted(scopedKey);
+                    if (completed.isPresent()) {
+                        claim.complete(completed.get());
+                        replay(completed.get(), fingerprint, response);
+                        return;
+                    }
+                    if (store.claim(scopedKey, fingerprint)) {
+                        execute(request, response, chain, scopedKey, fingerprint, claim);
+                        return;
+                    }
+                    // Running on another node; duplicates waiting here retry along with this request
+                    claim.completeExceptionally(new IllegalStateException("Claimed by another node"));
+                } catch (RuntimeException e) {
+                    claim.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(scopedKey, claim);
+                }
+                if (!sleepUntilRetry(deadline)) {
+                    writeError(response, HttpStatus.CONFLICT, "p2p.upload.duplicate");
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                replay(running.get(remaining, TimeUnit.NANOSECONDS), fingerprint, response);
+                return;
+            } catch (ExecutionException e) {
+                // The first request failed without a response, or runs elsewhere; try again
+                log.debug("Idempotent request {} not completed here, retrying with duplicate", scopedKey);
+            } catch (TimeoutException e) {
+                writeError(response, HttpStatus.CONFLICT, "p2p.upload.duplicate");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writeError(response, HttpStatus.CONFLICT, "p2p.upload.duplicate");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait one poll interval before asking the store again
+     * @return false if the wait timeout would be exceeded or the thread was interrupted
+     */
+    private boolean sleepUntilRetry(long deadline) {
+        long sleep = Math.min(pollInterval.toNanos(), deadline - System.nanoTime());
+        if (sleep <= 0) {
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(sleep);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Run the request once, keep a successful response and hand the outcome to waiting duplicates
+     */
+    private void execute(HttpServletRequest request, HttpServletResponse response, FilterChain chain,
+                         String scopedKey, String fingerprint, CompletableFuture<IdempotencyState> claim)
+            throws ServletException, IOException {
+        ContentCachingResponseWrapper responseWrapper = new ContentCachingResponseWrapper(response);
+        try {
+            chain.doFilter(request, responseWrapper);
+            IdempotencyState result = new IdempotencyState(
+                    IdempotencyState.Status.COMPLETED,
+                    new String(responseWrapper.getContentAsByteArray(), StandardCharsets.UTF_8),
+                    responseWrapper.getStatus(),
+                    responseWrapper.getContentType(),
+                    fingerprint);
+            if (HttpStatusCode.valueOf(result.getHttpStatus()).is2xxSuccessful()) {
+                store.complete(scopedKey, result);
+            } else {
+                store.release(scopedKey);
+            }
+            claim.complete(result);
+        } catch (ServletException | IOException | RuntimeException e) {
+            store.release(scopedKey);
+            claim.completeExceptionally(e);
+            throw e;
+        } finally {
+            responseWrapper.copyBodyToResponse();
+        }
+    }
+
+    private void replay(IdempotencyState state, String fingerprint, HttpServletResponse response) throws IOException {
+        if (!fingerprint.equals(state.getRequestFingerprint())) {
+            writeError(response, HttpStatus.UNPROCESSABLE_CONTENT, "p2p.upload.keyReused");
+            return;
+        }
+        response.setStatus(state.getHttpStatus());
+        response.setHeader(HEADER_REPLAYED, "true");
+        if (state.getContentType() != null) {
+            response.setContentType(state.getContentType());
+        }
+        byte[] body = state.getResponseBody() != null
+                ? state.getResponseBody().getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * Write error response with the same structure as the transfer controllers
+     */
+    private void writeError(HttpServletResponse response, HttpStatus status, String messageKey) throws IOException {
+        String message = messageSource.getMessage(messageKey, null, LocaleContextHolder.getLocale());
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        objectMapper.writeValue(response.getOutputStream(), Map.of("error", message, "status", "error"));
+    }
+}
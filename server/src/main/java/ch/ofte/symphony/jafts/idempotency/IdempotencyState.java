@@ -14,6 +14,9 @@ public class IdempotencyState {
 
     private Status status;
     private String responseBody;
+    private int httpStatus;
+    private String contentType;
+    private String requestFingerprint; // "METHOD URI" the key was first used with
 
     public IdempotencyState(Status status) {
         this.status = status;
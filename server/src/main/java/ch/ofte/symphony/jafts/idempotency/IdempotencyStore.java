@@ -0,0 +1,38 @@
+package ch.ofte.symphony.jafts.idempotency;
+
+import java.util.Optional;
+
+/**
+ * Where {@link IdempotencyFilter} keeps completed responses and claims keys for execution
+ * <ul>
+ *     <li>{@link LocalIdempotencyStore} - the {@code idempotencyCache} of this JVM (default)</li>
+ *     <li>{@code ClusterIdempotencyStore} - a table shared by every node, with a local near-cache
+ *     ({@code app.cluster.enabled=true})</li>
+ * </ul>
+ * Keys are already scoped to the HTTP session. Duplicates within one JVM never reach the store concurrently:
+ * the filter lets only one request per key claim it.
+ */
+public interface IdempotencyStore {
+
+    /**
+     * Completed response stored for a key
+     */
+    Optional<IdempotencyState> findCompleted(String scopedKey);
+
+    /**
+     * Claim a key to run its request
+     * @param fingerprint {@code "METHOD URI"} of the request
+     * @return false if the request is running elsewhere, or has completed since {@link #findCompleted}
+     */
+    boolean claim(String scopedKey, String fingerprint);
+
+    /**
+     * Keep the successful response of a claimed key, to be replayed for retries
+     */
+    void complete(String scopedKey, IdempotencyState state);
+
+    /**
+     * Give up a claimed key without keeping a response, so the request can be retried
+     */
+    void release(String scopedKey);
+}
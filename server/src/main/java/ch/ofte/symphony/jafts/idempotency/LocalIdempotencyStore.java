@@ -0,0 +1,46 @@
+package ch.ofte.symphony.jafts.idempotency;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Completed responses in the {@code idempotencyCache} of this JVM
+ * Claims always succeed: the filter's in-flight requests are the only claims there are on a single node.
+ */
+@Component
+@ConditionalOnProperty(name = "app.cluster.enabled", havingValue = "false", matchIfMissing = true)
+public class LocalIdempotencyStore implements IdempotencyStore {
+
+    private static final String CACHE_NAME = "idempotencyCache";
+
+    private final Cache cache;
+
+    public LocalIdempotencyStore(CacheManager cacheManager) {
+        this.cache = Objects.requireNonNull(cacheManager.getCache(CACHE_NAME), "Cache " + CACHE_NAME + " is not configured");
+    }
+
+    @Override
+    public Optional<IdempotencyState> findCompleted(String scopedKey) {
+        return Optional.ofNullable(cache.get(scopedKey, IdempotencyState.class));
+    }
+
+    @Override
+    public boolean claim(String scopedKey, String fingerprint) {
+        return true;
+    }
+
+    @Override
+    public void complete(String scopedKey, IdempotencyState state) {
+        cache.put(scopedKey, state);
+    }
+
+    @Override
+    public void release(String scopedKey) {
+        // Nothing was stored for the claim
+    }
+}
@@ -0,0 +1,25 @@
+package ch.ofte.symphony.jafts.metadata;
+
+import java.time.Instant;
+
+/**
+ * Indexed metadata of a stored file
+ * @param fileId file ID returned by the upload
+ * @param fileName file name sent by the client
+ * @param fileSize size of the content in bytes
+ * @param contentType content type sent by the client
+ * @param digest lowercase hex SHA-256 of the content
+ * @param createdAt when the file was stored
+ * @param expiresAt when the file may be reclaimed, or null if it never expires
+ * @param shareKey short key the file can also be downloaded by, or null if it has none
+ */
+public record FileMetadata(
+        String fileId,
+        String fileName,
+        long fileSize,
+        String contentType,
+        String digest,
+        Instant createdAt,
+        Instant expiresAt,
+        String shareKey) {
+}
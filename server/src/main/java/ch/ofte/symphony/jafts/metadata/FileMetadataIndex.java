@@ -0,0 +1,195 @@
+package ch.ofte.symphony.jafts.metadata;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File ID → metadata index backed by the {@code file_metadata} table
+ * <ul>
+ *     <li>reads go through a bounded Caffeine near-cache, so a hit costs one hash lookup and
+ *     a miss one primary-key query</li>
+ *     <li>writes are queued and flushed by a background writer in JDBC batches, one transaction per batch,
+ *     so an upload never waits for the database</li>
+ * </ul>
+ * The descriptors written by the storage layer stay authoritative: a write lost on overload or crash
+ * is recorded again the next time the file is looked up. Deletes are never dropped: a removed file ID is kept
+ * as a tombstone until its delete is committed, and removing waits for room in a full queue.
+ */
+@Slf4j
+@Service
+public class FileMetadataIndex {
+
+    private final FileMetadataRepository repository;
+    private final TransactionTemplate transactionTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Cache<String, FileMetadata> nearCache;
+    private final BlockingQueue<PendingWrite> pending;
+    private final int batchSize;
+    // Removed file IDs whose delete is not committed yet; a near-cache miss must not reload them
+    private final Set<String> pendingDeletes = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = true;
+    private Thread writer;
+
+    public FileMetadataIndex(
+            FileMetadataRepository repository,
+            TransactionTemplate transactionTemplate,
+            ApplicationEventPublisher eventPublisher,
+            @Value("${app.metadata.cache-size:100000}") long cacheSize,
+            @Value("${app.metadata.batch-size:500}") int batchSize,
+            @Value("${app.metadata.queue-capacity:100000}") int queueCapacity) {
+        this.repository = repository;
+        this.transactionTemplate = transactionTemplate;
+        this.eventPublisher = eventPublisher;
+        this.batchSize = Math.max(1, batchSize);
+        this.pending = new LinkedBlockingQueue<>(queueCapacity);
+        this.nearCache = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .recordStats()
+                .build();
+    }
+
+    @PostConstruct
+    void startWriter() {
+        writer = Thread.ofVirtual().name("metadata-index-writer").start(this::writeLoop);
+    }
+
+    /**
+     * Flush everything still queued before the data source goes away
+     */
+    @PreDestroy
+    void stopWriter() throws InterruptedException {
+        // No interrupt: the writer may be inside a JDBC call; it notices within one poll timeout
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * Record metadata of a new or changed file; visible to {@link #find(String)} immediately, persisted asynchronously
+     */
+    public void record(FileMetadata metadata) {
+        nearCache.put(metadata.fileId(), metadata);
+        enqueue(new PendingWrite(metadata.fileId(), metadata));
+        eventPublisher.publishEvent(new FileMetadataRecordedEvent(metadata));
+    }
+
+    /**
+     * Drop a file from the index
+     * Blocks while the write queue is full, so the row is never left behind
+     */
+    public void remove(String fileId) {
+        pendingDeletes.add(fileId);
+        nearCache.invalidate(fileId);
+        try {
+            pending.put(new PendingWrite(fileId, null));
+        } catch (InterruptedException e) {
+            // The tombstone stays, so the row is never reloaded
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while queueing the metadata delete of {}", fileId);
+        }
+    }
+
+    /**
+     * Look up metadata by file ID
+     * @return the metadata, or empty if the file is not indexed
+     */
+    public Optional<FileMetadata> find(String fileId) {
+        // Misses are not cached: a file may be recorded right after an unsuccessful lookup
+        return Optional.ofNullable(nearCache.get(fileId, id -> pendingDeletes.contains(id)
+                ? null
+                : repository.findById(id).orElse(null)));
+    }
+
+    public Cache<String, FileMetadata> getNearCache() {
+        return nearCache;
+    }
+
+    private void enqueue(PendingWrite write) {
+        if (!pending.offer(write)) {
+            log.warn("Metadata index queue is full, dropping write for {}", write.fileId());
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (running || !pending.isEmpty()) {
+            try {
+                PendingWrite first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                // Everything queued while the previous batch was written goes out together
+                batch.add(first);
+                pending.drainTo(batch, batchSize - 1);
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // Tombstones of the batch's deletes stay, so their rows are never reloaded
+                log.error("Failed to write {} metadata index change(s)", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write one batch in a single transaction, keeping the order of changes to the same file ID
+     */
+    private void flush(List<PendingWrite> batch) {
+        transactionTemplate.executeWithoutResult(status -> {
+            // Keyed by file ID, so a run never holds two rows for the same file
+            Map<String, FileMetadata> upserts = new LinkedHashMap<>();
+            Set<String> deletes = new LinkedHashSet<>();
+            for (PendingWrite write : batch) {
+                // Runs of the same kind are batched; a switch between upsert and delete flushes the run
+                if (write.metadata() != null) {
+                    if (!deletes.isEmpty()) {
+                        repository.deleteAll(List.copyOf(deletes));
+                        deletes.clear();
+                    }
+                    upserts.put(write.fileId(), write.metadata());
+                } else {
+                    if (!upserts.isEmpty()) {
+                        repository.upsertAll(List.copyOf(upserts.values()));
+                        upserts.clear();
+                    }
+                    deletes.add(write.fileId());
+                }
+            }
+            repository.upsertAll(List.copyOf(upserts.values()));
+            repository.deleteAll(List.copyOf(deletes));
+        });
+        for (PendingWrite write : batch) {
+            if (write.metadata() == null) {
+                pendingDeletes.remove(write.fileId());
+            }
+        }
+    }
+
+    /**
+     * Queued change: an upsert when metadata is set, a delete otherwise
+     */
+    private record PendingWrite(String fileId, FileMetadata metadata) {
+    }
+}
@@ -0,0 +1,7 @@
+package ch.ofte.symphony.jafts.metadata;
+
+/**
+ * Published synchronously whenever {@link FileMetadataIndex} records a file, before the write is persisted
+ */
+public record FileMetadataRecordedEvent(FileMetadata metadata) {
+}
@@ -0,0 +1,106 @@
+package ch.ofte.symphony.jafts.metadata;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * JDBC access to the {@code file_metadata} table (see {@code schema.sql})
+ * Plain SQL that runs unchanged on H2 and PostgreSQL; writes are always JDBC batches.
+ */
+@Repository
+public class FileMetadataRepository {
+
+    private static final String SELECT_COLUMNS =
+            "SELECT file_id, file_name, file_size, content_type, digest, created_at, expires_at, share_key FROM file_metadata";
+    private static final String UPDATE = """
+            UPDATE file_metadata
+            SET file_name = ?, file_size = ?, content_type = ?, digest = ?, created_at = ?, expires_at = ?, share_key = ?
+            WHERE file_id = ?""";
+    private static final String INSERT = """
+            INSERT INTO file_metadata (file_name, file_size, content_type, digest, created_at, expires_at, share_key, file_id)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?)""";
+    private static final String DELETE = "DELETE FROM file_metadata WHERE file_id = ?";
+
+    private static final RowMapper<FileMetadata> ROW_MAPPER = (rs, rowNum) -> new FileMetadata(
+            rs.getString("file_id"),
+            rs.getString("file_name"),
+            rs.getLong("file_size"),
+            rs.getString("content_type"),
+            rs.getString("digest"),
+            rs.getTimestamp("created_at").toInstant(),
+            rs.getTimestamp("expires_at") != null ? rs.getTimestamp("expires_at").toInstant() : null,
+            rs.getString("share_key"));
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public FileMetadataRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public Optional<FileMetadata> findById(String fileId) {
+        return jdbcTemplate.query(SELECT_COLUMNS + " WHERE file_id = ?", ROW_MAPPER, fileId).stream().findFirst();
+    }
+
+    /**
+     * Stream the expiry of every file that has one, without loading the whole table into memory
+     */
+    public void forEachExpiring(BiConsumer<String, Instant> consumer) {
+        jdbcTemplate.query("SELECT file_id, expires_at FROM file_metadata WHERE expires_at IS NOT NULL",
+                (RowCallbackHandler) rs -> consumer.accept(rs.getString("file_id"), rs.getTimestamp("expires_at").toInstant()));
+    }
+
+    /**
+     * Stream every share key with the file ID it belongs to
+     */
+    public void forEachShareKey(BiConsumer<String, String> consumer) {
+        jdbcTemplate.query("SELECT share_key, file_id FROM file_metadata WHERE share_key IS NOT NULL",
+                (RowCallbackHandler) rs -> consumer.accept(rs.getString("share_key"), rs.getString("file_id")));
+    }
+
+    /**
+     * Insert or replace rows in two batch statements: update all, then insert the ones that did not exist
+     */
+    public void upsertAll(List<FileMetadata> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        int[] updated = jdbcTemplate.batchUpdate(UPDATE, rows.stream().map(FileMetadataRepository::toParameters).toList());
+        List<Object[]> inserts = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            if (updated[i] == 0) {
+                inserts.add(toParameters(rows.get(i)));
+            }
+        }
+        if (!inserts.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT, inserts);
+        }
+    }
+
+    public void deleteAll(List<String> fileIds) {
+        if (!fileIds.isEmpty()) {
+            jdbcTemplate.batchUpdate(DELETE, fileIds.stream().map(fileId -> new Object[]{fileId}).toList());
+        }
+    }
+
+    // Same parameter order for UPDATE and INSERT: data columns first, file_id last
+    private static Object[] toParameters(FileMetadata metadata) {
+        return new Object[]{
+                metadata.fileName(),
+                metadata.fileSize(),
+                metadata.contentType(),
+                metadata.digest(),
+                Timestamp.from(metadata.createdAt()),
+                metadata.expiresAt() != null ? Timestamp.from(metadata.expiresAt()) : null,
+                metadata.shareKey(),
+                metadata.fileId()};
+    }
+}
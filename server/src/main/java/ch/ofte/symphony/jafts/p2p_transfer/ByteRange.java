@@ -0,0 +1,89 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Inclusive byte range of an HTTP {@code Range} request
+ *
+ * @param start first byte position
+ * @param end   last byte position (inclusive)
+ */
+record ByteRange(long start, long end) {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Parse a {@code Range} header against a representation of the given size
+     * Overlapping and adjacent ranges are merged, as allowed by RFC 9110 section 14.2
+     * @param header value of the {@code Range} header
+     * @param size size of the representation in bytes
+     * @param maxRanges maximum number of ranges honoured after merging
+     * @return empty if the header must be ignored (absent, malformed, unknown unit, too many ranges),
+     * an empty list if no range is satisfiable, otherwise the ranges in ascending order
+     */
+    static Optional<List<ByteRange>> parse(String header, long size, int maxRanges) {
+        if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return Optional.empty();
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : header.substring(BYTES_UNIT.length()).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return Optional.empty();
+            }
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffixLength), size - 1));
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? size - 1 : Long.parseLong(last);
+                if (start < 0 || !last.isEmpty() && end < start) {
+                    return Optional.empty();
+                }
+                if (start < size) {
+                    ranges.add(new ByteRange(start, Math.min(end, size - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        }
+
+        List<ByteRange> merged = merge(ranges);
+        return merged.size() > maxRanges ? Optional.empty() : Optional.of(merged);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(ByteRange::start));
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.getFirst();
+        for (ByteRange next : ranges.subList(1, ranges.size())) {
+            if (next.start() <= current.end() + 1) {
+                current = new ByteRange(current.start(), Math.max(current.end(), next.end()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
@@ -0,0 +1,122 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * State of one resumable upload: the open partial file plus a lock-free bitmap of received chunks
+ * Chunk writers share the read lock; completion and abort take the write lock
+ */
+@Getter
+class ChunkedUpload {
+
+    private final String fileId;
+    private final String ownerSessionId;
+    private final String fileName;
+    private final String contentType;
+    private final Duration ttl;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final FileChannel channel;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLongArray receivedBits;
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger receivedCount = new AtomicInteger();
+    @Getter(AccessLevel.NONE)
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    ChunkedUpload(String fileId, String ownerSessionId, String fileName, String contentType, Duration ttl,
+                  long fileSize, int chunkSize, FileChannel channel) {
+        this.fileId = fileId;
+        this.ownerSessionId = ownerSessionId;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.ttl = ttl;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+        this.channel = channel;
+        this.receivedBits = new AtomicLongArray((chunkCount + 63) / 64);
+    }
+
+    long offsetOf(int index) {
+        return (long) index * chunkSize;
+    }
+
+    long lengthOf(int index) {
+        return Math.min(chunkSize, fileSize - offsetOf(index));
+    }
+
+    /**
+     * Record a chunk as received; repeated chunks are counted once
+     */
+    void markReceived(int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long current;
+        do {
+            current = receivedBits.get(word);
+            if ((current & bit) != 0) {
+                return;
+            }
+        } while (!receivedBits.compareAndSet(word, current, current | bit));
+        receivedCount.incrementAndGet();
+    }
+
+    boolean isReceived(int index) {
+        return (receivedBits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    boolean isComplete() {
+        return receivedCount.get() == chunkCount;
+    }
+
+    int getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * Byte ranges already on disk, as inclusive [start, end] pairs with adjacent chunks merged
+     */
+    List<long[]> receivedRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        int index = 0;
+        while (index < chunkCount) {
+            if (!isReceived(index)) {
+                index++;
+                continue;
+            }
+            int first = index;
+            while (index < chunkCount && isReceived(index)) {
+                index++;
+            }
+            ranges.add(new long[]{offsetOf(first), offsetOf(index - 1) + lengthOf(index - 1) - 1});
+        }
+        return ranges;
+    }
+
+    List<Integer> missingChunks() {
+        List<Integer> missing = new ArrayList<>();
+        for (int index = 0; index < chunkCount; index++) {
+            if (!isReceived(index)) {
+                missing.add(index);
+            }
+        }
+        return missing;
+    }
+
+    ReadWriteLock lock() {
+        return lock;
+    }
+}
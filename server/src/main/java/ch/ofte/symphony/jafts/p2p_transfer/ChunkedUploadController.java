@@ -0,0 +1,207 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import ch.ofte.symphony.jafts.storage.StorageBusyException;
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import ch.ofte.symphony.jafts.storage.UploadTooLargeException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpSession;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.MessageSource;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Resumable, parallel chunked upload protocol
+ * <ol>
+ *     <li>{@code POST /api/p2p/uploads} with file name, size and type returns a file ID and the chunk size</li>
+ *     <li>{@code PUT /api/p2p/uploads/{fileId}/chunks/{index}} with the raw chunk bytes, in any order and in parallel</li>
+ *     <li>{@code GET /api/p2p/uploads/{fileId}} reports received byte ranges and missing chunks for resuming</li>
+ *     <li>{@code POST /api/p2p/uploads/{fileId}/complete} publishes the file</li>
+ * </ol>
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/p2p/uploads")
+@RequiredArgsConstructor
+public class ChunkedUploadController {
+
+    private static final String KEY_CHUNK_SIZE = "chunkSize";
+    private static final String KEY_CHUNK_COUNT = "chunkCount";
+    private static final String KEY_RECEIVED_CHUNKS = "receivedChunks";
+    private static final String KEY_RECEIVED_RANGES = "receivedRanges";
+    private static final String KEY_MISSING_CHUNKS = "missingChunks";
+
+    private final ChunkedUploadService chunkedUploadService;
+    private final TransferMetrics transferMetrics;
+    private final MessageSource messageSource;
+
+    /**
+     * Request body for starting a chunked upload
+     */
+    public record CreateUploadRequest(String fileName, long fileSize, String contentType, Long ttl) {
+    }
+
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> createUpload(
+            @RequestBody CreateUploadRequest request,
+            HttpSession session) {
+        if (request.fileSize() <= 0) {
+            return TransferResponses.error(message("p2p.upload.selectFile"), ResponseEntity.badRequest());
+        }
+
+        String contentType = request.contentType() != null && !request.contentType().isBlank()
+                ? request.contentType()
+                : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        try {
+            ChunkedUpload upload = chunkedUploadService.create(
+                    session.getId(), request.fileName(), contentType, request.fileSize(),
+                    TransferResponses.ttl(request.ttl()));
+            log.info("Chunked upload started: {} (ID: {}, Size: {} bytes, Chunks: {})",
+                    upload.getFileName(), upload.getFileId(), upload.getFileSize(), upload.getChunkCount());
+            return ResponseEntity.status(HttpStatus.CREATED).body(describe(upload));
+        } catch (UploadTooLargeException e) {
+            return TransferResponses.error(message("p2p.upload.tooLarge", e.getMaxSize() / (1024 * 1024) + "MB"),
+                    ResponseEntity.status(HttpStatus.CONTENT_TOO_LARGE));
+        } catch (IllegalStateException e) {
+            // The session has all the uploads in progress it may have
+            return TransferResponses.error(message("p2p.upload.duplicate"), ResponseEntity.status(HttpStatus.CONFLICT));
+        } catch (StorageBusyException e) {
+            log.warn("Turned away chunked upload: {}", e.getMessage());
+            return TransferResponses.busy(message("p2p.upload.busy"));
+        } catch (IOException e) {
+            log.error("Failed to start chunked upload: {}", request.fileName(), e);
+            return TransferResponses.error(message("p2p.upload.error", e.getMessage()),
+                    ResponseEntity.internalServerError());
+        }
+    }
+
+    @GetMapping("/{fileId}")
+    public ResponseEntity<Map<String, Object>> getUpload(
+            @PathVariable("fileId") String fileId,
+            HttpSession session) {
+        Optional<ChunkedUpload> upload = chunkedUploadService.find(fileId, session.getId());
+        if (upload.isEmpty()) {
+            return notFound();
+        }
+        return ResponseEntity.ok(describe(upload.get()));
+    }
+
+    @PutMapping("/{fileId}/chunks/{index}")
+    public ResponseEntity<Map<String, Object>> uploadChunk(
+            @PathVariable("fileId") String fileId,
+            @PathVariable("index") int index,
+            HttpServletRequest request,
+            HttpSession session) {
+        Optional<ChunkedUpload> upload = chunkedUploadService.find(fileId, session.getId());
+        if (upload.isEmpty()) {
+            return notFound();
+        }
+
+        long chunkLength = index >= 0 && index < upload.get().getChunkCount() ? upload.get().lengthOf(index) : 0;
+        long startedAt = transferMetrics.started(TransferMetrics.UPLOAD);
+        String outcome = TransferMetrics.OUTCOME_SERVER_ERROR;
+        try {
+            chunkedUploadService.writeChunk(upload.get(), index, request.getInputStream());
+            outcome = TransferMetrics.OUTCOME_SUCCESS;
+            Map<String, Object> response = new HashMap<>();
+            response.put(TransferResponses.KEY_FILE_ID, fileId);
+            response.put(KEY_RECEIVED_CHUNKS, upload.get().getReceivedCount());
+            response.put(KEY_CHUNK_COUNT, upload.get().getChunkCount());
+            response.put(TransferResponses.KEY_STATUS, TransferResponses.STATUS_SUCCESS);
+            return ResponseEntity.ok(response);
+        } catch (UploadTooLargeException | IllegalArgumentException e) {
+            outcome = TransferMetrics.OUTCOME_CLIENT_ERROR;
+            return TransferResponses.error(message("p2p.upload.chunkInvalid", index), ResponseEntity.badRequest());
+        } catch (IllegalStateException e) {
+            outcome = TransferMetrics.OUTCOME_CLIENT_ERROR;
+            return TransferResponses.error(message("p2p.upload.duplicate"), ResponseEntity.status(HttpStatus.CONFLICT));
+        } catch (StorageBusyException e) {
+            // The chunk is not marked received; the client sends it again after Retry-After
+            log.warn("Turned away chunk {} of upload {}: {}", index, fileId, e.getMessage());
+            return TransferResponses.busy(message("p2p.upload.busy"));
+        } catch (IOException e) {
+            log.error("Failed to write chunk {} of upload {}", index, fileId, e);
+            return TransferResponses.error(message("p2p.upload.error", e.getMessage()),
+                    ResponseEntity.internalServerError());
+        } finally {
+            transferMetrics.finished(TransferMetrics.UPLOAD, TransferMetrics.METHOD_CHUNK, startedAt, chunkLength,
+                    outcome);
+        }
+    }
+
+    @PostMapping("/{fileId}/complete")
+    public ResponseEntity<Map<String, Object>> completeUpload(
+            @PathVariable("fileId") String fileId,
+            HttpSession session) {
+        Optional<ChunkedUpload> upload = chunkedUploadService.find(fileId, session.getId());
+        if (upload.isEmpty()) {
+            return notFound();
+        }
+
+        try {
+            StoredFile storedFile = chunkedUploadService.complete(upload.get());
+            log.info("Chunked upload completed: {} (ID: {}, Size: {} bytes)",
+                    storedFile.fileName(), storedFile.fileId(), storedFile.fileSize());
+            return TransferResponses.success(storedFile);
+        } catch (IllegalStateException e) {
+            Map<String, Object> response = describe(upload.get());
+            response.put(TransferResponses.KEY_ERROR, message("p2p.upload.incomplete"));
+            response.put(TransferResponses.KEY_STATUS, TransferResponses.STATUS_ERROR);
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+        } catch (IOException e) {
+            log.error("Failed to complete upload {}", fileId, e);
+            return TransferResponses.error(message("p2p.upload.error", e.getMessage()),
+                    ResponseEntity.internalServerError());
+        }
+    }
+
+    @DeleteMapping("/{fileId}")
+    public ResponseEntity<Void> abortUpload(
+            @PathVariable("fileId") String fileId,
+            HttpSession session) {
+        chunkedUploadService.find(fileId, session.getId()).ifPresent(chunkedUploadService::abort);
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Describe upload progress so a client can resume by sending only the missing chunks
+     */
+    private Map<String, Object> describe(ChunkedUpload upload) {
+        Map<String, Object> response = new HashMap<>();
+        response.put(TransferResponses.KEY_FILE_ID, upload.getFileId());
+        response.put(TransferResponses.KEY_FILE_NAME, upload.getFileName());
+        response.put(TransferResponses.KEY_FILE_SIZE, upload.getFileSize());
+        response.put(TransferResponses.KEY_CONTENT_TYPE, upload.getContentType());
+        response.put(KEY_CHUNK_SIZE, upload.getChunkSize());
+        response.put(KEY_CHUNK_COUNT, upload.getChunkCount());
+        response.put(KEY_RECEIVED_CHUNKS, upload.getReceivedCount());
+        response.put(KEY_RECEIVED_RANGES, upload.receivedRanges());
+        response.put(KEY_MISSING_CHUNKS, upload.missingChunks());
+        response.put(TransferResponses.KEY_STATUS, TransferResponses.STATUS_SUCCESS);
+        return response;
+    }
+
+    private ResponseEntity<Map<String, Object>> notFound() {
+        return TransferResponses.error(message("p2p.upload.sessionNotFound"), ResponseEntity.status(HttpStatus.NOT_FOUND));
+    }
+
+    private String message(String key, Object... args) {
+        return messageSource.getMessage(key, args, LocaleContextHolder.getLocale());
+    }
+}
@@ -0,0 +1,226 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import ch.ofte.symphony.jafts.storage.FileStorageService;
+import ch.ofte.symphony.jafts.storage.StorageBusyException;
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Resumable chunked uploads
+ * Every upload gets a preallocated partial file; chunks may arrive in any order and in parallel
+ * and are written directly at their offset. Idle uploads expire and their partial file is removed.
+ * Uploads in progress are capped per HTTP session ({@code app.upload.max-open-per-session}) and in total
+ * ({@code app.upload.max-sessions}). A new upload beyond either cap is refused; it never pushes out an upload
+ * already in progress, so no client can have another's partial file deleted.
+ */
+@Slf4j
+@Service
+public class ChunkedUploadService {
+
+    private final FileStorageService fileStorageService;
+    private final int chunkSize;
+    private final long maxSessions;
+    private final int maxOpenPerSession;
+    private final Cache<String, ChunkedUpload> uploads;
+    // Uploads in progress, in total and by owner; an upload counts from create until it leaves the cache
+    private final AtomicLong openCount = new AtomicLong();
+    private final ConcurrentMap<String, Integer> openByOwner = new ConcurrentHashMap<>();
+
+    public ChunkedUploadService(
+            FileStorageService fileStorageService,
+            @Value("${app.upload.chunk-size:8MB}") DataSize chunkSize,
+            @Value("${app.upload.session-ttl:24h}") Duration sessionTtl,
+            @Value("${app.upload.max-sessions:10000}") long maxSessions,
+            @Value("${app.upload.max-open-per-session:10}") int maxOpenPerSession) {
+        this.fileStorageService = fileStorageService;
+        this.chunkSize = Math.toIntExact(chunkSize.toBytes());
+        this.maxSessions = maxSessions;
+        this.maxOpenPerSession = Math.max(1, maxOpenPerSession);
+        // No size bound: the caps are enforced in create, so only expiry removes an upload nobody completed
+        this.uploads = Caffeine.newBuilder()
+                .expireAfterAccess(sessionTtl)
+                .scheduler(Scheduler.systemScheduler())
+                .removalListener((String fileId, ChunkedUpload upload, RemovalCause cause) -> {
+                    if (upload != null && cause.wasEvicted()) {
+                        log.info("Chunked upload {} expired ({})", fileId, cause);
+                        release(upload.getOwnerSessionId());
+                        discard(upload);
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Start a chunked upload
+     * @param ownerSessionId HTTP session allowed to send chunks
+     * @param ttl time to live of the stored file, or null for the default
+     * @return the new upload; its file ID becomes the stored file ID on completion
+     * @throws IllegalStateException if the session already has {@code app.upload.max-open-per-session} uploads
+     * @throws StorageBusyException if {@code app.upload.max-sessions} uploads are in progress
+     */
+    public ChunkedUpload create(String ownerSessionId, String fileName, String contentType, long fileSize,
+                                Duration ttl) throws IOException {
+        if (fileSize <= 0) {
+            throw new IllegalArgumentException("File size must be positive");
+        }
+        open(ownerSessionId);
+        String fileId = UUID.randomUUID().toString();
+        try {
+            FileChannel channel = fileStorageService.openPartial(fileId, fileSize);
+            ChunkedUpload upload = new ChunkedUpload(fileId, ownerSessionId, fileName, contentType, ttl,
+                    fileSize, chunkSize, channel);
+            uploads.put(fileId, upload);
+            return upload;
+        } catch (IOException | RuntimeException e) {
+            release(ownerSessionId);
+            throw e;
+        }
+    }
+
+    /**
+     * Look up an upload, visible only to the session that created it
+     */
+    public Optional<ChunkedUpload> find(String fileId, String sessionId) {
+        ChunkedUpload upload = uploads.getIfPresent(fileId);
+        if (upload == null || !upload.getOwnerSessionId().equals(sessionId)) {
+            return Optional.empty();
+        }
+        return Optional.of(upload);
+    }
+
+    /**
+     * Write one chunk at its offset; safe to call concurrently for different chunks
+     * @param in chunk body, must hold exactly the chunk length
+     * @throws IllegalArgumentException if the index is out of range or the body length is wrong
+     * @throws IllegalStateException if the upload is being completed or aborted
+     */
+    public void writeChunk(ChunkedUpload upload, int index, InputStream in) throws IOException {
+        if (index < 0 || index >= upload.getChunkCount()) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+        Lock readLock = upload.lock().readLock();
+        readLock.lock();
+        try {
+            if (!upload.getChannel().isOpen()) {
+                throw new IllegalStateException("Upload is already closed");
+            }
+            long expected = upload.lengthOf(index);
+            long written = fileStorageService.transfer(in, upload.getChannel(), upload.offsetOf(index), expected);
+            if (written != expected) {
+                throw new IllegalArgumentException(
+                        "Chunk " + index + " has " + written + " bytes, expected " + expected);
+            }
+            upload.markReceived(index);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Publish the file once every chunk is on disk
+     * @throws IllegalStateException if chunks are missing or still being written
+     */
+    public StoredFile complete(ChunkedUpload upload) throws IOException {
+        Lock writeLock = upload.lock().writeLock();
+        if (!writeLock.tryLock()) {
+            throw new IllegalStateException("Chunks are still being written");
+        }
+        try {
+            if (!upload.isComplete()) {
+                throw new IllegalStateException("Missing " + upload.missingChunks().size() + " chunk(s)");
+            }
+            upload.getChannel().close();
+            remove(upload);
+            try {
+                return fileStorageService.commitPartial(upload.getFileId(), upload.getFileName(),
+                        upload.getContentType(), upload.getFileSize(), upload.getTtl());
+            } catch (IOException | RuntimeException e) {
+                // Removed explicitly, so the removal listener does not discard the partial file
+                fileStorageService.deletePartial(upload.getFileId());
+                throw e;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Abort an upload and delete what has been received so far
+     */
+    public void abort(ChunkedUpload upload) {
+        remove(upload);
+        discard(upload);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Uploads in progress by file ID, for cache statistics
+     */
+    public Cache<String, ChunkedUpload> getUploadCache() {
+        return uploads;
+    }
+
+    private void open(String ownerSessionId) throws StorageBusyException {
+        if (openByOwner.merge(ownerSessionId, 1, Integer::sum) > maxOpenPerSession) {
+            releaseOwner(ownerSessionId);
+            throw new IllegalStateException("Session already has " + maxOpenPerSession + " uploads in progress");
+        }
+        if (openCount.incrementAndGet() > maxSessions) {
+            release(ownerSessionId);
+            throw new StorageBusyException("chunked uploads");
+        }
+    }
+
+    /**
+     * Take an upload out of the cache; counted off here, or by the removal listener if it expired first
+     */
+    private void remove(ChunkedUpload upload) {
+        if (uploads.asMap().remove(upload.getFileId(), upload)) {
+            release(upload.getOwnerSessionId());
+        }
+    }
+
+    private void release(String ownerSessionId) {
+        openCount.decrementAndGet();
+        releaseOwner(ownerSessionId);
+    }
+
+    private void releaseOwner(String ownerSessionId) {
+        openByOwner.computeIfPresent(ownerSessionId, (owner, open) -> open > 1 ? open - 1 : null);
+    }
+
+    private void discard(ChunkedUpload upload) {
+        Lock writeLock = upload.lock().writeLock();
+        writeLock.lock();
+        try {
+            upload.getChannel().close();
+        } catch (IOException e) {
+            log.warn("Failed to close partial upload {}", upload.getFileId(), e);
+        } finally {
+            writeLock.unlock();
+        }
+        fileStorageService.deletePartial(upload.getFileId());
+    }
+}
@@ -0,0 +1,423 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import ch.ofte.symphony.jafts.storage.Blob;
+import ch.ofte.symphony.jafts.storage.FileStorageService;
+import ch.ofte.symphony.jafts.storage.HotBlobCache;
+import ch.ofte.symphony.jafts.storage.IoLimiter;
+import ch.ofte.symphony.jafts.storage.StorageBusyException;
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Download endpoint for stored files
+ * Supports single and multi-range requests, {@code If-Range} and conditional GET so clients can resume
+ * and download segments in parallel. Bodies are sent with the container's sendfile support when available,
+ * otherwise with {@link FileChannel#transferTo}; file bytes are never copied into per-request heap buffers.
+ * Files stored compressed are sent as stored with {@code Content-Encoding: gzip} to clients that accept it,
+ * and inflated on the fly for everyone else. They are always sent whole and advertise {@code Accept-Ranges: none}:
+ * a range of the original bytes could only be found by inflating from the start, so segmented downloads of
+ * them would cost time quadratic in their size.
+ * With {@code app.storage.integrity.verify-downloads}, the chunks a response covers are checked against the
+ * file's integrity record before the response is started.
+ * Small files downloaded over and over are sent from the off-heap {@link HotBlobCache} instead of the disk,
+ * the body (or the slice of every range) handed to the container in one write of the cached buffer. There is no
+ * gathering write of headers and body: the servlet API does not expose the socket, and Tomcat writes the headers
+ * itself. It does put them in the connection's write buffer and copies the body in behind them, so a hot file
+ * that fits there leaves with its headers in a single socket write.
+ * Files opened here count against the {@link IoLimiter}; a download it has no room for gets 503 with
+ * {@code Retry-After}. Files handed to sendfile are opened by the container and are not counted.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/p2p/files")
+@RequiredArgsConstructor
+public class FileDownloadController {
+
+    // Tomcat sendfile request attributes (see org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_FILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_FILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final int MAX_RANGES = 16;
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+    private static final String GZIP = "gzip";
+    private static final String CRLF = "\r\n";
+
+    private final FileStorageService fileStorageService;
+    private final HotBlobCache hotBlobCache;
+    private final IoLimiter ioLimiter;
+    private final TransferMetrics transferMetrics;
+
+    @GetMapping("/{fileId}")
+    public void download(
+            @PathVariable("fileId") String fileId,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        long startedAt = transferMetrics.started(TransferMetrics.DOWNLOAD);
+        long sent = 0;
+        String outcome = TransferMetrics.OUTCOME_SERVER_ERROR;
+        try {
+            sent = serve(fileId, request, response);
+            outcome = TransferMetrics.outcomeOf(response.getStatus());
+        } catch (StorageBusyException e) {
+            TransferResponses.busy(response, e);
+            outcome = TransferMetrics.outcomeOf(response.getStatus());
+        } finally {
+            String method = HttpMethod.HEAD.matches(request.getMethod()) ? TransferMetrics.METHOD_HEAD
+                    : response.getStatus() == HttpStatus.PARTIAL_CONTENT.value() ? TransferMetrics.METHOD_RANGE
+                    : TransferMetrics.METHOD_FULL;
+            transferMetrics.finished(TransferMetrics.DOWNLOAD, method, startedAt, sent, outcome);
+        }
+    }
+
+    /**
+     * Answer a download request
+     * @return number of body bytes sent, or handed to sendfile
+     */
+    private long serve(String fileId, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Optional<StoredFile> storedFile = fileStorageService.find(fileId);
+        if (storedFile.isEmpty()) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return 0;
+        }
+
+        Optional<Blob> located = fileStorageService.locate(storedFile.get());
+        if (located.isEmpty()) {
+            log.error("Content {} of file {} is missing from storage", storedFile.get().digest(), fileId);
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return 0;
+        }
+        Blob blob = located.get();
+        boolean compressed = blob.compressed();
+        long size = compressed ? storedFile.get().fileSize() : blob.size();
+        // Gzip-capable clients get the stored bytes unchanged
+        boolean sendEncoded = compressed && acceptsGzip(request);
+        // HTTP dates have second precision
+        long lastModified = blob.lastModified().toEpochMilli() / 1000 * 1000;
+        // Content-addressed: the digest is a strong validator for the bytes; the gzip encoding is another representation
+        String etag = "\"" + storedFile.get().digest() + (sendEncoded ? "-" + GZIP : "") + "\"";
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, compressed ? "none" : "bytes");
+        if (compressed) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, no-cache");
+
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return 0;
+        }
+
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename(storedFile.get().fileName(), StandardCharsets.UTF_8)
+                .build()
+                .toString());
+
+        String contentType = storedFile.get().contentType();
+        boolean headOnly = HttpMethod.HEAD.matches(request.getMethod());
+
+        Optional<List<ByteRange>> ranges = !compressed && isRangeApplicable(request, etag, lastModified)
+                ? ByteRange.parse(request.getHeader(HttpHeaders.RANGE), size, MAX_RANGES)
+                : Optional.empty();
+
+        List<ByteRange> toSend = ranges.orElse(List.of(new ByteRange(0, size - 1)));
+        if (!headOnly && !isIntact(storedFile.get(), blob, toSend)) {
+            response.sendError(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            return 0;
+        }
+
+        if (sendEncoded) {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+            response.setContentLengthLong(blob.size());
+            if (headOnly) {
+                return 0;
+            }
+            sendRange(request, response, blob, new ByteRange(0, blob.size() - 1));
+            return blob.size();
+        } else if (ranges.isEmpty()) {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(contentType);
+            response.setContentLengthLong(size);
+            if (headOnly) {
+                return 0;
+            }
+            sendContent(request, response, blob, new ByteRange(0, size - 1));
+            return size;
+        } else if (ranges.get().isEmpty()) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return 0;
+        } else if (ranges.get().size() == 1) {
+            ByteRange range = ranges.get().getFirst();
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setContentType(contentType);
+            response.setContentLengthLong(range.length());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(range, size));
+            if (headOnly) {
+                return 0;
+            }
+            sendContent(request, response, blob, range);
+            return range.length();
+        } else {
+            return sendMultipleRanges(response, blob, ranges.get(), contentType, size, headOnly);
+        }
+    }
+
+    /**
+     * Check the ranges about to be sent against the file's integrity record, before any byte is written
+     */
+    private boolean isIntact(StoredFile storedFile, Blob blob, List<ByteRange> ranges) throws IOException {
+        for (ByteRange range : ranges) {
+            if (!fileStorageService.verify(storedFile, blob, range.start(), range.length())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send one range of the original content, or all of it inflated if the file is stored compressed
+     */
+    private void sendContent(HttpServletRequest request, HttpServletResponse response, Blob blob, ByteRange range)
+            throws IOException {
+        if (blob.compressed()) {
+            sendInflated(response, blob);
+        } else {
+            sendRange(request, response, blob, range);
+        }
+    }
+
+    /**
+     * Inflate a compressed file and send all of it
+     */
+    private void sendInflated(HttpServletResponse response, Blob blob) throws IOException {
+        try (IoLimiter.Permit openFile = ioLimiter.openFile();
+             InputStream in = new GZIPInputStream(blob.isLocal()
+                     ? Files.newInputStream(blob.localPath())
+                     : fileStorageService.open(blob, 0, blob.size()), INFLATE_BUFFER_SIZE)) {
+            in.transferTo(response.getOutputStream());
+        }
+    }
+
+    /**
+     * Send one range of the file from the hot cache, or hand it to the container's sendfile when supported
+     */
+    private void sendRange(HttpServletRequest request, HttpServletResponse response, Blob blob, ByteRange range)
+            throws IOException {
+        if (range.length() <= 0) {
+            return;
+        }
+        Optional<ByteBuffer> cached = hotBlobCache.get(blob);
+        if (cached.isPresent()) {
+            // One write, so the body follows the headers still in the container's write buffer. Growing that
+            // per-connection buffer (socket.appWriteBufSize) to fit bigger files would cost as much for every
+            // idle signaling socket
+            response.getOutputStream().write(slice(cached.get(), range));
+            return;
+        }
+        if (!blob.isLocal()) {
+            try (IoLimiter.Permit openFile = ioLimiter.openFile();
+                 InputStream in = fileStorageService.open(blob, range.start(), range.length())) {
+                in.transferTo(response.getOutputStream());
+            }
+            return;
+        }
+        Path path = blob.localPath();
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, path.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_FILE_START_ATTR, range.start());
+            request.setAttribute(SENDFILE_FILE_END_ATTR, range.end() + 1);
+            return;
+        }
+        try (IoLimiter.Permit openFile = ioLimiter.openFile();
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            transfer(channel, range, Channels.newChannel(response.getOutputStream()));
+        }
+    }
+
+    /**
+     * Send a {@code multipart/byteranges} body; the exact length is computed up front
+     * @return length of the body, or 0 for a HEAD request
+     */
+    private long sendMultipleRanges(HttpServletResponse response, Blob blob, List<ByteRange> ranges,
+                                    String contentType, long size, boolean headOnly) throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = (CRLF + "--" + boundary + CRLF
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + CRLF
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(range, size) + CRLF + CRLF)
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range.length();
+        }
+        byte[] closing = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length;
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (headOnly) {
+            return 0;
+        }
+
+        ServletOutputStream out = response.getOutputStream();
+        Optional<ByteBuffer> cached = hotBlobCache.get(blob);
+        if (cached.isPresent()) {
+            for (int i = 0; i < ranges.size(); i++) {
+                out.write(partHeaders.get(i));
+                out.write(slice(cached.get(), ranges.get(i)));
+            }
+        } else {
+            // Taken before the first part header, while the response can still turn into a 503
+            try (IoLimiter.Permit openFile = ioLimiter.openFile()) {
+                writeRanges(out, blob, ranges, partHeaders);
+            }
+        }
+        out.write(closing);
+        return contentLength;
+    }
+
+    /**
+     * Write the part headers and ranges of a {@code multipart/byteranges} body from storage
+     */
+    private void writeRanges(ServletOutputStream out, Blob blob, List<ByteRange> ranges, List<byte[]> partHeaders)
+            throws IOException {
+        if (blob.isLocal()) {
+            WritableByteChannel target = Channels.newChannel(out);
+            try (FileChannel channel = FileChannel.open(blob.localPath(), StandardOpenOption.READ)) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    out.write(partHeaders.get(i));
+                    transfer(channel, ranges.get(i), target);
+                }
+            }
+        } else {
+            // One ranged request per part; parsed ranges are few and coalesced
+            for (int i = 0; i < ranges.size(); i++) {
+                out.write(partHeaders.get(i));
+                ByteRange range = ranges.get(i);
+                try (InputStream in = fileStorageService.open(blob, range.start(), range.length())) {
+                    in.transferTo(out);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer body, ByteRange range) {
+        return body.slice(Math.toIntExact(range.start()), Math.toIntExact(range.length()));
+    }
+
+    private static void transfer(FileChannel channel, ByteRange range, WritableByteChannel target) throws IOException {
+        long position = range.start();
+        long remaining = range.length();
+        while (remaining > 0) {
+            long sent = channel.transferTo(position, remaining, target);
+            if (sent <= 0) {
+                // File shrank underneath us; nothing more to send
+                break;
+            }
+            position += sent;
+            remaining -= sent;
+        }
+    }
+
+    /**
+     * Evaluate {@code If-None-Match} (weak comparison) and, in its absence, {@code If-Modified-Since}
+     */
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || stripWeak(candidate).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = headerDate(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * {@code If-Range} only lets the {@code Range} header through when the representation is unchanged
+     * Entity tags are compared strongly, so weak tags never match
+     */
+    private static boolean isRangeApplicable(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        return headerDate(request, HttpHeaders.IF_RANGE) == lastModified;
+    }
+
+    /**
+     * Whether {@code Accept-Encoding} lists gzip without ruling it out with {@code q=0}
+     */
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String candidate : acceptEncoding.split(",")) {
+            String[] parameters = candidate.split(";");
+            if (parameters[0].trim().equalsIgnoreCase(GZIP)) {
+                return parameters.length < 2 || !parameters[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static long headerDate(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static String contentRange(ByteRange range, long size) {
+        return "bytes " + range.start() + "-" + range.end() + "/" + size;
+    }
+}
@@ -0,0 +1,254 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Reads a {@code multipart/form-data} body part by part, straight from the request stream
+ * Nothing is spooled: the body of each part is a stream that ends at the next boundary, read by the caller
+ * before it asks for the next part (whatever it leaves unread is skipped). Memory use is one fixed buffer,
+ * however many parts there are and however large they get.
+ */
+final class MultipartStreamReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int MAX_BOUNDARY_LENGTH = 70;
+
+    /**
+     * One part of the body
+     * @param headers headers of the part, by lowercase name
+     * @param body    content of the part, up to the next boundary; valid until the next part is requested
+     */
+    record Part(Map<String, String> headers, InputStream body) {
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int head;
+    private int tail;
+    // Bytes before clearUntil are known not to start a delimiter; -1 until the next delimiter is found
+    private int clearUntil;
+    private int delimiterAt = -1;
+    private PartBody current;
+    private boolean finished;
+
+    /**
+     * @param in       request body, read up to the closing boundary (not closed)
+     * @param boundary boundary parameter of the request's content type
+     */
+    MultipartStreamReader(InputStream in, String boundary) {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+            throw new IllegalArgumentException("Invalid multipart boundary: " + boundary);
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        // The first boundary has no line break before it: start with one, so the preamble is a part like any other
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        tail = 2;
+        current = new PartBody();
+    }
+
+    /**
+     * Move on to the next part, skipping what is left of the current one
+     * @return the next part, or empty after the closing boundary
+     */
+    Optional<Part> next() throws IOException {
+        if (finished) {
+            return Optional.empty();
+        }
+        current.skipRemaining();
+        if (!fill(2)) {
+            throw new EOFException("Multipart body ended after a boundary");
+        }
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            // Closing boundary; the epilogue is ignored
+            finished = true;
+            return Optional.empty();
+        }
+        // Transport padding may follow a boundary
+        while (fill(1) && (buffer[head] == ' ' || buffer[head] == '\t')) {
+            head++;
+        }
+        if (!fill(2) || buffer[head] != '\r' || buffer[head + 1] != '\n') {
+            throw new IOException("Malformed multipart boundary");
+        }
+        head += 2;
+        Map<String, String> headers = readHeaders();
+        clearUntil = head;
+        delimiterAt = -1;
+        current = new PartBody();
+        return Optional.of(new Part(headers, current));
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        int read = 0;
+        while (true) {
+            int lineEnd = indexOfLineEnd();
+            while (lineEnd < 0) {
+                if (tail - head > MAX_HEADER_SIZE - read) {
+                    throw new IOException("Multipart part headers exceed " + MAX_HEADER_SIZE + " bytes");
+                }
+                if (!readMore()) {
+                    throw new EOFException("Multipart body ended in the part headers");
+                }
+                lineEnd = indexOfLineEnd();
+            }
+            read += lineEnd + 2 - head;
+            if (read > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart part headers exceed " + MAX_HEADER_SIZE + " bytes");
+            }
+            String line = new String(buffer, head, lineEnd - head, StandardCharsets.UTF_8);
+            head = lineEnd + 2;
+            if (line.isEmpty()) {
+                return headers;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).strip().toLowerCase(Locale.ROOT);
+                headers.put(name, line.substring(colon + 1).strip());
+            }
+        }
+    }
+
+    private int indexOfLineEnd() {
+        for (int i = head; i < tail - 1; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * End of the bytes of the current part that can be handed out: the next delimiter if it is in the buffer,
+     * otherwise everything that cannot be the start of one
+     */
+    private int scan() {
+        if (delimiterAt >= 0) {
+            return delimiterAt;
+        }
+        int from = Math.max(head, clearUntil);
+        int last = tail - delimiter.length;
+        for (int i = from; i <= last; i++) {
+            if (startsDelimiter(i)) {
+                delimiterAt = i;
+                return i;
+            }
+        }
+        clearUntil = Math.max(from, last + 1);
+        return clearUntil;
+    }
+
+    private boolean startsDelimiter(int index) {
+        for (int i = 0; i < delimiter.length; i++) {
+            if (buffer[index + i] != delimiter[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make sure {@code count} bytes are buffered
+     * @return false if the body ends before
+     */
+    private boolean fill(int count) throws IOException {
+        while (tail - head < count) {
+            if (!readMore()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the unread bytes to the start of the buffer and read more after them
+     * @return false at the end of the body
+     */
+    private boolean readMore() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            clearUntil = Math.max(0, clearUntil - head);
+            if (delimiterAt >= 0) {
+                delimiterAt -= head;
+            }
+            head = 0;
+        }
+        int read = in.read(buffer, tail, buffer.length - tail);
+        if (read == -1) {
+            return false;
+        }
+        tail += read;
+        return true;
+    }
+
+    /**
+     * Body of one part: the bytes up to the next delimiter, which is consumed at its end
+     */
+    private final class PartBody extends InputStream {
+
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (ended || current != this) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            int end;
+            while ((end = scan()) == head) {
+                if (delimiterAt == head) {
+                    endPart();
+                    return -1;
+                }
+                if (!readMore()) {
+                    throw new EOFException("Multipart body ended before its closing boundary");
+                }
+            }
+            int count = Math.min(length, end - head);
+            System.arraycopy(buffer, head, target, offset, count);
+            head += count;
+            return count;
+        }
+
+        void skipRemaining() throws IOException {
+            while (!ended) {
+                head = scan();
+                if (delimiterAt == head) {
+                    endPart();
+                } else if (!readMore()) {
+                    throw new EOFException("Multipart body ended before its closing boundary");
+                }
+            }
+        }
+
+        private void endPart() {
+            head += delimiter.length;
+            delimiterAt = -1;
+            ended = true;
+        }
+    }
+}
@@ -1,26 +1,32 @@
 package ch.ofte.symphony.jafts.p2p_transfer;
 
+import ch.ofte.symphony.jafts.storage.FileStorageService;
+import ch.ofte.symphony.jafts.storage.StorageBusyException;
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import ch.ofte.symphony.jafts.storage.UploadTooLargeException;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpSession;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.MessageSource;
 import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Optional;
 
 /**
  * P2P File Transfer Controller with CSRF + Session ID protection
@@ -32,100 +38,223 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class P2PTransferController {
 
-    // Constants for response keys
-    private static final String KEY_ERROR = "error";
-    private static final String KEY_STATUS = "status";
-    private static final String STATUS_SUCCESS = "success";
-    private static final String STATUS_ERROR = "error";
-    private static final String KEY_FILE_ID = "fileId";
-    private static final String KEY_FILE_NAME = "fileName";
-    private static final String KEY_FILE_SIZE = "fileSize";
-    private static final String KEY_CONTENT_TYPE = "contentType";
-
-    @Value("${app.upload.dir:uploads/p2p}")
-    private String uploadDir;
+    private static final String STATUS_ABSENT = "absent";
 
     private final UploadDuplicationService uploadDuplicationService;
+    private final FileStorageService fileStorageService;
+    private final TransferMetrics transferMetrics;
     private final MessageSource messageSource;
 
+    @Value("${app.upload.preflight-enabled:true}")
+    private boolean preflightEnabled;
+
     /**
      * Upload file with CSRF + Session ID protection
      * CSRF token is automatically validated by Spring Security
      * Session ID is managed by Spring container
+     * Every upload endpoint takes an optional {@code ttl} in seconds, capped at {@code app.upload.max-ttl}
      */
     @PostMapping("/upload")
     public ResponseEntity<Map<String, Object>> uploadFile(
             @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "ttl", required = false) Long ttl,
             HttpSession session) {
 
-        // Check for duplicate upload using session ID
-        if (uploadDuplicationService.isUploading(session)) {
-            String duplicateMsg = messageSource.getMessage("p2p.upload.duplicate", null, LocaleContextHolder.getLocale());
-            return ResponseEntity.status(409).body(Map.of(KEY_ERROR, duplicateMsg, KEY_STATUS, STATUS_ERROR));
+        // Take an upload slot for this session (atomic check-and-mark)
+        if (!uploadDuplicationService.tryAcquire(session)) {
+            transferMetrics.duplicateRejected();
+            return buildDuplicateResponse();
         }
 
-        // Mark session as uploading
-        uploadDuplicationService.markUploading(session);
+        long startedAt = transferMetrics.started(TransferMetrics.UPLOAD);
+        ResponseEntity<Map<String, Object>> response = null;
+        try {
+            response = storeMultipart(file, ttl);
+            return response;
+        } finally {
+            // Always give the slot back after processing
+            uploadDuplicationService.release(session);
+            recordUpload(TransferMetrics.METHOD_MULTIPART, startedAt, file.getSize(), response);
+        }
+    }
 
+    private ResponseEntity<Map<String, Object>> storeMultipart(MultipartFile file, Long ttl) {
         try {
             // Validate file
             if (file.isEmpty()) {
                 String emptyFileMsg = messageSource.getMessage("p2p.upload.selectFile", null, LocaleContextHolder.getLocale());
-                return buildErrorResponse(emptyFileMsg, ResponseEntity.badRequest());
+                return TransferResponses.error(emptyFileMsg, ResponseEntity.badRequest());
             }
 
-            // Generate unique file ID
-            String fileId = UUID.randomUUID().toString();
-            String originalFilename = file.getOriginalFilename();
-            String fileExtension = "";
+            StoredFile storedFile = fileStorageService.store(
+                    file.getInputStream(), file.getOriginalFilename(), file.getContentType(), TransferResponses.ttl(ttl));
+
+            log.info("File uploaded successfully: {} (ID: {}, Size: {} bytes)",
+                    storedFile.fileName(), storedFile.fileId(), storedFile.fileSize());
+
+            return TransferResponses.success(storedFile);
+
+        } catch (UploadTooLargeException e) {
+            return buildTooLargeResponse();
+        } catch (StorageBusyException e) {
+            return buildBusyResponse(e);
+        } catch (IOException e) {
+            log.error("Failed to upload file: {}", file.getOriginalFilename(), e);
+            return buildIoErrorResponse(e);
+        }
+    }
+
+    /**
+     * Streaming upload: the raw request body is the file content
+     * Bypasses multipart parsing, so the body is written to disk exactly once
+     * and is only limited by {@code app.upload.max-size}
+     */
+    @PutMapping("/upload/{name}")
+    public ResponseEntity<Map<String, Object>> streamFile(
+            @PathVariable("name") String name,
+            @RequestParam(value = "ttl", required = false) Long ttl,
+            HttpServletRequest request,
+            HttpSession session) {
+
+        // Reject oversized bodies up front when the client declares a length
+        if (request.getContentLengthLong() > fileStorageService.getMaxUploadSize()) {
+            return buildTooLargeResponse();
+        }
+
+        if (!uploadDuplicationService.tryAcquire(session)) {
+            transferMetrics.duplicateRejected();
+            return buildDuplicateResponse();
+        }
 
-            if (originalFilename != null && originalFilename.contains(".")) {
-                fileExtension = originalFilename.substring(originalFilename.lastIndexOf("."));
+        long startedAt = transferMetrics.started(TransferMetrics.UPLOAD);
+        ResponseEntity<Map<String, Object>> response = null;
+        try {
+            response = storeStream(name, ttl, request);
+            return response;
+        } finally {
+            uploadDuplicationService.release(session);
+            recordUpload(TransferMetrics.METHOD_STREAM, startedAt, request.getContentLengthLong(), response);
+        }
+    }
+
+    private ResponseEntity<Map<String, Object>> storeStream(String name, Long ttl, HttpServletRequest request) {
+        try {
+            if (request.getContentLengthLong() == 0) {
+                return buildEmptyResponse();
             }
 
-            // Create upload directory if not exists
-            Path uploadPath = Paths.get(uploadDir);
-            if (!Files.exists(uploadPath)) {
-                Files.createDirectories(uploadPath);
+            String contentType = request.getContentType() != null
+                    ? request.getContentType()
+                    : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+            StoredFile storedFile = fileStorageService.store(
+                    request.getInputStream(), name, contentType, TransferResponses.ttl(ttl));
+            // A chunked body declares no length, so an empty one is only known once it has been read
+            if (storedFile.fileSize() == 0) {
+                fileStorageService.delete(storedFile.fileId());
+                return buildEmptyResponse();
             }
 
-            // Save file to disk with unique name
-            String savedFileName = fileId + fileExtension;
-            Path targetPath = uploadPath.resolve(savedFileName);
-            Files.copy(file.getInputStream(), targetPath, StandardCopyOption.REPLACE_EXISTING);
+            log.info("File streamed successfully: {} (ID: {}, Size: {} bytes)",
+                    storedFile.fileName(), storedFile.fileId(), storedFile.fileSize());
+
+            return TransferResponses.success(storedFile);
 
-            log.info("File uploaded successfully: {} (ID: {}, Size: {} bytes)", originalFilename, fileId, file.getSize());
+        } catch (UploadTooLargeException e) {
+            return buildTooLargeResponse();
+        } catch (StorageBusyException e) {
+            return buildBusyResponse(e);
+        } catch (IOException e) {
+            log.error("Failed to stream file: {}", name, e);
+            return buildIoErrorResponse(e);
+        }
+    }
+
+    /**
+     * Request body for the upload-if-absent pre-flight
+     */
+    public record PreflightRequest(String sha256, long fileSize, String fileName, String contentType, Long ttl) {
+    }
 
-            // Build success response
-            Map<String, Object> response = new HashMap<>();
-            response.put(KEY_FILE_ID, fileId);
-            response.put(KEY_FILE_NAME, file.getOriginalFilename());
-            response.put(KEY_FILE_SIZE, file.getSize());
-            response.put(KEY_CONTENT_TYPE, file.getContentType());
-            response.put(KEY_STATUS, STATUS_SUCCESS);
+    /**
+     * Upload-if-absent pre-flight: the client sends the SHA-256 and size of its file, hashed locally.
+     * If that content is already stored, a new file ID is minted for it and no bytes need to be sent;
+     * otherwise the client uploads as usual.
+     * Note that this reveals whether some content is stored to anyone who knows its digest and size,
+     * so it can be turned off with {@code app.upload.preflight-enabled=false}.
+     */
+    @PostMapping("/upload/preflight")
+    public ResponseEntity<Map<String, Object>> preflight(@RequestBody PreflightRequest request) {
+        if (!preflightEnabled || request.sha256() == null || request.fileSize() <= 0) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of(TransferResponses.KEY_STATUS, STATUS_ABSENT));
+        }
 
-            return ResponseEntity.ok(response);
+        String contentType = request.contentType() != null && !request.contentType().isBlank()
+                ? request.contentType()
+                : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        try {
+            Optional<StoredFile> storedFile = fileStorageService.storeExisting(
+                    request.sha256(), request.fileSize(), request.fileName(), contentType,
+                    TransferResponses.ttl(request.ttl()));
+            if (storedFile.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body(Map.of(TransferResponses.KEY_STATUS, STATUS_ABSENT));
+            }
+
+            log.info("File shared from existing content: {} (ID: {}, Size: {} bytes)",
+                    storedFile.get().fileName(), storedFile.get().fileId(), storedFile.get().fileSize());
 
+            return TransferResponses.success(storedFile.get());
         } catch (IOException e) {
-            log.error("Failed to upload file: {}", file.getOriginalFilename(), e);
-            String errorMsg = messageSource.getMessage("p2p.upload.error",
-                new Object[]{e.getMessage()}, LocaleContextHolder.getLocale());
-            return buildErrorResponse(errorMsg, ResponseEntity.internalServerError());
-        } finally {
-            // Always clear upload status after processing
-            uploadDuplicationService.clearUpload(session);
+            log.error("Pre-flight failed for digest {}", request.sha256(), e);
+            return buildIoErrorResponse(e);
         }
     }
 
     /**
-     * Build error response with consistent structure
+     * Record an upload with its stored size, or the declared size if it was not stored
+     * @param response response sent, or null if the upload failed with an exception
      */
-    private ResponseEntity<Map<String, Object>> buildErrorResponse(
-            String errorMessage,
-            ResponseEntity.BodyBuilder responseBuilder) {
-        Map<String, Object> errorResponse = new HashMap<>();
-        errorResponse.put(KEY_ERROR, errorMessage);
-        errorResponse.put(KEY_STATUS, STATUS_ERROR);
-        return responseBuilder.body(errorResponse);
+    private void recordUpload(String method, long startedAt, long declaredSize,
+                              ResponseEntity<Map<String, Object>> response) {
+        if (response == null) {
+            transferMetrics.finished(TransferMetrics.UPLOAD, method, startedAt, declaredSize,
+                    TransferMetrics.OUTCOME_SERVER_ERROR);
+            return;
+        }
+        Object stored = response.getBody() != null ? response.getBody().get(TransferResponses.KEY_FILE_SIZE) : null;
+        long size = stored instanceof Long storedSize ? storedSize : declaredSize;
+        transferMetrics.finished(TransferMetrics.UPLOAD, method, startedAt, size,
+                TransferMetrics.outcomeOf(response.getStatusCode().value()));
+    }
+
+    private ResponseEntity<Map<String, Object>> buildDuplicateResponse() {
+        String duplicateMsg = messageSource.getMessage("p2p.upload.duplicate", null, LocaleContextHolder.getLocale());
+        return ResponseEntity.status(409).body(Map.of(TransferResponses.KEY_ERROR, duplicateMsg,
+                TransferResponses.KEY_STATUS, TransferResponses.STATUS_ERROR));
+    }
+
+    private ResponseEntity<Map<String, Object>> buildEmptyResponse() {
+        String emptyFileMsg = messageSource.getMessage("p2p.upload.selectFile", null, LocaleContextHolder.getLocale());
+        return TransferResponses.error(emptyFileMsg, ResponseEntity.badRequest());
+    }
+
+    private ResponseEntity<Map<String, Object>> buildTooLargeResponse() {
+        String tooLargeMsg = messageSource.getMessage("p2p.upload.tooLarge",
+                new Object[]{DataSize.ofBytes(fileStorageService.getMaxUploadSize()).toMegabytes() + "MB"},
+                LocaleContextHolder.getLocale());
+        return TransferResponses.error(tooLargeMsg, ResponseEntity.status(HttpStatus.CONTENT_TOO_LARGE));
+    }
+
+    private ResponseEntity<Map<String, Object>> buildBusyResponse(StorageBusyException e) {
+        log.warn("Turned away upload: {}", e.getMessage());
+        String busyMsg = messageSource.getMessage("p2p.upload.busy", null, LocaleContextHolder.getLocale());
+        return TransferResponses.busy(busyMsg);
+    }
+
+    private ResponseEntity<Map<String, Object>> buildIoErrorResponse(IOException e) {
+        String errorMsg = messageSource.getMessage("p2p.upload.error",
+                new Object[]{e.getMessage()}, LocaleContextHolder.getLocale());
+        return TransferResponses.error(errorMsg, ResponseEntity.internalServerError());
     }
 }
@@ -0,0 +1,122 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import ch.ofte.symphony.jafts.relay.LiveRelay;
+import ch.ofte.symphony.jafts.relay.RelayService;
+import ch.ofte.symphony.jafts.relay.RelayTimeoutException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.MessageSource;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Live relay for hand-offs where a direct WebRTC connection is not possible
+ * <ol>
+ *     <li>the sender streams the file as the raw body of {@code PUT /api/p2p/relay/{shareKey}}; the request
+ *     stays open until a receiver has taken the whole file</li>
+ *     <li>the receiver polls {@code HEAD /api/p2p/relay/{shareKey}} until the sender is there, then downloads
+ *     the file from {@code GET /api/p2p/relay/{shareKey}} while it is being sent</li>
+ * </ol>
+ * Nothing is stored: bytes go from one socket to the other through a small fixed-size buffer.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/p2p/relay")
+@RequiredArgsConstructor
+public class RelayController {
+
+    private static final Pattern SHARE_KEY_PATTERN = Pattern.compile("[A-Za-z0-9_-]{4,64}");
+    private static final String KEY_BYTES = "bytes";
+
+    private final RelayService relayService;
+    private final MessageSource messageSource;
+
+    @PutMapping("/{shareKey}")
+    public ResponseEntity<Map<String, Object>> send(
+            @PathVariable("shareKey") String shareKey,
+            @RequestParam(value = "name", required = false) String fileName,
+            HttpServletRequest request) {
+        if (!SHARE_KEY_PATTERN.matcher(shareKey).matches()) {
+            return TransferResponses.error(message("p2p.relay.invalidKey"), ResponseEntity.badRequest());
+        }
+
+        String contentType = request.getContentType() != null
+                ? request.getContentType()
+                : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        try {
+            Optional<Long> relayed = relayService.send(shareKey, fileName != null ? fileName : shareKey,
+                    contentType, request.getContentLengthLong(), request.getInputStream());
+            if (relayed.isEmpty()) {
+                return TransferResponses.error(message("p2p.relay.busy"), ResponseEntity.status(HttpStatus.CONFLICT));
+            }
+
+            log.info("Relayed {} bytes under share key {}", relayed.get(), shareKey);
+            Map<String, Object> response = new HashMap<>();
+            response.put(KEY_BYTES, relayed.get());
+            response.put(TransferResponses.KEY_STATUS, TransferResponses.STATUS_SUCCESS);
+            return ResponseEntity.ok(response);
+
+        } catch (RelayTimeoutException e) {
+            return TransferResponses.error(message("p2p.relay.noReceiver"),
+                    ResponseEntity.status(HttpStatus.REQUEST_TIMEOUT));
+        } catch (IOException e) {
+            log.warn("Relay {} failed: {}", shareKey, e.getMessage());
+            return TransferResponses.error(message("p2p.upload.error", e.getMessage()),
+                    ResponseEntity.status(HttpStatus.BAD_GATEWAY));
+        }
+    }
+
+    @GetMapping("/{shareKey}")
+    public void receive(
+            @PathVariable("shareKey") String shareKey,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        // HEAD only tells whether a sender is waiting, so the receiver can poll without claiming the relay
+        if (HttpMethod.HEAD.matches(request.getMethod())) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+            response.setStatus(relayService.isOffered(shareKey) ? HttpStatus.OK.value() : HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        Optional<LiveRelay> relay = relayService.claim(shareKey);
+        if (relay.isEmpty()) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        response.setContentType(relay.get().getContentType());
+        if (relay.get().getContentLength() >= 0) {
+            response.setContentLengthLong(relay.get().getContentLength());
+        }
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename(relay.get().getFileName(), StandardCharsets.UTF_8)
+                .build()
+                .toString());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+        relayService.receive(relay.get(), response.getOutputStream());
+    }
+
+    private String message(String key, Object... args) {
+        return messageSource.getMessage(key, args, LocaleContextHolder.getLocale());
+    }
+}
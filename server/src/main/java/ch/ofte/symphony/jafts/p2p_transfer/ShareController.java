@@ -0,0 +1,420 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import ch.ofte.symphony.jafts.share.FileShare;
+import ch.ofte.symphony.jafts.share.ShareService;
+import ch.ofte.symphony.jafts.storage.Blob;
+import ch.ofte.symphony.jafts.storage.FileStorageService;
+import ch.ofte.symphony.jafts.storage.IoLimiter;
+import ch.ofte.symphony.jafts.storage.StorageBusyException;
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import ch.ofte.symphony.jafts.storage.UploadTooLargeException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.MessageSource;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Shares of several files under one key
+ * <ul>
+ *     <li>{@code POST /api/p2p/shares} with a {@code multipart/form-data} body uploads every file of a share in
+ *     one request. The body is read part by part as it arrives and each file is stored while it streams in, so
+ *     nothing is spooled. Optional {@code name} and {@code ttl} fields apply to the files after them. The CSRF
+ *     token must be sent in its header: the body is never parsed for form parameters. Empty files are left out,
+ *     as the single-file endpoints reject them; a share of nothing but empty files is rejected.</li>
+ *     <li>{@code POST /api/p2p/shares} with a JSON body groups files uploaded before, e.g. in parallel through
+ *     the single-file endpoints</li>
+ *     <li>{@code GET /api/p2p/shares/{shareId}} downloads a share, by ID or share key, as a ZIP generated on
+ *     the fly</li>
+ * </ul>
+ * The archive is never written anywhere. Files stored as is become stored entries; files stored gzip-compressed
+ * are copied into deflated entries without being inflated. Its length is known before the first byte, and a
+ * download only holds one copy buffer and the central directory in memory, whatever the size of the share.
+ */
+@Slf4j
+@RestController
+@RequestMapping(ShareController.SHARES_PATH)
+@RequiredArgsConstructor
+public class ShareController {
+
+    /**
+     * Path of the share endpoints; multipart requests to it are read by this controller, not by the container
+     */
+    public static final String SHARES_PATH = "/api/p2p/shares";
+
+    private static final String FIELD_NAME = "name";
+    private static final String FIELD_TTL = "ttl";
+    private static final int MAX_FIELD_SIZE = 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // gzip as written by BlobCompressor: a header without optional fields, raw deflate data, CRC-32 and size
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final String ZIP_SUFFIX = ".zip";
+    private static final String APPLICATION_ZIP = "application/zip";
+
+    private final UploadDuplicationService uploadDuplicationService;
+    private final FileStorageService fileStorageService;
+    private final IoLimiter ioLimiter;
+    private final ShareService shareService;
+    private final TransferMetrics transferMetrics;
+    private final MessageSource messageSource;
+
+    /**
+     * Whether a request is the multipart upload of a share, which must reach this controller unparsed
+     */
+    public static boolean isStreamedUpload(HttpServletRequest request) {
+        return HttpMethod.POST.matches(request.getMethod())
+                && request.getRequestURI().equals(request.getContextPath() + SHARES_PATH);
+    }
+
+    @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<Map<String, Object>> uploadShare(HttpServletRequest request, HttpSession session) {
+        // One upload slot for the whole share: its files are stored one after the other
+        if (!uploadDuplicationService.tryAcquire(session)) {
+            transferMetrics.duplicateRejected();
+            return TransferResponses.error(message("p2p.upload.duplicate"), ResponseEntity.status(HttpStatus.CONFLICT));
+        }
+
+        long startedAt = transferMetrics.started(TransferMetrics.UPLOAD);
+        ResponseEntity<Map<String, Object>> response = null;
+        try {
+            response = storeShare(request);
+            return response;
+        } finally {
+            uploadDuplicationService.release(session);
+            recordUpload(startedAt, request.getContentLengthLong(), response);
+        }
+    }
+
+    private ResponseEntity<Map<String, Object>> storeShare(HttpServletRequest request) {
+        String boundary = boundaryOf(request.getContentType());
+        if (boundary == null) {
+            return TransferResponses.error(message("p2p.share.invalid"), ResponseEntity.badRequest());
+        }
+
+        List<StoredFile> files = new ArrayList<>();
+        try {
+            MultipartStreamReader reader = new MultipartStreamReader(request.getInputStream(), boundary);
+            String name = null;
+            Duration ttl = null;
+            Optional<MultipartStreamReader.Part> next;
+            while ((next = reader.next()).isPresent()) {
+                MultipartStreamReader.Part part = next.get();
+                ContentDisposition disposition = dispositionOf(part);
+                if (disposition.getFilename() == null) {
+                    String value = readField(part);
+                    if (FIELD_NAME.equals(disposition.getName())) {
+                        name = value;
+                    } else if (FIELD_TTL.equals(disposition.getName())) {
+                        ttl = TransferResponses.ttl(Long.parseLong(value.strip()));
+                    }
+                    continue;
+                }
+                if (disposition.getFilename().isEmpty()) {
+                    // A file input left empty still sends a part, without a file name
+                    continue;
+                }
+                if (files.size() == shareService.getMaxFiles()) {
+                    discard(files);
+                    return TransferResponses.error(message("p2p.share.tooManyFiles", shareService.getMaxFiles()),
+                            ResponseEntity.badRequest());
+                }
+                String contentType = part.header(HttpHeaders.CONTENT_TYPE) != null
+                        ? part.header(HttpHeaders.CONTENT_TYPE)
+                        : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+                StoredFile storedFile = fileStorageService.store(part.body(), disposition.getFilename(), contentType,
+                        ttl);
+                // The size of a part is only known once it has been read
+                if (storedFile.fileSize() == 0) {
+                    fileStorageService.delete(storedFile.fileId());
+                    continue;
+                }
+                files.add(storedFile);
+            }
+            if (files.isEmpty()) {
+                return TransferResponses.error(message("p2p.upload.selectFile"), ResponseEntity.badRequest());
+            }
+
+            FileShare share = shareService.create(name, files);
+            log.info("Share uploaded: {} (ID: {}, {} file(s))", share.name(), share.shareId(), files.size());
+            return TransferResponses.success(share, files);
+
+        } catch (UploadTooLargeException e) {
+            discard(files);
+            return TransferResponses.error(message("p2p.upload.tooLarge",
+                            DataSize.ofBytes(fileStorageService.getMaxUploadSize()).toMegabytes() + "MB"),
+                    ResponseEntity.status(HttpStatus.CONTENT_TOO_LARGE));
+        } catch (IllegalArgumentException e) {
+            // Malformed parts or fields, including a ttl that is not a number
+            discard(files);
+            log.debug("Rejected malformed share upload", e);
+            return TransferResponses.error(message("p2p.share.invalid"), ResponseEntity.badRequest());
+        } catch (StorageBusyException e) {
+            discard(files);
+            log.warn("Turned away share upload after {} file(s): {}", files.size(), e.getMessage());
+            return TransferResponses.busy(message("p2p.upload.busy"));
+        } catch (IOException e) {
+            discard(files);
+            log.error("Failed to upload share after {} file(s)", files.size(), e);
+            return TransferResponses.error(message("p2p.upload.error", e.getMessage()),
+                    ResponseEntity.internalServerError());
+        }
+    }
+
+    /**
+     * Request body for grouping stored files into a share
+     */
+    public record ShareRequest(String name, List<String> fileIds) {
+    }
+
+    /**
+     * Group files uploaded before into a share; file IDs and share keys of files are both accepted
+     */
+    @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> createShare(@RequestBody ShareRequest request) {
+        List<String> fileIds = request.fileIds() != null ? request.fileIds().stream().distinct().toList() : List.of();
+        if (fileIds.isEmpty()) {
+            return TransferResponses.error(message("p2p.upload.selectFile"), ResponseEntity.badRequest());
+        }
+        if (fileIds.size() > shareService.getMaxFiles()) {
+            return TransferResponses.error(message("p2p.share.tooManyFiles", shareService.getMaxFiles()),
+                    ResponseEntity.badRequest());
+        }
+
+        try {
+            List<StoredFile> files = new ArrayList<>(fileIds.size());
+            for (String fileId : fileIds) {
+                Optional<StoredFile> storedFile = fileStorageService.find(fileId);
+                if (storedFile.isEmpty()) {
+                    return TransferResponses.error(message("p2p.share.fileNotFound", fileId),
+                            ResponseEntity.status(HttpStatus.NOT_FOUND));
+                }
+                files.add(storedFile.get());
+            }
+            FileShare share = shareService.create(request.name(), files);
+            log.info("Share created: {} (ID: {}, {} file(s))", share.name(), share.shareId(), files.size());
+            return TransferResponses.success(share, files);
+        } catch (IOException e) {
+            log.error("Failed to create share of {} file(s)", fileIds.size(), e);
+            return TransferResponses.error(message("p2p.upload.error", e.getMessage()),
+                    ResponseEntity.internalServerError());
+        }
+    }
+
+    @GetMapping("/{shareId}")
+    public void download(
+            @PathVariable("shareId") String shareId,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        long startedAt = transferMetrics.started(TransferMetrics.DOWNLOAD);
+        long sent = 0;
+        String outcome = TransferMetrics.OUTCOME_SERVER_ERROR;
+        try {
+            sent = serve(shareId, request, response);
+            outcome = TransferMetrics.outcomeOf(response.getStatus());
+        } catch (StorageBusyException e) {
+            TransferResponses.busy(response, e);
+            outcome = TransferMetrics.outcomeOf(response.getStatus());
+        } finally {
+            String method = HttpMethod.HEAD.matches(request.getMethod()) ? TransferMetrics.METHOD_HEAD
+                    : TransferMetrics.METHOD_ZIP;
+            transferMetrics.finished(TransferMetrics.DOWNLOAD, method, startedAt, sent, outcome);
+        }
+    }
+
+    /**
+     * Answer a download request with the ZIP of a share
+     * @return number of body bytes sent
+     */
+    private long serve(String shareId, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Optional<FileShare> share = shareService.find(shareId);
+        List<StoredFile> files = share.isPresent() ? shareService.files(share.get()) : List.of();
+
+        List<String> names = ZipStreamWriter.entryNames(files.stream().map(StoredFile::fileName).toList());
+        List<ZipStreamWriter.Entry> entries = new ArrayList<>(files.size());
+        List<Blob> blobs = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            Optional<Blob> blob = fileStorageService.locate(files.get(i));
+            if (blob.isEmpty()) {
+                log.error("Content {} of file {} in share {} is missing from storage", files.get(i).digest(),
+                        files.get(i).fileId(), shareId);
+                continue;
+            }
+            entries.add(entryOf(names.get(i), files.get(i), blob.get()));
+            blobs.add(blob.get());
+        }
+        if (entries.isEmpty()) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return 0;
+        }
+
+        long length = ZipStreamWriter.length(entries);
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(APPLICATION_ZIP);
+        response.setContentLengthLong(length);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, no-cache");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename(archiveName(share.get()), StandardCharsets.UTF_8)
+                .build()
+                .toString());
+        if (HttpMethod.HEAD.matches(request.getMethod())) {
+            return 0;
+        }
+
+        // Entries are read one after another: one file handle for the whole archive, taken before the body starts
+        try (IoLimiter.Permit openFile = ioLimiter.openFile()) {
+            ZipStreamWriter zip = new ZipStreamWriter(response.getOutputStream());
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            for (int i = 0; i < entries.size(); i++) {
+                writeEntry(zip, entries.get(i), blobs.get(i), buffer);
+            }
+            zip.finish();
+        }
+        return length;
+    }
+
+    /**
+     * Entry of a file: compressed blobs are copied as deflated data, everything else is stored as is
+     * (content left uncompressed on upload is already compressed, small or did not compress well)
+     */
+    private static ZipStreamWriter.Entry entryOf(String name, StoredFile file, Blob blob) {
+        if (blob.compressed()) {
+            return new ZipStreamWriter.Entry(name, ZipStreamWriter.Method.DEFLATED,
+                    blob.size() - GZIP_HEADER_SIZE - GZIP_TRAILER_SIZE, file.fileSize(), blob.lastModified());
+        }
+        return new ZipStreamWriter.Entry(name, ZipStreamWriter.Method.STORED, blob.size(), blob.size(),
+                blob.lastModified());
+    }
+
+    private void writeEntry(ZipStreamWriter zip, ZipStreamWriter.Entry entry, Blob blob, byte[] buffer)
+            throws IOException {
+        zip.putEntry(entry);
+        try (InputStream in = blob.isLocal()
+                ? Files.newInputStream(blob.localPath())
+                : fileStorageService.open(blob, 0, blob.size())) {
+            if (entry.method() == ZipStreamWriter.Method.STORED) {
+                copy(in, zip, entry.compressedSize(), buffer);
+                zip.closeEntry();
+                return;
+            }
+            byte[] header = in.readNBytes(GZIP_HEADER_SIZE);
+            if (header.length < GZIP_HEADER_SIZE || header[0] != (byte) 0x1f || header[1] != (byte) 0x8b
+                    || header[2] != 8 || header[3] != 0) {
+                throw new IOException("Blob " + blob.name() + " does not start with a plain gzip header");
+            }
+            copy(in, zip, entry.compressedSize(), buffer);
+            byte[] trailer = in.readNBytes(GZIP_TRAILER_SIZE);
+            if (trailer.length < GZIP_TRAILER_SIZE) {
+                throw new EOFException("Blob " + blob.name() + " is truncated");
+            }
+            zip.closeEntry(ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL);
+        }
+    }
+
+    private static void copy(InputStream in, ZipStreamWriter zip, long length, byte[] buffer) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Stored content ended " + remaining + " bytes early");
+            }
+            zip.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Delete the files of a share upload that failed
+     */
+    private void discard(List<StoredFile> files) {
+        for (StoredFile file : files) {
+            try {
+                fileStorageService.delete(file.fileId());
+            } catch (IOException e) {
+                log.warn("Failed to delete file {} of a failed share upload", file.fileId(), e);
+            }
+        }
+    }
+
+    /**
+     * Record a share upload with its stored size, or the declared size if it was not stored
+     * @param response response sent, or null if the upload failed with an exception
+     */
+    private void recordUpload(long startedAt, long declaredSize, ResponseEntity<Map<String, Object>> response) {
+        if (response == null) {
+            transferMetrics.finished(TransferMetrics.UPLOAD, TransferMetrics.METHOD_MULTIPART, startedAt,
+                    declaredSize, TransferMetrics.OUTCOME_SERVER_ERROR);
+            return;
+        }
+        Object stored = response.getBody() != null ? response.getBody().get(TransferResponses.KEY_FILE_SIZE) : null;
+        long size = stored instanceof Long storedSize ? storedSize : declaredSize;
+        transferMetrics.finished(TransferMetrics.UPLOAD, TransferMetrics.METHOD_MULTIPART, startedAt, size,
+                TransferMetrics.outcomeOf(response.getStatusCode().value()));
+    }
+
+    private static String boundaryOf(String contentType) {
+        try {
+            String boundary = MediaType.parseMediaType(contentType).getParameter("boundary");
+            if (boundary != null && boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            return boundary;
+        } catch (InvalidMediaTypeException e) {
+            return null;
+        }
+    }
+
+    private static ContentDisposition dispositionOf(MultipartStreamReader.Part part) {
+        String header = part.header(HttpHeaders.CONTENT_DISPOSITION);
+        if (header == null) {
+            throw new IllegalArgumentException("Multipart part without Content-Disposition");
+        }
+        return ContentDisposition.parse(header);
+    }
+
+    private static String readField(MultipartStreamReader.Part part) throws IOException {
+        byte[] value = part.body().readNBytes(MAX_FIELD_SIZE + 1);
+        if (value.length > MAX_FIELD_SIZE) {
+            throw new IllegalArgumentException("Form field exceeds " + MAX_FIELD_SIZE + " bytes");
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static String archiveName(FileShare share) {
+        return share.name().toLowerCase(Locale.ROOT).endsWith(ZIP_SUFFIX) ? share.name() : share.name() + ZIP_SUFFIX;
+    }
+
+    private String message(String code, Object... args) {
+        return messageSource.getMessage(code, args, LocaleContextHolder.getLocale());
+    }
+}
@@ -0,0 +1,138 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metrics of the upload and download endpoints, exported on {@code /actuator/prometheus}
+ * <ul>
+ *     <li>{@code jafts.transfer.bytes} - bytes received or sent; its {@code rate()} is the throughput</li>
+ *     <li>{@code jafts.transfer.duration} - latency histogram per direction, method, outcome and size class,
+ *     so a few multi-gigabyte transfers do not disappear among thousands of small ones</li>
+ *     <li>{@code jafts.transfer.active} - transfers currently being handled</li>
+ *     <li>{@code jafts.upload.rejected} - uploads refused with 409 because every slot of the session was in use</li>
+ * </ul>
+ * Downloads handed to sendfile leave the handler before the body is on the wire: their bytes are counted in full,
+ * their duration and activity only cover the request handling.
+ */
+@Component
+class TransferMetrics {
+
+    static final String UPLOAD = "upload";
+    static final String DOWNLOAD = "download";
+
+    static final String METHOD_MULTIPART = "multipart";
+    static final String METHOD_STREAM = "stream";
+    static final String METHOD_CHUNK = "chunk";
+    static final String METHOD_FULL = "full";
+    static final String METHOD_RANGE = "range";
+    static final String METHOD_HEAD = "head";
+    static final String METHOD_ZIP = "zip";
+
+    static final String OUTCOME_SUCCESS = "success";
+    static final String OUTCOME_CLIENT_ERROR = "client_error";
+    static final String OUTCOME_SERVER_ERROR = "server_error";
+
+    private static final String DURATION = "jafts.transfer.duration";
+    private static final String BYTES = "jafts.transfer.bytes";
+
+    // Size classes by upper bound; everything above the last bound is the last class
+    private static final long[] SIZE_CLASS_BOUNDS = {1L << 20, 100L << 20, 1L << 30};
+    private static final String[] SIZE_CLASSES = {"lt_1mb", "lt_100mb", "lt_1gb", "ge_1gb"};
+
+    private final MeterRegistry registry;
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final Counter duplicates;
+
+    TransferMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        Gauge.builder("jafts.transfer.active", activeUploads, AtomicInteger::get)
+                .description("Transfers currently being handled")
+                .tag("direction", UPLOAD)
+                .register(registry);
+        Gauge.builder("jafts.transfer.active", activeDownloads, AtomicInteger::get)
+                .description("Transfers currently being handled")
+                .tag("direction", DOWNLOAD)
+                .register(registry);
+        this.duplicates = Counter.builder("jafts.upload.rejected")
+                .description("Uploads refused because every upload slot of the session was in use")
+                .tag("reason", "duplicate")
+                .register(registry);
+    }
+
+    /**
+     * Mark the start of a transfer; must be paired with {@link #finished}, typically in a finally block
+     * @return start time to pass on to {@link #finished}
+     */
+    long started(String direction) {
+        active(direction).incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a finished transfer
+     * @param startedAt value returned by {@link #started(String)}
+     * @param bytes bytes received or sent, or the declared size if the transfer failed
+     * @param outcome one of the {@code OUTCOME_*} constants
+     */
+    void finished(String direction, String method, long startedAt, long bytes, String outcome) {
+        long elapsed = System.nanoTime() - startedAt;
+        active(direction).decrementAndGet();
+        // Registering an existing meter is a lookup in the registry; meters themselves are striped adders
+        Timer.builder(DURATION)
+                .description("Time to handle a transfer, by size class of the file")
+                .tags("direction", direction, "method", method, "outcome", outcome, "size", sizeClass(bytes))
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofHours(2))
+                .register(registry)
+                .record(elapsed, TimeUnit.NANOSECONDS);
+        if (bytes > 0 && outcome.equals(OUTCOME_SUCCESS)) {
+            Counter.builder(BYTES)
+                    .description("Bytes received or sent")
+                    .baseUnit(BaseUnits.BYTES)
+                    .tags("direction", direction, "method", method)
+                    .register(registry)
+                    .increment(bytes);
+        }
+    }
+
+    /**
+     * Count an upload refused because the session had no free upload slot
+     */
+    void duplicateRejected() {
+        duplicates.increment();
+    }
+
+    /**
+     * Outcome of a transfer by its HTTP status
+     */
+    static String outcomeOf(int status) {
+        if (status >= 500) {
+            return OUTCOME_SERVER_ERROR;
+        }
+        return status >= 400 ? OUTCOME_CLIENT_ERROR : OUTCOME_SUCCESS;
+    }
+
+    static String sizeClass(long bytes) {
+        for (int i = 0; i < SIZE_CLASS_BOUNDS.length; i++) {
+            if (bytes < SIZE_CLASS_BOUNDS[i]) {
+                return SIZE_CLASSES[i];
+            }
+        }
+        return SIZE_CLASSES[SIZE_CLASSES.length - 1];
+    }
+
+    private AtomicInteger active(String direction) {
+        return direction.equals(UPLOAD) ? activeUploads : activeDownloads;
+    }
+}
@@ -0,0 +1,123 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import ch.ofte.symphony.jafts.share.FileShare;
+import ch.ofte.symphony.jafts.storage.StorageBusyException;
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Shared JSON response structure for the P2P transfer endpoints
+ */
+final class TransferResponses {
+
+    // Constants for response keys
+    static final String KEY_ERROR = "error";
+    static final String KEY_STATUS = "status";
+    static final String STATUS_SUCCESS = "success";
+    static final String STATUS_ERROR = "error";
+    static final String KEY_FILE_ID = "fileId";
+    static final String KEY_FILE_NAME = "fileName";
+    static final String KEY_FILE_SIZE = "fileSize";
+    static final String KEY_CONTENT_TYPE = "contentType";
+    static final String KEY_DIGEST = "sha256";
+    static final String KEY_EXPIRES_AT = "expiresAt";
+    static final String KEY_SHARE_KEY = "shareKey";
+    static final String KEY_SHARE_ID = "shareId";
+    static final String KEY_FILE_COUNT = "fileCount";
+    static final String KEY_FILES = "files";
+    // Seconds a client is asked to wait when the node has no disk writer or file handle for it
+    static final String RETRY_AFTER_SECONDS = "5";
+
+    private TransferResponses() {
+    }
+
+    /**
+     * Build success response from a stored file
+     */
+    static ResponseEntity<Map<String, Object>> success(StoredFile storedFile) {
+        Map<String, Object> response = new HashMap<>();
+        response.put(KEY_FILE_ID, storedFile.fileId());
+        response.put(KEY_SHARE_KEY, storedFile.shareKey());
+        response.put(KEY_FILE_NAME, storedFile.fileName());
+        response.put(KEY_FILE_SIZE, storedFile.fileSize());
+        response.put(KEY_CONTENT_TYPE, storedFile.contentType());
+        response.put(KEY_DIGEST, storedFile.digest());
+        if (storedFile.expiresAt() != null) {
+            response.put(KEY_EXPIRES_AT, storedFile.expiresAt().toString());
+        }
+        response.put(KEY_STATUS, STATUS_SUCCESS);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Build success response from a share and its files
+     * {@code fileName} and {@code fileSize} describe the share as a whole, like those of a single file
+     */
+    static ResponseEntity<Map<String, Object>> success(FileShare share, List<StoredFile> files) {
+        Map<String, Object> response = new HashMap<>();
+        response.put(KEY_SHARE_ID, share.shareId());
+        response.put(KEY_SHARE_KEY, share.shareKey());
+        response.put(KEY_FILE_NAME, share.name());
+        response.put(KEY_FILE_SIZE, files.stream().mapToLong(StoredFile::fileSize).sum());
+        response.put(KEY_FILE_COUNT, files.size());
+        response.put(KEY_FILES, files.stream()
+                .map(file -> Map.of(KEY_FILE_ID, file.fileId(),
+                        KEY_FILE_NAME, Objects.requireNonNullElse(file.fileName(), file.fileId()),
+                        KEY_FILE_SIZE, file.fileSize()))
+                .toList());
+        if (share.expiresAt() != null) {
+            response.put(KEY_EXPIRES_AT, share.expiresAt().toString());
+        }
+        response.put(KEY_STATUS, STATUS_SUCCESS);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Requested time to live, sent by clients in seconds
+     */
+    static Duration ttl(Long seconds) {
+        return seconds != null ? Duration.ofSeconds(seconds) : null;
+    }
+
+    /**
+     * Build error response with consistent structure
+     */
+    static ResponseEntity<Map<String, Object>> error(
+            String errorMessage,
+            ResponseEntity.BodyBuilder responseBuilder) {
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put(KEY_ERROR, errorMessage);
+        errorResponse.put(KEY_STATUS, STATUS_ERROR);
+        return responseBuilder.body(errorResponse);
+    }
+
+    /**
+     * Build 503 response asking the client to retry, for requests the {@link StorageBusyException} turned away
+     */
+    static ResponseEntity<Map<String, Object>> busy(String errorMessage) {
+        return error(errorMessage, ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS));
+    }
+
+    /**
+     * Answer a streamed download with 503 and {@code Retry-After}, unless its body has already started
+     */
+    static void busy(HttpServletResponse response, StorageBusyException e) throws IOException {
+        if (response.isCommitted()) {
+            throw e;
+        }
+        response.reset();
+        response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), e.getMessage());
+    }
+}
@@ -1,61 +1,224 @@
 package ch.ofte.symphony.jafts.p2p_transfer;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
+import ch.ofte.symphony.jafts.cluster.UploadSlotRepository;
 import jakarta.servlet.http.HttpSession;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 /**
  * Service to prevent duplicate uploads using Session ID
  * Works together with CSRF token for security
+ * Each session gets a fixed number of concurrent upload slots; admission and release are CAS updates of a
+ * per-session counter, so two concurrent requests can never both take the last slot, and neither allocates
+ * once the session has a counter. Counters left at 0 are swept every {@code app.upload.slot-sweep-interval}:
+ * a swept counter is marked dead first, and a request that finds it dead creates a new one.
+ * In cluster mode ({@code app.cluster.enabled}) the slots of a session on every node are counted in the shared
+ * {@code upload_slots} table, without a database round trip per upload:
+ * <ul>
+ *     <li>an upload takes a slot this node already leased if it has a spare one; only otherwise are
+ *     {@code app.cluster.slot-lease-batch} slots (or a single one) leased from the table</li>
+ *     <li>a finished upload keeps its slot leased as a spare for the next upload of the session on this node;
+ *     spare slots are given back every {@code app.cluster.slot-lease-hold}, all sessions in one batch, so
+ *     other nodes can take them</li>
+ *     <li>the local counter goes first: once the uploads on this node alone fill the quota, a request is
+ *     refused without asking the database</li>
+ * </ul>
+ * So a session uploading one file after another on one node leases a slot once per lease hold, instead of
+ * writing the table twice per upload. In exchange, a slot released on one node stays taken for the other
+ * nodes until it is given back; raise the lease batch only with sticky sessions. While it leases slots, a
+ * session's row is touched every heartbeat interval, so uploads outlasting {@code app.cluster.slot-idle-timeout}
+ * keep their slots.
  */
 @Service
 public class UploadDuplicationService {
 
-    private final Cache<String, Boolean> uploadCache;
+    // Per session: slots in use on this node in the high half, slots leased from upload_slots but not in use
+    // (always 0 without a cluster) in the low half. DEAD marks a counter being removed by the sweep; it can no
+    // longer be taken or released
+    private static final long DEAD = -1;
+    private static final long IN_USE = 1L << 32;
+    private static final Function<String, AtomicLong> NEW_COUNTER = id -> new AtomicLong();
 
-    public UploadDuplicationService() {
-        this.uploadCache = Caffeine.newBuilder()
-                .expireAfterWrite(Duration.ofMinutes(5))
-                .maximumSize(10_000)
-                .build();
+    private final ConcurrentMap<String, AtomicLong> uploadSlots = new ConcurrentHashMap<>();
+    private final int maxConcurrentUploads;
+    private final Optional<UploadSlotRepository> sharedSlots;
+    private final int leaseBatch;
+
+    public UploadDuplicationService(int maxConcurrentUploads) {
+        this(maxConcurrentUploads, Optional.empty());
+    }
+
+    public UploadDuplicationService(int maxConcurrentUploads, Optional<UploadSlotRepository> sharedSlots) {
+        this(maxConcurrentUploads, sharedSlots, 1);
+    }
+
+    @Autowired
+    public UploadDuplicationService(
+            @Value("${app.upload.max-concurrent-per-session:3}") int maxConcurrentUploads,
+            Optional<UploadSlotRepository> sharedSlots,
+            @Value("${app.cluster.slot-lease-batch:1}") int leaseBatch) {
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+        this.sharedSlots = sharedSlots;
+        this.leaseBatch = Math.clamp(leaseBatch, 1, this.maxConcurrentUploads);
     }
 
     /**
-     * Check if this session is currently uploading
+     * Atomically take an upload slot for this session
+     * Every successful call must be paired with {@link #release(HttpSession)}, typically in a finally block
      * @param session HTTP session
-     * @return true if upload is in progress
+     * @return false if all slots of the session are in use
      */
-    public boolean isUploading(HttpSession session) {
-        String key = buildKey(session);
-        return uploadCache.getIfPresent(key) != null;
+    public boolean tryAcquire(HttpSession session) {
+        // Session ID is managed by Spring Security - secure and unique per user
+        String sessionId = session.getId();
+        while (true) {
+            AtomicLong slots = uploadSlots.computeIfAbsent(sessionId, NEW_COUNTER);
+            long current = slots.get();
+            if (current == DEAD) {
+                // Swept meanwhile: make sure it is gone, then start a new counter
+                uploadSlots.remove(sessionId, slots);
+            } else if (inUse(current) >= maxConcurrentUploads) {
+                return false;
+            } else if (spare(current) > 0) {
+                if (slots.compareAndSet(current, current + IN_USE - 1)) {
+                    return true;
+                }
+            } else if (slots.compareAndSet(current, current + IN_USE)) {
+                return sharedSlots.isEmpty() || lease(sessionId, slots, maxConcurrentUploads - inUse(current));
+            }
+        }
     }
 
     /**
-     * Mark this session as uploading
+     * Give back a slot taken with {@link #tryAcquire(HttpSession)}
+     * In cluster mode it stays leased by this node as a spare until {@link #releaseSpareSlots()}.
      * @param session HTTP session
      */
-    public void markUploading(HttpSession session) {
-        String key = buildKey(session);
-        uploadCache.put(key, Boolean.TRUE);
+    public void release(HttpSession session) {
+        AtomicLong slots = uploadSlots.get(session.getId());
+        if (slots == null) {
+            return;
+        }
+        long kept = sharedSlots.isPresent() ? 1 : 0;
+        long current;
+        do {
+            current = slots.get();
+            if (current == DEAD || inUse(current) <= 0) {
+                return;
+            }
+        } while (!slots.compareAndSet(current, current - IN_USE + kept));
     }
 
     /**
-     * Clear upload status for this session
-     * @param session HTTP session
+     * Lease slots from the shared table for a slot just taken on this node; the counter cannot be swept
+     * meanwhile, as that slot is in use
+     * @param free slots of the session not in use on this node, the one just taken included
      */
-    public void clearUpload(HttpSession session) {
-        String key = buildKey(session);
-        uploadCache.invalidate(key);
+    private boolean lease(String sessionId, AtomicLong slots, int free) {
+        int leased;
+        try {
+            leased = sharedSlots.orElseThrow().lease(sessionId, Math.min(leaseBatch, free), maxConcurrentUploads);
+        } catch (RuntimeException e) {
+            slots.addAndGet(-IN_USE);
+            throw e;
+        }
+        if (leased == 0) {
+            // Slots are held on other nodes
+            slots.addAndGet(-IN_USE);
+            return false;
+        }
+        slots.addAndGet(leased - 1);
+        return true;
+    }
+
+    private static int inUse(long slots) {
+        return (int) (slots >>> 32);
+    }
+
+    private static int spare(long slots) {
+        return (int) slots;
     }
 
     /**
-     * Build cache key from session ID
-     * Session ID is managed by Spring Security - secure and unique per user
+     * Forget sessions that hold no slot
      */
-    private String buildKey(HttpSession session) {
-        return "upload:" + session.getId();
+    @Scheduled(fixedDelayString = "${app.upload.slot-sweep-interval:PT1M}",
+            initialDelayString = "${app.upload.slot-sweep-interval:PT1M}")
+    public void sweep() {
+        uploadSlots.forEach((sessionId, slots) -> {
+            if (slots.compareAndSet(0, DEAD)) {
+                uploadSlots.remove(sessionId, slots);
+            }
+        });
+    }
+
+    /**
+     * Give the slots leased by this node but not in use back to the shared table, so other nodes can take them
+     */
+    @Scheduled(fixedDelayString = "${app.cluster.slot-lease-hold:PT10S}",
+            initialDelayString = "${app.cluster.slot-lease-hold:PT10S}")
+    public void releaseSpareSlots() {
+        if (sharedSlots.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> spares = new HashMap<>();
+        uploadSlots.forEach((sessionId, slots) -> {
+            long current;
+            do {
+                current = slots.get();
+                if (current == DEAD || spare(current) == 0) {
+                    return;
+                }
+            } while (!slots.compareAndSet(current, current - spare(current)));
+            spares.put(sessionId, spare(current));
+        });
+        if (!spares.isEmpty()) {
+            // Should this fail, the rows are no longer touched and the slots are freed by the idle purge
+            sharedSlots.get().release(spares);
+        }
+    }
+
+    /**
+     * Keep the shared rows of sessions with slots leased by this node from being purged as idle
+     */
+    @Scheduled(fixedDelayString = "${app.cluster.slot-heartbeat-interval:PT5M}",
+            initialDelayString = "${app.cluster.slot-heartbeat-interval:PT5M}")
+    public void heartbeat() {
+        if (sharedSlots.isPresent()) {
+            List<String> sessionIds = uploadSlots.entrySet().stream()
+                    .filter(slots -> slots.getValue().get() > 0)
+                    .map(Map.Entry::getKey)
+                    .toList();
+            if (!sessionIds.isEmpty()) {
+                sharedSlots.get().touch(sessionIds);
+            }
+        }
+    }
+
+    /**
+     * Number of slots this session currently holds, on all nodes in cluster mode (including spare leased slots)
+     * @param session HTTP session
+     */
+    public int inUse(HttpSession session) {
+        if (sharedSlots.isPresent()) {
+            return sharedSlots.get().inUse(session.getId());
+        }
+        AtomicLong slots = uploadSlots.get(session.getId());
+        return slots != null && slots.get() != DEAD ? inUse(slots.get()) : 0;
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
     }
 }
@@ -0,0 +1,358 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a ZIP archive front to back onto a stream, without seeking and without holding entry data in memory
+ * Every entry is followed by a data descriptor, so its CRC-32 can be computed while it is written; its sizes
+ * must be known up front instead, which makes {@link #length} exact and lets a download announce its
+ * {@code Content-Length} before the first byte. Entries are either {@link Method#STORED} as is, or
+ * {@link Method#DEFLATED} from raw deflate data compressed beforehand (such as the body of a gzip blob).
+ * ZIP64 records are only added where a size, an offset or the number of entries needs them.
+ * Memory use is the central directory: a name and a few numbers per entry, however large the entries are.
+ */
+final class ZipStreamWriter {
+
+    enum Method {
+        STORED(0),
+        DEFLATED(8);
+
+        private final int code;
+
+        Method(int code) {
+            this.code = code;
+        }
+    }
+
+    /**
+     * @param name           entry name, with '/' between directories
+     * @param method         how the entry's data is stored
+     * @param compressedSize bytes of data written for the entry
+     * @param size           size of the original content
+     * @param lastModified   modification time, kept with two seconds precision
+     */
+    record Entry(String name, Method method, long compressedSize, long size, Instant lastModified) {
+    }
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    // Header and both sizes
+    private static final int LOCAL_ZIP64_EXTRA_SIZE = 20;
+    private static final int DATA_DESCRIPTOR_SIZE = 16;
+    private static final int ZIP64_DATA_DESCRIPTOR_SIZE = 24;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int END_SIZE = 22;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // Sizes and CRC follow the data; names are UTF-8
+    private static final int FLAGS = 1 << 3 | 1 << 11;
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    private final OutputStream out;
+    private final List<Written> written = new ArrayList<>();
+    private final CRC32 crc32 = new CRC32();
+    private long position;
+    private Entry current;
+    private long currentOffset;
+    private long currentLength;
+
+    ZipStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Start a new entry; its data follows with {@link #write}
+     */
+    void putEntry(Entry entry) throws IOException {
+        if (current != null) {
+            throw new IllegalStateException("Entry " + current.name() + " is not closed");
+        }
+        byte[] name = nameOf(entry);
+        boolean zip64 = hasZip64Sizes(entry);
+        int extraLength = zip64 ? LOCAL_ZIP64_EXTRA_SIZE : 0;
+        // CRC and sizes are in the data descriptor
+        int sizes = zip64 ? (int) ZIP64_MAGIC : 0;
+        ByteBuffer header = header(LOCAL_HEADER_SIZE + name.length + extraLength);
+        header.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION))
+                .putShort((short) FLAGS)
+                .putShort((short) entry.method().code)
+                .putInt(dosTime(entry.lastModified()))
+                .putInt(0)
+                .putInt(sizes)
+                .putInt(sizes)
+                .putShort((short) name.length)
+                .putShort((short) extraLength)
+                .put(name);
+        if (zip64) {
+            // APPNOTE 4.3.9.2: tells streaming readers that the data descriptor has 8-byte sizes
+            header.putShort((short) ZIP64_EXTRA_ID)
+                    .putShort((short) (LOCAL_ZIP64_EXTRA_SIZE - 4))
+                    .putLong(0)
+                    .putLong(0);
+        }
+        current = entry;
+        currentOffset = position;
+        currentLength = 0;
+        crc32.reset();
+        writeHeader(header);
+    }
+
+    void write(byte[] buffer, int offset, int length) throws IOException {
+        if (current.method() == Method.STORED) {
+            crc32.update(buffer, offset, length);
+        }
+        out.write(buffer, offset, length);
+        currentLength += length;
+        position += length;
+    }
+
+    /**
+     * Finish a {@link Method#STORED} entry, with the CRC-32 of the data written
+     */
+    void closeEntry() throws IOException {
+        if (current.method() != Method.STORED) {
+            throw new IllegalStateException("The CRC-32 of deflated entry " + current.name() + " is needed");
+        }
+        closeEntry(crc32.getValue());
+    }
+
+    /**
+     * Finish an entry
+     * @param crc CRC-32 of the original content
+     * @throws IOException if the data written does not have the size the entry was announced with
+     */
+    void closeEntry(long crc) throws IOException {
+        Entry entry = current;
+        if (currentLength != entry.compressedSize()) {
+            throw new IOException("Entry " + entry.name() + " has " + currentLength + " bytes of data, not "
+                    + entry.compressedSize());
+        }
+        boolean zip64 = hasZip64Sizes(entry);
+        ByteBuffer descriptor = header(zip64 ? ZIP64_DATA_DESCRIPTOR_SIZE : DATA_DESCRIPTOR_SIZE);
+        descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE).putInt((int) crc);
+        if (zip64) {
+            descriptor.putLong(entry.compressedSize()).putLong(entry.size());
+        } else {
+            descriptor.putInt((int) entry.compressedSize()).putInt((int) entry.size());
+        }
+        writeHeader(descriptor);
+        written.add(new Written(entry, nameOf(entry), crc, currentOffset));
+        current = null;
+    }
+
+    /**
+     * Write the central directory; the stream is left open
+     */
+    void finish() throws IOException {
+        if (current != null) {
+            throw new IllegalStateException("Entry " + current.name() + " is not closed");
+        }
+        long directoryOffset = position;
+        for (Written entry : written) {
+            writeHeader(centralHeader(entry));
+        }
+        writeEnd(written.size(), directoryOffset, position - directoryOffset);
+        out.flush();
+    }
+
+    /**
+     * Exact size of the archive {@link ZipStreamWriter} writes for these entries
+     */
+    static long length(List<Entry> entries) {
+        long offset = 0;
+        long directorySize = 0;
+        for (Entry entry : entries) {
+            int nameLength = nameOf(entry).length;
+            directorySize += CENTRAL_HEADER_SIZE + nameLength + zip64ExtraLength(entry, offset);
+            offset += LOCAL_HEADER_SIZE + nameLength + entry.compressedSize() + (hasZip64Sizes(entry)
+                    ? LOCAL_ZIP64_EXTRA_SIZE + ZIP64_DATA_DESCRIPTOR_SIZE
+                    : DATA_DESCRIPTOR_SIZE);
+        }
+        boolean zip64 = needsZip64End(entries.size(), offset, directorySize);
+        return offset + directorySize + (zip64 ? ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE : 0) + END_SIZE;
+    }
+
+    /**
+     * Entry names for files, as relative paths that cannot point outside the directory they are extracted to
+     * Directories in a name are kept; empty, {@code .} and {@code ..} segments are dropped. A name used before
+     * (ignoring case) gets a counter before its extension.
+     */
+    static List<String> entryNames(List<String> fileNames) {
+        List<String> names = new ArrayList<>(fileNames.size());
+        Set<String> used = new HashSet<>();
+        for (String fileName : fileNames) {
+            String name = safeName(fileName);
+            int dot = name.lastIndexOf('.');
+            if (dot <= name.lastIndexOf('/') + 1) {
+                dot = name.length();
+            }
+            String candidate = name;
+            for (int counter = 1; !used.add(candidate.toLowerCase(Locale.ROOT)); counter++) {
+                candidate = name.substring(0, dot) + " (" + counter + ")" + name.substring(dot);
+            }
+            names.add(candidate);
+        }
+        return names;
+    }
+
+    private static String safeName(String fileName) {
+        StringBuilder name = new StringBuilder();
+        if (fileName != null) {
+            for (String segment : fileName.split("[/\\\\]")) {
+                String cleaned = segment.replaceAll("\\p{Cntrl}", "_").strip();
+                if (!cleaned.isEmpty() && !cleaned.equals(".") && !cleaned.equals("..")) {
+                    name.append(name.isEmpty() ? "" : "/").append(cleaned);
+                }
+            }
+        }
+        return name.isEmpty() ? "file" : name.toString();
+    }
+
+    private ByteBuffer centralHeader(Written entry) {
+        int extraLength = zip64ExtraLength(entry.entry(), entry.offset());
+        Entry e = entry.entry();
+        ByteBuffer header = header(CENTRAL_HEADER_SIZE + entry.name().length + extraLength);
+        int version = extraLength > 0 ? VERSION_ZIP64 : VERSION;
+        header.putInt(CENTRAL_HEADER_SIGNATURE)
+                .putShort((short) version)
+                .putShort((short) version)
+                .putShort((short) FLAGS)
+                .putShort((short) e.method().code)
+                .putInt(dosTime(e.lastModified()))
+                .putInt((int) entry.crc())
+                .putInt((int) Math.min(e.compressedSize(), ZIP64_MAGIC))
+                .putInt((int) Math.min(e.size(), ZIP64_MAGIC))
+                .putShort((short) entry.name().length)
+                .putShort((short) extraLength)
+                // Comment, disk number, internal and external attributes
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putInt(0)
+                .putInt((int) Math.min(entry.offset(), ZIP64_MAGIC))
+                .put(entry.name());
+        if (extraLength > 0) {
+            header.putShort((short) ZIP64_EXTRA_ID).putShort((short) (extraLength - 4));
+            // Only the fields that overflow, in this order
+            if (e.size() >= ZIP64_MAGIC) {
+                header.putLong(e.size());
+            }
+            if (e.compressedSize() >= ZIP64_MAGIC) {
+                header.putLong(e.compressedSize());
+            }
+            if (entry.offset() >= ZIP64_MAGIC) {
+                header.putLong(entry.offset());
+            }
+        }
+        return header;
+    }
+
+    private void writeEnd(int count, long directoryOffset, long directorySize) throws IOException {
+        boolean zip64 = needsZip64End(count, directoryOffset, directorySize);
+        if (zip64) {
+            long zip64EndOffset = position;
+            ByteBuffer end = header(ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE);
+            end.putInt(ZIP64_END_SIGNATURE)
+                    .putLong(ZIP64_END_SIZE - 12)
+                    .putShort((short) VERSION_ZIP64)
+                    .putShort((short) VERSION_ZIP64)
+                    .putInt(0)
+                    .putInt(0)
+                    .putLong(count)
+                    .putLong(count)
+                    .putLong(directorySize)
+                    .putLong(directoryOffset)
+                    .putInt(ZIP64_LOCATOR_SIGNATURE)
+                    .putInt(0)
+                    .putLong(zip64EndOffset)
+                    .putInt(1);
+            writeHeader(end);
+        }
+        ByteBuffer end = header(END_SIZE);
+        end.putInt(END_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(count, ZIP64_MAGIC_COUNT))
+                .putShort((short) Math.min(count, ZIP64_MAGIC_COUNT))
+                .putInt((int) Math.min(directorySize, ZIP64_MAGIC))
+                .putInt((int) Math.min(directoryOffset, ZIP64_MAGIC))
+                .putShort((short) 0);
+        writeHeader(end);
+    }
+
+    private void writeHeader(ByteBuffer header) throws IOException {
+        out.write(header.array(), 0, header.position());
+        position += header.position();
+    }
+
+    private static ByteBuffer header(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] nameOf(Entry entry) {
+        byte[] name = entry.name().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Entry name is too long: " + entry.name());
+        }
+        return name;
+    }
+
+    private static boolean hasZip64Sizes(Entry entry) {
+        return entry.size() >= ZIP64_MAGIC || entry.compressedSize() >= ZIP64_MAGIC;
+    }
+
+    /**
+     * Length of the ZIP64 extra field in the central directory, with its 4 bytes header; 0 if not needed
+     */
+    private static int zip64ExtraLength(Entry entry, long offset) {
+        int fields = (entry.size() >= ZIP64_MAGIC ? 1 : 0) + (entry.compressedSize() >= ZIP64_MAGIC ? 1 : 0)
+                + (offset >= ZIP64_MAGIC ? 1 : 0);
+        return fields > 0 ? 4 + 8 * fields : 0;
+    }
+
+    private static boolean needsZip64End(int count, long directoryOffset, long directorySize) {
+        return count >= ZIP64_MAGIC_COUNT || directoryOffset >= ZIP64_MAGIC || directorySize >= ZIP64_MAGIC;
+    }
+
+    /**
+     * MS-DOS date and time in local time, as in the ZIP headers; clamped to the years DOS can represent
+     */
+    private static int dosTime(Instant instant) {
+        LocalDateTime time = LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+        int year = Math.clamp(time.getYear(), 1980, 2107);
+        return (year - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /**
+     * What the central directory needs of an entry written
+     */
+    private record Written(Entry entry, byte[] name, long crc, long offset) {
+    }
+}
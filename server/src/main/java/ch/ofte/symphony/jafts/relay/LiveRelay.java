@@ -0,0 +1,54 @@
+package ch.ofte.symphony.jafts.relay;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One live hand-off: a sender waiting for (or streaming to) exactly one receiver
+ */
+@Getter
+public class LiveRelay {
+
+    private final String shareKey;
+    private final String fileName;
+    private final String contentType;
+    private final long contentLength; // -1 if the sender did not declare it
+
+    @Getter(AccessLevel.NONE)
+    private final RelayBuffer buffer;
+    @Getter(AccessLevel.NONE)
+    private final CountDownLatch receiverAttached = new CountDownLatch(1);
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    LiveRelay(String shareKey, String fileName, String contentType, long contentLength, RelayBuffer buffer) {
+        this.shareKey = shareKey;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.buffer = buffer;
+    }
+
+    RelayBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Claim the relay for a receiver; only the first caller wins
+     */
+    boolean claim() {
+        if (!claimed.compareAndSet(false, true)) {
+            return false;
+        }
+        receiverAttached.countDown();
+        return true;
+    }
+
+    boolean awaitReceiver(long timeoutMillis) throws InterruptedException {
+        return receiverAttached.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,131 @@
+package ch.ofte.symphony.jafts.relay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-size byte ring between one producer and one consumer
+ * The producer blocks while the ring is full and the consumer while it is empty, so a slow receiver
+ * slows the sender down instead of growing memory. Either side gives up after the stall timeout.
+ */
+final class RelayBuffer {
+
+    private final byte[] ring;
+    private final long stallTimeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private int head;
+    private int size;
+    private boolean finished;
+    private boolean aborted;
+
+    RelayBuffer(int capacity, long stallTimeoutMillis) {
+        this.ring = new byte[capacity];
+        this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+    }
+
+    /**
+     * Append bytes, waiting for free space as needed
+     * @throws IOException if the relay was aborted or the consumer stalled
+     */
+    void write(byte[] source, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            while (length > 0) {
+                long remaining = stallTimeoutNanos;
+                while (size == ring.length && !aborted) {
+                    if (remaining <= 0) {
+                        abort();
+                        throw new IOException("Receiver stalled");
+                    }
+                    remaining = notFull.awaitNanos(remaining);
+                }
+                if (aborted) {
+                    throw new IOException("Relay aborted");
+                }
+                int tail = (head + size) % ring.length;
+                int count = Math.min(length, Math.min(ring.length - size, ring.length - tail));
+                System.arraycopy(source, offset, ring, tail, count);
+                size += count;
+                offset += count;
+                length -= count;
+                notEmpty.signal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Relay interrupted");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take up to {@code length} bytes, waiting for data as needed
+     * @return number of bytes read, or -1 once the producer finished and everything was read
+     * @throws IOException if the relay was aborted or the producer stalled
+     */
+    int read(byte[] target, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            long remaining = stallTimeoutNanos;
+            while (size == 0 && !finished && !aborted) {
+                if (remaining <= 0) {
+                    abort();
+                    throw new IOException("Sender stalled");
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            if (aborted) {
+                throw new IOException("Relay aborted");
+            }
+            if (size == 0) {
+                return -1;
+            }
+            int count = Math.min(length, Math.min(size, ring.length - head));
+            System.arraycopy(ring, head, target, offset, count);
+            head = (head + count) % ring.length;
+            size -= count;
+            notFull.signal();
+            return count;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Relay interrupted");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Producer is done; the consumer drains what is left and then sees end of stream
+     */
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fail both sides, e.g. when one of them disconnected
+     */
+    void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
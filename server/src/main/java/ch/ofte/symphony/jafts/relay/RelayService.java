@@ -0,0 +1,134 @@
+package ch.ofte.symphony.jafts.relay;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Diskless live relay: streams a sender's request body straight into a waiting receiver's response
+ * Each transfer holds one fixed-size {@link RelayBuffer} plus two copy buffers, whatever the file size,
+ * and nothing is written to the upload directory. A slow receiver slows the sender down through the
+ * full ring and TCP flow control.
+ */
+@Slf4j
+@Service
+public class RelayService {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final ConcurrentMap<String, LiveRelay> relays = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxActive;
+    private final Duration waitTimeout;
+    private final Duration stallTimeout;
+
+    public RelayService(
+            @Value("${app.relay.buffer-size:1MB}") DataSize bufferSize,
+            @Value("${app.relay.max-active:100}") int maxActive,
+            @Value("${app.relay.wait-timeout:10m}") Duration waitTimeout,
+            @Value("${app.relay.stall-timeout:60s}") Duration stallTimeout) {
+        this.bufferSize = (int) bufferSize.toBytes();
+        this.maxActive = maxActive;
+        this.waitTimeout = waitTimeout;
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * Offer a stream under a share key and relay it to the first receiver
+     * Blocks until a receiver attached and the whole stream was handed over
+     * @param in sender's body, read until EOF (not closed)
+     * @return number of bytes relayed, or empty if the key is in use or too many relays are active
+     * @throws RelayTimeoutException if no receiver attached in time
+     * @throws IOException if the receiver went away or stalled
+     */
+    public Optional<Long> send(String shareKey, String fileName, String contentType, long contentLength, InputStream in)
+            throws IOException {
+        if (active.incrementAndGet() > maxActive) {
+            active.decrementAndGet();
+            return Optional.empty();
+        }
+        LiveRelay relay = new LiveRelay(shareKey, fileName, contentType, contentLength,
+                new RelayBuffer(bufferSize, stallTimeout.toMillis()));
+        if (relays.putIfAbsent(shareKey, relay) != null) {
+            active.decrementAndGet();
+            return Optional.empty();
+        }
+
+        try {
+            if (!relay.awaitReceiver(waitTimeout.toMillis())) {
+                throw new RelayTimeoutException(shareKey);
+            }
+            byte[] chunk = new byte[COPY_BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                relay.buffer().write(chunk, 0, read);
+                total += read;
+            }
+            relay.buffer().finish();
+            return Optional.of(total);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a receiver");
+        } catch (IOException | RuntimeException e) {
+            relay.buffer().abort();
+            throw e;
+        } finally {
+            relays.remove(shareKey, relay);
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Claim the relay offered under a share key; only one receiver can claim it
+     * @return the relay, or empty if nobody is sending under this key or it was already claimed
+     */
+    public Optional<LiveRelay> claim(String shareKey) {
+        LiveRelay relay = relays.get(shareKey);
+        return relay != null && relay.claim() ? Optional.of(relay) : Optional.empty();
+    }
+
+    /**
+     * Copy a claimed relay into the receiver's response until the sender is done
+     * @throws IOException if the sender went away or the receiver disconnected
+     */
+    public long receive(LiveRelay relay, OutputStream out) throws IOException {
+        byte[] chunk = new byte[COPY_BUFFER_SIZE];
+        long total = 0;
+        try {
+            int read;
+            while ((read = relay.buffer().read(chunk, 0, chunk.length)) != -1) {
+                out.write(chunk, 0, read);
+                total += read;
+            }
+            out.flush();
+            return total;
+        } catch (IOException | RuntimeException e) {
+            relay.buffer().abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Whether a sender is currently waiting under this key
+     */
+    public boolean isOffered(String shareKey) {
+        return relays.containsKey(shareKey);
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+}
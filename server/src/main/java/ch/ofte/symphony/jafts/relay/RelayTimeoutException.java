@@ -0,0 +1,13 @@
+package ch.ofte.symphony.jafts.relay;
+
+import java.io.IOException;
+
+/**
+ * Thrown when no receiver claimed a live relay within {@code app.relay.wait-timeout}
+ */
+public class RelayTimeoutException extends IOException {
+
+    public RelayTimeoutException(String shareKey) {
+        super("No receiver for relay " + shareKey);
+    }
+}
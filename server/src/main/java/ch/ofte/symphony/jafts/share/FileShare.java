@@ -0,0 +1,25 @@
+package ch.ofte.symphony.jafts.share;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Several stored files shared under one ID and share key, downloaded together as a ZIP
+ *
+ * @param shareId   public identifier returned to the client
+ * @param name      name of the share, used for the archive
+ * @param fileIds   IDs of the files in the share, in upload order
+ * @param expiresAt when the last file of the share expires, or null if one of them never does
+ * @param shareKey  short key the share can also be downloaded by
+ */
+public record FileShare(
+        String shareId,
+        String name,
+        List<String> fileIds,
+        Instant expiresAt,
+        String shareKey) {
+
+    public boolean isExpired(Instant now) {
+        return expiresAt != null && !expiresAt.isAfter(now);
+    }
+}
@@ -0,0 +1,245 @@
+package ch.ofte.symphony.jafts.share;
+
+import ch.ofte.symphony.jafts.sharekey.ShareKeyIndex;
+import ch.ofte.symphony.jafts.storage.FileStorageService;
+import ch.ofte.symphony.jafts.storage.ShardedPathResolver;
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Groups stored files into shares
+ * A share only refers to its files, which are stored and deduplicated like any other upload. Its manifest is a
+ * small properties file kept as {@code <app.upload.dir>/shares/ab/cd/<shareId>.share}. A share lives as long as
+ * its last file: files that expired or were deleted are left out of it, and a share without files is removed.
+ * Share keys come from the same {@link ShareKeyIndex} as those of files and are restored from the manifests
+ * on startup.
+ */
+@Slf4j
+@Service
+public class ShareService {
+
+    private static final String SHARES_DIR = "shares";
+    private static final String MANIFEST_SUFFIX = ".share";
+    private static final String NAME_PREFIX = "share-";
+    private static final int MAX_NAME_LENGTH = 200;
+    private static final Pattern SHARE_ID_PATTERN = Pattern.compile("[0-9a-f]{8}(-[0-9a-f]{4}){3}-[0-9a-f]{12}");
+
+    // Manifest keys
+    private static final String KEY_NAME = "name";
+    private static final String KEY_FILES = "files";
+    private static final String KEY_EXPIRES_AT = "expiresAt";
+    private static final String KEY_SHARE_KEY = "shareKey";
+
+    private final Path sharesPath;
+    private final int maxFiles;
+    private final FileStorageService fileStorageService;
+    private final ShareKeyIndex shareKeyIndex;
+    private final ShardedPathResolver pathResolver;
+
+    public ShareService(
+            @Value("${app.upload.dir:uploads/p2p}") String uploadDir,
+            @Value("${app.share.max-files:1000}") int maxFiles,
+            FileStorageService fileStorageService,
+            ShareKeyIndex shareKeyIndex,
+            ShardedPathResolver pathResolver) {
+        this.sharesPath = Paths.get(uploadDir).resolve(SHARES_DIR);
+        this.maxFiles = maxFiles;
+        this.fileStorageService = fileStorageService;
+        this.shareKeyIndex = shareKeyIndex;
+        this.pathResolver = pathResolver;
+    }
+
+    /**
+     * Restore the share keys of the shares on disk; shares whose files are all gone are removed
+     */
+    @PostConstruct
+    void restore() throws IOException {
+        Files.createDirectories(sharesPath);
+        int restored = 0;
+        int removed = 0;
+        try (Stream<Path> manifests = Files.walk(sharesPath, pathResolver.getMaxWalkDepth())) {
+            for (Path manifestPath : (Iterable<Path>) manifests.filter(ShareService::isManifest)::iterator) {
+                FileShare share = readManifest(manifestPath);
+                if (share.isExpired(Instant.now())) {
+                    remove(share);
+                    removed++;
+                } else if (files(share).isEmpty()) {
+                    removed++;
+                } else if (shareKeyIndex.restore(share.shareKey(), share.shareId())) {
+                    restored++;
+                }
+            }
+        }
+        log.info("Restored {} share(s), removed {} without files", restored, removed);
+    }
+
+    /**
+     * Create a share of stored files
+     * @param name name of the share, or null for one derived from its share key
+     * @param files files of the share, at most {@code app.share.max-files}
+     * @return the new share
+     */
+    public FileShare create(String name, List<StoredFile> files) throws IOException {
+        if (files.isEmpty() || files.size() > maxFiles) {
+            throw new IllegalArgumentException("A share holds 1 to " + maxFiles + " files, not " + files.size());
+        }
+        String shareId = UUID.randomUUID().toString();
+        String shareKey = shareKeyIndex.allocate(shareId);
+        try {
+            FileShare share = new FileShare(shareId, nameOf(name, shareKey),
+                    files.stream().map(StoredFile::fileId).toList(), expiresAt(files), shareKey);
+            writeManifest(share);
+            return share;
+        } catch (IOException | RuntimeException e) {
+            shareKeyIndex.release(shareKey, shareId);
+            throw e;
+        }
+    }
+
+    /**
+     * Look up a share by its ID or share key
+     * @return the share, or empty if it is unknown or expired
+     */
+    public Optional<FileShare> find(String shareId) throws IOException {
+        if (shareId != null && !SHARE_ID_PATTERN.matcher(shareId).matches()) {
+            Optional<String> shared = shareKeyIndex.resolve(shareId);
+            if (shared.isEmpty()) {
+                return Optional.empty();
+            }
+            shareId = shared.get();
+        }
+        if (shareId == null) {
+            return Optional.empty();
+        }
+        FileShare share;
+        try {
+            share = readManifest(manifestPath(shareId));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        if (share.isExpired(Instant.now())) {
+            remove(share);
+            return Optional.empty();
+        }
+        return Optional.of(share);
+    }
+
+    /**
+     * Files of a share that are still stored; a share found to have none left is removed
+     */
+    public List<StoredFile> files(FileShare share) throws IOException {
+        List<StoredFile> files = new ArrayList<>(share.fileIds().size());
+        for (String fileId : share.fileIds()) {
+            fileStorageService.find(fileId).ifPresent(files::add);
+        }
+        if (files.isEmpty()) {
+            remove(share);
+        }
+        return files;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    private void remove(FileShare share) throws IOException {
+        Files.deleteIfExists(manifestPath(share.shareId()));
+        shareKeyIndex.release(share.shareKey(), share.shareId());
+        log.debug("Removed share {} ({})", share.shareId(), share.shareKey());
+    }
+
+    /**
+     * Write the manifest next to where it ends up and move it into place
+     */
+    private void writeManifest(FileShare share) throws IOException {
+        Properties manifest = new Properties();
+        manifest.setProperty(KEY_NAME, share.name());
+        manifest.setProperty(KEY_FILES, String.join(",", share.fileIds()));
+        if (share.expiresAt() != null) {
+            manifest.setProperty(KEY_EXPIRES_AT, share.expiresAt().toString());
+        }
+        manifest.setProperty(KEY_SHARE_KEY, share.shareKey());
+
+        Path manifestPath = manifestPath(share.shareId());
+        Files.createDirectories(manifestPath.getParent());
+        Path tempPath = Files.createTempFile(manifestPath.getParent(), share.shareId(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                manifest.store(writer, null);
+            }
+            Files.move(tempPath, manifestPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+    }
+
+    private FileShare readManifest(Path manifestPath) throws IOException {
+        Properties manifest = new Properties();
+        try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            manifest.load(reader);
+        }
+        String fileName = manifestPath.getFileName().toString();
+        return new FileShare(
+                fileName.substring(0, fileName.length() - MANIFEST_SUFFIX.length()),
+                manifest.getProperty(KEY_NAME),
+                Arrays.asList(manifest.getProperty(KEY_FILES, "").split(",")),
+                manifest.getProperty(KEY_EXPIRES_AT) != null
+                        ? Instant.parse(manifest.getProperty(KEY_EXPIRES_AT)) : null,
+                manifest.getProperty(KEY_SHARE_KEY));
+    }
+
+    private Path manifestPath(String shareId) {
+        return pathResolver.resolve(sharesPath, shareId + MANIFEST_SUFFIX);
+    }
+
+    private static boolean isManifest(Path path) {
+        return path.getFileName().toString().endsWith(MANIFEST_SUFFIX) && Files.isRegularFile(path);
+    }
+
+    private static String nameOf(String name, String shareKey) {
+        if (name == null || name.isBlank()) {
+            return NAME_PREFIX + shareKey;
+        }
+        String trimmed = name.strip();
+        return trimmed.length() > MAX_NAME_LENGTH ? trimmed.substring(0, MAX_NAME_LENGTH) : trimmed;
+    }
+
+    /**
+     * A share expires with its last file, and never if one of its files never does
+     */
+    private static Instant expiresAt(List<StoredFile> files) {
+        Instant latest = null;
+        for (StoredFile file : files) {
+            if (file.expiresAt() == null) {
+                return null;
+            }
+            if (latest == null || file.expiresAt().isAfter(latest)) {
+                latest = file.expiresAt();
+            }
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,160 @@
+package ch.ofte.symphony.jafts.sharekey;
+
+import ch.ofte.symphony.jafts.metadata.FileMetadataRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.security.SecureRandom;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory share key → file ID index
+ * <p>
+ * Keys are short random {@link ShareKeys} handed out next to the file ID, so the receiver can type a few
+ * characters instead of a UUID. The whole index lives in one {@link ShareKeyTable}: a million active shares
+ * take a few tens of MB and no per-entry objects. The {@code file_metadata} table and the file descriptors
+ * are the durable record; the index is rebuilt from them on startup.
+ * <p>
+ * Keys are drawn from a {@link SecureRandom}; anyone who knows a key can download the file, so they must not
+ * be predictable.
+ */
+@Slf4j
+@Service
+public class ShareKeyIndex {
+
+    // Collisions only matter once the key space fills up; after this many, keys get one character longer
+    private static final int ATTEMPTS_PER_LENGTH = 8;
+
+    private final FileMetadataRepository repository;
+    private final SecureRandom random = new SecureRandom();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ShareKeyTable table;
+    private final int keyLength;
+
+    public ShareKeyIndex(
+            FileMetadataRepository repository,
+            @Value("${app.share-key.length:8}") int keyLength,
+            @Value("${app.share-key.initial-capacity:65536}") int initialCapacity) {
+        if (keyLength < ShareKeys.MIN_LENGTH || keyLength > ShareKeys.MAX_LENGTH) {
+            throw new IllegalArgumentException("app.share-key.length must be between "
+                    + ShareKeys.MIN_LENGTH + " and " + ShareKeys.MAX_LENGTH);
+        }
+        this.repository = repository;
+        this.keyLength = keyLength;
+        this.table = new ShareKeyTable(initialCapacity);
+    }
+
+    @PostConstruct
+    void rebuild() {
+        int[] restored = new int[1];
+        repository.forEachShareKey((shareKey, fileId) -> {
+            if (restore(shareKey, fileId)) {
+                restored[0]++;
+            }
+        });
+        log.info("Restored {} share key(s)", restored[0]);
+    }
+
+    /**
+     * Hand out a new, unused share key for a file
+     * @param fileId file ID (a UUID) the key resolves to
+     * @return the key in canonical form
+     */
+    public String allocate(String fileId) {
+        UUID id = UUID.fromString(fileId);
+        for (int length = keyLength; length <= ShareKeys.MAX_LENGTH; length++) {
+            for (int attempt = 0; attempt < ATTEMPTS_PER_LENGTH; attempt++) {
+                long packed = ShareKeys.random(random, length);
+                if (put(packed, id)) {
+                    return ShareKeys.encode(packed);
+                }
+            }
+        }
+        throw new IllegalStateException("No free share key left");
+    }
+
+    /**
+     * Re-register a key recorded earlier (metadata row or descriptor)
+     * @return false if the key is malformed or already maps to a file
+     */
+    public boolean restore(String shareKey, String fileId) {
+        long packed = ShareKeys.decode(shareKey);
+        if (packed == ShareKeys.INVALID) {
+            return false;
+        }
+        UUID id = UUID.fromString(fileId);
+        if (!put(packed, id)) {
+            log.debug("Share key {} is already taken, not restoring it for {}", shareKey, fileId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * File ID a typed share key resolves to
+     * @return the file ID, or empty if the key is malformed or unknown
+     */
+    public Optional<String> resolve(String shareKey) {
+        long packed = ShareKeys.decode(shareKey);
+        if (packed == ShareKeys.INVALID) {
+            return Optional.empty();
+        }
+        long mostSignificant;
+        long leastSignificant;
+        lock.readLock().lock();
+        try {
+            int slot = table.indexOf(packed);
+            if (slot < 0) {
+                return Optional.empty();
+            }
+            mostSignificant = table.mostSignificantBits(slot);
+            leastSignificant = table.leastSignificantBits(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Optional.of(new UUID(mostSignificant, leastSignificant).toString());
+    }
+
+    /**
+     * Forget a key once its file is gone; a key meanwhile reused for another file is kept
+     */
+    public void release(String shareKey, String fileId) {
+        long packed = ShareKeys.decode(shareKey);
+        if (packed == ShareKeys.INVALID) {
+            return;
+        }
+        UUID id = UUID.fromString(fileId);
+        lock.writeLock().lock();
+        try {
+            table.remove(packed, id.getMostSignificantBits(), id.getLeastSignificantBits());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number of active share keys
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return table.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean put(long packed, UUID id) {
+        lock.writeLock().lock();
+        try {
+            return table.putIfAbsent(packed, id.getMostSignificantBits(), id.getLeastSignificantBits());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
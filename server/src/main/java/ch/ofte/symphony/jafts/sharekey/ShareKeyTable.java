@@ -0,0 +1,145 @@
+package ch.ofte.symphony.jafts.sharekey;
+
+/**
+ * Open-addressing hash table from a packed share key to a file ID (a UUID held as two longs)
+ * <p>
+ * Three parallel primitive arrays with linear probing and backward-shift deletion (no tombstones),
+ * so an entry costs 24 bytes per slot and lookups allocate nothing. Not thread-safe.
+ */
+final class ShareKeyTable {
+
+    private static final long FREE = 0; // packed keys are never 0
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] keys;
+    private long[] mostSignificant;
+    private long[] leastSignificant;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    ShareKeyTable(int expectedSize) {
+        allocate(capacityFor(Math.max(16, expectedSize)));
+    }
+
+    /**
+     * Slot holding the key
+     * @return the slot, or -1 if the key is absent
+     */
+    int indexOf(long key) {
+        for (int slot = home(key); ; slot = (slot + 1) & mask) {
+            long candidate = keys[slot];
+            if (candidate == key) {
+                return slot;
+            }
+            if (candidate == FREE) {
+                return -1;
+            }
+        }
+    }
+
+    long mostSignificantBits(int slot) {
+        return mostSignificant[slot];
+    }
+
+    long leastSignificantBits(int slot) {
+        return leastSignificant[slot];
+    }
+
+    /**
+     * Map the key to a file ID unless it is taken
+     * @return false if the key is already mapped
+     */
+    boolean putIfAbsent(long key, long mostSignificantBits, long leastSignificantBits) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Share key must not be 0");
+        }
+        int slot = home(key);
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        mostSignificant[slot] = mostSignificantBits;
+        leastSignificant[slot] = leastSignificantBits;
+        if (++size >= resizeAt) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Remove the key if it still maps to the given file ID
+     * @return true if it was removed
+     */
+    boolean remove(long key, long mostSignificantBits, long leastSignificantBits) {
+        int slot = indexOf(key);
+        if (slot < 0 || mostSignificant[slot] != mostSignificantBits || leastSignificant[slot] != leastSignificantBits) {
+            return false;
+        }
+        // Shift later entries of the probe run back into the hole so lookups never stop early
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+            int home = home(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                mostSignificant[hole] = mostSignificant[next];
+                leastSignificant[hole] = leastSignificant[next];
+                hole = next;
+            }
+        }
+        keys[hole] = FREE;
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return keys.length;
+    }
+
+    private int home(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void grow() {
+        if (keys.length >= MAX_CAPACITY) {
+            throw new IllegalStateException("Share key table is full");
+        }
+        long[] oldKeys = keys;
+        long[] oldMost = mostSignificant;
+        long[] oldLeast = leastSignificant;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = home(oldKeys[i]);
+                while (keys[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                mostSignificant[slot] = oldMost[i];
+                leastSignificant[slot] = oldLeast[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        mostSignificant = new long[capacity];
+        leastSignificant = new long[capacity];
+        mask = capacity - 1;
+        // Load factor 0.75 keeps probe runs short
+        resizeAt = capacity - (capacity >>> 2);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long needed = (long) Math.ceil(expectedSize / 0.75);
+        return (int) Math.min(MAX_CAPACITY, Long.highestOneBit(needed - 1) << 1);
+    }
+}
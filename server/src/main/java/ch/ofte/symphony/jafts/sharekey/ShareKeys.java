@@ -0,0 +1,87 @@
+package ch.ofte.symphony.jafts.sharekey;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ * Short, human-typable share keys in Crockford base32 ({@code 0-9 A-Z} without {@code I L O U})
+ * <p>
+ * A key of up to {@link #MAX_LENGTH} characters is packed into a single {@code long}: five bits per character,
+ * with the length above them so that {@code "0ABC123"} and {@code "ABC123"} stay distinct. A packed key is never 0.
+ * Decoding is forgiving the way people type: lower case is accepted, {@code O} reads as {@code 0} and
+ * {@code I}/{@code L} as {@code 1}; hyphens are ignored.
+ */
+public final class ShareKeys {
+
+    public static final int MIN_LENGTH = 6;
+    public static final int MAX_LENGTH = 8;
+
+    /** Returned by {@link #decode(CharSequence)} for anything that is not a share key */
+    public static final long INVALID = -1;
+
+    private static final String ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ";
+    private static final int BITS_PER_CHAR = 5;
+    private static final int LENGTH_SHIFT = MAX_LENGTH * BITS_PER_CHAR;
+    private static final long VALUE_MASK = (1L << LENGTH_SHIFT) - 1;
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            DECODE[ALPHABET.charAt(i)] = (byte) i;
+            DECODE[Character.toLowerCase(ALPHABET.charAt(i))] = (byte) i;
+        }
+        DECODE['O'] = DECODE['o'] = 0;
+        DECODE['I'] = DECODE['i'] = DECODE['L'] = DECODE['l'] = 1;
+    }
+
+    private ShareKeys() {
+    }
+
+    /**
+     * Pack a typed key
+     * @return the packed key, or {@link #INVALID}
+     */
+    public static long decode(CharSequence key) {
+        if (key == null || key.length() > 2 * MAX_LENGTH) {
+            return INVALID;
+        }
+        long value = 0;
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '-') {
+                continue;
+            }
+            if (c >= DECODE.length || DECODE[c] < 0 || ++length > MAX_LENGTH) {
+                return INVALID;
+            }
+            value = value << BITS_PER_CHAR | DECODE[c];
+        }
+        return length < MIN_LENGTH ? INVALID : (long) length << LENGTH_SHIFT | value;
+    }
+
+    /**
+     * Canonical (upper case) form of a packed key
+     */
+    public static String encode(long packed) {
+        int length = (int) (packed >>> LENGTH_SHIFT);
+        long value = packed & VALUE_MASK;
+        char[] chars = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            chars[i] = ALPHABET.charAt((int) (value & (ALPHABET.length() - 1)));
+            value >>>= BITS_PER_CHAR;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Random packed key of the given length
+     */
+    public static long random(RandomGenerator random, int length) {
+        if (length < MIN_LENGTH || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Share key length must be between " + MIN_LENGTH + " and " + MAX_LENGTH);
+        }
+        return (long) length << LENGTH_SHIFT | random.nextLong(1L << length * BITS_PER_CHAR);
+    }
+}
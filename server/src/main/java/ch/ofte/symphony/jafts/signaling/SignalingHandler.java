@@ -0,0 +1,237 @@
+package ch.ofte.symphony.jafts.signaling;
+
+import ch.ofte.symphony.jafts.sharekey.ShareKeys;
+import jakarta.websocket.Session;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * WebRTC signaling hub: pairs two browsers by share key and relays their SDP offer/answer and ICE candidates
+ * <p>
+ * Protocol ({@code /ws/signal/{shareKey}?role=offer|answer}):
+ * <ul>
+ *     <li>the sender connects to {@code /ws/signal/new?role=offer}; the server opens a room under a new direct
+ *     key and sends it as {@code {"type":"room","key":"D-..."}}</li>
+ *     <li>the receiver connects with the typed key and {@code role=answer} and joins an open room; both sides then get
+ *     {@code {"type":"peer-joined"}} and the sender starts the WebRTC negotiation</li>
+ *     <li>every text message is forwarded verbatim to the other peer; the server never parses it</li>
+ *     <li>when a peer disconnects the other one gets {@code {"type":"peer-left"}}; when the sender leaves
+ *     the room is closed</li>
+ * </ul>
+ * A room is one small immutable record in a concurrent map and is replaced atomically on every change,
+ * so an idle socket costs little more than the container's own connection state.
+ * Direct keys are {@link ShareKeys} behind a {@code D-} prefix, drawn here from a {@link SecureRandom}; stored
+ * share keys never carry it, so a typed key can never open a stored file of someone else or the other way round.
+ * File content never passes through this server.
+ */
+@Slf4j
+@Component
+public class SignalingHandler extends TextWebSocketHandler {
+
+    public static final String PATH = "/ws/signal/";
+
+    static final String ROLE_OFFER = "offer";
+    static final String ROLE_ANSWER = "answer";
+    static final String NEW_ROOM = "new";
+    static final String DIRECT_KEY_PREFIX = "D-";
+
+    // Application close codes (4000-4999), mirroring the HTTP status they correspond to
+    static final CloseStatus BAD_REQUEST = new CloseStatus(4400, "bad-request");
+    static final CloseStatus NOT_FOUND = new CloseStatus(4404, "not-found");
+    static final CloseStatus CONFLICT = new CloseStatus(4409, "key-in-use");
+    static final CloseStatus ROOM_CLOSED = new CloseStatus(4410, "room-closed");
+
+    private static final Pattern SHARE_KEY_PATTERN = Pattern.compile("[A-Za-z0-9_-]{4,64}");
+    private static final String ATTR_SHARE_KEY = "signaling.shareKey";
+    private static final TextMessage PEER_JOINED = new TextMessage("{\"type\":\"peer-joined\"}");
+    private static final TextMessage PEER_LEFT = new TextMessage("{\"type\":\"peer-left\"}");
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final int maxMessageSize;
+    private final Duration idleTimeout;
+    private final int sendTimeLimit;
+    private final int sendBufferSizeLimit;
+
+    public SignalingHandler(
+            @Value("${app.signaling.max-message-size:16KB}") DataSize maxMessageSize,
+            @Value("${app.signaling.idle-timeout:30m}") Duration idleTimeout,
+            @Value("${app.signaling.send-time-limit:10000}") int sendTimeLimit,
+            @Value("${app.signaling.send-buffer-size-limit:65536}") int sendBufferSizeLimit) {
+        this.maxMessageSize = (int) maxMessageSize.toBytes();
+        this.idleTimeout = idleTimeout;
+        this.sendTimeLimit = sendTimeLimit;
+        this.sendBufferSizeLimit = sendBufferSizeLimit;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws IOException {
+        // Large enough for an SDP offer with inline candidates; peers that vanish without closing are dropped
+        session.setTextMessageSizeLimit(maxMessageSize);
+        if (session instanceof NativeWebSocketSession nativeSession) {
+            Session container = nativeSession.getNativeSession(Session.class);
+            if (container != null) {
+                container.setMaxIdleTimeout(idleTimeout.toMillis());
+            }
+        }
+
+        URI uri = session.getUri();
+        String shareKey = uri != null ? shareKeyOf(uri) : null;
+        String role = uri != null
+                ? UriComponentsBuilder.fromUri(uri).build().getQueryParams().getFirst("role")
+                : null;
+
+        // Peers write to each other from different threads; the decorator serializes sends
+        WebSocketSession peer = new ConcurrentWebSocketSessionDecorator(session, sendTimeLimit, sendBufferSizeLimit);
+        if (ROLE_OFFER.equals(role) && NEW_ROOM.equals(shareKey)) {
+            String key;
+            do {
+                key = DIRECT_KEY_PREFIX + ShareKeys.encode(ShareKeys.random(random, ShareKeys.MAX_LENGTH));
+            } while (rooms.putIfAbsent(key, new Room(peer, null)) != null);
+            session.getAttributes().put(ATTR_SHARE_KEY, key);
+            send(peer, new TextMessage("{\"type\":\"room\",\"key\":\"" + key + "\"}"));
+            return;
+        }
+        shareKey = shareKey != null && SHARE_KEY_PATTERN.matcher(shareKey).matches() ? directKey(shareKey) : null;
+        if (shareKey == null || !ROLE_ANSWER.equals(role)) {
+            session.close(BAD_REQUEST);
+            return;
+        }
+
+        Room joined = rooms.computeIfPresent(shareKey,
+                (key, room) -> room.answerer() == null ? new Room(room.offerer(), peer) : room);
+        if (joined == null) {
+            session.close(NOT_FOUND);
+            return;
+        }
+        if (joined.answerer() != peer) {
+            session.close(CONFLICT);
+            return;
+        }
+        session.getAttributes().put(ATTR_SHARE_KEY, shareKey);
+        send(joined.offerer(), PEER_JOINED);
+        send(peer, PEER_JOINED);
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        String shareKey = (String) session.getAttributes().get(ATTR_SHARE_KEY);
+        Room room = shareKey != null ? rooms.get(shareKey) : null;
+        WebSocketSession peer = room != null ? room.peerOf(session) : null;
+        if (peer != null) {
+            send(peer, message);
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        String shareKey = (String) session.getAttributes().get(ATTR_SHARE_KEY);
+        if (shareKey == null) {
+            return;
+        }
+        Room[] before = new Room[1];
+        rooms.computeIfPresent(shareKey, (key, room) -> {
+            before[0] = room;
+            if (room.isOfferer(session)) {
+                return null;
+            }
+            return room.isAnswerer(session) ? new Room(room.offerer(), null) : room;
+        });
+
+        Room room = before[0];
+        if (room == null) {
+            return;
+        }
+        if (room.isOfferer(session)) {
+            // Without the sender the room is gone; the receiver has nobody left to talk to
+            if (room.answerer() != null) {
+                send(room.answerer(), PEER_LEFT);
+                closeQuietly(room.answerer(), ROOM_CLOSED);
+            }
+        } else if (room.isAnswerer(session)) {
+            // The sender keeps the room open for the next receiver
+            send(room.offerer(), PEER_LEFT);
+        }
+    }
+
+    /**
+     * Number of open rooms
+     */
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Canonical form of a typed direct key, read as forgivingly as {@link ShareKeys#decode(CharSequence)}
+     * @return the key, or null if it is not a direct key
+     */
+    static String directKey(String typed) {
+        if (!typed.regionMatches(true, 0, DIRECT_KEY_PREFIX, 0, DIRECT_KEY_PREFIX.length())) {
+            return null;
+        }
+        long packed = ShareKeys.decode(typed.substring(DIRECT_KEY_PREFIX.length()));
+        return packed != ShareKeys.INVALID ? DIRECT_KEY_PREFIX + ShareKeys.encode(packed) : null;
+    }
+
+    private static String shareKeyOf(URI uri) {
+        String path = uri.getPath();
+        int start = path.lastIndexOf('/') + 1;
+        return start > 0 && start < path.length() ? path.substring(start) : null;
+    }
+
+    private static void send(WebSocketSession peer, TextMessage message) {
+        try {
+            peer.sendMessage(message);
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Failed to signal peer {}", peer.getId(), e);
+            closeQuietly(peer, CloseStatus.SESSION_NOT_RELIABLE);
+        }
+    }
+
+    private static void closeQuietly(WebSocketSession session, CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            log.debug("Failed to close signaling session {}", session.getId(), e);
+        }
+    }
+
+    /**
+     * The two peers of a share key; the answerer is null until a receiver joins
+     * Sessions are compared by ID because the room holds the send-serializing decorators
+     */
+    private record Room(WebSocketSession offerer, WebSocketSession answerer) {
+
+        boolean isOfferer(WebSocketSession session) {
+            return offerer.getId().equals(session.getId());
+        }
+
+        boolean isAnswerer(WebSocketSession session) {
+            return answerer != null && answerer.getId().equals(session.getId());
+        }
+
+        WebSocketSession peerOf(WebSocketSession session) {
+            if (isOfferer(session)) {
+                return answerer;
+            }
+            return isAnswerer(session) ? offerer : null;
+        }
+    }
+}
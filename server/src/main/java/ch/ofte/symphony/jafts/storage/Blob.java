@@ -0,0 +1,25 @@
+package ch.ofte.symphony.jafts.storage;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Stored content of a file, as found in the {@link StorageBackend}
+ *
+ * @param name         blob name in the backend
+ * @param size         size of the stored bytes, which is the compressed size if {@code compressed}
+ * @param lastModified when the blob was stored
+ * @param compressed   whether the blob holds the gzip-compressed content
+ * @param localPath    local file holding the blob, or null if the backend is remote
+ */
+public record Blob(
+        String name,
+        long size,
+        Instant lastModified,
+        boolean compressed,
+        Path localPath) {
+
+    public boolean isLocal() {
+        return localPath != null;
+    }
+}
@@ -0,0 +1,301 @@
+package ch.ofte.symphony.jafts.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses new blobs at rest when it pays off
+ * <ul>
+ *     <li>content types that are compressed already (images, video, archives, ...) are never touched</li>
+ *     <li>otherwise a sample from the start of the file is deflated first; content that does not shrink
+ *     enough is stored as is</li>
+ *     <li>streamed uploads are then compressed by a {@link GzipWriter} while they are written, without ever
+ *     writing the original bytes; chunked uploads, whose chunks arrive out of order, are compressed in one
+ *     streaming pass once complete ({@link #compress})</li>
+ *     <li>either way the result is kept only if the whole file shrank enough</li>
+ * </ul>
+ * Gzip is used because downloads can hand the stored bytes to clients unchanged with {@code Content-Encoding: gzip}.
+ */
+@Slf4j
+@Component
+public class BlobCompressor {
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    // ID1, ID2, CM (deflate), FLG, MTIME (4), XFL, OS (unknown): the header GZIPOutputStream writes
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    // ISIZE, the last field of the gzip trailer
+    static final int GZIP_TRAILER_SIZE = 4;
+
+    private final boolean enabled;
+    private final int level;
+    private final long minSize;
+    private final int sampleSize;
+    private final double maxRatio;
+    private final List<MediaType> skipTypes;
+
+    public BlobCompressor(
+            @Value("${app.storage.compression.enabled:true}") boolean enabled,
+            @Value("${app.storage.compression.level:6}") int level,
+            @Value("${app.storage.compression.min-size:4KB}") DataSize minSize,
+            @Value("${app.storage.compression.sample-size:64KB}") DataSize sampleSize,
+            @Value("${app.storage.compression.max-ratio:0.8}") double maxRatio,
+            @Value("${app.storage.compression.skip-types:image/*,video/*,audio/*,application/zip,application/gzip}")
+            List<String> skipTypes) {
+        this.enabled = enabled;
+        this.level = level;
+        this.minSize = minSize.toBytes();
+        this.sampleSize = (int) sampleSize.toBytes();
+        this.maxRatio = maxRatio;
+        this.skipTypes = skipTypes.stream().map(MediaType::parseMediaType).toList();
+    }
+
+    /**
+     * Whether content starting with a sample should be compressed while it is written
+     * @param sample the first {@link #getSampleSize()} bytes of the content, or all of it if it is shorter
+     * @param whole whether the sample is the whole content
+     */
+    public boolean shouldCompress(String contentType, byte[] sample, boolean whole) {
+        return enabled && !(whole && sample.length < minSize) && !isCompressedType(contentType)
+                && sampleCompresses(sample, sample.length);
+    }
+
+    /**
+     * Start a gzip stream at the beginning of an empty channel
+     */
+    public GzipWriter newWriter(FileChannel channel) throws IOException {
+        return new GzipWriter(channel, level);
+    }
+
+    /**
+     * Whether content compressed to the given size is worth keeping compressed
+     */
+    public boolean pays(long size, long compressedSize) {
+        return compressedSize <= size * maxRatio;
+    }
+
+    /**
+     * Replace a compressed file that did not pay off with its original content
+     * @return the original content next to the compressed file, which is deleted
+     */
+    public static Path decompress(Path compressed) throws IOException {
+        String name = compressed.getFileName().toString();
+        Path target = compressed.resolveSibling(name.substring(0, name.length() - COMPRESSED_SUFFIX.length()));
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed), STREAM_BUFFER_SIZE)) {
+            Files.copy(in, target);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        Files.delete(compressed);
+        return target;
+    }
+
+    /**
+     * Name of the compressed copy of a file
+     */
+    public static Path compressedPath(Path source) {
+        return source.resolveSibling(source.getFileName() + COMPRESSED_SUFFIX);
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Write a gzip-compressed copy of a file if compression is worthwhile
+     * @param source uncompressed file, left in place
+     * @param contentType content type sent by the client
+     * @return the compressed copy next to the source, or empty if the file should be stored as is
+     */
+    public Optional<Path> compress(Path source, String contentType) throws IOException {
+        long size = Files.size(source);
+        if (!enabled || size < minSize || isCompressedType(contentType) || !sampleCompresses(source)) {
+            return Optional.empty();
+        }
+
+        Path target = compressedPath(source);
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new LevelGzipOutputStream(Files.newOutputStream(target), level)) {
+            in.transferTo(out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+
+        long compressedSize = Files.size(target);
+        if (!pays(size, compressedSize)) {
+            Files.delete(target);
+            return Optional.empty();
+        }
+        log.debug("Compressed {} from {} to {} bytes", source.getFileName(), size, compressedSize);
+        return Optional.of(target);
+    }
+
+    /**
+     * Check a size against the uncompressed size recorded in a gzip file's trailer
+     * Only the low 32 bits of the size are stored, so this is a consistency check rather than the exact size
+     */
+    public static boolean hasUncompressedSize(Path compressed, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(compressed, StandardOpenOption.READ)) {
+            if (channel.size() < GZIP_TRAILER_SIZE) {
+                return false;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(GZIP_TRAILER_SIZE);
+            channel.read(trailer, channel.size() - GZIP_TRAILER_SIZE);
+            return hasUncompressedSize(trailer.array(), size);
+        }
+    }
+
+    /**
+     * Same check on the last {@value #GZIP_TRAILER_SIZE} bytes of a gzip stream
+     */
+    static boolean hasUncompressedSize(byte[] trailer, long size) {
+        if (trailer.length != GZIP_TRAILER_SIZE) {
+            return false;
+        }
+        int isize = ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        return Integer.toUnsignedLong(isize) == (size & 0xFFFFFFFFL);
+    }
+
+    private boolean isCompressedType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        try {
+            MediaType mediaType = MediaType.parseMediaType(contentType);
+            return skipTypes.stream().anyMatch(skipType -> skipType.includes(mediaType));
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deflate the start of the file in memory and check it shrinks below the ratio
+     */
+    private boolean sampleCompresses(Path source) throws IOException {
+        byte[] sample = new byte[sampleSize];
+        int length;
+        try (InputStream in = Files.newInputStream(source)) {
+            length = in.readNBytes(sample, 0, sample.length);
+        }
+        return sampleCompresses(sample, length);
+    }
+
+    private boolean sampleCompresses(byte[] sample, int length) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[STREAM_BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed <= length * maxRatio;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Gzip stream written to a channel one buffer at a time, for compressing content while it is received
+     * Output goes through one direct buffer, so nothing of the content is copied to the heap.
+     */
+    public static final class GzipWriter implements Closeable {
+
+        private final FileChannel channel;
+        private final Deflater deflater;
+        private final CRC32 crc32 = new CRC32();
+        private final ByteBuffer output = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        private long position;
+        private long inputSize;
+
+        private GzipWriter(FileChannel channel, int level) throws IOException {
+            this.channel = channel;
+            this.deflater = new Deflater(level, true);
+            output.put(GZIP_HEADER);
+        }
+
+        /**
+         * Compress the remaining bytes of a buffer, which is consumed
+         */
+        public void write(ByteBuffer buffer) throws IOException {
+            crc32.update(buffer.slice());
+            inputSize += buffer.remaining();
+            deflater.setInput(buffer);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        /**
+         * Flush the rest of the stream and its trailer
+         * @return size of the gzip stream
+         */
+        public long finish() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            if (output.remaining() < 8) {
+                drain();
+            }
+            output.order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc32.getValue()).putInt((int) inputSize);
+            drain();
+            return position;
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+
+        private void deflate() throws IOException {
+            deflater.deflate(output);
+            if (!output.hasRemaining()) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            output.flip();
+            while (output.hasRemaining()) {
+                position += channel.write(output, position);
+            }
+            output.clear();
+        }
+    }
+
+    /**
+     * {@link GZIPOutputStream} with a configurable compression level
+     */
+    private static final class LevelGzipOutputStream extends GZIPOutputStream {
+
+        LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, STREAM_BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+}
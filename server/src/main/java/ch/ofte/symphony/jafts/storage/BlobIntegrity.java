@@ -0,0 +1,420 @@
+package ch.ofte.symphony.jafts.storage;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32C;
+
+/**
+ * Integrity records of blob content, kept as {@code <app.upload.dir>/integrity/ab/cd/<digest>.sum}
+ * <ul>
+ *     <li>the CRC32C is computed inline by the write path, next to the SHA-256 that names the blob</li>
+ *     <li>so is a hash tree ({@link IntegrityRecord}) with one SHA-256 leaf per {@code chunk-size} chunk, so a
+ *     range is verified by reading only the chunks it overlaps; the content is never read again to record it</li>
+ *     <li>the writing thread only copies each chunk into one of {@code hash-buffers} chunk buffers; its leaf is
+ *     hashed on one of {@code hash-threads} cores while the next chunk arrives. Copying 1MB costs the writer
+ *     about 0.04ms, hashing it about 1ms (Java 21). Without a free buffer the writer hashes the chunk itself, so
+ *     at most {@code hash-buffers} chunks are held in memory</li>
+ * </ul>
+ * Records describe the original content, whether the blob is stored as is or compressed, and are kept
+ * per blob: deduplicated files share them. Records of reclaimed blobs are removed by the {@link IntegrityScrubber}.
+ */
+@Slf4j
+@Component
+public class BlobIntegrity {
+
+    static final String INTEGRITY_DIR = "integrity";
+    static final String RECORD_SUFFIX = ".sum";
+
+    private static final int MAGIC = 0x4A53554D; // "JSUM"
+    private static final int VERSION = 1;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Path integrityPath;
+    private final ShardedPathResolver pathResolver;
+    private final boolean enabled;
+    private final int chunkSize;
+    private final boolean verifyDownloads;
+    private final ExecutorService hashExecutor;
+    private final Semaphore hashPermits;
+    private final BlockingQueue<byte[]> chunkBuffers;
+
+    public BlobIntegrity(
+            @Value("${app.upload.dir:uploads/p2p}") String uploadDir,
+            ShardedPathResolver pathResolver,
+            @Value("${app.storage.integrity.enabled:true}") boolean enabled,
+            @Value("${app.storage.integrity.chunk-size:1MB}") DataSize chunkSize,
+            @Value("${app.storage.integrity.verify-downloads:false}") boolean verifyDownloads,
+            @Value("${app.storage.integrity.hash-threads:0}") int hashThreads,
+            @Value("${app.storage.integrity.hash-buffers:16}") int hashBuffers) {
+        this.integrityPath = Paths.get(uploadDir).resolve(INTEGRITY_DIR);
+        this.pathResolver = pathResolver;
+        this.enabled = enabled;
+        this.chunkSize = Math.toIntExact(chunkSize.toBytes());
+        this.verifyDownloads = enabled && verifyDownloads;
+        int threads = hashThreads > 0 ? hashThreads : Runtime.getRuntime().availableProcessors();
+        // Hashing is CPU-bound: platform threads, one per core
+        this.hashExecutor = Executors.newFixedThreadPool(threads,
+                Thread.ofPlatform().name("blob-hash-", 0).daemon().factory());
+        this.hashPermits = new Semaphore(Math.max(0, hashBuffers));
+        this.chunkBuffers = new ArrayBlockingQueue<>(Math.max(1, hashBuffers));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        hashExecutor.shutdownNow();
+    }
+
+    /**
+     * Checksums to update inline while content is written; they are passed on to {@link #record}
+     * Close them once the content is recorded or abandoned, to give back the chunk buffer they may hold.
+     */
+    public Checksums newChecksums() {
+        return new Checksums(enabled ? chunkSize : 0, this);
+    }
+
+    /**
+     * Record the checksums of new content
+     * @param digest    SHA-256 naming the content
+     * @param checksums checksums of the complete, uncompressed content, updated while it was written
+     */
+    public void record(String digest, Checksums checksums) throws IOException {
+        if (enabled) {
+            save(digest, checksums.finish());
+        }
+    }
+
+    public Optional<IntegrityRecord> find(String digest) throws IOException {
+        Path path = recordPath(digest);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring integrity record {} of unknown format", path);
+                return Optional.empty();
+            }
+            long size = in.readLong();
+            int crc32c = in.readInt();
+            int recordChunkSize = in.readInt();
+            byte[] leaves = in.readNBytes(in.readInt() * IntegrityRecord.HASH_SIZE);
+            byte[] root = in.readNBytes(in.readInt());
+            if (!Arrays.equals(root, IntegrityRecord.rootOf(leaves, newSha256()))) {
+                // The record itself is damaged; the blob may well be intact
+                log.warn("Ignoring integrity record {}: leaves do not match their root", path);
+                return Optional.empty();
+            }
+            return Optional.of(new IntegrityRecord(size, crc32c, recordChunkSize, leaves, root));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (EOFException e) {
+            log.warn("Ignoring truncated integrity record {}", path);
+            return Optional.empty();
+        }
+    }
+
+    public void delete(String digest) throws IOException {
+        Files.deleteIfExists(recordPath(digest));
+    }
+
+    /**
+     * Check a range of the content against its record: only the chunks the range overlaps are read
+     * Content recorded without a tree (empty, or recorded before every blob got one) is checked in full
+     * against its CRC32C.
+     * @param reader reads a range of the uncompressed content
+     * @return false if the content does not match the record
+     */
+    public boolean verify(IntegrityRecord record, ContentReader reader, long offset, long length) throws IOException {
+        if (length <= 0) {
+            return true;
+        }
+        if (!record.hasTree()) {
+            try (InputStream in = reader.read(0, record.size())) {
+                IntegrityRecord actual = compute(in, 0);
+                return actual.size() == record.size() && actual.crc32c() == record.crc32c();
+            }
+        }
+        long chunk = record.chunkSize();
+        int first = (int) (offset / chunk);
+        int last = (int) ((offset + length - 1) / chunk);
+        long start = first * chunk;
+        long end = Math.min(record.size(), (last + 1) * chunk);
+        MessageDigest sha256 = newSha256();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try (InputStream in = reader.read(start, end - start)) {
+            for (int i = first; i <= last; i++) {
+                long chunkLength = Math.min(chunk, record.size() - i * chunk);
+                sha256.update(IntegrityRecord.LEAF_PREFIX);
+                long remaining = chunkLength;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        // Truncated content
+                        return false;
+                    }
+                    sha256.update(buffer, 0, read);
+                    remaining -= read;
+                }
+                if (!record.matchesLeaf(i, sha256.digest())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checksums of content read sequentially from a stream until its end, the same way {@link #record} does
+     * @param recordChunkSize bytes per leaf, or 0 for no tree
+     */
+    public IntegrityRecord compute(InputStream in, int recordChunkSize) throws IOException {
+        // Hashed on the calling thread: the scrubber is paced anyway, and uploads keep the chunk buffers
+        try (Checksums checksums = new Checksums(recordChunkSize, null)) {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checksums.update(ByteBuffer.wrap(buffer, 0, read));
+            }
+            return checksums.finish();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean verifiesDownloads() {
+        return verifyDownloads;
+    }
+
+    public Path getIntegrityPath() {
+        return integrityPath;
+    }
+
+    int freeChunkBuffers() {
+        return hashPermits.availablePermits();
+    }
+
+    /**
+     * Digest a record file belongs to, or null if it is not a record
+     */
+    static String digestOf(Path recordPath) {
+        String name = recordPath.getFileName().toString();
+        return name.endsWith(RECORD_SUFFIX) ? name.substring(0, name.length() - RECORD_SUFFIX.length()) : null;
+    }
+
+    /**
+     * Write a record next to where it ends up and move it into place; concurrent writers of the same
+     * content write the same record
+     */
+    private void save(String digest, IntegrityRecord record) throws IOException {
+        Path target = recordPath(digest);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), digest, ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(record.size());
+            out.writeInt(record.crc32c());
+            out.writeInt(record.chunkSize());
+            out.writeInt(record.leafCount());
+            out.write(record.leaves());
+            out.writeInt(record.root().length);
+            out.write(record.root());
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path recordPath(String digest) {
+        return pathResolver.resolve(integrityPath, digest + RECORD_SUFFIX);
+    }
+
+    /**
+     * A chunk buffer for one chunk, or null if all {@code hash-buffers} are in use
+     */
+    private byte[] takeChunkBuffer() {
+        if (!hashPermits.tryAcquire()) {
+            return null;
+        }
+        byte[] chunk = chunkBuffers.poll();
+        return chunk != null ? chunk : new byte[chunkSize];
+    }
+
+    private void returnChunkBuffer(byte[] chunk) {
+        chunkBuffers.offer(chunk);
+        hashPermits.release();
+    }
+
+    /**
+     * Hash a full chunk buffer on the hash threads, which give the buffer back; inline if they are shut down
+     */
+    private Future<byte[]> hashLeaf(byte[] chunk, int length) {
+        try {
+            return hashExecutor.submit(() -> {
+                try {
+                    return leafOf(chunk, length);
+                } finally {
+                    returnChunkBuffer(chunk);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            byte[] leaf = leafOf(chunk, length);
+            returnChunkBuffer(chunk);
+            return CompletableFuture.completedFuture(leaf);
+        }
+    }
+
+    private static byte[] leafOf(byte[] chunk, int length) {
+        MessageDigest sha256 = newSha256();
+        sha256.update(IntegrityRecord.LEAF_PREFIX);
+        sha256.update(chunk, 0, length);
+        return sha256.digest();
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * CRC32C and hash tree leaves of content, updated buffer by buffer in the order the content is written
+     * Leaves of chunks copied into a chunk buffer are hashed on the hash threads, the others inline.
+     */
+    public static final class Checksums implements AutoCloseable {
+
+        private final CRC32C crc32c = new CRC32C();
+        private final MessageDigest sha256 = newSha256();
+        private final List<Future<byte[]>> leaves = new ArrayList<>();
+        private final int chunkSize;
+        private final BlobIntegrity hasher;
+        private byte[] chunk;
+        private long size;
+        private int inChunk;
+
+        /**
+         * @param hasher hands out chunk buffers and hashes them, or null to hash every leaf inline
+         */
+        Checksums(int chunkSize, BlobIntegrity hasher) {
+            this.chunkSize = chunkSize;
+            this.hasher = hasher;
+        }
+
+        /**
+         * Add the remaining bytes of a buffer; its position is left unchanged
+         */
+        public void update(ByteBuffer buffer) {
+            crc32c.update(buffer.slice());
+            size += buffer.remaining();
+            ByteBuffer rest = buffer.slice();
+            while (chunkSize > 0 && rest.hasRemaining()) {
+                if (inChunk == 0) {
+                    chunk = hasher != null ? hasher.takeChunkBuffer() : null;
+                    if (chunk == null) {
+                        sha256.update(IntegrityRecord.LEAF_PREFIX);
+                    }
+                }
+                int length = Math.min(rest.remaining(), chunkSize - inChunk);
+                if (chunk != null) {
+                    rest.get(chunk, inChunk, length);
+                } else {
+                    sha256.update(rest.slice(rest.position(), length));
+                    rest.position(rest.position() + length);
+                }
+                inChunk += length;
+                if (inChunk == chunkSize) {
+                    endChunk();
+                }
+            }
+        }
+
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Record of the content added so far, closing its last chunk; call once, after the last update
+         * Waits for the leaves still being hashed.
+         */
+        IntegrityRecord finish() throws IOException {
+            if (inChunk > 0) {
+                endChunk();
+            }
+            byte[] leafHashes = new byte[leaves.size() * IntegrityRecord.HASH_SIZE];
+            try {
+                for (int i = 0; i < leaves.size(); i++) {
+                    System.arraycopy(leaves.get(i).get(), 0, leafHashes, i * IntegrityRecord.HASH_SIZE,
+                            IntegrityRecord.HASH_SIZE);
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("Hashing a chunk failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while hashing chunks");
+            }
+            return new IntegrityRecord(size, (int) crc32c.getValue(), leafHashes.length > 0 ? chunkSize : 0,
+                    leafHashes, IntegrityRecord.rootOf(leafHashes, sha256));
+        }
+
+        /**
+         * Give back the buffer of a chunk that was never completed; leaves being hashed give theirs back themselves
+         */
+        @Override
+        public void close() {
+            if (chunk != null) {
+                hasher.returnChunkBuffer(chunk);
+                chunk = null;
+            }
+        }
+
+        private void endChunk() {
+            if (chunk != null) {
+                leaves.add(hasher.hashLeaf(chunk, inChunk));
+                chunk = null;
+            } else {
+                leaves.add(CompletableFuture.completedFuture(sha256.digest()));
+            }
+            inChunk = 0;
+        }
+    }
+
+    /**
+     * Source of a range of the content being verified
+     */
+    @FunctionalInterface
+    public interface ContentReader {
+        InputStream read(long offset, long length) throws IOException;
+    }
+}
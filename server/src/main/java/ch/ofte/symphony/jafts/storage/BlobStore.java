@@ -0,0 +1,445 @@
+package ch.ofte.symphony.jafts.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed blob storage
+ * Every distinct content is stored once under its SHA-256 digest and reference counted;
+ * a blob is deleted as soon as its last reference is released.
+ * Reference counts change inside {@link ConcurrentMap#compute}, which only ever does cheap checks: the backend is
+ * asked whether content exists before taking the lock, and a released blob is deleted after it. A blob being
+ * deleted keeps a {@link Reference} with no count until it is gone, so it is never handed out again meanwhile,
+ * and every completed deletion bumps a counter so a lookup made before it is repeated.
+ * A referenced blob is never deleted, so the blob found when content was first referenced is kept with its
+ * count and downloads of referenced content never ask the backend again.
+ * A blob is stored either as is ({@code <digest>}) or gzip-compressed ({@code <digest>.gz}), never both;
+ * the digest is always that of the uncompressed content.
+ * Content is kept by a {@link StorageBackend}; garbage collection and layout migration only apply to the
+ * local blob directory.
+ */
+@Slf4j
+@Component
+public class BlobStore {
+
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    // How often a publish waiting for the deletion of the same content looks again
+    private static final long RECLAIM_POLL_MILLIS = 10;
+
+    private final Path blobsPath;
+    private final Duration gcGracePeriod;
+    private final ShardedPathResolver pathResolver;
+    private final StorageBackend backend;
+    private final ConcurrentMap<String, Reference> references = new ConcurrentHashMap<>();
+    // Deletions completed so far; a lookup made outside the lock is only trusted if none completed since
+    private final AtomicLong reclaims = new AtomicLong();
+
+    public BlobStore(
+            @Value("${app.upload.dir:uploads/p2p}") String uploadDir,
+            @Value("${app.storage.gc-grace-period:10m}") Duration gcGracePeriod,
+            ShardedPathResolver pathResolver,
+            StorageBackend backend) {
+        this.blobsPath = Paths.get(uploadDir).resolve(LocalStorageBackend.BLOBS_DIR);
+        this.gcGracePeriod = gcGracePeriod;
+        this.pathResolver = pathResolver;
+        this.backend = backend;
+    }
+
+    /**
+     * Publish freshly written content under its digest and take one reference to it
+     * If the content is already stored, the new copy is dropped instead
+     * @param tempFile fully written file, moved or deleted by this call
+     * @param digest lowercase hex SHA-256 of the uncompressed content
+     * @param compressed whether the file holds the gzip-compressed content
+     * @return true if the content was new, false if it was deduplicated
+     */
+    public boolean publish(Path tempFile, String digest, boolean compressed) throws IOException {
+        String name = compressed ? digest + COMPRESSED_SUFFIX : digest;
+        if (!backend.isLocal()) {
+            return publishRemote(tempFile, digest, name);
+        }
+        // Moving a file into place is cheap, so local content is published under the lock
+        boolean[] created = new boolean[1];
+        while (true) {
+            boolean[] reclaiming = new boolean[1];
+            try {
+                references.compute(digest, (key, reference) -> {
+                    if (reference != null && reference.isReclaiming()) {
+                        reclaiming[0] = true;
+                        return reference;
+                    }
+                    try {
+                        if (reference != null) {
+                            Files.delete(tempFile);
+                            return reference.retain();
+                        }
+                        Optional<Blob> stored = lookup(key);
+                        if (stored.isPresent()) {
+                            Files.delete(tempFile);
+                            return new Reference(1, stored.get());
+                        }
+                        backend.put(name, tempFile);
+                        created[0] = true;
+                        return new Reference(1, stat(name).orElse(null));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (!reclaiming[0]) {
+                return created[0];
+            }
+            awaitReclaim();
+        }
+    }
+
+    /**
+     * Uploading to a remote store can take minutes, so it happens before taking the digest's lock
+     * Identical content under the same name makes concurrent uploads harmless. If the content is deleted by a
+     * concurrent release in between, the lookup is repeated and the content uploaded again from the temporary
+     * file, which is kept until the reference is taken.
+     */
+    private boolean publishRemote(Path tempFile, String digest, String name) throws IOException {
+        boolean created = false;
+        try {
+            while (true) {
+                Reference current = references.get(digest);
+                if (current != null && current.isReclaiming()) {
+                    awaitReclaim();
+                    continue;
+                }
+                long reclaimed = reclaims.get();
+                Optional<Blob> stored = locate(digest);
+                if (stored.isEmpty()) {
+                    try (InputStream in = Files.newInputStream(tempFile)) {
+                        backend.put(name, in, Files.size(tempFile));
+                    }
+                    created = true;
+                    stored = stat(name);
+                    if (stored.isEmpty()) {
+                        throw new IOException("Blob " + name + " is missing right after storing it");
+                    }
+                }
+                Blob blob = stored.get();
+                Outcome[] outcome = {Outcome.RETAINED};
+                references.compute(digest, (key, reference) -> {
+                    if (reference == null) {
+                        if (reclaims.get() != reclaimed) {
+                            outcome[0] = Outcome.CHANGED;
+                            return null;
+                        }
+                        return new Reference(1, blob);
+                    }
+                    if (reference.isReclaiming()) {
+                        outcome[0] = Outcome.RECLAIMING;
+                        return reference;
+                    }
+                    return reference.retain();
+                });
+                if (outcome[0] == Outcome.RETAINED) {
+                    return created;
+                }
+                if (outcome[0] == Outcome.RECLAIMING) {
+                    awaitReclaim();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Take one more reference to content that is already stored
+     * @return false if no blob exists for the digest
+     */
+    public boolean retain(String digest) {
+        if (!DIGEST_PATTERN.matcher(digest).matches()) {
+            return false;
+        }
+        while (true) {
+            long reclaimed = reclaims.get();
+            Optional<Blob> stored = locate(digest);
+            Outcome[] outcome = {Outcome.RETAINED};
+            references.compute(digest, (key, reference) -> {
+                if (reference == null) {
+                    if (stored.isEmpty()) {
+                        outcome[0] = Outcome.ABSENT;
+                        return null;
+                    }
+                    if (reclaims.get() != reclaimed) {
+                        outcome[0] = Outcome.CHANGED;
+                        return null;
+                    }
+                    return new Reference(1, stored.get());
+                }
+                if (reference.isReclaiming()) {
+                    // Being deleted: as good as absent
+                    outcome[0] = Outcome.ABSENT;
+                    return reference;
+                }
+                return reference.retain();
+            });
+            if (outcome[0] != Outcome.CHANGED) {
+                return outcome[0] == Outcome.RETAINED;
+            }
+        }
+    }
+
+    /**
+     * Drop one reference; the blob is deleted when no reference is left, unless the backend is shared
+     * The deletion happens after the digest's lock is released; until it is done, the content counts as absent.
+     */
+    public void release(String digest) {
+        Reference[] last = new Reference[1];
+        references.computeIfPresent(digest, (key, reference) -> {
+            if (reference.isReclaiming()) {
+                return reference;
+            }
+            if (reference.count() > 1) {
+                return reference.release();
+            }
+            if (backend.isShared()) {
+                return null;
+            }
+            last[0] = reference;
+            return Reference.RECLAIMING;
+        });
+        if (last[0] == null) {
+            return;
+        }
+        try {
+            if (last[0].blob() != null) {
+                deleteQuietly(last[0].blob().name());
+            } else {
+                deleteQuietly(digest);
+                deleteQuietly(digest + COMPRESSED_SUFFIX);
+            }
+        } finally {
+            references.computeIfPresent(digest, (key, reference) -> {
+                reclaims.incrementAndGet();
+                return null;
+            });
+        }
+    }
+
+    public boolean contains(String digest) {
+        return DIGEST_PATTERN.matcher(digest).matches() && locate(digest).isPresent();
+    }
+
+    /**
+     * Find the stored content of a digest, whether it is stored as is or compressed
+     * Referenced content is answered from memory; anything else is looked up in the backend.
+     * @return the blob, or empty if no content is stored for the digest
+     */
+    public Optional<Blob> locate(String digest) {
+        Reference reference = references.get(digest);
+        if (reference != null && reference.blob() != null) {
+            return Optional.of(reference.blob());
+        }
+        if (reference != null && reference.isReclaiming()) {
+            return Optional.empty();
+        }
+        try {
+            return lookup(digest);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read part of a blob's stored bytes; compressed blobs are returned compressed
+     */
+    public InputStream open(Blob blob, long offset, long length) throws IOException {
+        return backend.get(blob.name(), offset, length);
+    }
+
+    /**
+     * Whether a blob path holds gzip-compressed content
+     */
+    public static boolean isCompressed(Path blob) {
+        return blob.getFileName().toString().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Move a blob found outside its sharded location into place
+     * Runs under the digest's lock, so it cannot interleave with publishing or reclaiming the same content
+     * @return true if the blob was moved
+     */
+    public boolean relocate(Path blob) throws IOException {
+        String digest = digestOf(blob);
+        if (!DIGEST_PATTERN.matcher(digest).matches() || pathResolver.isSharded(blobsPath, blob)) {
+            return false;
+        }
+        Path target = pathResolver.resolve(blobsPath, blob.getFileName().toString());
+        Files.createDirectories(target.getParent());
+        boolean[] moved = new boolean[1];
+        try {
+            references.compute(digest, (key, reference) -> {
+                try {
+                    if (Files.exists(target)) {
+                        // Same content is already in place
+                        Files.deleteIfExists(blob);
+                    } else if (Files.exists(blob)) {
+                        Files.move(blob, target, StandardCopyOption.ATOMIC_MOVE);
+                        moved[0] = true;
+                    }
+                    // The blob known for the reference has moved
+                    return reference == null || reference.isReclaiming() ? reference
+                            : new Reference(reference.count(), lookup(key).orElse(null));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return moved[0];
+    }
+
+    public Path getBlobsPath() {
+        return blobsPath;
+    }
+
+    /**
+     * Reclaim blobs that have no reference, e.g. left behind by a crash between publishing
+     * content and recording its descriptor. Blobs younger than the grace period are kept.
+     */
+    @Scheduled(fixedDelayString = "${app.storage.gc-interval:PT1H}", initialDelayString = "${app.storage.gc-interval:PT1H}")
+    public void collectGarbage() {
+        if (!Files.isDirectory(blobsPath)) {
+            return;
+        }
+        Instant cutoff = Instant.now().minus(gcGracePeriod);
+        int reclaimed = 0;
+        try (Stream<Path> blobs = Files.walk(blobsPath, pathResolver.getMaxWalkDepth())) {
+            for (Path blob : (Iterable<Path>) blobs.filter(Files::isRegularFile)::iterator) {
+                String digest = digestOf(blob);
+                if (references.containsKey(digest)) {
+                    continue;
+                }
+                boolean[] deleted = new boolean[1];
+                references.compute(digest, (key, reference) -> {
+                    if (reference == null && isOlderThan(blob, cutoff)) {
+                        deleted[0] = deleteQuietly(blob);
+                        if (deleted[0]) {
+                            reclaims.incrementAndGet();
+                        }
+                    }
+                    return reference;
+                });
+                if (deleted[0]) {
+                    reclaimed++;
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Blob garbage collection failed", e);
+        }
+        if (reclaimed > 0) {
+            log.info("Blob garbage collection reclaimed {} unreferenced blob(s)", reclaimed);
+        }
+    }
+
+    /**
+     * Look up the stored content of a digest in the backend
+     */
+    private Optional<Blob> lookup(String digest) throws IOException {
+        Optional<Blob> blob = stat(digest);
+        return blob.isPresent() ? blob : stat(digest + COMPRESSED_SUFFIX);
+    }
+
+    private Optional<Blob> stat(String name) throws IOException {
+        return backend.stat(name).map(stat -> new Blob(name, stat.size(), stat.lastModified(),
+                name.endsWith(COMPRESSED_SUFFIX), backend.localPath(name).orElse(null)));
+    }
+
+    private static void awaitReclaim() throws InterruptedIOException {
+        try {
+            Thread.sleep(RECLAIM_POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a blob to be deleted");
+        }
+    }
+
+    private static String digestOf(Path blob) {
+        String name = blob.getFileName().toString();
+        return isCompressed(blob) ? name.substring(0, name.length() - COMPRESSED_SUFFIX.length()) : name;
+    }
+
+    private static boolean isOlderThan(Path path, Instant cutoff) {
+        try {
+            return Files.getLastModifiedTime(path).toInstant().isBefore(cutoff);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean deleteQuietly(Path path) {
+        try {
+            return Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete blob {}", path, e);
+            return false;
+        }
+    }
+
+    private void deleteQuietly(String name) {
+        try {
+            backend.delete(name);
+        } catch (IOException e) {
+            log.warn("Failed to delete blob {}", name, e);
+        }
+    }
+
+    private enum Outcome {
+        RETAINED,
+        ABSENT,
+        // A deletion completed after the backend was asked; ask again
+        CHANGED,
+        RECLAIMING
+    }
+
+    /**
+     * References to one digest and the blob they point at
+     * @param count number of references, or 0 while the blob is being deleted
+     * @param blob  the stored content, or null if it has to be looked up
+     */
+    private record Reference(int count, Blob blob) {
+
+        static final Reference RECLAIMING = new Reference(0, null);
+
+        boolean isReclaiming() {
+            return count == 0;
+        }
+
+        Reference retain() {
+            return new Reference(count + 1, blob);
+        }
+
+        Reference release() {
+            return new Reference(count - 1, blob);
+        }
+    }
+}
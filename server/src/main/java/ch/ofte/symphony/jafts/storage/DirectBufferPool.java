@@ -0,0 +1,50 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of reusable direct buffers for channel I/O
+ * Avoids allocating (and later freeing) native memory for every transfer
+ */
+@Component
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> pool;
+
+    public DirectBufferPool(
+            @Value("${app.upload.buffer-size:64KB}") DataSize bufferSize,
+            @Value("${app.upload.buffer-pool-size:64}") int poolSize) {
+        this.bufferSize = Math.toIntExact(bufferSize.toBytes());
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * Take a cleared buffer from the pool, allocating a new one if the pool is empty
+     * @return direct buffer of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Return a buffer to the pool; dropped if the pool is already full
+     * @param buffer buffer previously obtained from {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && buffer.capacity() == bufferSize) {
+            pool.offer(buffer.clear());
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,131 @@
+package ch.ofte.symphony.jafts.storage;
+
+import ch.ofte.symphony.jafts.metadata.FileMetadataRecordedEvent;
+import ch.ofte.symphony.jafts.metadata.FileMetadataRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes stored files once their expiry has passed
+ * Deadlines are kept in memory in a {@link DelayQueue} (a priority queue ordered by expiry), filled from the
+ * metadata index at startup and on every new upload, so the reclaimer only ever touches files that expire and
+ * never scans the upload directory. Expired files are deleted in batches with a pause in between to limit
+ * the extra I/O load.
+ */
+@Slf4j
+@Component
+public class ExpiryReclaimer {
+
+    private static final Duration RETRY_DELAY = Duration.ofMinutes(5);
+
+    private final FileStorageService fileStorageService;
+    private final FileMetadataRepository metadataRepository;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration batchPause;
+
+    private final DelayQueue<Deadline> deadlines = new DelayQueue<>();
+
+    public ExpiryReclaimer(
+            FileStorageService fileStorageService,
+            FileMetadataRepository metadataRepository,
+            @Value("${app.storage.reclaim.enabled:true}") boolean enabled,
+            @Value("${app.storage.reclaim.batch-size:100}") int batchSize,
+            @Value("${app.storage.reclaim.batch-pause:1s}") Duration batchPause) {
+        this.fileStorageService = fileStorageService;
+        this.metadataRepository = metadataRepository;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchPause = batchPause;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startReclaiming() {
+        if (enabled) {
+            Thread.ofVirtual().name("expiry-reclaimer").start(this::reclaimLoop);
+        }
+    }
+
+    /**
+     * Track the expiry of a newly recorded file
+     */
+    @EventListener
+    public void onFileRecorded(FileMetadataRecordedEvent event) {
+        if (enabled && event.metadata().expiresAt() != null) {
+            deadlines.add(new Deadline(event.metadata().fileId(), event.metadata().expiresAt()));
+        }
+    }
+
+    /**
+     * Number of deadlines currently tracked
+     */
+    public int getPendingCount() {
+        return deadlines.size();
+    }
+
+    private void reclaimLoop() {
+        // Files recorded while this runs are added by onFileRecorded; a duplicate deadline is harmless
+        metadataRepository.forEachExpiring((fileId, expiresAt) -> deadlines.add(new Deadline(fileId, expiresAt)));
+        log.info("Tracking expiry of {} stored file(s)", deadlines.size());
+
+        List<Deadline> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // Blocks until the earliest deadline has passed, then takes whatever else is due as well
+                batch.add(deadlines.take());
+                deadlines.drainTo(batch, batchSize - 1);
+                reclaim(batch);
+                if (batch.size() >= batchSize) {
+                    Thread.sleep(batchPause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void reclaim(List<Deadline> batch) {
+        Instant now = Instant.now();
+        int deleted = 0;
+        for (Deadline deadline : batch) {
+            try {
+                if (fileStorageService.deleteIfExpired(deadline.fileId(), now)) {
+                    deleted++;
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to reclaim expired file {}, retrying in {}", deadline.fileId(), RETRY_DELAY, e);
+                deadlines.add(new Deadline(deadline.fileId(), now.plus(RETRY_DELAY)));
+            }
+        }
+        if (deleted > 0) {
+            log.info("Reclaimed {} expired file(s)", deleted);
+        }
+    }
+
+    private record Deadline(String fileId, Instant expiresAt) implements Delayed {
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(Duration.between(Instant.now(), expiresAt));
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return expiresAt.compareTo(((Deadline) other).expiresAt);
+        }
+    }
+}
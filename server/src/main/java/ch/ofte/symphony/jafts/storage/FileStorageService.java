@@ -0,0 +1,725 @@
+package ch.ofte.symphony.jafts.storage;
+
+import ch.ofte.symphony.jafts.metadata.FileMetadata;
+import ch.ofte.symphony.jafts.metadata.FileMetadataIndex;
+import ch.ofte.symphony.jafts.sharekey.ShareKeyIndex;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Writes uploaded content into the upload directory
+ * Streams straight from the source into a {@link FileChannel} through a pooled direct buffer,
+ * so no intermediate temp file or heap copy of the whole upload is needed.
+ * Content is hashed while it is written and handed to the {@link BlobStore}, so identical uploads
+ * share one blob; each file ID is a small descriptor under {@code refs/} pointing at its blob.
+ * Lookups by file ID are served from the {@link FileMetadataIndex}; descriptors remain the durable record
+ * and backfill the index for files it does not know yet.
+ * New content that compresses well is stored gzip-compressed by the {@link BlobCompressor}.
+ * Every file also gets a short share key from the {@link ShareKeyIndex} that can be used in place of its ID.
+ */
+@Slf4j
+@Service
+public class FileStorageService {
+
+    private static final String REFS_DIR = "refs";
+    private static final String TMP_DIR = "tmp";
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String DESCRIPTOR_SUFFIX = ".meta";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final Pattern FILE_ID_PATTERN = Pattern.compile("[0-9a-f]{8}(-[0-9a-f]{4}){3}-[0-9a-f]{12}");
+
+    // Descriptor keys
+    private static final String KEY_FILE_NAME = "fileName";
+    private static final String KEY_DIGEST = "digest";
+    private static final String KEY_FILE_SIZE = "fileSize";
+    private static final String KEY_CONTENT_TYPE = "contentType";
+    private static final String KEY_EXPIRES_AT = "expiresAt";
+    private static final String KEY_SHARE_KEY = "shareKey";
+
+    private final Path uploadPath;
+    private final Path refsPath;
+    private final Path tmpPath;
+    private final long maxUploadSize;
+    private final DirectBufferPool bufferPool;
+    private final BlobStore blobStore;
+    private final ShardedPathResolver pathResolver;
+    private final FileMetadataIndex metadataIndex;
+    private final RetentionPolicy retentionPolicy;
+    private final ShareKeyIndex shareKeyIndex;
+    private final BlobCompressor blobCompressor;
+    private final BlobIntegrity blobIntegrity;
+    private final IoLimiter ioLimiter;
+    private final Timer writeTimer;
+    private final Timer publishTimer;
+
+    public FileStorageService(
+            @Value("${app.upload.dir:uploads/p2p}") String uploadDir,
+            @Value("${app.upload.max-size:10GB}") DataSize maxUploadSize,
+            DirectBufferPool bufferPool,
+            BlobStore blobStore,
+            ShardedPathResolver pathResolver,
+            FileMetadataIndex metadataIndex,
+            RetentionPolicy retentionPolicy,
+            ShareKeyIndex shareKeyIndex,
+            BlobCompressor blobCompressor,
+            BlobIntegrity blobIntegrity,
+            IoLimiter ioLimiter,
+            MeterRegistry meterRegistry) {
+        this.uploadPath = Paths.get(uploadDir);
+        this.refsPath = uploadPath.resolve(REFS_DIR);
+        this.tmpPath = uploadPath.resolve(TMP_DIR);
+        this.maxUploadSize = maxUploadSize.toBytes();
+        this.bufferPool = bufferPool;
+        this.blobStore = blobStore;
+        this.pathResolver = pathResolver;
+        this.metadataIndex = metadataIndex;
+        this.retentionPolicy = retentionPolicy;
+        this.shareKeyIndex = shareKeyIndex;
+        this.blobCompressor = blobCompressor;
+        this.blobIntegrity = blobIntegrity;
+        this.ioLimiter = ioLimiter;
+        // Nothing on the write path calls fsync; durability is left to the file system's commit interval
+        this.writeTimer = Timer.builder("jafts.storage.write")
+                .description("Time spent in disk writes per upload body or chunk")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.publishTimer = Timer.builder("jafts.storage.publish")
+                .description("Time to hash, compress, move into the blob store and record a completed upload")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    /**
+     * Rebuild blob reference counts from the descriptors on disk
+     * Share keys whose metadata row was never written are restored along the way
+     */
+    @PostConstruct
+    void restoreReferences() throws IOException {
+        Files.createDirectories(refsPath);
+        Files.createDirectories(tmpPath);
+        int restored = 0;
+        // Walk without a depth limit: descriptors may still sit in a flat or differently sharded layout
+        try (Stream<Path> descriptors = Files.walk(refsPath)) {
+            for (Path descriptorPath : (Iterable<Path>) descriptors.filter(FileStorageService::isDescriptor)::iterator) {
+                StoredFile storedFile = readDescriptor(descriptorPath);
+                if (blobStore.retain(storedFile.digest())) {
+                    restored++;
+                    if (storedFile.shareKey() != null) {
+                        shareKeyIndex.restore(storedFile.shareKey(), storedFile.fileId());
+                    }
+                } else {
+                    log.warn("Descriptor {} points at missing blob {}", descriptorPath, storedFile.digest());
+                }
+            }
+        }
+        log.info("Restored {} stored file reference(s)", restored);
+    }
+
+    /**
+     * Store a new file read from the given stream
+     * @param in source stream, read until EOF (not closed)
+     * @param originalFilename file name sent by the client
+     * @param contentType content type sent by the client
+     * @param ttl time to live requested by the client, or null for the default
+     * @return description of the stored file
+     * @throws UploadTooLargeException if the stream is longer than {@code app.upload.max-size}
+     * @throws StorageBusyException if the {@link IoLimiter} has no file handle or disk writer for the upload
+     */
+    public StoredFile store(InputStream in, String originalFilename, String contentType, Duration ttl)
+            throws IOException {
+        // Generate unique file ID
+        String fileId = UUID.randomUUID().toString();
+
+        // The start of the content decides whether it is compressed while it is written
+        byte[] sample = in.readNBytes(blobCompressor.getSampleSize());
+        boolean compress = blobCompressor.shouldCompress(contentType, sample,
+                sample.length < blobCompressor.getSampleSize());
+        InputStream content = new SequenceInputStream(new ByteArrayInputStream(sample), in);
+        Path tempPath = compress ? BlobCompressor.compressedPath(partialPath(fileId)) : partialPath(fileId);
+
+        MessageDigest digest = newDigest();
+        try (BlobIntegrity.Checksums checksums = blobIntegrity.newChecksums()) {
+            long written;
+            long compressedSize = 0;
+            try (IoLimiter.Permit openFile = ioLimiter.openFile();
+                 FileChannel channel = FileChannel.open(tempPath,
+                         StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 BlobCompressor.GzipWriter gzip = compress ? blobCompressor.newWriter(channel) : null) {
+                written = transfer(content, channel, 0, maxUploadSize, digest, checksums, gzip);
+                if (gzip != null) {
+                    compressedSize = gzip.finish();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Never leave a truncated file behind
+                Files.deleteIfExists(tempPath);
+                throw e;
+            }
+            try {
+                if (compress && !blobCompressor.pays(written, compressedSize)) {
+                    // The sample compressed well, the rest of the content did not
+                    tempPath = BlobCompressor.decompress(tempPath);
+                }
+                return publish(tempPath, new StoredFile(fileId, originalFilename,
+                        HexFormat.of().formatHex(digest.digest()), written, contentType,
+                        retentionPolicy.expiresAt(ttl, Instant.now()), null), checksums);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tempPath);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Mint a new file ID for content that is already stored, without receiving any bytes
+     * @param digest lowercase hex SHA-256 of the content, as computed by the client
+     * @param fileSize size of the content; must match the stored blob
+     * @param originalFilename file name sent by the client
+     * @param contentType content type sent by the client
+     * @param ttl time to live requested by the client, or null for the default
+     * @return the new stored file, or empty if no blob with this digest and size exists
+     */
+    public Optional<StoredFile> storeExisting(String digest, long fileSize, String originalFilename,
+                                              String contentType, Duration ttl) throws IOException {
+        if (digest == null) {
+            return Optional.empty();
+        }
+        String normalizedDigest = digest.toLowerCase(Locale.ROOT);
+        if (!blobStore.retain(normalizedDigest)) {
+            return Optional.empty();
+        }
+        try {
+            Optional<Blob> blob = blobStore.locate(normalizedDigest);
+            if (blob.isEmpty() || !hasSize(blob.get(), fileSize)) {
+                blobStore.release(normalizedDigest);
+                return Optional.empty();
+            }
+            return Optional.of(writeDescriptor(new StoredFile(UUID.randomUUID().toString(),
+                    originalFilename, normalizedDigest, fileSize, contentType,
+                    retentionPolicy.expiresAt(ttl, Instant.now()), null)));
+        } catch (IOException e) {
+            blobStore.release(normalizedDigest);
+            throw e;
+        }
+    }
+
+    /**
+     * Copy a stream into a channel at the given position using a pooled direct buffer
+     * Uses positional writes, so several callers may write disjoint regions of one channel concurrently
+     * @param in source stream, read until EOF (not closed)
+     * @param channel target channel
+     * @param position offset in the channel to start writing at
+     * @param maxBytes maximum number of bytes accepted from the stream
+     * @return number of bytes written
+     * @throws UploadTooLargeException if the stream holds more than {@code maxBytes}
+     * @throws StorageBusyException if the {@link IoLimiter} has no disk writer for a write
+     */
+    public long transfer(InputStream in, FileChannel channel, long position, long maxBytes) throws IOException {
+        return transfer(in, channel, position, maxBytes, null, null, null);
+    }
+
+    /**
+     * Same, hashing the content on the way and writing it through {@code gzip} instead when given
+     */
+    private long transfer(InputStream in, FileChannel channel, long position, long maxBytes, MessageDigest digest,
+                          BlobIntegrity.Checksums checksums, BlobCompressor.GzipWriter gzip) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = bufferPool.acquire();
+        long total = 0;
+        long writeNanos = 0;
+        try {
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                total += buffer.remaining();
+                if (total > maxBytes) {
+                    throw new UploadTooLargeException(maxBytes);
+                }
+                if (digest != null) {
+                    digest.update(buffer.slice());
+                    checksums.update(buffer);
+                }
+                long writePosition = position + total - buffer.remaining();
+                // A disk writer slot only while writing, not while the client sends the next buffer
+                try (IoLimiter.Permit diskWrite = ioLimiter.diskWrite()) {
+                    long writeStart = System.nanoTime();
+                    if (gzip != null) {
+                        gzip.write(buffer);
+                    } else {
+                        while (buffer.hasRemaining()) {
+                            writePosition += channel.write(buffer, writePosition);
+                        }
+                    }
+                    writeNanos += System.nanoTime() - writeStart;
+                }
+                buffer.clear();
+            }
+            return total;
+        } finally {
+            bufferPool.release(buffer);
+            // Only the writes: time spent waiting for the client to send more is not disk latency
+            writeTimer.record(writeNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Create a partial file of the final size for an upload written in chunks
+     * @param fileId file ID reserved for the upload
+     * @param fileSize final size of the file
+     * @return channel for concurrent positional writes; owned by the caller
+     */
+    public FileChannel openPartial(String fileId, long fileSize) throws IOException {
+        if (fileSize > maxUploadSize) {
+            throw new UploadTooLargeException(maxUploadSize);
+        }
+        FileChannel channel = FileChannel.open(partialPath(fileId),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // Reserve the full length so every chunk lands directly at its offset
+            if (fileSize > 0) {
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(partialPath(fileId));
+            throw e;
+        }
+    }
+
+    /**
+     * Publish a completed partial file under its final name
+     * Chunks arrive out of order, so the content is hashed in one sequential pass here
+     * @param fileId file ID the partial file was opened with
+     * @param originalFilename file name sent by the client
+     * @param contentType content type sent by the client
+     * @param fileSize final size of the file
+     * @param ttl time to live requested by the client, or null for the default
+     * @return description of the stored file
+     */
+    public StoredFile commitPartial(String fileId, String originalFilename, String contentType, long fileSize,
+                                    Duration ttl) throws IOException {
+        Path partialPath = partialPath(fileId);
+        ContentHash hash = hashOf(partialPath);
+        try (BlobIntegrity.Checksums checksums = hash.checksums()) {
+            return publish(partialPath, new StoredFile(fileId, originalFilename, hash.digest(), fileSize,
+                    contentType, retentionPolicy.expiresAt(ttl, Instant.now()), null), checksums);
+        }
+    }
+
+    /**
+     * Discard a partial file that will never be completed
+     * @param fileId file ID the partial file was opened with
+     */
+    public void deletePartial(String fileId) {
+        try {
+            Files.deleteIfExists(partialPath(fileId));
+        } catch (IOException e) {
+            log.warn("Failed to delete partial upload {}", fileId, e);
+        }
+    }
+
+    /**
+     * Look up a stored file by its ID or share key without scanning the upload directory
+     * @param fileId file ID or share key returned by an upload
+     * @return the stored file, or empty if the ID is unknown, malformed or expired
+     */
+    public Optional<StoredFile> find(String fileId) throws IOException {
+        if (fileId != null && !FILE_ID_PATTERN.matcher(fileId).matches()) {
+            Optional<String> shared = shareKeyIndex.resolve(fileId);
+            if (shared.isEmpty()) {
+                return Optional.empty();
+            }
+            fileId = shared.get();
+        }
+        Instant now = Instant.now();
+        return lookup(fileId).filter(storedFile -> !storedFile.isExpired(now));
+    }
+
+    private Optional<StoredFile> lookup(String fileId) throws IOException {
+        if (fileId == null || !FILE_ID_PATTERN.matcher(fileId).matches()) {
+            return Optional.empty();
+        }
+        // The descriptor is authoritative: an index row left behind by a lost delete must not revive the file
+        Path descriptorPath = locateDescriptor(fileId);
+        if (!Files.exists(descriptorPath)) {
+            if (metadataIndex.find(fileId).isPresent()) {
+                metadataIndex.remove(fileId);
+            }
+            return Optional.empty();
+        }
+        Optional<FileMetadata> indexed = metadataIndex.find(fileId);
+        if (indexed.isPresent()) {
+            FileMetadata metadata = indexed.get();
+            return Optional.of(new StoredFile(metadata.fileId(), metadata.fileName(), metadata.digest(),
+                    metadata.fileSize(), metadata.contentType(), metadata.expiresAt(), metadata.shareKey()));
+        }
+
+        // Not indexed (stored before the index existed, or its index write was lost): read the descriptor
+        StoredFile storedFile = readDescriptor(descriptorPath);
+        metadataIndex.record(toMetadata(storedFile, Files.getLastModifiedTime(descriptorPath).toInstant()));
+        return Optional.of(storedFile);
+    }
+
+    /**
+     * Delete a stored file; its blob is reclaimed once no other file ID references it
+     * @return false if the file ID is unknown
+     */
+    public boolean delete(String fileId) throws IOException {
+        Optional<StoredFile> storedFile = lookup(fileId);
+        if (storedFile.isEmpty()) {
+            return false;
+        }
+        boolean deleted = Files.deleteIfExists(locateDescriptor(fileId));
+        metadataIndex.remove(fileId);
+        if (storedFile.get().shareKey() != null) {
+            shareKeyIndex.release(storedFile.get().shareKey(), fileId);
+        }
+        if (!deleted) {
+            return false;
+        }
+        blobStore.release(storedFile.get().digest());
+        return true;
+    }
+
+    /**
+     * Delete a stored file if it has expired
+     * @return false if the file ID is unknown or the file has not expired (yet)
+     */
+    public boolean deleteIfExpired(String fileId, Instant now) throws IOException {
+        Optional<StoredFile> storedFile = lookup(fileId);
+        return storedFile.isPresent() && storedFile.get().isExpired(now) && delete(fileId);
+    }
+
+    /**
+     * Stored content of a file; see {@link Blob#compressed()} for how it is stored
+     * @return the blob, or empty if the content is missing from the storage backend
+     */
+    public Optional<Blob> locate(StoredFile storedFile) {
+        return blobStore.locate(storedFile.digest());
+    }
+
+    /**
+     * Read part of a blob's stored bytes, for blobs without a {@link Blob#localPath()}
+     * @return stream of the requested bytes, to be closed by the caller
+     */
+    public InputStream open(Blob blob, long offset, long length) throws IOException {
+        return blobStore.open(blob, offset, length);
+    }
+
+    /**
+     * Check a range of a file's content against its integrity record before sending it
+     * Only done with {@code app.storage.integrity.verify-downloads}, and only for blobs stored as is;
+     * content without a record passes.
+     * @return false if the content is corrupt or truncated
+     */
+    public boolean verify(StoredFile storedFile, Blob blob, long offset, long length) throws IOException {
+        if (!blobIntegrity.verifiesDownloads() || blob.compressed()) {
+            return true;
+        }
+        Optional<IntegrityRecord> record = blobIntegrity.find(storedFile.digest());
+        if (record.isEmpty()) {
+            return true;
+        }
+        boolean intact = record.get().size() == blob.size()
+                && blobIntegrity.verify(record.get(), (from, count) -> blobStore.open(blob, from, count),
+                        offset, length);
+        if (!intact) {
+            log.error("Content {} of file {} does not match its integrity record", storedFile.digest(),
+                    storedFile.fileId());
+        }
+        return intact;
+    }
+
+    /**
+     * Move a descriptor found outside its sharded location into place
+     * @return true if the descriptor was moved
+     */
+    public boolean relocateDescriptor(Path descriptor) throws IOException {
+        if (!isDescriptor(descriptor) || pathResolver.isSharded(refsPath, descriptor)) {
+            return false;
+        }
+        Path target = pathResolver.resolve(refsPath, descriptor.getFileName().toString());
+        Files.createDirectories(target.getParent());
+        Files.move(descriptor, target, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Import a file written by the original flat layout ({@code <fileId><ext>} directly in the upload directory)
+     * The file keeps its ID; its content moves into the blob store and a descriptor is recorded for it
+     * @return true if the file was imported
+     */
+    public boolean importLegacyFile(Path legacyFile) throws IOException {
+        String name = legacyFile.getFileName().toString();
+        if (name.endsWith(DESCRIPTOR_SUFFIX) || name.endsWith(PARTIAL_SUFFIX)) {
+            return false;
+        }
+        int dot = name.indexOf('.');
+        String fileId = dot < 0 ? name : name.substring(0, dot);
+        if (!FILE_ID_PATTERN.matcher(fileId).matches() || !Files.isRegularFile(legacyFile)
+                || Files.exists(locateDescriptor(fileId))) {
+            return false;
+        }
+
+        // Move into tmp first (same file system, atomic) so the file is hashed exactly where it is published from
+        Path tempPath = partialPath(fileId);
+        Files.move(legacyFile, tempPath, StandardCopyOption.ATOMIC_MOVE);
+        long fileSize = Files.size(tempPath);
+        String contentType = Files.probeContentType(tempPath);
+        // Files from before expiry existed are kept until deleted explicitly
+        try {
+            ContentHash hash = hashOf(tempPath);
+            try (BlobIntegrity.Checksums checksums = hash.checksums()) {
+                publish(tempPath, new StoredFile(fileId, name, hash.digest(), fileSize, contentType, null, null),
+                        checksums);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unless the store took it already, the file goes back where it was found for the next run
+            if (Files.exists(tempPath)) {
+                Files.move(tempPath, legacyFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    public Path getUploadPath() {
+        return uploadPath;
+    }
+
+    public Path getRefsPath() {
+        return refsPath;
+    }
+
+    public long getMaxUploadSize() {
+        return maxUploadSize;
+    }
+
+    /**
+     * Hand the content to the blob store, then record the descriptor
+     * The descriptor is written last, so it always refers to complete content
+     * Content the store already has is deduplicated before spending any time on hashing or compressing it
+     * The temporary file stays with the caller until the store has taken it; a compressed copy made here is
+     * deleted if publishing fails
+     * @param checksums checksums of the content, for its integrity record
+     */
+    private StoredFile publish(Path tempPath, StoredFile storedFile, BlobIntegrity.Checksums checksums)
+            throws IOException {
+        Timer.Sample sample = Timer.start();
+        try {
+            Path content = tempPath;
+            try {
+                if (!blobStore.contains(storedFile.digest())) {
+                    blobIntegrity.record(storedFile.digest(), checksums);
+                    // Streamed uploads were compressed while they were written, if at all; chunked ones and
+                    // imports now
+                    Optional<Path> compressed = BlobStore.isCompressed(tempPath) ? Optional.empty()
+                            : blobCompressor.compress(tempPath, storedFile.contentType());
+                    if (compressed.isPresent()) {
+                        content = compressed.get();
+                    }
+                }
+                if (!blobStore.publish(content, storedFile.digest(), BlobStore.isCompressed(content))) {
+                    log.info("Deduplicated upload {} against existing blob {}", storedFile.fileId(),
+                            storedFile.digest());
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!content.equals(tempPath)) {
+                    Files.deleteIfExists(content);
+                }
+                throw e;
+            }
+            // The store took the compressed copy, the original is no longer needed
+            Files.deleteIfExists(tempPath);
+            try {
+                return writeDescriptor(storedFile);
+            } catch (IOException e) {
+                blobStore.release(storedFile.digest());
+                throw e;
+            }
+        } finally {
+            sample.stop(publishTimer);
+        }
+    }
+
+    private StoredFile writeDescriptor(StoredFile storedFile) throws IOException {
+        boolean newShareKey = storedFile.shareKey() == null;
+        if (newShareKey) {
+            storedFile = storedFile.withShareKey(shareKeyIndex.allocate(storedFile.fileId()));
+        }
+        try {
+            return writeDescriptor(storedFile, toMetadata(storedFile, Instant.now()));
+        } catch (IOException | RuntimeException e) {
+            if (newShareKey) {
+                shareKeyIndex.release(storedFile.shareKey(), storedFile.fileId());
+            }
+            throw e;
+        }
+    }
+
+    private StoredFile writeDescriptor(StoredFile storedFile, FileMetadata metadata) throws IOException {
+        Properties descriptor = new Properties();
+        descriptor.setProperty(KEY_FILE_NAME, metadata.fileName());
+        descriptor.setProperty(KEY_DIGEST, metadata.digest());
+        descriptor.setProperty(KEY_FILE_SIZE, Long.toString(metadata.fileSize()));
+        descriptor.setProperty(KEY_CONTENT_TYPE, metadata.contentType());
+        if (metadata.expiresAt() != null) {
+            descriptor.setProperty(KEY_EXPIRES_AT, metadata.expiresAt().toString());
+        }
+        descriptor.setProperty(KEY_SHARE_KEY, metadata.shareKey());
+
+        Path tempPath = tmpPath.resolve(storedFile.fileId() + DESCRIPTOR_SUFFIX);
+        try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            descriptor.store(writer, null);
+        }
+        Path descriptorPath = descriptorPath(storedFile.fileId());
+        Files.createDirectories(descriptorPath.getParent());
+        Files.move(tempPath, descriptorPath, StandardCopyOption.ATOMIC_MOVE);
+        metadataIndex.record(metadata);
+        return storedFile;
+    }
+
+    /**
+     * Index entry of a stored file, with the same defaults the descriptor applies
+     */
+    private static FileMetadata toMetadata(StoredFile storedFile, Instant createdAt) {
+        return new FileMetadata(
+                storedFile.fileId(),
+                storedFile.fileName() != null ? storedFile.fileName() : storedFile.fileId(),
+                storedFile.fileSize(),
+                storedFile.contentType() != null ? storedFile.contentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE,
+                storedFile.digest(),
+                createdAt,
+                storedFile.expiresAt(),
+                storedFile.shareKey());
+    }
+
+    private StoredFile readDescriptor(Path descriptorPath) throws IOException {
+        Properties descriptor = new Properties();
+        try (Reader reader = Files.newBufferedReader(descriptorPath, StandardCharsets.UTF_8)) {
+            descriptor.load(reader);
+        }
+        String fileName = descriptorPath.getFileName().toString();
+        return new StoredFile(
+                fileName.substring(0, fileName.length() - DESCRIPTOR_SUFFIX.length()),
+                descriptor.getProperty(KEY_FILE_NAME),
+                descriptor.getProperty(KEY_DIGEST),
+                Long.parseLong(descriptor.getProperty(KEY_FILE_SIZE)),
+                descriptor.getProperty(KEY_CONTENT_TYPE),
+                descriptor.getProperty(KEY_EXPIRES_AT) != null
+                        ? Instant.parse(descriptor.getProperty(KEY_EXPIRES_AT)) : null,
+                descriptor.getProperty(KEY_SHARE_KEY));
+    }
+
+    private boolean hasSize(Blob blob, long size) throws IOException {
+        if (!blob.compressed()) {
+            return blob.size() == size;
+        }
+        if (blob.isLocal()) {
+            return BlobCompressor.hasUncompressedSize(blob.localPath(), size);
+        }
+        if (blob.size() < BlobCompressor.GZIP_TRAILER_SIZE) {
+            return false;
+        }
+        try (InputStream trailer = blobStore.open(blob, blob.size() - BlobCompressor.GZIP_TRAILER_SIZE,
+                BlobCompressor.GZIP_TRAILER_SIZE)) {
+            return BlobCompressor.hasUncompressedSize(trailer.readNBytes(BlobCompressor.GZIP_TRAILER_SIZE), size);
+        }
+    }
+
+    private Path descriptorPath(String fileId) {
+        return pathResolver.resolve(refsPath, fileId + DESCRIPTOR_SUFFIX);
+    }
+
+    /**
+     * Sharded descriptor path, or the pre-sharding path while it has not been migrated yet
+     */
+    private Path locateDescriptor(String fileId) {
+        Path sharded = descriptorPath(fileId);
+        if (!Files.exists(sharded)) {
+            Path flat = pathResolver.resolveFlat(refsPath, fileId + DESCRIPTOR_SUFFIX);
+            if (Files.exists(flat)) {
+                return flat;
+            }
+        }
+        return sharded;
+    }
+
+    private static boolean isDescriptor(Path path) {
+        return path.getFileName().toString().endsWith(DESCRIPTOR_SUFFIX) && Files.isRegularFile(path);
+    }
+
+    private Path partialPath(String fileId) {
+        return tmpPath.resolve(fileId + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * SHA-256 and integrity checksums of a complete file, read sequentially through a pooled direct buffer
+     */
+    private ContentHash hashOf(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        BlobIntegrity.Checksums checksums = blobIntegrity.newChecksums();
+        ByteBuffer buffer = bufferPool.acquire();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = 0;
+            int read;
+            while ((read = channel.read(buffer, position)) != -1) {
+                position += read;
+                checksums.update(buffer.flip());
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            checksums.close();
+            throw e;
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return new ContentHash(HexFormat.of().formatHex(digest.digest()), checksums);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private record ContentHash(String digest, BlobIntegrity.Checksums checksums) {
+    }
+}
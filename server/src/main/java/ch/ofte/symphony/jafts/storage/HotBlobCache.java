@@ -0,0 +1,129 @@
+package ch.ofte.symphony.jafts.storage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Off-heap cache of the stored bytes of small blobs that are downloaded over and over
+ * Bodies are kept in direct buffers, so a file shared widely is sent from memory without growing the heap and
+ * without a round of file system calls per download. Which blobs stay is decided by Caffeine's W-TinyLFU
+ * within a byte budget: a newcomer only displaces a blob downloaded less often. A blob is only loaded on its
+ * second request within the idle timeout; files downloaded once keep going to disk and never cost a buffer.
+ * Blobs are content-addressed, so a cached name always stands for the same bytes and entries never go stale.
+ * Native memory of evicted buffers is released when they are garbage collected; {@code -XX:MaxDirectMemorySize}
+ * must leave room for the budget.
+ */
+@Component
+public class HotBlobCache {
+
+    // Blobs seen once; a second request within the idle timeout loads the blob
+    private static final int MAX_CANDIDATES = 100_000;
+
+    private final long maxBlobSize;
+    private final BlobStore blobStore;
+    private final IoLimiter ioLimiter;
+    private final Cache<String, ByteBuffer> cache;
+    private final Cache<String, Boolean> candidates;
+
+    public HotBlobCache(
+            @Value("${app.storage.hot-cache.max-size:256MB}") DataSize maxSize,
+            @Value("${app.storage.hot-cache.max-file-size:1MB}") DataSize maxBlobSize,
+            @Value("${app.storage.hot-cache.idle-timeout:30m}") Duration idleTimeout,
+            BlobStore blobStore,
+            IoLimiter ioLimiter) {
+        this.maxBlobSize = Math.min(maxBlobSize.toBytes(), maxSize.toBytes());
+        this.blobStore = blobStore;
+        this.ioLimiter = ioLimiter;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize.toBytes())
+                .weigher((String name, ByteBuffer body) -> body.capacity())
+                .expireAfterAccess(idleTimeout)
+                .recordStats()
+                .build();
+        this.candidates = Caffeine.newBuilder()
+                .maximumSize(MAX_CANDIDATES)
+                .expireAfterWrite(idleTimeout)
+                .build();
+    }
+
+    /**
+     * Stored bytes of a blob from memory, loading them if the blob is requested again
+     * @return read-only buffer of {@link Blob#size()} bytes, positioned at 0 and owned by the caller;
+     * empty if the blob is too large or not requested often enough to be cached
+     * @throws StorageBusyException if the {@link IoLimiter} has no file handle to load the blob with
+     */
+    public Optional<ByteBuffer> get(Blob blob) throws IOException {
+        if (blob.size() <= 0 || blob.size() > maxBlobSize) {
+            return Optional.empty();
+        }
+        if (candidates.getIfPresent(blob.name()) == null) {
+            ByteBuffer cached = cache.getIfPresent(blob.name());
+            if (cached == null) {
+                candidates.put(blob.name(), Boolean.TRUE);
+                return Optional.empty();
+            }
+            return Optional.of(cached.duplicate());
+        }
+        // The file handle for loading is taken before the cache entry is locked, never while holding it; the entry
+        // is checked quietly so the request only counts once in the cache statistics
+        boolean loading = cache.policy().getIfPresentQuietly(blob.name()) == null;
+        try (IoLimiter.Permit openFile = loading ? ioLimiter.openFile() : null) {
+            return Optional.of(cache.get(blob.name(), name -> load(blob)).duplicate());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Bytes held in direct buffers by the cache
+     */
+    public long getHeldBytes() {
+        return cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    public Cache<String, ByteBuffer> getCache() {
+        return cache;
+    }
+
+    private ByteBuffer load(Blob blob) {
+        ByteBuffer body = ByteBuffer.allocateDirect(Math.toIntExact(blob.size()));
+        try {
+            if (blob.isLocal()) {
+                try (FileChannel channel = FileChannel.open(blob.localPath(), StandardOpenOption.READ)) {
+                    readFully(channel, body);
+                }
+            } else {
+                try (InputStream in = blobStore.open(blob, 0, blob.size());
+                     ReadableByteChannel channel = Channels.newChannel(in)) {
+                    readFully(channel, body);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return body.flip().asReadOnlyBuffer();
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer body) throws IOException {
+        while (body.hasRemaining()) {
+            if (channel.read(body) == -1) {
+                throw new EOFException("Blob ended " + body.remaining() + " bytes before its size");
+            }
+        }
+    }
+}
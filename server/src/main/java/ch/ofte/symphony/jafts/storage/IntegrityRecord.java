@@ -0,0 +1,62 @@
+package ch.ofte.symphony.jafts.storage;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Checksums of the content of a blob, kept beside it by {@link BlobIntegrity}
+ * Large content also gets a hash tree: one SHA-256 leaf per chunk of {@code chunkSize} bytes and a Merkle
+ * root over the leaves, so any range can be checked by hashing only the chunks it overlaps.
+ * Leaves and inner nodes are hashed with distinct prefixes (as in RFC 6962), so a leaf can never pass for a node.
+ *
+ * @param size      size of the content in bytes
+ * @param crc32c    CRC32C of the whole content
+ * @param chunkSize bytes per leaf, 0 without a tree
+ * @param leaves    concatenated 32-byte leaf hashes, empty without a tree
+ * @param root      Merkle root over the leaves, empty without a tree
+ */
+public record IntegrityRecord(long size, int crc32c, int chunkSize, byte[] leaves, byte[] root) {
+
+    static final int HASH_SIZE = 32;
+    static final byte LEAF_PREFIX = 0;
+    static final byte NODE_PREFIX = 1;
+
+    public boolean hasTree() {
+        return chunkSize > 0;
+    }
+
+    public int leafCount() {
+        return leaves.length / HASH_SIZE;
+    }
+
+    /**
+     * Whether a leaf hash computed for chunk {@code index} matches the recorded one
+     */
+    boolean matchesLeaf(int index, byte[] leaf) {
+        return Arrays.equals(leaves, index * HASH_SIZE, (index + 1) * HASH_SIZE, leaf, 0, HASH_SIZE);
+    }
+
+    /**
+     * Merkle root of concatenated leaf hashes; an odd node at the end of a level is carried up unchanged
+     */
+    static byte[] rootOf(byte[] leaves, MessageDigest sha256) {
+        if (leaves.length == 0) {
+            return new byte[0];
+        }
+        byte[] level = leaves;
+        while (level.length > HASH_SIZE) {
+            int count = level.length / HASH_SIZE;
+            byte[] next = new byte[(count + 1) / 2 * HASH_SIZE];
+            for (int i = 0; i < count / 2; i++) {
+                sha256.update(NODE_PREFIX);
+                sha256.update(level, 2 * i * HASH_SIZE, 2 * HASH_SIZE);
+                System.arraycopy(sha256.digest(), 0, next, i * HASH_SIZE, HASH_SIZE);
+            }
+            if (count % 2 == 1) {
+                System.arraycopy(level, (count - 1) * HASH_SIZE, next, next.length - HASH_SIZE, HASH_SIZE);
+            }
+            level = next;
+        }
+        return level;
+    }
+}
@@ -0,0 +1,260 @@
+package ch.ofte.symphony.jafts.storage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Background re-verification of stored blobs against their integrity records
+ * Every {@code interval}, each blob with a record is read in full - through the storage backend, inflated if
+ * stored compressed - and its CRC32C and hash tree are recomputed; with {@code verify-sha256} its SHA-256
+ * is checked against the digest it is named by as well. Reads are throttled to {@code rate} bytes per second
+ * so scrubbing never competes with transfers for disk bandwidth.
+ * Corrupt blobs are logged and counted ({@code jafts.storage.scrub.corrupt}); records whose blob has been
+ * reclaimed are deleted.
+ */
+@Slf4j
+@Component
+public class IntegrityScrubber {
+
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private final BlobStore blobStore;
+    private final BlobIntegrity blobIntegrity;
+    private final ShardedPathResolver pathResolver;
+    private final boolean enabled;
+    private final Duration interval;
+    private final long bytesPerSecond;
+    private final boolean verifySha256;
+    private final Duration orphanGracePeriod;
+    private final Counter verified;
+    private final Counter corrupt;
+    private final Counter bytesRead;
+
+    public IntegrityScrubber(
+            BlobStore blobStore,
+            BlobIntegrity blobIntegrity,
+            ShardedPathResolver pathResolver,
+            @Value("${app.storage.scrub.enabled:true}") boolean enabled,
+            @Value("${app.storage.scrub.interval:7d}") Duration interval,
+            @Value("${app.storage.scrub.rate:20MB}") DataSize rate,
+            @Value("${app.storage.scrub.verify-sha256:false}") boolean verifySha256,
+            @Value("${app.storage.gc-grace-period:10m}") Duration orphanGracePeriod,
+            MeterRegistry meterRegistry) {
+        this.blobStore = blobStore;
+        this.blobIntegrity = blobIntegrity;
+        this.pathResolver = pathResolver;
+        this.enabled = enabled && blobIntegrity.isEnabled();
+        this.interval = interval;
+        this.bytesPerSecond = Math.max(1, rate.toBytes());
+        this.verifySha256 = verifySha256;
+        this.orphanGracePeriod = orphanGracePeriod;
+        this.verified = Counter.builder("jafts.storage.scrub.verified")
+                .description("Blobs that passed their integrity check")
+                .register(meterRegistry);
+        this.corrupt = Counter.builder("jafts.storage.scrub.corrupt")
+                .description("Blobs that failed their integrity check")
+                .register(meterRegistry);
+        this.bytesRead = Counter.builder("jafts.storage.scrub.read")
+                .description("Stored bytes read by the scrubber")
+                .baseUnit(BaseUnits.BYTES)
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startScrubbing() {
+        if (enabled) {
+            Thread.ofVirtual().name("integrity-scrubber").start(this::scrubLoop);
+        }
+    }
+
+    private void scrubLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // The first pass waits as well: a restart must not re-read the whole store
+                Thread.sleep(interval);
+                scrub();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run one full pass over all integrity records
+     */
+    public void scrub() throws InterruptedException {
+        Path integrityPath = blobIntegrity.getIntegrityPath();
+        if (!Files.isDirectory(integrityPath)) {
+            return;
+        }
+        long started = System.nanoTime();
+        int checked = 0;
+        int failed = 0;
+        int removed = 0;
+        try (Stream<Path> records = Files.walk(integrityPath, pathResolver.getMaxWalkDepth())) {
+            for (Path recordPath : (Iterable<Path>) records.filter(Files::isRegularFile)::iterator) {
+                String digest = BlobIntegrity.digestOf(recordPath);
+                if (digest == null) {
+                    continue;
+                }
+                Optional<Blob> blob = blobStore.locate(digest);
+                if (blob.isEmpty()) {
+                    // Records are written just before their blob is published: keep young ones
+                    if (isOlderThan(recordPath, Instant.now().minus(orphanGracePeriod))) {
+                        blobIntegrity.delete(digest);
+                        removed++;
+                    }
+                    continue;
+                }
+                Optional<IntegrityRecord> record = blobIntegrity.find(digest);
+                if (record.isPresent()) {
+                    checked++;
+                    if (!verify(digest, blob.get(), record.get())) {
+                        failed++;
+                    }
+                }
+            }
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException("Integrity scrub interrupted");
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Integrity scrub failed; it is retried in {}", interval, e);
+            return;
+        }
+        log.info("Integrity scrub checked {} blob(s) in {} s: {} corrupt, {} stale record(s) removed", checked,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started), failed, removed);
+    }
+
+    /**
+     * Read a blob in full and compare it with its record
+     * @return false if the blob is corrupt or unreadable
+     */
+    private boolean verify(String digest, Blob blob, IntegrityRecord expected) throws InterruptedIOException {
+        MessageDigest sha256 = verifySha256 ? BlobIntegrity.newSha256() : null;
+        IntegrityRecord actual;
+        try (InputStream in = content(blob, sha256)) {
+            actual = blobIntegrity.compute(in, expected.chunkSize());
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (NoSuchFileException e) {
+            // Reclaimed while being read
+            return true;
+        } catch (IOException e) {
+            // Includes a damaged gzip stream
+            log.error("Blob {} is unreadable", blob.name(), e);
+            corrupt.increment();
+            return false;
+        }
+
+        boolean intact = actual.size() == expected.size()
+                && actual.crc32c() == expected.crc32c()
+                && Arrays.equals(actual.leaves(), expected.leaves())
+                && (sha256 == null || HexFormat.of().formatHex(sha256.digest()).equals(digest));
+        if (intact) {
+            verified.increment();
+        } else {
+            log.error("Blob {} does not match its integrity record: {} of {} bytes read, {} of {} chunk(s) differ",
+                    blob.name(), actual.size(), expected.size(), differingLeaves(expected, actual),
+                    expected.leafCount());
+            corrupt.increment();
+        }
+        return intact;
+    }
+
+    /**
+     * Uncompressed content of a blob, read at the scrub rate
+     */
+    private InputStream content(Blob blob, MessageDigest sha256) throws IOException {
+        InputStream in = new ThrottledInputStream(blobStore.open(blob, 0, blob.size()));
+        if (blob.compressed()) {
+            in = new GZIPInputStream(in, INFLATE_BUFFER_SIZE);
+        }
+        return sha256 != null ? new DigestInputStream(in, sha256) : in;
+    }
+
+    private static int differingLeaves(IntegrityRecord expected, IntegrityRecord actual) {
+        int differing = 0;
+        for (int i = 0; i < expected.leafCount(); i++) {
+            if (i >= actual.leafCount() || !Arrays.equals(expected.leaves(), i * IntegrityRecord.HASH_SIZE,
+                    (i + 1) * IntegrityRecord.HASH_SIZE, actual.leaves(), i * IntegrityRecord.HASH_SIZE,
+                    (i + 1) * IntegrityRecord.HASH_SIZE)) {
+                differing++;
+            }
+        }
+        return differing;
+    }
+
+    private static boolean isOlderThan(Path path, Instant cutoff) {
+        try {
+            return Files.getLastModifiedTime(path).toInstant().isBefore(cutoff);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sleeps whenever more bytes have been read than the rate allows for the time elapsed
+     */
+    private final class ThrottledInputStream extends FilterInputStream {
+
+        private final long startedAt = System.nanoTime();
+        private long total;
+
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                total += read;
+                bytesRead.increment(read);
+                // Split to keep total * 10^9 from overflowing on multi-gigabyte blobs
+                long dueNanos = total / bytesPerSecond * 1_000_000_000L
+                        + total % bytesPerSecond * 1_000_000_000L / bytesPerSecond
+                        - (System.nanoTime() - startedAt);
+                if (dueNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(dueNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Integrity scrub interrupted");
+                    }
+                }
+            }
+            return read;
+        }
+    }
+}
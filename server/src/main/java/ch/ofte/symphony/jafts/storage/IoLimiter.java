@@ -0,0 +1,117 @@
+package ch.ofte.symphony.jafts.storage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission of transfers to the disk, independent of how many connections the server holds
+ * Requests run on virtual threads, so nothing but these limits stops tens of thousands of them from hitting
+ * the disk at once.
+ * <ul>
+ *     <li>disk writers: threads writing upload data, held for one buffer write at a time and never while
+ *     waiting for the client, so slow uploads do not take a writer slot</li>
+ *     <li>open files: files (or remote blobs) held open by an upload or download in progress</li>
+ * </ul>
+ * A permit not available within the acquire timeout fails the request with a {@link StorageBusyException}.
+ */
+@Component
+public class IoLimiter {
+
+    private static final String DISK_WRITERS = "disk writers";
+    private static final String OPEN_FILES = "open files";
+
+    private final int maxDiskWriters;
+    private final int maxOpenFiles;
+    private final long acquireTimeoutNanos;
+    private final Semaphore diskWriters;
+    private final Semaphore openFiles;
+    private final Counter diskWritersRejected;
+    private final Counter openFilesRejected;
+
+    public IoLimiter(
+            @Value("${app.io.max-disk-writers:32}") int maxDiskWriters,
+            @Value("${app.io.max-open-files:10000}") int maxOpenFiles,
+            @Value("${app.io.acquire-timeout:30s}") Duration acquireTimeout,
+            MeterRegistry meterRegistry) {
+        this.maxDiskWriters = Math.max(1, maxDiskWriters);
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+        this.acquireTimeoutNanos = acquireTimeout.toNanos();
+        this.diskWriters = new Semaphore(this.maxDiskWriters);
+        this.openFiles = new Semaphore(this.maxOpenFiles);
+        Gauge.builder("jafts.io.disk-writers", diskWriters,
+                        permits -> this.maxDiskWriters - permits.availablePermits())
+                .description("Threads writing upload data to disk")
+                .register(meterRegistry);
+        Gauge.builder("jafts.io.open-files", openFiles,
+                        permits -> this.maxOpenFiles - permits.availablePermits())
+                .description("Files held open by transfers in progress")
+                .register(meterRegistry);
+        this.diskWritersRejected = rejected(meterRegistry, DISK_WRITERS);
+        this.openFilesRejected = rejected(meterRegistry, OPEN_FILES);
+    }
+
+    /**
+     * Permit for one write of upload data to disk; close it as soon as the write is done
+     * @throws StorageBusyException if no permit is available within the acquire timeout
+     */
+    public Permit diskWrite() throws IOException {
+        return acquire(diskWriters, diskWritersRejected, DISK_WRITERS);
+    }
+
+    /**
+     * Permit for a file a transfer holds open; close it with the file
+     * @throws StorageBusyException if no permit is available within the acquire timeout
+     */
+    public Permit openFile() throws IOException {
+        return acquire(openFiles, openFilesRejected, OPEN_FILES);
+    }
+
+    private Permit acquire(Semaphore semaphore, Counter rejected, String resource) throws IOException {
+        try {
+            if (!semaphore.tryAcquire(acquireTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                rejected.increment();
+                throw new StorageBusyException(resource);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + resource);
+        }
+        return new Permit(semaphore);
+    }
+
+    private static Counter rejected(MeterRegistry meterRegistry, String resource) {
+        return Counter.builder("jafts.io.rejected")
+                .description("Requests failed for lack of a disk writer or file handle")
+                .tag("resource", resource.replace(' ', '-'))
+                .register(meterRegistry);
+    }
+
+    /**
+     * One acquired permit; closing it more than once releases it once
+     */
+    public static final class Permit implements AutoCloseable {
+
+        private Semaphore semaphore;
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void close() {
+            if (semaphore != null) {
+                semaphore.release();
+                semaphore = null;
+            }
+        }
+    }
+}
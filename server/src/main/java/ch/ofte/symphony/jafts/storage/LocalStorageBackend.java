@@ -0,0 +1,156 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+
+/**
+ * Blobs as files below {@code <app.upload.dir>/blobs}, in the sharded layout
+ * Blobs not migrated yet are still found at their flat pre-sharding location.
+ */
+@Component
+@ConditionalOnProperty(name = "app.storage.backend", havingValue = "local", matchIfMissing = true)
+public class LocalStorageBackend implements StorageBackend {
+
+    static final String BLOBS_DIR = "blobs";
+
+    private final Path blobsPath;
+    private final ShardedPathResolver pathResolver;
+
+    public LocalStorageBackend(
+            @Value("${app.upload.dir:uploads/p2p}") String uploadDir,
+            ShardedPathResolver pathResolver) {
+        this.blobsPath = Paths.get(uploadDir).resolve(BLOBS_DIR);
+        this.pathResolver = pathResolver;
+    }
+
+    @Override
+    public void put(String name, InputStream in, long length) throws IOException {
+        Path target = pathResolver.resolve(blobsPath, name);
+        Files.createDirectories(target.getParent());
+        Path partial = target.resolveSibling(name + ".part");
+        try (OutputStream out = Files.newOutputStream(partial)) {
+            long copied = in.transferTo(out);
+            if (copied != length) {
+                throw new IOException("Expected " + length + " bytes for " + name + ", got " + copied);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Move the file into place; it must be on the same file system as the upload directory
+     */
+    @Override
+    public void put(String name, Path file) throws IOException {
+        Path target = pathResolver.resolve(blobsPath, name);
+        Files.createDirectories(target.getParent());
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public InputStream get(String name, long offset, long length) throws IOException {
+        Path path = localPath(name).orElseThrow(() -> new NoSuchFileException(name));
+        return new RangeInputStream(FileChannel.open(path, StandardOpenOption.READ), offset, length);
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        Optional<Path> path = localPath(name);
+        return path.isPresent() && Files.deleteIfExists(path.get());
+    }
+
+    @Override
+    public Optional<Stat> stat(String name) throws IOException {
+        Optional<Path> path = localPath(name);
+        if (path.isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path.get(), BasicFileAttributes.class);
+            return Optional.of(new Stat(attributes.size(), attributes.lastModifiedTime().toInstant()));
+        } catch (NoSuchFileException e) {
+            // Deleted or moved by a concurrent release or migration
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<Path> localPath(String name) {
+        Path sharded = pathResolver.resolve(blobsPath, name);
+        if (Files.exists(sharded)) {
+            return Optional.of(sharded);
+        }
+        Path flat = pathResolver.resolveFlat(blobsPath, name);
+        return Files.exists(flat) ? Optional.of(flat) : Optional.empty();
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    public Path getBlobsPath() {
+        return blobsPath;
+    }
+
+    /**
+     * Positional reads of one range of a file
+     */
+    private static final class RangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        RangeInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining)), position);
+            if (read > 0) {
+                position += read;
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Expiry of new uploads: the TTL requested by the client, capped at a server-side maximum
+ * Uploads without a TTL are kept until deleted, unless a default TTL is configured
+ */
+@Component
+public class RetentionPolicy {
+
+    private final Duration defaultTtl;
+    private final Duration maxTtl;
+
+    /**
+     * @param defaultTtl TTL of uploads that do not request one, or null to keep them until deleted
+     */
+    public RetentionPolicy(
+            @Value("${app.upload.default-ttl:}") Duration defaultTtl,
+            @Value("${app.upload.max-ttl:30d}") Duration maxTtl) {
+        if (!maxTtl.isPositive()) {
+            throw new IllegalArgumentException("Maximum TTL must be positive");
+        }
+        this.maxTtl = maxTtl;
+        this.defaultTtl = defaultTtl == null || !defaultTtl.isPositive() ? null
+                : defaultTtl.compareTo(maxTtl) > 0 ? maxTtl : defaultTtl;
+    }
+
+    /**
+     * Expiry of a file stored now
+     * @param requestedTtl TTL sent by the client; null or not positive for the default
+     * @return the expiry, or null if the file is kept until deleted
+     */
+    public Instant expiresAt(Duration requestedTtl, Instant now) {
+        Duration ttl = requestedTtl == null || !requestedTtl.isPositive() ? defaultTtl : requestedTtl;
+        if (ttl == null) {
+            return null;
+        }
+        return now.plus(ttl.compareTo(maxTtl) > 0 ? maxTtl : ttl);
+    }
+
+    /**
+     * @return the default TTL, or null if uploads without one are kept until deleted
+     */
+    public Duration getDefaultTtl() {
+        return defaultTtl;
+    }
+
+    public Duration getMaxTtl() {
+        return maxTtl;
+    }
+}
@@ -0,0 +1,64 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+/**
+ * Maps a storage name to a hierarchical sharded path, e.g. {@code ab/cd/abcdef...} for depth 2 and width 2
+ * Keeps every directory small, so creates, lookups and scans stay fast however many files are stored.
+ * Names are hex digests or UUIDs, so their leading characters spread evenly over the shards.
+ */
+@Component
+public class ShardedPathResolver {
+
+    private final int depth;
+    private final int width;
+
+    public ShardedPathResolver(
+            @Value("${app.storage.shard-depth:2}") int depth,
+            @Value("${app.storage.shard-width:2}") int width) {
+        if (depth < 0 || width < 1) {
+            throw new IllegalArgumentException("Shard depth must be >= 0 and width >= 1");
+        }
+        this.depth = depth;
+        this.width = width;
+    }
+
+    /**
+     * Sharded location of a name below a root directory
+     * Names too short to shard stay directly below the root
+     */
+    public Path resolve(Path root, String name) {
+        if (name.length() < depth * width) {
+            return root.resolve(name);
+        }
+        Path path = root;
+        for (int level = 0; level < depth; level++) {
+            path = path.resolve(name.substring(level * width, (level + 1) * width));
+        }
+        return path.resolve(name);
+    }
+
+    /**
+     * Pre-sharding location of a name, used as a fallback while a migration is still running
+     */
+    public Path resolveFlat(Path root, String name) {
+        return root.resolve(name);
+    }
+
+    /**
+     * Whether a file already sits at its sharded location below the root
+     */
+    public boolean isSharded(Path root, Path file) {
+        return file.equals(resolve(root, file.getFileName().toString()));
+    }
+
+    /**
+     * Directory levels to walk below a root to reach every stored file
+     */
+    public int getMaxWalkDepth() {
+        return depth + 1;
+    }
+}
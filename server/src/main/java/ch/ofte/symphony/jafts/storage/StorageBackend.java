@@ -0,0 +1,81 @@
+package ch.ofte.symphony.jafts.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Where blob content is kept: the local upload directory ({@link LocalStorageBackend}, the default)
+ * or an S3-compatible object store, chosen with {@code app.storage.backend}
+ * Backends only store named content; reference counting, deduplication and compression are done by
+ * {@link BlobStore} on top of them. Names are blob names: a hex digest, optionally with a {@code .gz} suffix.
+ */
+public interface StorageBackend {
+
+    /**
+     * Store content read from a stream under a name, replacing content stored under it before
+     * @param in source stream, read for exactly {@code length} bytes (not closed)
+     * @param length number of bytes to store
+     */
+    void put(String name, InputStream in, long length) throws IOException;
+
+    /**
+     * Store a fully written local file under a name; the file is moved or deleted by this call
+     */
+    default void put(String name, Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            put(name, in, Files.size(file));
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * Read part of the content stored under a name
+     * @param offset first byte to read
+     * @param length number of bytes to read
+     * @return stream of the requested bytes, to be closed by the caller
+     */
+    InputStream get(String name, long offset, long length) throws IOException;
+
+    /**
+     * @return false if nothing was stored under the name
+     */
+    boolean delete(String name) throws IOException;
+
+    /**
+     * Size and age of the content stored under a name, or empty if there is none
+     */
+    Optional<Stat> stat(String name) throws IOException;
+
+    /**
+     * Local file holding the content, for sendfile and zero-copy transfers; empty for remote backends
+     */
+    default Optional<Path> localPath(String name) {
+        return Optional.empty();
+    }
+
+    /**
+     * Whether content lives on this node's file system, so moving a file into place is cheap
+     */
+    default boolean isLocal() {
+        return false;
+    }
+
+    /**
+     * Whether other nodes may store and reference the same content
+     * Reference counts are kept per node, so blobs in a shared store are never deleted on release.
+     */
+    default boolean isShared() {
+        return false;
+    }
+
+    /**
+     * @param size         size of the stored content in bytes
+     * @param lastModified when the content was stored
+     */
+    record Stat(long size, Instant lastModified) {
+    }
+}
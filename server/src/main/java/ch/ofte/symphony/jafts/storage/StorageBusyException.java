@@ -0,0 +1,16 @@
+package ch.ofte.symphony.jafts.storage;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a disk write or file handle cannot be had within {@code app.io.acquire-timeout}, or when
+ * {@code app.upload.max-sessions} chunked uploads are already in progress
+ * The request can be retried later. It may be turned away in the middle of its body; what it wrote is not kept:
+ * a streamed upload's temporary file is deleted, and a chunk cut short is not marked received.
+ */
+public class StorageBusyException extends IOException {
+
+    public StorageBusyException(String resource) {
+        super("Too many concurrent " + resource);
+    }
+}
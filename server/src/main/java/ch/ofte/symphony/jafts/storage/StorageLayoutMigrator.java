@@ -0,0 +1,122 @@
+package ch.ofte.symphony.jafts.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+/**
+ * Online migration of an existing upload directory into the sharded, content-addressed layout
+ * <ul>
+ *     <li>files of the original flat layout ({@code <fileId><ext>} directly in {@code app.upload.dir})
+ *     are imported as blobs and keep their file ID</li>
+ *     <li>blobs and descriptors outside their sharded location (flat, or from another shard setting)
+ *     are moved into place</li>
+ * </ul>
+ * Runs in the background after startup while the service keeps serving; lookups fall back to the old
+ * location until an entry has been moved. Work is done in batches with a pause in between to limit
+ * the extra I/O load.
+ */
+@Slf4j
+@Component
+public class StorageLayoutMigrator {
+
+    private final FileStorageService fileStorageService;
+    private final BlobStore blobStore;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration batchPause;
+
+    private int inBatch;
+
+    public StorageLayoutMigrator(
+            FileStorageService fileStorageService,
+            BlobStore blobStore,
+            @Value("${app.storage.migration.enabled:true}") boolean enabled,
+            @Value("${app.storage.migration.batch-size:500}") int batchSize,
+            @Value("${app.storage.migration.batch-pause:200ms}") Duration batchPause) {
+        this.fileStorageService = fileStorageService;
+        this.blobStore = blobStore;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchPause = batchPause;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateInBackground() {
+        if (enabled) {
+            Thread.ofVirtual().name("storage-layout-migration").start(this::migrate);
+        }
+    }
+
+    /**
+     * Run one full migration pass
+     */
+    public synchronized void migrate() {
+        inBatch = 0;
+        try {
+            int imported = importLegacyFiles();
+            int blobs = relocate(blobStore.getBlobsPath(), blobStore::relocate);
+            int descriptors = relocate(fileStorageService.getRefsPath(), fileStorageService::relocateDescriptor);
+            if (imported + blobs + descriptors > 0) {
+                log.info("Storage layout migration done: {} legacy file(s) imported, {} blob(s) and {} descriptor(s) moved",
+                        imported, blobs, descriptors);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Storage layout migration failed; it resumes on next startup", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int importLegacyFiles() throws IOException, InterruptedException {
+        int imported = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(fileStorageService.getUploadPath(), Files::isRegularFile)) {
+            for (Path entry : entries) {
+                if (fileStorageService.importLegacyFile(entry)) {
+                    imported++;
+                    throttle();
+                }
+            }
+        }
+        return imported;
+    }
+
+    private int relocate(Path root, Relocation relocation) throws IOException, InterruptedException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        int moved = 0;
+        // Walk without a depth limit: entries may come from a deeper shard setting
+        try (Stream<Path> entries = Files.walk(root)) {
+            for (Path entry : (Iterable<Path>) entries.filter(Files::isRegularFile)::iterator) {
+                if (relocation.relocate(entry)) {
+                    moved++;
+                    throttle();
+                }
+            }
+        }
+        return moved;
+    }
+
+    private void throttle() throws InterruptedException {
+        if (++inBatch >= batchSize) {
+            inBatch = 0;
+            Thread.sleep(batchPause);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Relocation {
+        boolean relocate(Path entry) throws IOException;
+    }
+}
@@ -0,0 +1,32 @@
+package ch.ofte.symphony.jafts.storage;
+
+import java.time.Instant;
+
+/**
+ * A stored file: a reference from a public file ID to a content-addressed blob
+ *
+ * @param fileId      public identifier returned to the client
+ * @param fileName    original file name as sent by the client
+ * @param digest      lowercase hex SHA-256 of the content, which is also the blob name
+ * @param fileSize    size of the content in bytes
+ * @param contentType content type as sent by the client
+ * @param expiresAt   when the file is reclaimed, or null if it never expires
+ * @param shareKey    short key the file can also be downloaded by, or null until one is assigned
+ */
+public record StoredFile(
+        String fileId,
+        String fileName,
+        String digest,
+        long fileSize,
+        String contentType,
+        Instant expiresAt,
+        String shareKey) {
+
+    StoredFile withShareKey(String shareKey) {
+        return new StoredFile(fileId, fileName, digest, fileSize, contentType, expiresAt, shareKey);
+    }
+
+    public boolean isExpired(Instant now) {
+        return expiresAt != null && !expiresAt.isAfter(now);
+    }
+}
@@ -0,0 +1,20 @@
+package ch.ofte.symphony.jafts.storage;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an upload stream exceeds the configured maximum size
+ */
+public class UploadTooLargeException extends IOException {
+
+    private final long maxSize;
+
+    public UploadTooLargeException(long maxSize) {
+        super("Upload exceeds the maximum size of " + maxSize + " bytes");
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
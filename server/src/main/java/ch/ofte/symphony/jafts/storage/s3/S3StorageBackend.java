@@ -0,0 +1,328 @@
+package ch.ofte.symphony.jafts.storage.s3;
+
+import ch.ofte.symphony.jafts.storage.StorageBackend;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Blobs as objects in an S3-compatible bucket (AWS S3, MinIO, Ceph RGW ...), addressed path-style
+ * <p>
+ * Content up to {@code part-size} is sent with a single PUT. Larger content is a multipart upload whose parts
+ * are read one after the other and sent in parallel, each from a virtual thread. A semaphore shared by all
+ * uploads bounds the parts held in memory, so the buffers of this backend never exceed
+ * {@code max-parts-in-flight * part-size}; a reader waits for a free permit before buffering its next part,
+ * and the body of a single PUT takes a permit like a part.
+ * If a part fails, the parts still running are awaited and the upload is aborted, so the store keeps no
+ * orphaned parts.
+ * <p>
+ * S3 requires parts of at least 5 MB, except the last one.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.storage.backend", havingValue = "s3")
+public class S3StorageBackend implements StorageBackend {
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final HttpClient httpClient;
+    private final AwsV4Signer signer;
+    private final String endpoint;
+    private final String bucket;
+    private final String prefix;
+    private final int partSize;
+    private final Semaphore partsInFlight;
+    private final boolean shared;
+    private final ExecutorService partExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public S3StorageBackend(
+            @Value("${app.storage.s3.endpoint}") String endpoint,
+            @Value("${app.storage.s3.region:us-east-1}") String region,
+            @Value("${app.storage.s3.bucket}") String bucket,
+            @Value("${app.storage.s3.access-key}") String accessKey,
+            @Value("${app.storage.s3.secret-key}") String secretKey,
+            @Value("${app.storage.s3.prefix:blobs/}") String prefix,
+            @Value("${app.storage.s3.part-size:16MB}") DataSize partSize,
+            @Value("${app.storage.s3.max-parts-in-flight:4}") int maxPartsInFlight,
+            @Value("${app.storage.s3.shared:true}") boolean shared) {
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        this.signer = new AwsV4Signer(accessKey, secretKey, region);
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.partSize = Math.toIntExact(partSize.toBytes());
+        this.partsInFlight = new Semaphore(maxPartsInFlight);
+        this.shared = shared;
+        log.info("Storing blobs in bucket {} at {} ({} parts of {} in flight)", bucket, this.endpoint,
+                maxPartsInFlight, partSize);
+    }
+
+    @Override
+    public void put(String name, InputStream in, long length) throws IOException {
+        if (length <= partSize) {
+            acquirePart();
+            try {
+                byte[] content = readPart(in, (int) length);
+                expect(send("PUT", name, new TreeMap<>(), HttpRequest.BodyPublishers.ofByteArray(content),
+                        HttpResponse.BodyHandlers.ofString()), name);
+            } finally {
+                partsInFlight.release();
+            }
+            return;
+        }
+        putMultipart(name, in, length);
+    }
+
+    private void putMultipart(String name, InputStream in, long length) throws IOException {
+        String uploadId = initiate(name);
+        List<CompletableFuture<String>> parts = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        try {
+            long remaining = length;
+            int partNumber = 1;
+            // Stop reading once a part has failed; the failure is thrown by awaiting the parts
+            while (remaining > 0 && !failed.get()) {
+                int size = (int) Math.min(partSize, remaining);
+                acquirePart();
+                byte[] content;
+                try {
+                    content = readPart(in, size);
+                } catch (IOException e) {
+                    partsInFlight.release();
+                    throw e;
+                }
+                int number = partNumber++;
+                parts.add(CompletableFuture
+                        .supplyAsync(() -> uploadPart(name, uploadId, number, content), partExecutor)
+                        .whenComplete((etag, e) -> {
+                            partsInFlight.release();
+                            if (e != null) {
+                                failed.set(true);
+                            }
+                        }));
+                remaining -= size;
+            }
+            complete(name, uploadId, await(parts));
+        } catch (IOException | RuntimeException e) {
+            // Parts still running would be stored after the abort
+            CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).exceptionally(ignored -> null).join();
+            try {
+                abort(name, uploadId);
+            } catch (IOException abortFailure) {
+                e.addSuppressed(abortFailure);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream get(String name, long offset, long length) throws IOException {
+        if (length <= 0) {
+            return InputStream.nullInputStream();
+        }
+        HttpResponse<InputStream> response = send("GET", name, new TreeMap<>(), HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.ofInputStream(),
+                "Range", "bytes=" + offset + "-" + (offset + length - 1));
+        if (response.statusCode() / 100 != 2) {
+            try (InputStream body = response.body()) {
+                String error = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                if (response.statusCode() == 404) {
+                    throw new NoSuchFileException(name);
+                }
+                throw new IOException("GET " + name + " failed with " + response.statusCode() + ": " + error);
+            }
+        }
+        return response.body();
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        // S3 answers 204 whether or not the object existed
+        if (stat(name).isEmpty()) {
+            return false;
+        }
+        expect(send("DELETE", name, new TreeMap<>(), HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.ofString()), name);
+        return true;
+    }
+
+    @Override
+    public Optional<Stat> stat(String name) throws IOException {
+        HttpResponse<Void> response = send("HEAD", name, new TreeMap<>(), HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return Optional.empty();
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("HEAD " + name + " failed with " + response.statusCode());
+        }
+        long size = response.headers().firstValueAsLong("Content-Length").orElseThrow(
+                () -> new IOException("HEAD " + name + " returned no Content-Length"));
+        Instant lastModified = response.headers().firstValue("Last-Modified")
+                .map(value -> ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant())
+                .orElse(Instant.EPOCH);
+        return Optional.of(new Stat(size, lastModified));
+    }
+
+    @Override
+    public boolean isShared() {
+        return shared;
+    }
+
+    @PreDestroy
+    public void close() {
+        partExecutor.close();
+        httpClient.close();
+    }
+
+    private String initiate(String name) throws IOException {
+        SortedMap<String, String> query = new TreeMap<>();
+        query.put("uploads", "");
+        String body = expect(send("POST", name, query, HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.ofString()), name);
+        Matcher matcher = UPLOAD_ID.matcher(body);
+        if (!matcher.find()) {
+            throw new IOException("No upload ID in the response to initiating " + name);
+        }
+        return matcher.group(1);
+    }
+
+    private String uploadPart(String name, String uploadId, int partNumber, byte[] content) {
+        SortedMap<String, String> query = new TreeMap<>();
+        query.put("partNumber", Integer.toString(partNumber));
+        query.put("uploadId", uploadId);
+        try {
+            HttpResponse<String> response = send("PUT", name, query, HttpRequest.BodyPublishers.ofByteArray(content),
+                    HttpResponse.BodyHandlers.ofString());
+            expect(response, name);
+            return response.headers().firstValue("ETag").orElseThrow(
+                    () -> new IOException("No ETag for part " + partNumber + " of " + name));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void complete(String name, String uploadId, List<String> etags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                    .append(etags.get(i)).append("</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+        SortedMap<String, String> query = new TreeMap<>();
+        query.put("uploadId", uploadId);
+        String body = expect(send("POST", name, query, HttpRequest.BodyPublishers.ofString(xml.toString()),
+                HttpResponse.BodyHandlers.ofString()), name);
+        // Completion can fail after the 200 status has been sent
+        if (body.contains("<Error>")) {
+            throw new IOException("Completing " + name + " failed: " + body);
+        }
+    }
+
+    private void abort(String name, String uploadId) throws IOException {
+        SortedMap<String, String> query = new TreeMap<>();
+        query.put("uploadId", uploadId);
+        expect(send("DELETE", name, query, HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.ofString()), name);
+    }
+
+    private <T> HttpResponse<T> send(String method, String name, SortedMap<String, String> query,
+                                     HttpRequest.BodyPublisher body, HttpResponse.BodyHandler<T> handler,
+                                     String... headers) throws IOException {
+        String path = "/" + AwsV4Signer.encode(bucket, true) + "/" + AwsV4Signer.encode(prefix + name, false);
+        String queryString = AwsV4Signer.canonicalQuery(query);
+        URI uri = URI.create(endpoint + path + (queryString.isEmpty() ? "" : "?" + queryString));
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .method(method, body);
+        signer.sign(method, uri, query, Instant.now()).forEach(request::header);
+        if (headers.length > 0) {
+            request.headers(headers);
+        }
+        try {
+            return httpClient.send(request.build(), handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(method + " " + name + " interrupted");
+        }
+    }
+
+    private void acquirePart() throws InterruptedIOException {
+        try {
+            partsInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part buffer");
+        }
+    }
+
+    private static byte[] readPart(InputStream in, int size) throws IOException {
+        byte[] content = in.readNBytes(size);
+        if (content.length != size) {
+            throw new EOFException("Expected " + size + " bytes, got " + content.length);
+        }
+        return content;
+    }
+
+    private static String expect(HttpResponse<String> response, String name) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(response.request().method() + " " + name + " failed with "
+                    + response.statusCode() + ": " + response.body());
+        }
+        return response.body();
+    }
+
+    /**
+     * Wait for every part in order
+     * @return ETags of the parts
+     */
+    private static List<String> await(List<CompletableFuture<String>> parts) throws IOException {
+        List<String> etags = new ArrayList<>(parts.size());
+        for (CompletableFuture<String> part : parts) {
+            try {
+                etags.add(part.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException io) {
+                    throw io.getCause();
+                }
+                throw e;
+            }
+        }
+        return etags;
+    }
+}
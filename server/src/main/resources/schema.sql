@@ -0,0 +1,40 @@
+-- File metadata index (FileMetadataIndex); runs on H2 and PostgreSQL
+CREATE TABLE IF NOT EXISTS file_metadata (
+    file_id      VARCHAR(36) NOT NULL PRIMARY KEY,
+    file_name    VARCHAR     NOT NULL,
+    file_size    BIGINT      NOT NULL,
+    content_type VARCHAR     NOT NULL,
+    digest       CHAR(64)    NOT NULL,
+    created_at   TIMESTAMP   NOT NULL,
+    expires_at   TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS idx_file_metadata_expires_at ON file_metadata (expires_at);
+
+-- Short share keys, added after the table was first released
+-- Only read in full on startup to rebuild ShareKeyIndex, which also enforces uniqueness; no index needed
+ALTER TABLE file_metadata ADD COLUMN IF NOT EXISTS share_key VARCHAR(8);
+
+-- Cluster mode (app.cluster.enabled): state shared by every node, changed only by conditional updates
+-- Upload slots per HTTP session (UploadSlotRepository); idle rows are purged
+CREATE TABLE IF NOT EXISTS upload_slots (
+    session_id VARCHAR(128) NOT NULL PRIMARY KEY,
+    in_use     INT          NOT NULL,
+    updated_at TIMESTAMP    NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_upload_slots_updated_at ON upload_slots (updated_at);
+
+-- Idempotency keys (IdempotencyKeyRepository): claimed as PROCESSING by one node, then COMPLETED or deleted
+CREATE TABLE IF NOT EXISTS idempotency_keys (
+    scoped_key    VARCHAR(512) NOT NULL PRIMARY KEY,
+    status        VARCHAR(16)  NOT NULL,
+    fingerprint   VARCHAR      NOT NULL,
+    owner_id      VARCHAR(36)  NOT NULL,
+    http_status   INT,
+    content_type  VARCHAR,
+    response_body VARCHAR,
+    expires_at    TIMESTAMP    NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_idempotency_keys_expires_at ON idempotency_keys (expires_at);
@@ -0,0 +1,297 @@
+/**
+ * P2P File Transfer - direct browser-to-browser transfer over WebRTC
+ * The server only relays signaling messages over /ws/signal/{key}; the file travels over a data channel
+ * between the two browsers and never touches the server.
+ * If the browsers cannot reach each other, the file is streamed through the server's live relay
+ * (/api/p2p/relay/{key}) instead, still without being stored.
+ */
+
+const iceServers = (globalThis.ICE_SERVERS || []).map(url => ({urls: url}));
+
+// Data channel tuning
+const DIRECT_CHUNK_SIZE = 64 * 1024;
+const DIRECT_BUFFER_HIGH = 4 * 1024 * 1024; // Stop queueing above this, resume when drained
+const DIRECT_BUFFER_LOW = 1024 * 1024;
+const SIGNALING_KEEPALIVE = 25_000;
+
+// How long the receiver waits for the sender's relay upload to arrive
+const RELAY_POLL_INTERVAL = 500;
+const RELAY_POLL_ATTEMPTS = 60;
+
+// Direct keys are handed out by the server; the prefix keeps them apart from the keys of stored files
+const DIRECT_KEY_PREFIX = 'D-';
+
+/**
+ * Whether a typed key names a sender waiting for a direct transfer rather than a stored file
+ */
+function isDirectKey(key) {
+    return key.toUpperCase().startsWith(DIRECT_KEY_PREFIX);
+}
+
+/**
+ * Canonical form of a typed direct key, read the way the server reads it (O as 0, I and L as 1)
+ */
+function canonicalDirectKey(key) {
+    const body = key.slice(DIRECT_KEY_PREFIX.length).toUpperCase().replace(/-/g, '');
+    return DIRECT_KEY_PREFIX + body.replace(/O/g, '0').replace(/[IL]/g, '1');
+}
+
+/**
+ * Open the signaling socket of a share key; sends keep-alives so idle rooms are not dropped
+ */
+function openSignaling(key, role) {
+    const protocol = location.protocol === 'https:' ? 'wss:' : 'ws:';
+    const socket = new WebSocket(`${protocol}//${location.host}/ws/signal/${encodeURIComponent(key)}?role=${role}`);
+    const keepalive = setInterval(() => {
+        if (socket.readyState === WebSocket.OPEN) socket.send('{"type":"ping"}');
+    }, SIGNALING_KEEPALIVE);
+    socket.addEventListener('close', () => clearInterval(keepalive));
+    return socket;
+}
+
+/**
+ * Peer connection that sends its ICE candidates through the signaling socket
+ */
+function createPeer(socket) {
+    const peer = new RTCPeerConnection({iceServers});
+    peer.onicecandidate = event => {
+        if (event.candidate) socket.send(JSON.stringify({type: 'candidate', candidate: event.candidate}));
+    };
+    return peer;
+}
+
+/**
+ * Apply a signaling message from the other side to the peer connection; answers offers
+ */
+async function handleSignal(peer, socket, message) {
+    if (message.type === 'description') {
+        await peer.setRemoteDescription(message.description);
+        if (message.description.type === 'offer') {
+            await peer.setLocalDescription(await peer.createAnswer());
+            socket.send(JSON.stringify({type: 'description', description: peer.localDescription}));
+        }
+    } else if (message.type === 'candidate') {
+        await peer.addIceCandidate(message.candidate);
+    }
+}
+
+/**
+ * Offer a file directly to one receiver
+ * @param file file to send
+ * @param onStatus called with ('waiting', key), ('connecting'), ('transferring', sent, total), ('relaying')
+ * @return resolves once the receiver confirmed the whole file
+ */
+function sendDirect(file, onStatus) {
+    const socket = openSignaling('new', 'offer');
+    let key = null;
+    let peer = null;
+    let finished = false;
+    let relaying = false;
+
+    return new Promise((resolve, reject) => {
+        // No direct route between the browsers: tell the receiver, then stream the file through the server
+        const startRelay = async () => {
+            if (relaying) return;
+            relaying = true;
+            peer?.close();
+            onStatus('relaying');
+            socket.send(JSON.stringify({type: 'relay'}));
+            try {
+                await relayFile(key, file);
+                finished = true;
+                socket.close();
+                resolve(key);
+            } catch (error) {
+                reject(error);
+            }
+        };
+
+        socket.onerror = () => reject(new Error('Signaling connection failed'));
+        socket.onclose = () => {
+            if (!finished) reject(new Error('Signaling connection closed'));
+        };
+
+        socket.onmessage = async event => {
+            if (relaying) return;
+            const message = JSON.parse(event.data);
+            try {
+                if (message.type === 'room') {
+                    key = message.key;
+                    onStatus('waiting', key);
+                } else if (message.type === 'peer-joined') {
+                    onStatus('connecting');
+                    peer?.close();
+                    peer = createPeer(socket);
+                    const current = peer;
+                    current.onconnectionstatechange = () => {
+                        if (current.connectionState === 'failed' && current === peer) startRelay();
+                    };
+                    const channel = peer.createDataChannel('file', {ordered: true});
+                    channel.binaryType = 'arraybuffer';
+                    channel.onopen = () => streamFile(channel, file, onStatus);
+                    channel.onmessage = ack => {
+                        if (ack.data === 'done') {
+                            finished = true;
+                            peer.close();
+                            socket.close();
+                            resolve(key);
+                        }
+                    };
+                    await peer.setLocalDescription(await peer.createOffer());
+                    socket.send(JSON.stringify({type: 'description', description: peer.localDescription}));
+                } else if (message.type === 'peer-left') {
+                    // Receiver went away; keep the key open for another attempt
+                    peer?.close();
+                    peer = null;
+                    onStatus('waiting', key);
+                } else if (peer) {
+                    await handleSignal(peer, socket, message);
+                }
+            } catch (error) {
+                reject(error);
+            }
+        };
+    });
+}
+
+/**
+ * Stream a file through the server's live relay; resolves once the receiver has taken all of it
+ */
+async function relayFile(key, file) {
+    const token = globalThis.CSRF_TOKEN || getCsrfTokenFromCookie();
+    const response = await fetch(`/api/p2p/relay/${encodeURIComponent(key)}?name=${encodeURIComponent(file.name)}`, {
+        method: 'PUT',
+        headers: {
+            [globalThis.CSRF_HEADER || 'X-XSRF-TOKEN']: token,
+            'Content-Type': file.type || 'application/octet-stream'
+        },
+        body: file
+    });
+    if (!response.ok) {
+        const data = await response.json().catch(() => ({}));
+        throw new Error(data.error || `HTTP ${response.status}`);
+    }
+}
+
+/**
+ * Send a header with the file description, then the content in chunks, pausing while the channel buffer is full
+ */
+async function streamFile(channel, file, onStatus) {
+    channel.bufferedAmountLowThreshold = DIRECT_BUFFER_LOW;
+    channel.send(JSON.stringify({name: file.name, size: file.size, type: file.type}));
+
+    for (let offset = 0; offset < file.size; offset += DIRECT_CHUNK_SIZE) {
+        if (channel.bufferedAmount > DIRECT_BUFFER_HIGH) {
+            await new Promise(resolve => channel.addEventListener('bufferedamountlow', resolve, {once: true}));
+        }
+        if (channel.readyState !== 'open') return;
+        channel.send(await file.slice(offset, offset + DIRECT_CHUNK_SIZE).arrayBuffer());
+        onStatus('transferring', Math.min(offset + DIRECT_CHUNK_SIZE, file.size), file.size);
+    }
+}
+
+/**
+ * Receive a file offered under a direct key and hand it to the browser as a download
+ * @param typedKey direct key typed in by the user
+ * @param onStatus called with ('connecting'), ('transferring', received, total), ('relaying')
+ * @return resolves true once the file was saved, false if nobody is offering under this key
+ */
+function receiveDirect(typedKey, onStatus) {
+    const key = canonicalDirectKey(typedKey);
+    const socket = openSignaling(key, 'answer');
+    let peer = null;
+    let finished = false;
+
+    return new Promise((resolve, reject) => {
+        socket.onclose = event => {
+            if (finished) return;
+            if (event.code === 4404 || event.code === 4400) {
+                resolve(false);
+            } else {
+                reject(new Error('Sender disconnected'));
+            }
+        };
+
+        socket.onmessage = async event => {
+            const message = JSON.parse(event.data);
+            try {
+                if (message.type === 'peer-joined') {
+                    onStatus('connecting');
+                    peer = createPeer(socket);
+                    peer.ondatachannel = channelEvent => receiveFile(channelEvent.channel, onStatus, () => {
+                        finished = true;
+                        socket.close();
+                        resolve(true);
+                    });
+                } else if (message.type === 'relay') {
+                    onStatus('relaying');
+                    peer?.close();
+                    finished = true;
+                    await downloadRelay(key);
+                    socket.close();
+                    resolve(true);
+                } else if (message.type === 'peer-left') {
+                    finished = true;
+                    reject(new Error('Sender disconnected'));
+                } else if (peer) {
+                    await handleSignal(peer, socket, message);
+                }
+            } catch (error) {
+                reject(error);
+            }
+        };
+    });
+}
+
+/**
+ * Wait until the sender's relay upload has reached the server, then let the browser download it natively
+ */
+async function downloadRelay(key) {
+    const url = `/api/p2p/relay/${encodeURIComponent(key)}`;
+    for (let attempt = 0; attempt < RELAY_POLL_ATTEMPTS; attempt++) {
+        const response = await fetch(url, {method: 'HEAD', cache: 'no-store'});
+        if (response.ok) {
+            const link = document.createElement('a');
+            link.href = url;
+            document.body.appendChild(link);
+            link.click();
+            link.remove();
+            return;
+        }
+        await new Promise(resolve => setTimeout(resolve, RELAY_POLL_INTERVAL));
+    }
+    throw new Error('Sender did not start the relay');
+}
+
+/**
+ * Collect the header and chunks sent by streamFile, then save the assembled file
+ */
+function receiveFile(channel, onStatus, onDone) {
+    channel.binaryType = 'arraybuffer';
+    let header = null;
+    let received = 0;
+    const chunks = [];
+
+    channel.onmessage = event => {
+        if (header === null) {
+            header = JSON.parse(event.data);
+        } else {
+            chunks.push(event.data);
+            received += event.data.byteLength;
+            onStatus('transferring', received, header.size);
+        }
+
+        if (received >= header.size) {
+            channel.send('done');
+            const blob = new Blob(chunks, {type: header.type || 'application/octet-stream'});
+            const link = document.createElement('a');
+            link.href = URL.createObjectURL(blob);
+            link.download = header.name;
+            document.body.appendChild(link);
+            link.click();
+            link.remove();
+            setTimeout(() => URL.revokeObjectURL(link.href), 60_000);
+            onDone();
+        }
+    };
+}
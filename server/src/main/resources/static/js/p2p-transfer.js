@@ -11,6 +11,18 @@ const messages = globalThis.MESSAGES || {};
 // Upload state management
 let isUploading = false;
 
+// Chunked upload tuning
+const CHUNKED_UPLOAD_THRESHOLD = 16 * 1024 * 1024;
+const PARALLEL_CHUNKS = 4;
+const CHUNK_RETRIES = 3;
+
+// Retries of whole requests that carry an Idempotency-Key (safe: the server replays the first result)
+const REQUEST_RETRIES = 3;
+
+// Upload-if-absent pre-flight tuning
+const PREFLIGHT_THRESHOLD = 1024 * 1024;
+const HASH_CHUNK_SIZE = 4 * 1024 * 1024;
+
 /**
  * Get CSRF token from cookie (alternative method)
  * Spring Security stores CSRF token in 'XSRF-TOKEN' cookie
@@ -33,7 +45,8 @@ document.getElementById('sendForm')?.addEventListener('submit', async function (
     }
 
     const fileInput = document.getElementById('fileInput');
-    const file = fileInput.files[0];
+    const files = [...fileInput.files];
+    const file = files[0];
 
     if (!file) {
         showStatus(messages.selectFile, 'danger');
@@ -51,39 +64,47 @@ document.getElementById('sendForm')?.addEventListener('submit', async function (
     const token = csrfToken || getCsrfTokenFromCookie();
     console.log('Using CSRF token from Spring Security');
 
-    // Prepare form data
-    const formData = new FormData();
-    formData.append('file', file);
+    const showProgress = (label, done, total) => {
+        submitBtn.innerHTML = `<span class="spinner-border spinner-border-sm me-2"></span>${label} ${Math.floor(done * 100 / total)}%`;
+    };
 
     try {
-        const response = await fetch('/api/p2p/upload', {
-            method: 'POST',
-            headers: {
-                [csrfHeader]: token // Send CSRF token in header
-            },
-            body: formData,
-            credentials: 'same-origin' // Send session cookie
-        });
+        // Direct mode: the file goes browser to browser, the server only introduces the peers
+        if (document.getElementById('directInput')?.checked) {
+            await sendDirect(file, (state, ...args) => {
+                if (state === 'waiting') {
+                    showStatus(messages.directWaiting.replace('{0}', `<strong>${args[0]}</strong>`), 'warning');
+                } else if (state === 'connecting') {
+                    showStatus(messages.directConnecting, 'info');
+                } else if (state === 'relaying') {
+                    showStatus(messages.relaying, 'info');
+                } else {
+                    showProgress(messages.uploading, args[0], args[1]);
+                }
+            });
+            showStatus(messages.directDone, 'success');
+            fileInput.value = '';
+            return;
+        }
 
-        const result = await response.json();
-
-        if (response.ok) {
-            const fileIdMsg = messages.fileId.replace('{0}', `<strong>${result.fileId}</strong>`);
-            showStatus(
-                `${messages.uploadSuccess}<br>
-                ${fileIdMsg}<br>
-                File: ${result.fileName} (${formatFileSize(result.fileSize)})`,
-                'success'
-            );
-
-            fileInput.value = ''; // Clear input
-        } else if (response.status === 409) {
-            // Duplicate request (session is already uploading)
-            showStatus(messages.duplicate, 'warning');
-        } else {
-            const errorMsg = messages.uploadError.replace('{0}', result.error || 'Upload failed');
-            showStatus(errorMsg, 'danger');
+        // Several files become one share, downloaded by the receiver as a ZIP
+        if (files.length > 1) {
+            const {response, result} = await uploadShare(files, token);
+            showUploadResult(response, result, fileInput);
+            return;
         }
+
+        // Skip sending bytes entirely if the server already has this content
+        const known = file.size >= PREFLIGHT_THRESHOLD
+            ? await preflightUpload(file, token, (done, total) => showProgress(messages.hashing, done, total))
+            : null;
+
+        // Large files go through the resumable chunked protocol, small ones in a single request
+        const {response, result} = known
+            ?? (file.size > CHUNKED_UPLOAD_THRESHOLD
+                ? await uploadChunked(file, token, (done, total) => showProgress(messages.uploading, done, total))
+                : await uploadStreaming(file, token));
+        showUploadResult(response, result, fileInput);
     } catch (error) {
         console.error('Upload error:', error);
         const errorMsg = messages.connectionError.replace('{0}', error.message);
@@ -96,13 +117,284 @@ document.getElementById('sendForm')?.addEventListener('submit', async function (
     }
 });
 
-// Receive file form handler (placeholder)
-document.getElementById('receiveForm')?.addEventListener('submit', function (e) {
+/**
+ * Show the outcome of an upload; a share reports its name and total size like a single file
+ */
+function showUploadResult(response, result, fileInput) {
+    if (response.ok) {
+        // The short share key is what people type in; the full file ID works as well
+        const keyMsg = result.shareKey
+            ? messages.shareKey.replace('{0}', `<strong>${result.shareKey}</strong>`)
+            : messages.fileId.replace('{0}', `<strong>${result.fileId}</strong>`);
+        showStatus(
+            `${messages.uploadSuccess}<br>
+            ${keyMsg}<br>
+            File: ${result.fileName} (${formatFileSize(result.fileSize)})`,
+            'success'
+        );
+
+        fileInput.value = ''; // Clear input
+    } else if (response.status === 409) {
+        // Duplicate request (session is already uploading)
+        showStatus(messages.duplicate, 'warning');
+    } else {
+        const errorMsg = messages.uploadError.replace('{0}', result.error || 'Upload failed');
+        showStatus(errorMsg, 'danger');
+    }
+}
+
+/**
+ * Hash the file in a Web Worker and ask the server whether it already holds that content.
+ * Returns the upload result if a file ID was minted without sending bytes, otherwise null.
+ * Any failure here just falls back to a normal upload.
+ */
+async function preflightUpload(file, token, onProgress) {
+    try {
+        const digest = await hashFile(file, onProgress);
+        const response = await fetch('/api/p2p/upload/preflight', {
+            method: 'POST',
+            headers: {
+                [csrfHeader]: token,
+                'Content-Type': 'application/json'
+            },
+            body: JSON.stringify({
+                sha256: digest,
+                fileSize: file.size,
+                fileName: file.name,
+                contentType: file.type || 'application/octet-stream'
+            }),
+            credentials: 'same-origin'
+        });
+        return response.ok ? {response, result: await response.json()} : null;
+    } catch (error) {
+        console.warn('Pre-flight skipped:', error);
+        return null;
+    }
+}
+
+/**
+ * Compute the SHA-256 of a file off the main thread, reading it slice by slice
+ */
+function hashFile(file, onProgress) {
+    return new Promise((resolve, reject) => {
+        const worker = new Worker(globalThis.SHA256_WORKER_URL || '/js/sha256-worker.js');
+        worker.onmessage = (event) => {
+            const message = event.data;
+            if (message.type === 'progress') {
+                onProgress(message.done, message.total);
+                return;
+            }
+            worker.terminate();
+            if (message.type === 'done') {
+                resolve(message.digest);
+            } else {
+                reject(new Error(message.message));
+            }
+        };
+        worker.onerror = (error) => {
+            worker.terminate();
+            reject(error);
+        };
+        worker.postMessage({file, chunkSize: HASH_CHUNK_SIZE});
+    });
+}
+
+/**
+ * Send the file as the raw body of a single PUT request (no multipart encoding on either side)
+ */
+async function uploadStreaming(file, token) {
+    const response = await fetchIdempotent(`/api/p2p/upload/${encodeURIComponent(file.name)}`, {
+        method: 'PUT',
+        headers: {
+            [csrfHeader]: token, // Send CSRF token in header
+            'Content-Type': file.type || 'application/octet-stream'
+        },
+        body: file,
+        credentials: 'same-origin' // Send session cookie
+    });
+    return {response, result: await response.json()};
+}
+
+/**
+ * Send several files as one share in a single multipart request; the server stores each part as it arrives.
+ * The CSRF token must go in the header, the server never parses the body for form parameters.
+ */
+async function uploadShare(files, token) {
+    const form = new FormData();
+    for (const file of files) {
+        // Keep the folder structure of a directory selection
+        form.append('file', file, file.webkitRelativePath || file.name);
+    }
+    const response = await fetchIdempotent('/api/p2p/shares', {
+        method: 'POST',
+        headers: {
+            [csrfHeader]: token
+        },
+        body: form,
+        credentials: 'same-origin'
+    });
+    return {response, result: await response.json()};
+}
+
+/**
+ * Send the file in chunks, several at a time, resuming a previous attempt of the same file if possible
+ */
+async function uploadChunked(file, token, onProgress) {
+    const resumeKey = `p2p-upload:${file.name}:${file.size}:${file.lastModified}`;
+    let upload = await findUpload(localStorage.getItem(resumeKey));
+
+    if (!upload) {
+        const response = await fetchIdempotent('/api/p2p/uploads', {
+            method: 'POST',
+            headers: {
+                [csrfHeader]: token,
+                'Content-Type': 'application/json'
+            },
+            body: JSON.stringify({
+                fileName: file.name,
+                fileSize: file.size,
+                contentType: file.type || 'application/octet-stream'
+            }),
+            credentials: 'same-origin'
+        });
+        upload = await response.json();
+        if (!response.ok) {
+            return {response, result: upload};
+        }
+        localStorage.setItem(resumeKey, upload.fileId);
+    }
+
+    // Only the chunks the server does not have yet are sent
+    const pending = [...upload.missingChunks];
+    let done = upload.chunkCount - pending.length;
+    onProgress(done, upload.chunkCount);
+
+    const worker = async () => {
+        while (pending.length > 0) {
+            const index = pending.shift();
+            await sendChunk(upload, file, index, token);
+            onProgress(++done, upload.chunkCount);
+        }
+    };
+    await Promise.all(Array.from({length: Math.min(PARALLEL_CHUNKS, pending.length)}, worker));
+
+    const response = await fetchIdempotent(`/api/p2p/uploads/${upload.fileId}/complete`, {
+        method: 'POST',
+        headers: {
+            [csrfHeader]: token
+        },
+        credentials: 'same-origin'
+    });
+    const result = await response.json();
+    if (response.ok) {
+        localStorage.removeItem(resumeKey);
+    }
+    return {response, result};
+}
+
+/**
+ * Send a state-changing request with an Idempotency-Key, retrying with the same key on network or server errors.
+ * A retry of a request the server already handled gets the original response back instead of running it again.
+ */
+async function fetchIdempotent(url, options) {
+    const headers = {...options.headers, 'Idempotency-Key': crypto.randomUUID()};
+    for (let attempt = 1; ; attempt++) {
+        try {
+            const response = await fetch(url, {...options, headers});
+            if (response.status < 500 || attempt >= REQUEST_RETRIES) return response;
+        } catch (error) {
+            if (attempt >= REQUEST_RETRIES) throw error;
+        }
+        await new Promise(resolve => setTimeout(resolve, 500 * attempt));
+    }
+}
+
+/**
+ * Fetch the server-side state of an earlier chunked upload, or null if it is gone
+ */
+async function findUpload(fileId) {
+    if (!fileId) return null;
+    const response = await fetch(`/api/p2p/uploads/${fileId}`, {credentials: 'same-origin'});
+    return response.ok ? response.json() : null;
+}
+
+/**
+ * Send one chunk, retrying with backoff on network or server errors
+ */
+async function sendChunk(upload, file, index, token) {
+    const start = index * upload.chunkSize;
+    const chunk = file.slice(start, Math.min(start + upload.chunkSize, file.size));
+
+    for (let attempt = 1; ; attempt++) {
+        try {
+            const response = await fetch(`/api/p2p/uploads/${upload.fileId}/chunks/${index}`, {
+                method: 'PUT',
+                headers: {
+                    [csrfHeader]: token,
+                    'Content-Type': 'application/octet-stream'
+                },
+                body: chunk,
+                credentials: 'same-origin'
+            });
+            if (response.ok) return;
+            if (attempt >= CHUNK_RETRIES) {
+                const result = await response.json();
+                throw new Error(result.error || `Chunk ${index} failed`);
+            }
+        } catch (error) {
+            if (attempt >= CHUNK_RETRIES) throw error;
+        }
+        await new Promise(resolve => setTimeout(resolve, 500 * attempt));
+    }
+}
+
+// Receive file form handler
+document.getElementById('receiveForm')?.addEventListener('submit', async function (e) {
     e.preventDefault();
-    const key = document.getElementById('keyInput').value;
+    const key = document.getElementById('keyInput').value.trim();
     const searchMsg = messages.searching.replace('{0}', key);
     showStatus(searchMsg, 'info');
-    // NOTE: File receive logic will be implemented when P2P WebRTC connection is ready
+
+    let downloadUrl = `/api/p2p/files/${encodeURIComponent(key)}`;
+    try {
+        if (isDirectKey(key)) {
+            // A sender waiting for a direct transfer; such keys never name a stored file
+            const received = await receiveDirect(key, (state, done, total) => {
+                if (state === 'connecting') {
+                    showStatus(messages.directConnecting, 'info');
+                } else if (state === 'relaying') {
+                    showStatus(messages.relaying, 'info');
+                } else {
+                    showStatus(`${messages.directReceiving} ${Math.floor(done * 100 / total)}%`, 'info');
+                }
+            });
+            showStatus(received ? messages.directDone : messages.notFound.replace('{0}', key),
+                received ? 'success' : 'danger');
+            return;
+        }
+
+        // Check the file exists before handing the download to the browser
+        let response = await fetch(downloadUrl, {method: 'HEAD', credentials: 'same-origin'});
+        if (!response.ok) {
+            // Several files shared under one key are downloaded as a ZIP
+            const shareUrl = `/api/p2p/shares/${encodeURIComponent(key)}`;
+            response = await fetch(shareUrl, {method: 'HEAD', credentials: 'same-origin'});
+            downloadUrl = shareUrl;
+        }
+        if (!response.ok) {
+            showStatus(messages.notFound.replace('{0}', key), 'danger');
+            return;
+        }
+        const link = document.createElement('a');
+        link.href = downloadUrl;
+        link.download = '';
+        document.body.appendChild(link);
+        link.click();
+        link.remove();
+    } catch (error) {
+        console.error('Download error:', error);
+        showStatus(messages.connectionError.replace('{0}', error.message), 'danger');
+    }
 });
 
 // Show status message
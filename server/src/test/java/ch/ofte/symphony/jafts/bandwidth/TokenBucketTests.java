@@ -0,0 +1,62 @@
+package ch.ofte.symphony.jafts.bandwidth;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenBucketTests {
+
+	private static final long MILLI = 1_000_000L;
+
+	private final AtomicLong clock = new AtomicLong(1_000_000 * MILLI);
+
+	@Test
+	void sendsABurstThenPacesAtTheRate() {
+		// 1000 bytes per second, 100ms burst
+		TokenBucket bucket = new TokenBucket(1000, 100 * MILLI, clock::get);
+
+		assertThat(bucket.reserve(100, Long.MAX_VALUE)).isZero();
+		assertThat(bucket.reserve(100, Long.MAX_VALUE)).isEqualTo(100 * MILLI);
+		assertThat(bucket.reserve(100, Long.MAX_VALUE)).isEqualTo(200 * MILLI);
+
+		clock.addAndGet(1000 * MILLI);
+		assertThat(bucket.reserve(100, Long.MAX_VALUE)).isZero();
+	}
+
+	@Test
+	void refusesReservationsBeyondTheAcceptedDelay() {
+		TokenBucket bucket = new TokenBucket(1000, 0, clock::get);
+		bucket.reserve(500, Long.MAX_VALUE);
+
+		assertThat(bucket.reserve(100, 200 * MILLI)).isEqualTo(-400 * MILLI);
+
+		clock.addAndGet(400 * MILLI);
+		assertThat(bucket.reserve(100, 200 * MILLI)).isEqualTo(200 * MILLI);
+	}
+
+	@Test
+	void concurrentReservationsNeverExceedTheRate() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(1_000_000, 0, clock::get);
+		ConcurrentLinkedQueue<Long> delays = new ConcurrentLinkedQueue<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			threads.add(Thread.ofPlatform().start(() -> {
+				for (int i = 0; i < 1000; i++) {
+					delays.add(bucket.reserve(1000, Long.MAX_VALUE));
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// 8000 grants of 1ms each: every slot handed out exactly once
+		assertThat(delays).hasSize(8000).doesNotHaveDuplicates();
+		assertThat(delays.stream().mapToLong(Long::longValue).max().orElseThrow()).isEqualTo(8000 * MILLI);
+	}
+}
@@ -0,0 +1,167 @@
+package ch.ofte.symphony.jafts.cluster;
+
+import ch.ofte.symphony.jafts.idempotency.IdempotencyState;
+import ch.ofte.symphony.jafts.p2p_transfer.UploadDuplicationService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.mock.web.MockHttpSession;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Two or more "nodes" sharing one H2 database
+ */
+class ClusterStateTests {
+
+	private static final String KEY = "5F1C2B3A4D6E7F8091A2B3C4D5E6F708:retry-1";
+	private static final String FINGERPRINT = "POST /api/p2p/upload";
+
+	private final EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+			.generateUniqueName(true)
+			.setType(EmbeddedDatabaseType.H2)
+			.addScript("schema.sql")
+			.build();
+	private final JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+
+	@AfterEach
+	void shutDown() {
+		database.shutdown();
+	}
+
+	@Test
+	void nodesShareTheUploadSlotsOfASession() {
+		UploadSlotRepository slots = new UploadSlotRepository(jdbcTemplate);
+		UploadDuplicationService nodeA = new UploadDuplicationService(2, Optional.of(slots));
+		UploadDuplicationService nodeB = new UploadDuplicationService(2, Optional.of(slots));
+		MockHttpSession session = new MockHttpSession(null, "session-1");
+
+		assertThat(nodeA.tryAcquire(session)).isTrue();
+		assertThat(nodeB.tryAcquire(session)).isTrue();
+		assertThat(nodeB.tryAcquire(session)).isFalse();
+		assertThat(nodeA.tryAcquire(session)).isFalse();
+
+		nodeA.release(session);
+		// Node A keeps the slot leased until it gives back its spare slots
+		assertThat(nodeB.tryAcquire(session)).isFalse();
+		nodeA.releaseSpareSlots();
+		assertThat(nodeB.tryAcquire(session)).isTrue();
+		assertThat(nodeA.inUse(session)).isEqualTo(2);
+	}
+
+	@Test
+	void leasedSlotsAreReusedWithoutTheDatabase() {
+		UploadSlotRepository slots = new UploadSlotRepository(jdbcTemplate);
+		UploadDuplicationService node = new UploadDuplicationService(3, Optional.of(slots), 2);
+		MockHttpSession session = new MockHttpSession(null, "session-5");
+
+		assertThat(node.tryAcquire(session)).isTrue();
+		assertThat(slots.inUse("session-5")).isEqualTo(2);
+		node.release(session);
+		// Every slot now looks taken to the database: only the node's own leases can admit uploads
+		jdbcTemplate.update("UPDATE upload_slots SET in_use = 3");
+		assertThat(node.tryAcquire(session)).isTrue();
+		assertThat(node.tryAcquire(session)).isTrue();
+		assertThat(node.tryAcquire(session)).isFalse();
+
+		node.release(session);
+		node.release(session);
+		node.releaseSpareSlots();
+		assertThat(slots.inUse("session-5")).isEqualTo(1);
+	}
+
+	@Test
+	void runningUploadsOutliveTheIdlePurge() throws Exception {
+		UploadSlotRepository slots = new UploadSlotRepository(jdbcTemplate);
+		UploadDuplicationService node = new UploadDuplicationService(1, Optional.of(slots));
+		MockHttpSession uploading = new MockHttpSession(null, "session-3");
+		MockHttpSession idle = new MockHttpSession(null, "session-4");
+		assertThat(node.tryAcquire(uploading)).isTrue();
+		assertThat(node.tryAcquire(idle)).isTrue();
+		node.release(idle);
+		node.releaseSpareSlots();
+		Thread.sleep(20);
+
+		Instant touched = Instant.now();
+		node.heartbeat();
+		assertThat(slots.deleteIdleSince(touched)).isEqualTo(1);
+
+		assertThat(node.inUse(uploading)).isEqualTo(1);
+		assertThat(node.tryAcquire(uploading)).isFalse();
+	}
+
+	@Test
+	void concurrentAcquiresNeverExceedTheQuota() throws Exception {
+		UploadSlotRepository slots = new UploadSlotRepository(jdbcTemplate);
+		List<Future<Boolean>> attempts = new ArrayList<>();
+		try (ExecutorService executor = Executors.newFixedThreadPool(16)) {
+			for (int i = 0; i < 64; i++) {
+				attempts.add(executor.submit(() -> slots.lease("session-2", 1, 3) == 1));
+			}
+		}
+
+		int acquired = 0;
+		for (Future<Boolean> attempt : attempts) {
+			acquired += attempt.get() ? 1 : 0;
+		}
+		assertThat(acquired).isEqualTo(3);
+		assertThat(slots.inUse("session-2")).isEqualTo(3);
+	}
+
+	@Test
+	void aKeyRunsOnOneNodeAndIsReplayedOnAll() {
+		ClusterIdempotencyStore nodeA = store(Duration.ofMinutes(30));
+		ClusterIdempotencyStore nodeB = store(Duration.ofMinutes(30));
+
+		assertThat(nodeA.claim(KEY, FINGERPRINT)).isTrue();
+		assertThat(nodeB.claim(KEY, FINGERPRINT)).isFalse();
+		assertThat(nodeB.findCompleted(KEY)).isEmpty();
+
+		nodeA.complete(KEY, new IdempotencyState(IdempotencyState.Status.COMPLETED, "{\"status\":\"success\"}", 200,
+				"application/json", FINGERPRINT));
+
+		Optional<IdempotencyState> replayed = nodeB.findCompleted(KEY);
+		assertThat(replayed).isPresent();
+		assertThat(replayed.get().getResponseBody()).isEqualTo("{\"status\":\"success\"}");
+		assertThat(replayed.get().getRequestFingerprint()).isEqualTo(FINGERPRINT);
+		assertThat(nodeB.claim(KEY, FINGERPRINT)).isFalse();
+		// Served from the near-cache from now on
+		assertThat(nodeB.getNearCache().getIfPresent(KEY)).isNotNull();
+	}
+
+	@Test
+	void releasedAndExpiredClaimsCanBeTakenOver() {
+		ClusterIdempotencyStore nodeA = store(Duration.ofMinutes(30));
+		ClusterIdempotencyStore nodeB = store(Duration.ofMinutes(30));
+		ClusterIdempotencyStore crashed = store(Duration.ZERO);
+
+		assertThat(nodeA.claim(KEY, FINGERPRINT)).isTrue();
+		nodeA.release(KEY);
+		assertThat(nodeB.claim(KEY, FINGERPRINT)).isTrue();
+
+		String otherKey = KEY + "-other";
+		assertThat(crashed.claim(otherKey, FINGERPRINT)).isTrue();
+		assertThat(nodeA.claim(otherKey, FINGERPRINT)).isTrue();
+		// The late response of the node that lost its claim is dropped
+		crashed.complete(otherKey, new IdempotencyState(IdempotencyState.Status.COMPLETED, "late", 200,
+				"text/plain", FINGERPRINT));
+		assertThat(nodeB.findCompleted(otherKey)).isEmpty();
+	}
+
+	private ClusterIdempotencyStore store(Duration lease) {
+		return new ClusterIdempotencyStore(new IdempotencyKeyRepository(jdbcTemplate), lease, Duration.ofHours(2),
+				1000, Duration.ofSeconds(30));
+	}
+}
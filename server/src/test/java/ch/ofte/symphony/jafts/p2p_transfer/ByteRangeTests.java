@@ -0,0 +1,40 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ByteRangeTests {
+
+	@Test
+	void parsesSingleAndOpenEndedRanges() {
+		assertThat(ByteRange.parse("bytes=0-99", 1000, 16)).contains(List.of(new ByteRange(0, 99)));
+		assertThat(ByteRange.parse("bytes=900-", 1000, 16)).contains(List.of(new ByteRange(900, 999)));
+		assertThat(ByteRange.parse("bytes=-100", 1000, 16)).contains(List.of(new ByteRange(900, 999)));
+		assertThat(ByteRange.parse("bytes=500-5000", 1000, 16)).contains(List.of(new ByteRange(500, 999)));
+	}
+
+	@Test
+	void mergesOverlappingRangesInOrder() {
+		assertThat(ByteRange.parse("bytes=500-599, 0-99, 90-199", 1000, 16))
+				.contains(List.of(new ByteRange(0, 199), new ByteRange(500, 599)));
+	}
+
+	@Test
+	void reportsUnsatisfiableRangesAsEmptyList() {
+		assertThat(ByteRange.parse("bytes=1000-", 1000, 16)).contains(List.of());
+		assertThat(ByteRange.parse("bytes=-10", 0, 16)).contains(List.of());
+	}
+
+	@Test
+	void ignoresMalformedOrExcessiveHeaders() {
+		assertThat(ByteRange.parse(null, 1000, 16)).isEqualTo(Optional.empty());
+		assertThat(ByteRange.parse("items=0-1", 1000, 16)).isEmpty();
+		assertThat(ByteRange.parse("bytes=9-1", 1000, 16)).isEmpty();
+		assertThat(ByteRange.parse("bytes=a-b", 1000, 16)).isEmpty();
+		assertThat(ByteRange.parse("bytes=0-0,2-2,4-4", 1000, 2)).isEmpty();
+	}
+}
@@ -0,0 +1,278 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import ch.ofte.symphony.jafts.storage.DirectBufferPool;
+import ch.ofte.symphony.jafts.storage.FileStorageService;
+import ch.ofte.symphony.jafts.storage.IoLimiter;
+import ch.ofte.symphony.jafts.storage.StorageBusyException;
+import ch.ofte.symphony.jafts.storage.StoredFile;
+import ch.ofte.symphony.jafts.storage.UploadTooLargeException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ChunkedUploadServiceTests {
+
+	private static final String SESSION = "session-1";
+	private static final String CONTENT = "abcdefghij";
+	private static final DataSize CHUNK_SIZE = DataSize.ofBytes(4);
+
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+	@TempDir
+	Path dir;
+
+	private CommittingStorage storage;
+
+	@BeforeEach
+	void createStorage() throws IOException {
+		storage = new CommittingStorage(dir);
+	}
+
+	@AfterEach
+	void stopExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void acceptsChunksOutOfOrderAndInParallel() throws Exception {
+		ChunkedUploadService service = service(Duration.ofHours(1));
+		ChunkedUpload upload = create(service);
+
+		List<Future<?>> writes = new ArrayList<>();
+		for (int index : new int[]{2, 0, 1}) {
+			writes.add(executor.submit(() -> {
+				service.writeChunk(upload, index, chunk(index));
+				return null;
+			}));
+		}
+		for (Future<?> write : writes) {
+			write.get(5, TimeUnit.SECONDS);
+		}
+
+		StoredFile storedFile = service.complete(upload);
+		assertThat(storage.committed).isEqualTo(CONTENT);
+		assertThat(storedFile.fileId()).isEqualTo(upload.getFileId());
+		assertThat(service.find(upload.getFileId(), SESSION)).isEmpty();
+	}
+
+	@Test
+	void reportsTheRangesStillMissing() throws IOException {
+		ChunkedUploadService service = service(Duration.ofHours(1));
+		ChunkedUpload upload = create(service);
+		service.writeChunk(upload, 2, chunk(2));
+		service.writeChunk(upload, 0, chunk(0));
+		service.writeChunk(upload, 0, chunk(0));
+
+		assertThat(upload.getReceivedCount()).isEqualTo(2);
+		assertThat(upload.receivedRanges()).containsExactly(new long[]{0, 3}, new long[]{8, 9});
+		assertThat(upload.missingChunks()).containsExactly(1);
+		assertThatThrownBy(() -> service.complete(upload))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("Missing 1 chunk(s)");
+		assertThat(service.find(upload.getFileId(), SESSION)).isPresent();
+		assertThat(service.find(upload.getFileId(), "other-session")).isEmpty();
+	}
+
+	@Test
+	void rejectsChunksOfTheWrongLength() throws IOException {
+		ChunkedUploadService service = service(Duration.ofHours(1));
+		ChunkedUpload upload = create(service);
+
+		assertThatThrownBy(() -> service.writeChunk(upload, 0, body("abc")))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("expected 4");
+		assertThatThrownBy(() -> service.writeChunk(upload, 2, body("ijk")))
+				.isInstanceOf(UploadTooLargeException.class);
+		assertThatThrownBy(() -> service.writeChunk(upload, 3, body("")))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("out of range");
+		assertThat(upload.getReceivedCount()).isZero();
+	}
+
+	@Test
+	void refusesToCompleteWhileAChunkIsBeingWritten() throws Exception {
+		ChunkedUploadService service = service(Duration.ofHours(1));
+		ChunkedUpload upload = create(service);
+		service.writeChunk(upload, 0, chunk(0));
+		service.writeChunk(upload, 2, chunk(2));
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch sent = new CountDownLatch(1);
+		Future<?> write = executor.submit(() -> {
+			service.writeChunk(upload, 1, new HeldStream(chunk(1), reading, sent));
+			return null;
+		});
+		assertThat(reading.await(5, TimeUnit.SECONDS)).isTrue();
+
+		assertThatThrownBy(() -> service.complete(upload))
+				.isInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("still being written");
+
+		sent.countDown();
+		write.get(5, TimeUnit.SECONDS);
+		service.complete(upload);
+		assertThat(storage.committed).isEqualTo(CONTENT);
+		assertThatThrownBy(() -> service.writeChunk(upload, 1, chunk(1)))
+				.isInstanceOf(IllegalStateException.class);
+	}
+
+	@Test
+	void deletesThePartialFileWhenPublishingFails() throws IOException {
+		ChunkedUploadService service = service(Duration.ofHours(1));
+		ChunkedUpload upload = create(service);
+		for (int index = 0; index < upload.getChunkCount(); index++) {
+			service.writeChunk(upload, index, chunk(index));
+		}
+		storage.failCommit = true;
+
+		assertThatThrownBy(() -> service.complete(upload)).isInstanceOf(IOException.class);
+		assertThat(partialFiles()).isEmpty();
+		assertThat(service.find(upload.getFileId(), SESSION)).isEmpty();
+	}
+
+	@Test
+	void deletesThePartialFileOfAnExpiredUpload() throws Exception {
+		ChunkedUploadService service = service(Duration.ofMillis(50));
+		ChunkedUpload upload = create(service);
+		service.writeChunk(upload, 0, chunk(0));
+		assertThat(partialFiles()).hasSize(1);
+
+		Thread.sleep(100);
+		service.getUploadCache().cleanUp();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!partialFiles().isEmpty() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertThat(partialFiles()).isEmpty();
+		assertThat(upload.getChannel().isOpen()).isFalse();
+		assertThat(service.find(upload.getFileId(), SESSION)).isEmpty();
+	}
+
+	@Test
+	void neverPushesOutAnotherSessionsUpload() throws IOException {
+		ChunkedUploadService service = new ChunkedUploadService(storage, CHUNK_SIZE, Duration.ofHours(1), 3, 2);
+		ChunkedUpload upload = create(service);
+		service.writeChunk(upload, 0, chunk(0));
+
+		ChunkedUpload first = create(service, "greedy-1");
+		create(service, "greedy-1");
+		assertThatThrownBy(() -> create(service, "greedy-1")).isInstanceOf(IllegalStateException.class);
+		// A fresh session gets no further once every upload is taken
+		assertThatThrownBy(() -> create(service, "greedy-2")).isInstanceOf(StorageBusyException.class);
+
+		assertThat(service.find(upload.getFileId(), SESSION)).isPresent();
+		assertThat(upload.getChannel().isOpen()).isTrue();
+		assertThat(partialFiles()).hasSize(3);
+
+		service.abort(first);
+		service.abort(first);
+		assertThat(create(service, "greedy-2").getOwnerSessionId()).isEqualTo("greedy-2");
+		assertThatThrownBy(() -> create(service, "greedy-2")).isInstanceOf(StorageBusyException.class);
+	}
+
+	private ChunkedUploadService service(Duration sessionTtl) {
+		return new ChunkedUploadService(storage, CHUNK_SIZE, sessionTtl, 100, 10);
+	}
+
+	private ChunkedUpload create(ChunkedUploadService service) throws IOException {
+		return create(service, SESSION);
+	}
+
+	private ChunkedUpload create(ChunkedUploadService service, String session) throws IOException {
+		return service.create(session, "letters.txt", "text/plain", CONTENT.length(), null);
+	}
+
+	private static InputStream chunk(int index) {
+		int start = index * (int) CHUNK_SIZE.toBytes();
+		return body(CONTENT.substring(start, Math.min(CONTENT.length(), start + (int) CHUNK_SIZE.toBytes())));
+	}
+
+	private static InputStream body(String content) {
+		return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private List<Path> partialFiles() throws IOException {
+		try (Stream<Path> files = Files.list(dir.resolve("tmp"))) {
+			return files.toList();
+		}
+	}
+
+	/**
+	 * Storage that writes partial files for real and records what a completed upload held instead of publishing it
+	 */
+	private static final class CommittingStorage extends FileStorageService {
+
+		private final Path tmp;
+		volatile boolean failCommit;
+		volatile String committed;
+
+		CommittingStorage(Path dir) throws IOException {
+			super(dir.toString(), DataSize.ofMegabytes(1), new DirectBufferPool(DataSize.ofKilobytes(4), 4),
+					null, null, null, null, null, null, null,
+					new IoLimiter(4, 16, Duration.ofSeconds(5), new SimpleMeterRegistry()), new SimpleMeterRegistry());
+			this.tmp = Files.createDirectories(dir.resolve("tmp"));
+		}
+
+		@Override
+		public StoredFile commitPartial(String fileId, String originalFilename, String contentType, long fileSize,
+										Duration ttl) throws IOException {
+			if (failCommit) {
+				throw new IOException("Disk full");
+			}
+			Path partial = tmp.resolve(fileId + ".part");
+			committed = Files.readString(partial, StandardCharsets.UTF_8);
+			Files.delete(partial);
+			return new StoredFile(fileId, originalFilename, "0".repeat(64), fileSize, contentType, null, null);
+		}
+	}
+
+	/**
+	 * Chunk body that holds back its bytes until it is allowed to send them
+	 */
+	private static final class HeldStream extends InputStream {
+
+		private final InputStream body;
+		private final CountDownLatch reading;
+		private final CountDownLatch sent;
+
+		HeldStream(InputStream body, CountDownLatch reading, CountDownLatch sent) {
+			this.body = body;
+			this.reading = reading;
+			this.sent = sent;
+		}
+
+		@Override
+		public int read() throws IOException {
+			reading.countDown();
+			try {
+				sent.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			return body.read();
+		}
+	}
+}
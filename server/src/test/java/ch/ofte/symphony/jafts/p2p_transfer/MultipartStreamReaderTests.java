@@ -0,0 +1,85 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MultipartStreamReaderTests {
+
+	private static final String BOUNDARY = "----boundary42";
+
+	@Test
+	void readsPartsAcrossSmallReads() throws IOException {
+		String content = "line one\r\n------boundary4 is not the boundary\r\n--";
+		String body = "preamble\r\n"
+				+ "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"name\"\r\n\r\n"
+				+ "holiday\r\n"
+				+ "--" + BOUNDARY + "  \r\n"
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+				+ "Content-Type: text/plain\r\n\r\n"
+				+ content + "\r\n"
+				+ "--" + BOUNDARY + "--\r\nepilogue";
+
+		MultipartStreamReader reader = new MultipartStreamReader(trickle(body), BOUNDARY);
+		List<String> bodies = new ArrayList<>();
+		MultipartStreamReader.Part part;
+		while ((part = reader.next().orElse(null)) != null) {
+			bodies.add(new String(part.body().readAllBytes(), StandardCharsets.UTF_8));
+			if (bodies.size() == 2) {
+				assertThat(part.header("Content-Type")).isEqualTo("text/plain");
+			}
+		}
+
+		assertThat(bodies).containsExactly("holiday", content);
+		assertThat(reader.next()).isEmpty();
+	}
+
+	@Test
+	void skipsWhatIsLeftOfAPart() throws IOException {
+		String body = "--" + BOUNDARY + "\r\n\r\n" + "x".repeat(200_000) + "\r\n"
+				+ "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"ttl\"\r\n\r\n60\r\n"
+				+ "--" + BOUNDARY + "--";
+
+		MultipartStreamReader reader = new MultipartStreamReader(
+				new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)), BOUNDARY);
+		assertThat(reader.next()).isPresent();
+		MultipartStreamReader.Part ttl = reader.next().orElseThrow();
+
+		assertThat(ttl.header("content-disposition")).contains("name=\"ttl\"");
+		assertThat(ttl.body().readAllBytes()).asString(StandardCharsets.US_ASCII).isEqualTo("60");
+		assertThat(reader.next()).isEmpty();
+	}
+
+	@Test
+	void failsOnTruncatedBody() throws IOException {
+		String body = "--" + BOUNDARY + "\r\n\r\ncut off";
+
+		MultipartStreamReader reader = new MultipartStreamReader(
+				new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)), BOUNDARY);
+		InputStream part = reader.next().orElseThrow().body();
+
+		assertThatThrownBy(part::readAllBytes).isInstanceOf(EOFException.class);
+	}
+
+	/**
+	 * A stream handing out at most 3 bytes per read, so delimiters straddle reads
+	 */
+	private static InputStream trickle(String body) {
+		return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 3));
+			}
+		};
+	}
+}
@@ -0,0 +1,57 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.webmvc.test.autoconfigure.AutoConfigureMockMvc;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.csrf;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class ShareControllerTests {
+
+	private static final String BOUNDARY = "share-boundary";
+
+	@Autowired
+	MockMvc mockMvc;
+
+	@Test
+	void leavesOutEmptyFiles() throws Exception {
+		mockMvc.perform(upload(part("a.txt", "hello") + part("empty.txt", "")))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.fileCount").value(1))
+				.andExpect(jsonPath("$.files[0].fileName").value("a.txt"))
+				.andExpect(jsonPath("$.fileSize").value(5));
+	}
+
+	@Test
+	void rejectsAShareOfEmptyFiles() throws Exception {
+		mockMvc.perform(upload(part("empty.txt", "")))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.status").value("error"));
+	}
+
+	private static MockHttpServletRequestBuilder upload(String parts) {
+		return post(ShareController.SHARES_PATH)
+				.session(new MockHttpSession())
+				.with(csrf())
+				.contentType("multipart/form-data; boundary=" + BOUNDARY)
+				.content((parts + "--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String part(String fileName, String content) {
+		return "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"files\"; filename=\"" + fileName + "\"\r\n"
+				+ "Content-Type: text/plain\r\n\r\n"
+				+ content + "\r\n";
+	}
+}
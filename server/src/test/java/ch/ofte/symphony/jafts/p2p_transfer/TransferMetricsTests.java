@@ -0,0 +1,45 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TransferMetricsTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final TransferMetrics metrics = new TransferMetrics(registry);
+
+	@Test
+	void recordsBytesAndDurationBySizeClass() {
+		long startedAt = metrics.started(TransferMetrics.UPLOAD);
+		assertThat(registry.get("jafts.transfer.active").tag("direction", "upload").gauge().value()).isEqualTo(1);
+
+		metrics.finished(TransferMetrics.UPLOAD, TransferMetrics.METHOD_STREAM, startedAt, 5L << 20,
+				TransferMetrics.OUTCOME_SUCCESS);
+
+		assertThat(registry.get("jafts.transfer.active").tag("direction", "upload").gauge().value()).isZero();
+		assertThat(registry.get("jafts.transfer.bytes").tag("method", "stream").counter().count()).isEqualTo(5 << 20);
+		assertThat(registry.get("jafts.transfer.duration").tag("size", "lt_100mb").tag("outcome", "success")
+				.timer().count()).isEqualTo(1);
+	}
+
+	@Test
+	void failedTransfersAddNoBytes() {
+		metrics.finished(TransferMetrics.DOWNLOAD, TransferMetrics.METHOD_FULL,
+				metrics.started(TransferMetrics.DOWNLOAD), 1024, TransferMetrics.outcomeOf(500));
+
+		assertThat(registry.find("jafts.transfer.bytes").counter()).isNull();
+		assertThat(registry.get("jafts.transfer.duration").tag("outcome", "server_error").timer().count()).isEqualTo(1);
+	}
+
+	@Test
+	void sizeClassesAndOutcomes() {
+		assertThat(TransferMetrics.sizeClass(0)).isEqualTo("lt_1mb");
+		assertThat(TransferMetrics.sizeClass((1L << 20) - 1)).isEqualTo("lt_1mb");
+		assertThat(TransferMetrics.sizeClass(1L << 20)).isEqualTo("lt_100mb");
+		assertThat(TransferMetrics.sizeClass(1L << 30)).isEqualTo("ge_1gb");
+		assertThat(TransferMetrics.outcomeOf(206)).isEqualTo(TransferMetrics.OUTCOME_SUCCESS);
+		assertThat(TransferMetrics.outcomeOf(409)).isEqualTo(TransferMetrics.OUTCOME_CLIENT_ERROR);
+	}
+}
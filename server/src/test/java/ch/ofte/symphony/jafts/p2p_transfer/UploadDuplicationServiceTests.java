@@ -0,0 +1,55 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpSession;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UploadDuplicationServiceTests {
+
+	private final UploadDuplicationService service = new UploadDuplicationService(2);
+
+	@Test
+	void admitsNoMoreThanTheQuotaPerSession() {
+		MockHttpSession session = new MockHttpSession();
+
+		assertThat(service.tryAcquire(session)).isTrue();
+		assertThat(service.tryAcquire(session)).isTrue();
+		assertThat(service.tryAcquire(session)).isFalse();
+		assertThat(service.tryAcquire(new MockHttpSession())).isTrue();
+
+		service.release(session);
+		assertThat(service.inUse(session)).isEqualTo(1);
+		assertThat(service.tryAcquire(session)).isTrue();
+	}
+
+	@Test
+	void forgetsASessionOnceItsSlotsAreReleased() {
+		MockHttpSession session = new MockHttpSession();
+		service.tryAcquire(session);
+		service.release(session);
+		service.release(session);
+
+		assertThat(service.inUse(session)).isZero();
+		assertThat(service.tryAcquire(session)).isTrue();
+		assertThat(service.tryAcquire(session)).isTrue();
+		assertThat(service.tryAcquire(session)).isFalse();
+	}
+
+	@Test
+	void sweepsOnlySessionsWithoutSlots() {
+		MockHttpSession idle = new MockHttpSession();
+		MockHttpSession uploading = new MockHttpSession();
+		service.tryAcquire(idle);
+		service.release(idle);
+		service.tryAcquire(uploading);
+
+		service.sweep();
+
+		assertThat(service.inUse(uploading)).isEqualTo(1);
+		assertThat(service.tryAcquire(uploading)).isTrue();
+		assertThat(service.tryAcquire(uploading)).isFalse();
+		assertThat(service.tryAcquire(idle)).isTrue();
+		assertThat(service.inUse(idle)).isEqualTo(1);
+	}
+}
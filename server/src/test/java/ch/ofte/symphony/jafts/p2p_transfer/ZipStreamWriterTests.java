@@ -0,0 +1,156 @@
+package ch.ofte.symphony.jafts.p2p_transfer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ZipStreamWriterTests {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void writesStoredAndDeflatedEntriesOfTheAnnouncedLength() throws IOException {
+		byte[] stored = "stored as is".getBytes(StandardCharsets.UTF_8);
+		byte[] text = "compressed beforehand ".repeat(200).getBytes(StandardCharsets.UTF_8);
+		byte[] deflated = deflate(text);
+		CRC32 crc = new CRC32();
+		crc.update(text);
+		Instant modified = Instant.parse("2024-05-01T10:00:00Z");
+		List<ZipStreamWriter.Entry> entries = List.of(
+				new ZipStreamWriter.Entry("a.bin", ZipStreamWriter.Method.STORED, stored.length, stored.length, modified),
+				new ZipStreamWriter.Entry("dir/b.txt", ZipStreamWriter.Method.DEFLATED, deflated.length, text.length,
+						modified));
+
+		Path archive = tempDir.resolve("share.zip");
+		try (OutputStream out = Files.newOutputStream(archive)) {
+			ZipStreamWriter zip = new ZipStreamWriter(out);
+			zip.putEntry(entries.get(0));
+			zip.write(stored, 0, stored.length);
+			zip.closeEntry();
+			zip.putEntry(entries.get(1));
+			zip.write(deflated, 0, deflated.length);
+			zip.closeEntry(crc.getValue());
+			zip.finish();
+		}
+
+		assertThat(Files.size(archive)).isEqualTo(ZipStreamWriter.length(entries));
+		try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+			assertThat(zipFile.stream().map(ZipEntry::getName)).containsExactly("a.bin", "dir/b.txt");
+			assertThat(read(zipFile, "a.bin")).isEqualTo(stored);
+			assertThat(read(zipFile, "dir/b.txt")).isEqualTo(text);
+			assertThat(zipFile.getEntry("dir/b.txt").getCrc()).isEqualTo(crc.getValue());
+		}
+	}
+
+	@Test
+	void streamsEntriesOfFourGigabytesAndMore() throws IOException {
+		// 4 GiB + 1 MiB of zeros, as the same fully flushed deflate block over and over (4 MB of data)
+		int blocks = 4097;
+		byte[] zeros = new byte[1 << 20];
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		deflater.setInput(zeros);
+		byte[] buffer = new byte[64 * 1024];
+		byte[] block = Arrays.copyOf(buffer, deflater.deflate(buffer, 0, buffer.length, Deflater.FULL_FLUSH));
+		deflater.finish();
+		byte[] last = Arrays.copyOf(buffer, deflater.deflate(buffer));
+		deflater.end();
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < blocks; i++) {
+			crc.update(zeros);
+		}
+		byte[] text = "after the large entry".getBytes(StandardCharsets.UTF_8);
+		byte[] deflated = deflate(text);
+		CRC32 textCrc = new CRC32();
+		textCrc.update(text);
+		Instant modified = Instant.parse("2024-05-01T10:00:00Z");
+		List<ZipStreamWriter.Entry> entries = List.of(
+				new ZipStreamWriter.Entry("zeros.bin", ZipStreamWriter.Method.DEFLATED,
+						(long) block.length * blocks + last.length, (long) zeros.length * blocks, modified),
+				new ZipStreamWriter.Entry("b.txt", ZipStreamWriter.Method.DEFLATED, deflated.length, text.length,
+						modified));
+
+		Path archive = tempDir.resolve("large.zip");
+		try (OutputStream out = Files.newOutputStream(archive)) {
+			ZipStreamWriter zip = new ZipStreamWriter(out);
+			zip.putEntry(entries.get(0));
+			for (int i = 0; i < blocks; i++) {
+				zip.write(block, 0, block.length);
+			}
+			zip.write(last, 0, last.length);
+			zip.closeEntry(crc.getValue());
+			zip.putEntry(entries.get(1));
+			zip.write(deflated, 0, deflated.length);
+			zip.closeEntry(textCrc.getValue());
+			zip.finish();
+		}
+
+		assertThat(Files.size(archive)).isEqualTo(ZipStreamWriter.length(entries));
+		try (ZipInputStream in = new ZipInputStream(Files.newInputStream(archive))) {
+			ZipEntry large = in.getNextEntry();
+			assertThat(large.getName()).isEqualTo("zeros.bin");
+			// ZIP64 extended information in the local header, so the data descriptor is read with 8-byte sizes
+			assertThat(large.getExtra()).startsWith(0x01, 0x00, 0x10, 0x00);
+			assertThat(in.transferTo(OutputStream.nullOutputStream())).isEqualTo((long) zeros.length * blocks);
+
+			ZipEntry next = in.getNextEntry();
+			assertThat(next.getName()).isEqualTo("b.txt");
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			in.transferTo(content);
+			assertThat(content.toByteArray()).isEqualTo(text);
+			assertThat(in.getNextEntry()).isNull();
+		}
+	}
+
+	@Test
+	void rejectsDataOfAnotherSize() throws IOException {
+		ZipStreamWriter zip = new ZipStreamWriter(OutputStream.nullOutputStream());
+		zip.putEntry(new ZipStreamWriter.Entry("a", ZipStreamWriter.Method.STORED, 4, 4, Instant.now()));
+		zip.write(new byte[3], 0, 3);
+
+		assertThatThrownBy(zip::closeEntry).isInstanceOf(IOException.class);
+	}
+
+	@Test
+	void keepsEntryNamesInsideTheArchiveAndUnique() {
+		assertThat(ZipStreamWriter.entryNames(Arrays.asList(
+				"../../etc/passwd", "/abs/./x.txt", "C:\\docs\\report.pdf", "report.PDF", "a\u0000b", "", null,
+				"photos/.profile", "photos/.profile")))
+				.containsExactly("etc/passwd", "abs/x.txt", "C:/docs/report.pdf", "report.PDF", "a_b", "file",
+						"file (1)", "photos/.profile", "photos/.profile (1)");
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] buffer = new byte[data.length + 64];
+		int length = deflater.deflate(buffer);
+		deflater.end();
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private static byte[] read(ZipFile zipFile, String name) throws IOException {
+		try (InputStream in = zipFile.getInputStream(zipFile.getEntry(name))) {
+			return in.readAllBytes();
+		}
+	}
+}
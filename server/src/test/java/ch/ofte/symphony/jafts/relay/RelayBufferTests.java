@@ -0,0 +1,51 @@
+package ch.ofte.symphony.jafts.relay;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RelayBufferTests {
+
+	@Test
+	void streamsMoreThanItsCapacityInOrder() throws Exception {
+		RelayBuffer buffer = new RelayBuffer(7, 5_000);
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+			try {
+				for (int offset = 0; offset < data.length; offset += 13) {
+					buffer.write(data, offset, Math.min(13, data.length - offset));
+				}
+				buffer.finish();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		byte[] chunk = new byte[5];
+		int read;
+		while ((read = buffer.read(chunk, 0, chunk.length)) != -1) {
+			received.write(chunk, 0, read);
+		}
+		producer.join();
+
+		assertThat(received.toByteArray()).isEqualTo(data);
+	}
+
+	@Test
+	void failsTheWriterWhenTheReaderStalls() {
+		RelayBuffer buffer = new RelayBuffer(4, 50);
+
+		assertThatThrownBy(() -> buffer.write(new byte[8], 0, 8)).isInstanceOf(IOException.class);
+		assertThatThrownBy(() -> buffer.read(new byte[4], 0, 4)).isInstanceOf(IOException.class);
+	}
+}
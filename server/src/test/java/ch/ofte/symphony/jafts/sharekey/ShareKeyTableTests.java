@@ -0,0 +1,61 @@
+package ch.ofte.symphony.jafts.sharekey;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ShareKeyTableTests {
+
+	@Test
+	void decodesWhatPeopleType() {
+		long packed = ShareKeys.decode("ab0c-1xyz");
+
+		assertThat(ShareKeys.encode(packed)).isEqualTo("AB0C1XYZ");
+		assertThat(ShareKeys.decode("AB0C-IXYZ")).isEqualTo(packed);
+		assertThat(ShareKeys.decode("ABOC1XYZ")).isEqualTo(packed);
+		assertThat(ShareKeys.decode("0AB0C1")).isNotEqualTo(ShareKeys.decode("00AB0C1"));
+		assertThat(ShareKeys.decode("ABC")).isEqualTo(ShareKeys.INVALID);
+		assertThat(ShareKeys.decode("ABCDEFUU")).isEqualTo(ShareKeys.INVALID);
+	}
+
+	@Test
+	void findsEveryKeyThroughGrowthAndRemovals() {
+		ShareKeyTable table = new ShareKeyTable(16);
+		Random random = new Random(42);
+		long[] keys = new long[10_000];
+		for (int i = 0; i < keys.length; i++) {
+			do {
+				keys[i] = ShareKeys.random(random, 6);
+			} while (!table.putIfAbsent(keys[i], i, -i));
+		}
+
+		// Removing every other key shifts entries back; the rest must stay reachable
+		for (int i = 0; i < keys.length; i += 2) {
+			assertThat(table.remove(keys[i], i, -i)).isTrue();
+		}
+
+		assertThat(table.size()).isEqualTo(keys.length / 2);
+		for (int i = 0; i < keys.length; i++) {
+			int slot = table.indexOf(keys[i]);
+			if (i % 2 == 0) {
+				assertThat(slot).isNegative();
+			} else {
+				assertThat(table.mostSignificantBits(slot)).isEqualTo(i);
+				assertThat(table.leastSignificantBits(slot)).isEqualTo(-i);
+			}
+		}
+	}
+
+	@Test
+	void keepsAKeyReassignedToAnotherFile() {
+		ShareKeyTable table = new ShareKeyTable(16);
+		long key = ShareKeys.decode("ABCDEF");
+
+		assertThat(table.putIfAbsent(key, 1, 1)).isTrue();
+		assertThat(table.putIfAbsent(key, 2, 2)).isFalse();
+		assertThat(table.remove(key, 2, 2)).isFalse();
+		assertThat(table.indexOf(key)).isNotNegative();
+	}
+}
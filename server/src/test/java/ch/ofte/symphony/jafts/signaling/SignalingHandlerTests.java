@@ -0,0 +1,24 @@
+package ch.ofte.symphony.jafts.signaling;
+
+import ch.ofte.symphony.jafts.sharekey.ShareKeys;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SignalingHandlerTests {
+
+	@Test
+	void readsTypedDirectKeysLikeShareKeys() {
+		assertThat(SignalingHandler.directKey("D-7KQ2M9XA")).isEqualTo("D-7KQ2M9XA");
+		assertThat(SignalingHandler.directKey("d-7kq2-m9xa")).isEqualTo("D-7KQ2M9XA");
+		assertThat(SignalingHandler.directKey("D-OIL2M9XA")).isEqualTo("D-0112M9XA");
+	}
+
+	@Test
+	void neverTakesAStoredShareKeyForADirectKey() {
+		assertThat(SignalingHandler.directKey("7KQ2M9XA")).isNull();
+		assertThat(SignalingHandler.directKey("D7KQ2M9X")).isNull();
+		assertThat(SignalingHandler.directKey("D-7KQ2U9XA")).isNull();
+		assertThat(ShareKeys.decode("D-7KQ2M9XA")).isEqualTo(ShareKeys.INVALID);
+	}
+}
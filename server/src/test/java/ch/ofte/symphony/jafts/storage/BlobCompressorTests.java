@@ -0,0 +1,99 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlobCompressorTests {
+
+	private final BlobCompressor compressor = new BlobCompressor(true, 6, DataSize.ofKilobytes(4),
+			DataSize.ofKilobytes(64), 0.8, List.of("image/*", "application/zip"));
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void compressesTextAndKeepsItsContent() throws IOException {
+		Path source = dir.resolve("log.part");
+		Files.writeString(source, "2025-01-01 INFO request handled in 3ms\n".repeat(10_000));
+
+		Optional<Path> compressed = compressor.compress(source, "text/plain");
+
+		assertThat(compressed).isPresent();
+		assertThat(Files.size(compressed.get())).isLessThan(Files.size(source) / 5);
+		assertThat(BlobCompressor.hasUncompressedSize(compressed.get(), Files.size(source))).isTrue();
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed.get()))) {
+			assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(Files.readString(source));
+		}
+	}
+
+	@Test
+	void skipsCompressedTypesAndIncompressibleContent() throws IOException {
+		Path text = dir.resolve("photo.part");
+		Files.writeString(text, "a".repeat(100_000));
+		Path random = dir.resolve("random.part");
+		byte[] noise = new byte[100_000];
+		new Random(42).nextBytes(noise);
+		Files.write(random, noise);
+
+		assertThat(compressor.compress(text, "image/png")).isEmpty();
+		assertThat(compressor.compress(random, "application/octet-stream")).isEmpty();
+		assertThat(Files.list(dir)).hasSize(2);
+	}
+
+	@Test
+	void compressesInlineBufferByBuffer() throws IOException {
+		byte[] content = "2025-01-01 INFO request handled in 3ms\n".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+		assertThat(compressor.shouldCompress("text/plain", Arrays.copyOf(content, 64 * 1024), false)).isTrue();
+
+		Path target = BlobCompressor.compressedPath(dir.resolve("log.part"));
+		long compressedSize;
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			 BlobCompressor.GzipWriter gzip = compressor.newWriter(channel)) {
+			for (int offset = 0; offset < content.length; offset += 5000) {
+				gzip.write(ByteBuffer.wrap(content, offset, Math.min(5000, content.length - offset)));
+			}
+			compressedSize = gzip.finish();
+		}
+
+		assertThat(Files.size(target)).isEqualTo(compressedSize);
+		assertThat(compressor.pays(content.length, compressedSize)).isTrue();
+		assertThat(BlobCompressor.hasUncompressedSize(target, content.length)).isTrue();
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(target))) {
+			assertThat(in.readAllBytes()).isEqualTo(content);
+		}
+
+		Path restored = BlobCompressor.decompress(target);
+		assertThat(restored.getFileName().toString()).isEqualTo("log.part");
+		assertThat(Files.readAllBytes(restored)).isEqualTo(content);
+		assertThat(target).doesNotExist();
+	}
+
+	@Test
+	void decidesFromTheSampleAlone() {
+		byte[] noise = new byte[64 * 1024];
+		new Random(42).nextBytes(noise);
+
+		assertThat(compressor.shouldCompress("text/plain", "a".repeat(1000).getBytes(StandardCharsets.UTF_8), true))
+				.isFalse();
+		assertThat(compressor.shouldCompress("image/png", new byte[64 * 1024], false)).isFalse();
+		assertThat(compressor.shouldCompress("application/octet-stream", noise, false)).isFalse();
+		assertThat(compressor.shouldCompress(null, new byte[64 * 1024], false)).isTrue();
+	}
+}
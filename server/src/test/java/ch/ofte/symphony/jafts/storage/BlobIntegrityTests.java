@@ -0,0 +1,143 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlobIntegrityTests {
+
+	private static final String DIGEST = "ab".repeat(32);
+	private static final int CHUNK = 4 * 1024;
+
+	@TempDir
+	Path dir;
+
+	private BlobIntegrity integrity;
+
+	@BeforeEach
+	void createIntegrity() {
+		// Two chunk buffers: recordings hash some leaves on the hash threads and the rest inline
+		integrity = new BlobIntegrity(dir.toString(), new ShardedPathResolver(2, 2), true, DataSize.ofBytes(CHUNK),
+				true, 2, 2);
+	}
+
+	@AfterEach
+	void shutdown() {
+		integrity.shutdown();
+	}
+
+	@Test
+	void inlineTreeMatchesTheOneReadBackAndSurvivesARoundTrip() throws IOException {
+		byte[] content = content(10 * CHUNK + 123);
+		IntegrityRecord recorded = record(content);
+
+		IntegrityRecord computed = integrity.compute(new ByteArrayInputStream(content), CHUNK);
+		assertThat(recorded.hasTree()).isTrue();
+		assertThat(recorded.leafCount()).isEqualTo(11);
+		assertThat(recorded.leaves()).isEqualTo(computed.leaves());
+		assertThat(recorded.root()).isEqualTo(computed.root());
+		assertThat(recorded.crc32c()).isEqualTo(computed.crc32c());
+	}
+
+	@Test
+	void abandonedChecksumsGiveTheirChunkBufferBack() throws IOException {
+		for (int i = 0; i < 3; i++) {
+			BlobIntegrity.Checksums abandoned = integrity.newChecksums();
+			abandoned.update(ByteBuffer.wrap(content(CHUNK / 2)));
+			abandoned.close();
+		}
+		assertThat(integrity.freeChunkBuffers()).isEqualTo(2);
+
+		byte[] content = content(6 * CHUNK);
+		assertThat(record(content).leaves())
+				.isEqualTo(integrity.compute(new ByteArrayInputStream(content), CHUNK).leaves());
+		assertThat(integrity.freeChunkBuffers()).isEqualTo(2);
+	}
+
+	@Test
+	void smallContentGetsASingleLeaf() throws IOException {
+		byte[] content = content(CHUNK / 2);
+		IntegrityRecord recorded = record(content);
+
+		assertThat(recorded.hasTree()).isTrue();
+		assertThat(recorded.leafCount()).isEqualTo(1);
+		assertThat(integrity.verify(recorded, reader(content), 0, content.length)).isTrue();
+		content[100] ^= 1;
+		assertThat(integrity.verify(recorded, reader(content), 0, 1)).isFalse();
+	}
+
+	@Test
+	void rangesAreCheckedAgainstTheChunksTheyOverlap() throws IOException {
+		byte[] content = content(8 * CHUNK);
+		IntegrityRecord recorded = record(content);
+		assertThat(integrity.verify(recorded, reader(content), CHUNK + 10, 2 * CHUNK)).isTrue();
+
+		// Corrupt chunk 3: ranges over chunks 1-3 fail, ranges elsewhere still pass
+		content[3 * CHUNK + 5] ^= 1;
+		assertThat(integrity.verify(recorded, reader(content), CHUNK + 10, 2 * CHUNK)).isFalse();
+		assertThat(integrity.verify(recorded, reader(content), 0, CHUNK)).isTrue();
+		assertThat(integrity.verify(recorded, reader(content), 5 * CHUNK, 3 * CHUNK)).isTrue();
+		// Truncated content fails as well
+		assertThat(integrity.verify(recorded, reader(new byte[6 * CHUNK]), 7 * CHUNK, 10)).isFalse();
+	}
+
+	@Test
+	void damagedRecordsAreIgnored() throws IOException {
+		record(content(4 * CHUNK));
+		Path recordPath;
+		try (Stream<Path> files = Files.walk(integrity.getIntegrityPath())) {
+			recordPath = files.filter(Files::isRegularFile).findFirst().orElseThrow();
+		}
+		byte[] bytes = Files.readAllBytes(recordPath);
+		bytes[40] ^= 1;
+		Files.write(recordPath, bytes);
+
+		assertThat(integrity.find(DIGEST)).isEmpty();
+		integrity.delete(DIGEST);
+		assertThat(recordPath).doesNotExist();
+	}
+
+	/**
+	 * Record content fed in odd-sized buffers the way the write path does, then read the record back
+	 */
+	private IntegrityRecord record(byte[] content) throws IOException {
+		try (BlobIntegrity.Checksums checksums = integrity.newChecksums()) {
+			for (int offset = 0; offset < content.length; offset += 1000) {
+				checksums.update(ByteBuffer.wrap(content, offset, Math.min(1000, content.length - offset)));
+			}
+			integrity.record(DIGEST, checksums);
+		}
+
+		Optional<IntegrityRecord> found = integrity.find(DIGEST);
+		assertThat(found).isPresent();
+		assertThat(found.get().size()).isEqualTo(content.length);
+		return found.get();
+	}
+
+	private static BlobIntegrity.ContentReader reader(byte[] content) {
+		return (offset, length) -> {
+			int from = (int) Math.min(offset, content.length);
+			int to = (int) Math.min(offset + length, content.length);
+			return new ByteArrayInputStream(content, from, to - from);
+		};
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(42).nextBytes(content);
+		return content;
+	}
+}
@@ -0,0 +1,207 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlobStoreTests {
+
+	private static final String DIGEST = "a".repeat(64);
+	private static final String OTHER_DIGEST = "b".repeat(64);
+
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+	@TempDir
+	Path dir;
+
+	@AfterEach
+	void stopExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void deduplicatesIdenticalContent() throws IOException {
+		BlobStore store = store(localBackend());
+		Path duplicate = tempFile("content");
+
+		assertThat(store.publish(tempFile("content"), DIGEST, false)).isTrue();
+		assertThat(store.publish(duplicate, DIGEST, false)).isFalse();
+
+		assertThat(duplicate).doesNotExist();
+		assertThat(blobs()).hasSize(1);
+		assertThat(store.locate(DIGEST)).map(Blob::size).contains(7L);
+	}
+
+	@Test
+	void keepsContentUntilTheLastReferenceIsReleased() throws IOException {
+		BlobStore store = store(localBackend());
+		store.publish(tempFile("content"), DIGEST, false);
+		store.publish(tempFile("content"), DIGEST, false);
+		assertThat(store.retain(DIGEST)).isTrue();
+
+		store.release(DIGEST);
+		store.release(DIGEST);
+		assertThat(store.contains(DIGEST)).isTrue();
+
+		store.release(DIGEST);
+		assertThat(store.contains(DIGEST)).isFalse();
+		assertThat(blobs()).isEmpty();
+		assertThat(store.retain(DIGEST)).isFalse();
+	}
+
+	@Test
+	void collectsUnreferencedContentAfterTheGracePeriod() throws IOException {
+		LocalStorageBackend backend = localBackend();
+		BlobStore store = store(backend);
+		store.publish(tempFile("content"), DIGEST, false);
+		// Left behind by a crash between publishing content and recording its descriptor
+		backend.put(OTHER_DIGEST, tempFile("other"));
+
+		store.collectGarbage();
+		assertThat(store.contains(OTHER_DIGEST)).isTrue();
+
+		FileTime expired = FileTime.from(Instant.now().minus(Duration.ofHours(1)));
+		for (Path blob : blobs()) {
+			Files.setLastModifiedTime(blob, expired);
+		}
+		store.collectGarbage();
+
+		assertThat(store.contains(OTHER_DIGEST)).isFalse();
+		assertThat(store.contains(DIGEST)).isTrue();
+	}
+
+	@Test
+	void answersReferencedContentFromMemory() throws IOException {
+		RemoteBackend backend = new RemoteBackend();
+		BlobStore store = store(backend);
+		store.publish(tempFile("content"), DIGEST, false);
+		backend.stats.set(0);
+
+		for (int i = 0; i < 3; i++) {
+			assertThat(store.locate(DIGEST)).map(Blob::size).contains(7L);
+		}
+		assertThat(store.retain(DIGEST)).isTrue();
+
+		assertThat(backend.stats.get()).isZero();
+	}
+
+	@Test
+	void deletesReleasedContentOutsideTheLock() throws Exception {
+		RemoteBackend backend = new RemoteBackend();
+		BlobStore store = store(backend);
+		store.publish(tempFile("content"), DIGEST, false);
+		store.publish(tempFile("other"), OTHER_DIGEST, false);
+		backend.deleteStarted = new CountDownLatch(1);
+		backend.deleteAllowed = new CountDownLatch(1);
+
+		Future<?> release = executor.submit(() -> store.release(DIGEST));
+		assertThat(backend.deleteStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+		// Other content is not held up, and the content being deleted counts as absent
+		assertThat(store.retain(OTHER_DIGEST)).isTrue();
+		assertThat(store.contains(DIGEST)).isFalse();
+		assertThat(store.retain(DIGEST)).isFalse();
+		Path republished = tempFile("content");
+		Future<Boolean> publish = executor.submit(() -> store.publish(republished, DIGEST, false));
+		Thread.sleep(50);
+		assertThat(publish).isNotDone();
+
+		backend.deleteAllowed.countDown();
+		release.get(5, TimeUnit.SECONDS);
+		assertThat(publish.get(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(backend.objects).containsKey(DIGEST);
+		assertThat(store.locate(DIGEST)).isPresent();
+		assertThat(republished).doesNotExist();
+	}
+
+	private BlobStore store(StorageBackend backend) {
+		return new BlobStore(dir.toString(), Duration.ofMinutes(10), new ShardedPathResolver(2, 2), backend);
+	}
+
+	private LocalStorageBackend localBackend() {
+		return new LocalStorageBackend(dir.toString(), new ShardedPathResolver(2, 2));
+	}
+
+	private List<Path> blobs() throws IOException {
+		Path blobsPath = dir.resolve(LocalStorageBackend.BLOBS_DIR);
+		if (!Files.isDirectory(blobsPath)) {
+			return List.of();
+		}
+		try (Stream<Path> files = Files.walk(blobsPath)) {
+			return files.filter(Files::isRegularFile).toList();
+		}
+	}
+
+	private Path tempFile(String content) throws IOException {
+		return Files.writeString(Files.createTempFile(dir, "upload", ".part"), content, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Remote store in memory whose deletes can be held up, counting the lookups it answers
+	 */
+	private static final class RemoteBackend implements StorageBackend {
+
+		final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+		final AtomicInteger stats = new AtomicInteger();
+		volatile CountDownLatch deleteStarted = new CountDownLatch(0);
+		volatile CountDownLatch deleteAllowed = new CountDownLatch(0);
+
+		@Override
+		public void put(String name, InputStream in, long length) throws IOException {
+			objects.put(name, in.readNBytes(Math.toIntExact(length)));
+		}
+
+		@Override
+		public InputStream get(String name, long offset, long length) throws IOException {
+			byte[] object = objects.get(name);
+			if (object == null) {
+				throw new NoSuchFileException(name);
+			}
+			return new ByteArrayInputStream(Arrays.copyOfRange(object, (int) offset, (int) (offset + length)));
+		}
+
+		@Override
+		public boolean delete(String name) throws IOException {
+			deleteStarted.countDown();
+			try {
+				deleteAllowed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			return objects.remove(name) != null;
+		}
+
+		@Override
+		public Optional<Stat> stat(String name) {
+			stats.incrementAndGet();
+			byte[] object = objects.get(name);
+			return object != null ? Optional.of(new Stat(object.length, Instant.EPOCH)) : Optional.empty();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package ch.ofte.symphony.jafts.storage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileStorageServiceTests {
+
+	private static final byte[] TEXT = "All work and no play makes Jack a dull boy. ".repeat(500)
+			.getBytes(StandardCharsets.UTF_8);
+
+	@TempDir
+	Path dir;
+
+	private Path tmp;
+	private FileStorageService storage;
+
+	@BeforeEach
+	void createStorage() throws IOException {
+		ShardedPathResolver pathResolver = new ShardedPathResolver(2, 2);
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		storage = new FileStorageService(dir.toString(), DataSize.ofMegabytes(1),
+				new DirectBufferPool(DataSize.ofKilobytes(4), 4),
+				new BlobStore(dir.toString(), Duration.ofMinutes(10), pathResolver, new FailingBackend()),
+				pathResolver, null, new RetentionPolicy(Duration.ofDays(7), Duration.ofDays(30)), null,
+				new BlobCompressor(true, 6, DataSize.ofKilobytes(4), DataSize.ofKilobytes(64), 0.8, List.of()),
+				new BlobIntegrity(dir.toString(), pathResolver, true, DataSize.ofMegabytes(1), false, 1, 4),
+				new IoLimiter(4, 16, Duration.ofSeconds(5), meterRegistry), meterRegistry);
+		tmp = Files.createDirectories(dir.resolve("tmp"));
+	}
+
+	@Test
+	void leavesNothingInTmpWhenPublishingAnUploadFails() throws IOException {
+		assertThatThrownBy(() -> storage.store(new ByteArrayInputStream(TEXT), "jack.txt", "text/plain", null))
+				.isInstanceOf(IOException.class);
+
+		assertThat(tmpFiles()).isEmpty();
+	}
+
+	@Test
+	void putsBackALegacyFileWhoseImportFails() throws IOException {
+		Path legacyFile = Files.write(dir.resolve(UUID.randomUUID() + ".txt"), TEXT);
+
+		assertThatThrownBy(() -> storage.importLegacyFile(legacyFile)).isInstanceOf(IOException.class);
+
+		assertThat(legacyFile).hasBinaryContent(TEXT);
+		assertThat(tmpFiles()).isEmpty();
+	}
+
+	private List<Path> tmpFiles() throws IOException {
+		try (Stream<Path> files = Files.list(tmp)) {
+			return files.toList();
+		}
+	}
+
+	/**
+	 * Local store whose disk is full
+	 */
+	private static final class FailingBackend implements StorageBackend {
+
+		@Override
+		public void put(String name, InputStream in, long length) throws IOException {
+			throw new IOException("No space left on device");
+		}
+
+		@Override
+		public void put(String name, Path file) throws IOException {
+			throw new IOException("No space left on device");
+		}
+
+		@Override
+		public InputStream get(String name, long offset, long length) throws IOException {
+			throw new IOException("No such blob: " + name);
+		}
+
+		@Override
+		public boolean delete(String name) {
+			return false;
+		}
+
+		@Override
+		public Optional<Stat> stat(String name) {
+			return Optional.empty();
+		}
+
+		@Override
+		public boolean isLocal() {
+			return true;
+		}
+	}
+}
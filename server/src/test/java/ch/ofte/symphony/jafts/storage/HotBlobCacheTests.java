@@ -0,0 +1,87 @@
+package ch.ofte.symphony.jafts.storage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class HotBlobCacheTests {
+
+	private final IoLimiter ioLimiter = new IoLimiter(1, 1, Duration.ofMillis(10), new SimpleMeterRegistry());
+	private final HotBlobCache cache = new HotBlobCache(DataSize.ofMegabytes(1), DataSize.ofKilobytes(64),
+			Duration.ofMinutes(5), null, ioLimiter);
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void loadsABlobOnItsSecondRequest() throws IOException {
+		Blob blob = blob("a".repeat(1000));
+
+		assertThat(cache.get(blob)).isEmpty();
+		Optional<ByteBuffer> cached = cache.get(blob);
+
+		assertThat(cached).isPresent();
+		assertThat(cached.get().isDirect()).isTrue();
+		assertThat(cached.get().isReadOnly()).isTrue();
+		assertThat(StandardCharsets.UTF_8.decode(cached.get()).toString()).isEqualTo("a".repeat(1000));
+		cache.getCache().cleanUp();
+		assertThat(cache.getHeldBytes()).isEqualTo(1000);
+	}
+
+	@Test
+	void handsOutIndependentBuffers() throws IOException {
+		Blob blob = blob("hello");
+		cache.get(blob);
+
+		cache.get(blob).orElseThrow().position(5);
+
+		assertThat(cache.get(blob).orElseThrow().remaining()).isEqualTo(5);
+		assertThat(cache.getCache().stats().hitCount()).isEqualTo(1);
+	}
+
+	@Test
+	void neverCachesLargeOrEmptyBlobs() throws IOException {
+		Blob large = blob("x".repeat(65 * 1024));
+		Blob empty = blob("");
+
+		for (int i = 0; i < 3; i++) {
+			assertThat(cache.get(large)).isEmpty();
+			assertThat(cache.get(empty)).isEmpty();
+		}
+		assertThat(cache.getHeldBytes()).isZero();
+	}
+
+	@Test
+	void loadsOnlyWithAFreeFileHandle() throws IOException {
+		Blob cached = blob("cached");
+		Blob other = blob("other");
+		cache.get(cached);
+		cache.get(cached);
+		cache.get(other);
+
+		try (IoLimiter.Permit openFile = ioLimiter.openFile()) {
+			assertThatThrownBy(() -> cache.get(other)).isInstanceOf(StorageBusyException.class);
+			assertThat(cache.get(cached)).isPresent();
+		}
+		assertThat(cache.get(other)).isPresent();
+	}
+
+	private Blob blob(String content) throws IOException {
+		Path path = Files.createTempFile(dir, "blob", "");
+		Files.writeString(path, content);
+		return new Blob(path.getFileName().toString(), Files.size(path), Instant.now(), false, path);
+	}
+}
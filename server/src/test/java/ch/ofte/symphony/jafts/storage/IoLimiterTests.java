@@ -0,0 +1,49 @@
+package ch.ofte.symphony.jafts.storage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IoLimiterTests {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final IoLimiter limiter = new IoLimiter(1, 2, Duration.ofMillis(10), meterRegistry);
+
+	@Test
+	void rejectsWhenNoPermitIsFreeInTime() throws IOException {
+		try (IoLimiter.Permit first = limiter.openFile(); IoLimiter.Permit second = limiter.openFile()) {
+			assertThat(meterRegistry.get("jafts.io.open-files").gauge().value()).isEqualTo(2);
+
+			assertThatThrownBy(limiter::openFile)
+					.isInstanceOf(StorageBusyException.class)
+					.hasMessageContaining("open files");
+		}
+		assertThat(meterRegistry.get("jafts.io.rejected").tag("resource", "open-files").counter().count())
+				.isEqualTo(1);
+		assertThat(meterRegistry.get("jafts.io.open-files").gauge().value()).isZero();
+	}
+
+	@Test
+	void keepsDiskWritersAndOpenFilesApart() throws IOException {
+		try (IoLimiter.Permit diskWrite = limiter.diskWrite(); IoLimiter.Permit openFile = limiter.openFile()) {
+			assertThatThrownBy(limiter::diskWrite).isInstanceOf(StorageBusyException.class);
+			assertThat(meterRegistry.get("jafts.io.disk-writers").gauge().value()).isEqualTo(1);
+		}
+	}
+
+	@Test
+	void releasesAPermitOnce() throws IOException {
+		IoLimiter.Permit permit = limiter.diskWrite();
+		permit.close();
+		permit.close();
+
+		try (IoLimiter.Permit again = limiter.diskWrite()) {
+			assertThatThrownBy(limiter::diskWrite).isInstanceOf(StorageBusyException.class);
+		}
+	}
+}
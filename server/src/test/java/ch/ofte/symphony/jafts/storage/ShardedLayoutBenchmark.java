@@ -0,0 +1,75 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Create and lookup latency of the flat layout against the sharded layout as the file count grows
+ * Skipped by default; run with {@code ./mvnw test -Dtest=ShardedLayoutBenchmark -Dbenchmark=true}
+ * and optionally {@code -Dbenchmark.files=1000000 -Dbenchmark.dir=/mnt/disk} to measure a real disk instead of /tmp.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ShardedLayoutBenchmark {
+
+	private static final int SAMPLE = 1_000;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void createAndLookupLatencyStaysFlat() throws IOException {
+		int maxFiles = Integer.getInteger("benchmark.files", 200_000);
+		Path baseDir = System.getProperty("benchmark.dir") != null
+				? Files.createTempDirectory(Path.of(System.getProperty("benchmark.dir")), "shard-bench")
+				: tempDir;
+
+		System.out.printf("%-8s %10s %16s %16s%n", "layout", "files", "create (us/op)", "lookup (us/op)");
+		run("flat", new ShardedPathResolver(0, 2), baseDir.resolve("flat"), maxFiles);
+		run("sharded", new ShardedPathResolver(2, 2), baseDir.resolve("sharded"), maxFiles);
+	}
+
+	private static void run(String layout, ShardedPathResolver resolver, Path root, int maxFiles) throws IOException {
+		Files.createDirectories(root);
+		List<String> names = new ArrayList<>(maxFiles);
+		byte[] content = new byte[128];
+
+		for (int checkpoint = SAMPLE * 10; checkpoint <= maxFiles; checkpoint *= 10) {
+			// Fill up to just before the checkpoint, then time the last SAMPLE creates
+			while (names.size() < checkpoint - SAMPLE) {
+				create(resolver, root, names, content);
+			}
+			long createStart = System.nanoTime();
+			for (int i = 0; i < SAMPLE; i++) {
+				create(resolver, root, names, content);
+			}
+			double createMicros = (System.nanoTime() - createStart) / 1_000.0 / SAMPLE;
+
+			long lookupStart = System.nanoTime();
+			for (int i = 0; i < SAMPLE; i++) {
+				String name = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+				Files.size(resolver.resolve(root, name));
+			}
+			double lookupMicros = (System.nanoTime() - lookupStart) / 1_000.0 / SAMPLE;
+
+			System.out.printf("%-8s %10d %16.2f %16.2f%n", layout, names.size(), createMicros, lookupMicros);
+		}
+	}
+
+	private static void create(ShardedPathResolver resolver, Path root, List<String> names, byte[] content)
+			throws IOException {
+		String name = UUID.randomUUID().toString().replace("-", "");
+		Path path = resolver.resolve(root, name);
+		Files.createDirectories(path.getParent());
+		Files.write(path, content);
+		names.add(name);
+	}
+}
@@ -0,0 +1,27 @@
+package ch.ofte.symphony.jafts.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ShardedPathResolverTests {
+
+	private static final Path ROOT = Path.of("blobs");
+
+	@Test
+	void shardsByLeadingCharacters() {
+		ShardedPathResolver resolver = new ShardedPathResolver(2, 2);
+
+		assertThat(resolver.resolve(ROOT, "abcdef0123")).isEqualTo(Path.of("blobs", "ab", "cd", "abcdef0123"));
+		assertThat(resolver.isSharded(ROOT, Path.of("blobs", "ab", "cd", "abcdef0123"))).isTrue();
+		assertThat(resolver.isSharded(ROOT, Path.of("blobs", "abcdef0123"))).isFalse();
+	}
+
+	@Test
+	void keepsShortNamesAndZeroDepthFlat() {
+		assertThat(new ShardedPathResolver(2, 2).resolve(ROOT, "abc")).isEqualTo(Path.of("blobs", "abc"));
+		assertThat(new ShardedPathResolver(0, 2).resolve(ROOT, "abcdef")).isEqualTo(Path.of("blobs", "abcdef"));
+	}
+}
@@ -0,0 +1,271 @@
+package ch.ofte.symphony.jafts.storage.s3;
+
+import ch.ofte.symphony.jafts.storage.StorageBackend;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class S3StorageBackendTests {
+
+	private static final String BUCKET = "jafts";
+	private static final int PART_SIZE = 1024;
+	private static final int MAX_PARTS_IN_FLIGHT = 3;
+
+	private final S3Stub stub = new S3Stub();
+	private HttpServer server;
+	private S3StorageBackend backend;
+
+	@BeforeEach
+	void startStub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", stub::handle);
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.start();
+		backend = new S3StorageBackend("http://127.0.0.1:" + server.getAddress().getPort(), "eu-central-1", BUCKET,
+				"access", "secret", "blobs/", DataSize.ofBytes(PART_SIZE), MAX_PARTS_IN_FLIGHT, true);
+	}
+
+	@AfterEach
+	void stopStub() {
+		backend.close();
+		server.stop(0);
+	}
+
+	@Test
+	void uploadsLargeContentInBoundedParallelParts() throws IOException {
+		byte[] content = randomBytes(20 * PART_SIZE + 100);
+
+		backend.put("abcd", new ByteArrayInputStream(content), content.length);
+
+		assertThat(stub.objects.get("blobs/abcd")).isEqualTo(content);
+		assertThat(stub.partsReceived.get()).isEqualTo(21);
+		assertThat(stub.maxConcurrentParts.get()).isGreaterThan(1).isLessThanOrEqualTo(MAX_PARTS_IN_FLIGHT);
+		assertThat(stub.uploads).isEmpty();
+	}
+
+	@Test
+	void uploadsSmallContentWithOnePut() throws IOException {
+		byte[] content = randomBytes(PART_SIZE);
+
+		backend.put("small", new ByteArrayInputStream(content), content.length);
+
+		assertThat(stub.objects.get("blobs/small")).isEqualTo(content);
+		assertThat(stub.partsReceived.get()).isZero();
+	}
+
+	@Test
+	void boundsConcurrentSmallPutsLikeParts() throws Exception {
+		byte[] content = randomBytes(PART_SIZE / 2);
+
+		try (ExecutorService uploads = Executors.newVirtualThreadPerTaskExecutor()) {
+			List<Future<?>> puts = new ArrayList<>();
+			for (int i = 0; i < 12; i++) {
+				String name = "small-" + i;
+				puts.add(uploads.submit(() -> {
+					backend.put(name, new ByteArrayInputStream(content), content.length);
+					return null;
+				}));
+			}
+			for (Future<?> put : puts) {
+				put.get();
+			}
+		}
+
+		assertThat(stub.objects).hasSize(12);
+		assertThat(stub.maxConcurrentParts.get()).isLessThanOrEqualTo(MAX_PARTS_IN_FLIGHT);
+	}
+
+	@Test
+	void readsRangesAndStatsAndDeletes() throws IOException {
+		byte[] content = randomBytes(5000);
+		backend.put("ranged", new ByteArrayInputStream(content), content.length);
+
+		try (InputStream in = backend.get("ranged", 1000, 2500)) {
+			assertThat(in.readAllBytes()).isEqualTo(Arrays.copyOfRange(content, 1000, 3500));
+		}
+		Optional<StorageBackend.Stat> stat = backend.stat("ranged");
+		assertThat(stat).isPresent();
+		assertThat(stat.get().size()).isEqualTo(5000);
+
+		assertThat(backend.delete("ranged")).isTrue();
+		assertThat(backend.stat("ranged")).isEmpty();
+		assertThat(backend.delete("ranged")).isFalse();
+	}
+
+	@Test
+	void abortsTheUploadWhenAPartFails() {
+		stub.failingPart = 7;
+		byte[] content = randomBytes(12 * PART_SIZE);
+
+		assertThatThrownBy(() -> backend.put("broken", new ByteArrayInputStream(content), content.length))
+				.isInstanceOf(IOException.class)
+				.hasMessageContaining("500");
+
+		assertThat(stub.objects).doesNotContainKey("blobs/broken");
+		assertThat(stub.uploads).isEmpty();
+		assertThat(stub.aborted.get()).isEqualTo(1);
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Just enough of the S3 REST API for the backend: objects and multipart uploads in memory
+	 */
+	private static final class S3Stub {
+
+		final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+		final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+		final AtomicInteger partsReceived = new AtomicInteger();
+		final AtomicInteger concurrentParts = new AtomicInteger();
+		final AtomicInteger maxConcurrentParts = new AtomicInteger();
+		final AtomicInteger aborted = new AtomicInteger();
+		volatile int failingPart;
+
+		void handle(HttpExchange exchange) throws IOException {
+			try (exchange) {
+				String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+				if (authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=access/")) {
+					respond(exchange, 403, "<Error><Code>AccessDenied</Code></Error>");
+					return;
+				}
+				String key = exchange.getRequestURI().getPath().substring(BUCKET.length() + 2);
+				Map<String, String> query = query(exchange.getRequestURI().getQuery());
+				byte[] body = exchange.getRequestBody().readAllBytes();
+				switch (exchange.getRequestMethod()) {
+					case "POST" -> {
+						if (query.containsKey("uploads")) {
+							String uploadId = UUID.randomUUID().toString();
+							uploads.put(uploadId, new ConcurrentSkipListMap<>());
+							respond(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId
+									+ "</UploadId></InitiateMultipartUploadResult>");
+						} else {
+							ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+							for (byte[] part : uploads.remove(query.get("uploadId")).values()) {
+								assembled.write(part);
+							}
+							objects.put(key, assembled.toByteArray());
+							respond(exchange, 200, "<CompleteMultipartUploadResult/>");
+						}
+					}
+					case "PUT" -> {
+						if (query.containsKey("partNumber")) {
+							putPart(exchange, query, body);
+						} else {
+							overlap();
+							objects.put(key, body);
+							respond(exchange, 200, "");
+						}
+					}
+					case "GET" -> {
+						byte[] object = objects.get(key);
+						String[] range = exchange.getRequestHeaders().getFirst("Range").substring(6).split("-");
+						byte[] slice = Arrays.copyOfRange(object, Integer.parseInt(range[0]),
+								Integer.parseInt(range[1]) + 1);
+						exchange.sendResponseHeaders(206, slice.length);
+						exchange.getResponseBody().write(slice);
+					}
+					case "HEAD" -> {
+						byte[] object = objects.get(key);
+						if (object == null) {
+							exchange.sendResponseHeaders(404, -1);
+							return;
+						}
+						exchange.getResponseHeaders().set("Content-Length", Integer.toString(object.length));
+						exchange.getResponseHeaders().set("Last-Modified",
+								DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+						exchange.sendResponseHeaders(200, -1);
+					}
+					case "DELETE" -> {
+						if (query.containsKey("uploadId")) {
+							uploads.remove(query.get("uploadId"));
+							aborted.incrementAndGet();
+						} else {
+							objects.remove(key);
+						}
+						exchange.sendResponseHeaders(204, -1);
+					}
+					default -> exchange.sendResponseHeaders(405, -1);
+				}
+			}
+		}
+
+		private void putPart(HttpExchange exchange, Map<String, String> query, byte[] body) throws IOException {
+			int partNumber = Integer.parseInt(query.get("partNumber"));
+			overlap();
+			if (partNumber == failingPart) {
+				respond(exchange, 500, "<Error><Code>InternalError</Code></Error>");
+				return;
+			}
+			partsReceived.incrementAndGet();
+			uploads.get(query.get("uploadId")).put(partNumber, body);
+			exchange.getResponseHeaders().set("ETag", "\"" + partNumber + "\"");
+			respond(exchange, 200, "");
+		}
+
+		/**
+		 * Hold a request body long enough that concurrent ones overlap, counting them
+		 */
+		private void overlap() {
+			int concurrent = concurrentParts.incrementAndGet();
+			maxConcurrentParts.accumulateAndGet(concurrent, Math::max);
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				concurrentParts.decrementAndGet();
+			}
+		}
+
+		private static Map<String, String> query(String query) {
+			Map<String, String> parameters = new HashMap<>();
+			if (query != null) {
+				for (String parameter : query.split("&")) {
+					int separator = parameter.indexOf('=');
+					parameters.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+				}
+			}
+			return parameters;
+		}
+
+		private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+			exchange.getResponseBody().write(bytes);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Build step: writes {@code .gz} and {@code .br} variants next to compressible static assets
+ * <p>
+ * Run by Maven (see the {@code compress-static-assets} execution in {@code pom.xml}) as a single-file
+ * source program, so it needs nothing but the JDK:
+ * <pre>java src/tools/java/StaticAssetCompressor.java target/classes/static</pre>
+ * Gzip uses the JDK at maximum level. Brotli has no JDK encoder; its variants are written with the
+ * {@code brotli} command line tool when it is on the {@code PATH} and skipped otherwise.
+ * A variant is only kept if it is smaller than the original. At runtime Spring's resource chain picks
+ * the variant matching the request's {@code Accept-Encoding}.
+ */
+public class StaticAssetCompressor {
+
+    private static final Set<String> EXTENSIONS = Set.of("js", "css", "svg", "map", "json", "txt", "html", "ico");
+    private static final long MIN_SIZE = 1024;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path root = Path.of(args.length > 0 ? args[0] : "target/classes/static");
+        if (!Files.isDirectory(root)) {
+            System.out.println("No static assets in " + root);
+            return;
+        }
+
+        List<Path> assets;
+        try (Stream<Path> files = Files.walk(root)) {
+            assets = files.filter(Files::isRegularFile).filter(StaticAssetCompressor::isCompressible).toList();
+        }
+        boolean brotli = brotliAvailable();
+        int gzipped = 0;
+        int brotlied = 0;
+        for (Path asset : assets) {
+            if (gzip(asset)) {
+                gzipped++;
+            }
+            if (brotli && brotli(asset)) {
+                brotlied++;
+            }
+        }
+        System.out.printf("Precompressed %d of %d static asset(s) with gzip, %s%n", gzipped, assets.size(),
+                brotli ? brotlied + " with brotli" : "brotli skipped (no brotli tool on the PATH)");
+    }
+
+    private static boolean isCompressible(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        try {
+            return dot > 0 && EXTENSIONS.contains(name.substring(dot + 1)) && Files.size(file) >= MIN_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean gzip(Path asset) throws IOException {
+        Path target = asset.resolveSibling(asset.getFileName() + ".gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(target)) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            Files.copy(asset, out);
+        }
+        return keepIfSmaller(asset, target);
+    }
+
+    private static boolean brotli(Path asset) throws IOException, InterruptedException {
+        Path target = asset.resolveSibling(asset.getFileName() + ".br");
+        Process process = new ProcessBuilder("brotli", "--best", "--force", "--output=" + target, asset.toString())
+                .inheritIO()
+                .start();
+        if (process.waitFor() != 0) {
+            Files.deleteIfExists(target);
+            return false;
+        }
+        return keepIfSmaller(asset, target);
+    }
+
+    private static boolean keepIfSmaller(Path asset, Path variant) throws IOException {
+        if (Files.size(variant) < Files.size(asset)) {
+            return true;
+        }
+        Files.delete(variant);
+        return false;
+    }
+
+    private static boolean brotliAvailable() {
+        try {
+            return new ProcessBuilder("brotli", "--version")
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start()
+                    .waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}